@@ -9,6 +9,7 @@
 
 #include <errno.h>
 #include <fcntl.h>
+#include <poll.h>
 #include <pwd.h>
 #include <signal.h>
 #include <stdlib.h>
@@ -91,6 +92,12 @@ jint org_jessies_os_PosixJNI::get_1WCONTINUED() { return WCONTINUED; }
 jint org_jessies_os_PosixJNI::get_1WNOHANG() { return WNOHANG; }
 jint org_jessies_os_PosixJNI::get_1WUNTRACED() { return WUNTRACED; }
 
+jint org_jessies_os_PosixJNI::get_1POLLIN() { return POLLIN; }
+jint org_jessies_os_PosixJNI::get_1POLLOUT() { return POLLOUT; }
+jint org_jessies_os_PosixJNI::get_1POLLERR() { return POLLERR; }
+jint org_jessies_os_PosixJNI::get_1POLLHUP() { return POLLHUP; }
+jint org_jessies_os_PosixJNI::get_1POLLNVAL() { return POLLNVAL; }
+
 jint org_jessies_os_PosixJNI::get_1E2BIG() { return E2BIG; }
 jint org_jessies_os_PosixJNI::get_1EACCES() { return EACCES; }
 jint org_jessies_os_PosixJNI::get_1EADDRINUSE() { return EADDRINUSE; }
@@ -303,6 +310,46 @@ jint org_jessies_os_PosixJNI::open(jstring path, jint flags, jint mode) {
     return zeroOrMinusErrno(::open(JniString(m_env, path).c_str(), flags, mode));
 }
 
+jint org_jessies_os_PosixJNI::pipe(jintArray javaFds) {
+    int fds[2];
+    int result = ::pipe(fds);
+    if (result == 0) {
+        jint javaFdValues[2] = { fds[0], fds[1] };
+        m_env->SetIntArrayRegion(javaFds, 0, 2, javaFdValues);
+    }
+    return zeroOrMinusErrno(result);
+}
+
+jint org_jessies_os_PosixJNI::poll(jintArray javaFds, jintArray javaEvents, jintArray javaRevents, jint fdCount, jint timeoutMs) {
+    if (fdCount == 0) {
+        return resultOrMinusErrno(::poll(0, 0, timeoutMs));
+    }
+    
+    std::vector<jint> fds(fdCount);
+    std::vector<jint> events(fdCount);
+    m_env->GetIntArrayRegion(javaFds, 0, fdCount, &fds[0]);
+    m_env->GetIntArrayRegion(javaEvents, 0, fdCount, &events[0]);
+    if (m_env->ExceptionCheck()) {
+        return -1; // It doesn't matter what we return, because a Java exception will be thrown.
+    }
+    
+    std::vector<pollfd> pollFds(fdCount);
+    for (jint i = 0; i < fdCount; ++i) {
+        pollFds[i].fd = fds[i];
+        pollFds[i].events = events[i];
+        pollFds[i].revents = 0;
+    }
+    int result = ::poll(&pollFds[0], fdCount, timeoutMs);
+    if (result >= 0) {
+        std::vector<jint> revents(fdCount);
+        for (jint i = 0; i < fdCount; ++i) {
+            revents[i] = pollFds[i].revents;
+        }
+        m_env->SetIntArrayRegion(javaRevents, 0, fdCount, &revents[0]);
+    }
+    return resultOrMinusErrno(result);
+}
+
 jint org_jessies_os_PosixJNI::symlink(jstring oldpath, jstring newpath) {
     return zeroOrMinusErrno(::symlink(JniString(m_env, oldpath).c_str(), JniString(m_env, newpath).c_str()));
 }
@@ -470,3 +517,32 @@ jint org_jessies_os_PosixJNI::read(jint fd, jbyteArray buffer, jint bufferOffset
 jint org_jessies_os_PosixJNI::pread(jint fd, jbyteArray buffer, jint bufferOffset, jint byteCount, jlong fileOffset) {
     return doRead(m_env, fd, buffer, bufferOffset, byteCount, fileOffset, true);
 }
+
+// The direct ByteBuffer variants can use the buffer's memory in place, so there's no copying to do.
+static jbyte* directBufferAddress(JNIEnv* env, jobject buffer) {
+    return reinterpret_cast<jbyte*>(env->GetDirectBufferAddress(buffer));
+}
+
+jint org_jessies_os_PosixJNI::read(jint fd, jobject buffer, jint bufferOffset, jint byteCount) {
+    // See doWrite for why we avoid zero-byte transfers.
+    if (byteCount == 0) {
+        return 0;
+    }
+    jbyte* address = directBufferAddress(m_env, buffer);
+    if (address == 0) {
+        return -EINVAL;
+    }
+    return resultOrMinusErrno(::read(fd, address + bufferOffset, byteCount));
+}
+
+jint org_jessies_os_PosixJNI::write(jint fd, jobject buffer, jint bufferOffset, jint byteCount) {
+    // See doWrite for why we avoid zero-byte transfers.
+    if (byteCount == 0) {
+        return 0;
+    }
+    jbyte* address = directBufferAddress(m_env, buffer);
+    if (address == 0) {
+        return -EINVAL;
+    }
+    return resultOrMinusErrno(::write(fd, address + bufferOffset, byteCount));
+}
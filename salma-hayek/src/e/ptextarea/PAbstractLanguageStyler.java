@@ -1,7 +1,6 @@
 package e.ptextarea;
 
 import java.util.*;
-import e.util.*;
 
 /**
  * A PAbstractLanguageStyler does the main work for most of the various
@@ -19,18 +18,25 @@ import e.util.*;
  * @author Phil Norman
  */
 public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet commentCache;
+    // Whether each line ends inside a multi-line comment.
+    private PLineStateCache commentCache;
     
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
         if (textArea != null) {
-            initCommentCache();
-            initTextListener();
+            commentCache = new PLineStateCache(textArea) {
+                protected boolean getEndState(String line, boolean startsCommented) {
+                    return lineEndsCommented(line, startsCommented);
+                }
+            };
             textArea.setTextStyler(this);
         }
     }
     
+    @Override public boolean isIncremental() {
+        return true;
+    }
+    
     /**
      * Returns true if the style includes multi-line comments.
      * The multiLineCommentStart and multiLineCommentEnd methods are then used to get the actual delimiters used.
@@ -98,27 +104,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
     }
     
-    private void initTextListener() {
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
-            public void textCompletelyReplaced(PTextEvent event) {
-                initCommentCache();
-            }
-            
-            public void textInserted(PTextEvent event) {
-                dirtyFromOffset(event);
-            }
-            
-            public void textRemoved(PTextEvent event) {
-                dirtyFromOffset(event);
-            }
-        });
-    }
-    
-    private void initCommentCache() {
-        lastGoodLine = 0;
-        commentCache = new BitSet();
-    }
-    
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
         return getMainSegments(lineIndex, line);
@@ -126,7 +111,7 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     
     private List<PLineSegment> getMainSegments(int lineIndex, String line) {
         TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
-        boolean comment = startsCommented(lineIndex);
+        boolean comment = commentCache.getStartState(lineIndex);
         int lastStart = 0;
         for (int i = 0; i < line.length(); ) {
             if (comment) {
@@ -206,18 +191,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return result;
     }
     
-    private boolean startsCommented(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLineContents(i).toString();
-                commentCache.set(i + 1, lineEndsCommented(line, commentCache.get(i)));
-            }
-            lastGoodLine = lineIndex;
-        }
-        return commentCache.get(lineIndex);
-    }
-    
     /**
      * Returns true if the given line will end commented. By "end commented",
      * I think this means "end in an open comment that implies that the next
@@ -269,38 +242,4 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
         return comment;
     }
-    
-    private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        
-        boolean startsOrEndsMultiLineComment = false;
-        if (supportMultiLineComments()) {
-            int HORIZON = Math.max(multiLineCommentStart().length(), multiLineCommentEnd().length());
-            CharSequence entireText = textArea.getTextBuffer();
-            String prefix = entireText.subSequence(Math.max(0, event.getOffset() - HORIZON), event.getOffset()).toString();
-            int endIndex = event.getOffset();
-            if (event.isInsert()) {
-                endIndex += event.getLength();
-            }
-            String suffix = entireText.subSequence(endIndex, Math.min(endIndex + HORIZON, entireText.length())).toString();
-            String withMiddleText = prefix + event.getCharacters() + suffix;
-            String withoutMiddleText = prefix + suffix;
-            startsOrEndsMultiLineComment = hasCommentMarker(withMiddleText) || hasCommentMarker(withoutMiddleText);
-        }
-        
-        if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
-        }
-    }
-    
-    private boolean hasNewline(CharSequence text) {
-        return StringUtilities.contains(text, '\n');
-    }
-    
-    private boolean hasCommentMarker(String text) {
-        return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
-    }
 }
@@ -2,7 +2,7 @@ package e.ptextarea;
 
 import java.awt.*;
 
-public abstract class PAbstractSegment implements PLineSegment {
+public abstract class PAbstractSegment implements PLineSegment, Cloneable {
     protected PTextArea textArea;
     protected int start;
     protected int end;
@@ -71,6 +71,21 @@ public abstract class PAbstractSegment implements PLineSegment {
     
     public abstract void paint(Graphics2D g, int x, int yBaseline);
     
+    /**
+     * Returns a copy of this segment moved 'delta' characters along, for when text before its line changes but its line doesn't.
+     * Returns null if the segment can't be moved, in which case its line has to be restyled.
+     */
+    PAbstractSegment translatedBy(int delta) {
+        try {
+            PAbstractSegment result = (PAbstractSegment) clone();
+            result.start += delta;
+            result.end += delta;
+            return result;
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
     public String toString() {
         return "PAbstractSegment[" + style + ",start=" + start + ",end=" + end + ",\"" + getViewText() + "\"]";
     }
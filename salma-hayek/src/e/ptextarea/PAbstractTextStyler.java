@@ -15,6 +15,10 @@ public abstract class PAbstractTextStyler implements PTextStyler {
         return true;
     }
     
+    public boolean isIncremental() {
+        return false;
+    }
+    
     protected class TextSegmentListBuilder {
         private ArrayList<PLineSegment> list = new ArrayList<PLineSegment>();
         private int lineStartOffset;
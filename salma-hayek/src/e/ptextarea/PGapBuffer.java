@@ -0,0 +1,135 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * Stores text in a single char[] with a gap at the last edit, so a run of edits in the same place doesn't move the rest of the text.
+ * Edits elsewhere move everything between the gap and the new position, and growing the buffer copies all of it.
+ * See PPieceTable, which PTextBuffer uses instead.
+ */
+final class PGapBuffer implements PTextStorage {
+    private static final int MIN_BUFFER_EXTENSION = 100;
+    private static final int MAX_GAP_SIZE = 1024 * 2;
+    
+    private char[] text;
+    private int gapPosition;
+    private int gapLength;
+    
+    /**
+     * Note that this does not copy the given char[].
+     */
+    PGapBuffer(char[] text) {
+        this.text = text;
+        this.gapPosition = 0;
+        this.gapLength = 0;
+    }
+    
+    public int length() {
+        return text.length - gapLength;
+    }
+    
+    public char charAt(int index) {
+        return (index < gapPosition) ? text[index] : text[index + gapLength];
+    }
+    
+    public void getChars(int start, int end, char[] destination, int destinationOffset) {
+        int charCount = end - start;
+        int copyCount = 0;
+        if (start < gapPosition) {
+            copyCount = Math.min(charCount, gapPosition - start);
+            System.arraycopy(text, start, destination, destinationOffset, copyCount);
+        }
+        if (start + charCount >= gapPosition) {
+            int textPosition = Math.max(start, gapPosition) + gapLength;
+            System.arraycopy(text, textPosition, destination, destinationOffset + copyCount, charCount - copyCount);
+        }
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        // Search before the gap, then after it.
+        for (int i = startIndex; i < gapPosition; ++i) {
+            if (text[i] == ch) {
+                return i;
+            }
+        }
+        for (int i = Math.max(startIndex, gapPosition) + gapLength; i < text.length; ++i) {
+            if (text[i] == ch) {
+                return i - gapLength;
+            }
+        }
+        return -1;
+    }
+    
+    /** Moves the gap to the specified position. */
+    private void moveGap(int newPosition) {
+        if (gapPosition == newPosition) {
+            return;
+        }
+        if (newPosition < gapPosition) {
+            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
+        } else {
+            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
+        }
+        gapPosition = newPosition;
+    }
+    
+    private void changeBufferLength(int lengthChange) {
+        char[] newText = new char[text.length + lengthChange];
+        System.arraycopy(text, 0, newText, 0, gapPosition);
+        int endOffset = gapPosition + gapLength;
+        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
+        gapLength += lengthChange;
+        text = newText;
+    }
+    
+    /** Expands the buffer. */
+    private void expandBuffer(int requiredGapLength) {
+        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
+        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
+    }
+    
+    /** Shrinks the buffer. */
+    private void shrinkBuffer() {
+        if (gapLength > MAX_GAP_SIZE) {
+            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
+            changeBufferLength(desiredGapLength - gapLength);
+        }
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        moveGap(position);
+        int textLength = chars.length();
+        while (textLength > gapLength) {
+            expandBuffer(textLength);
+        }
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
+        } else {
+            // This is the price you pay for giving us a String.
+            for (int i = 0; i < chars.length(); ++i) {
+                text[gapPosition + i] = chars.charAt(i);
+            }
+        }
+        gapPosition += textLength;
+        gapLength -= textLength;
+    }
+    
+    public void remove(int position, int count) {
+        moveGap(position + count);
+        gapPosition -= count;
+        gapLength += count;
+        shrinkBuffer();
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        // Just write out the two halves as they are.
+        if (gapPosition != 0) {
+            writer.write(text, 0, gapPosition);
+        }
+        final int gapEnd = gapPosition + gapLength;
+        if (gapEnd < text.length) {
+            writer.write(text, gapEnd, text.length - gapEnd);
+        }
+    }
+}
@@ -1,24 +1,24 @@
 package e.ptextarea;
 
 import java.util.*;
-import e.util.*;
 
 public class PGoTextStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet mlStringCache;  // multi-line strings ('`...`')
+    private PLineStateCache mlStringCache;  // multi-line strings ('`...`')
 
     public PGoTextStyler(PTextArea textArea) {
         super(textArea);
         if (textArea != null) {
-            initMLStringCache();
-            initTextListener();
+            mlStringCache = new PLineStateCache(textArea) {
+                protected boolean getEndState(String line, boolean startsInMLString) {
+                    return lineEndsInMLString(line, startsInMLString);
+                }
+            };
             textArea.setTextStyler(this);
         }
     }
 
-    private void initMLStringCache() {
-        lastGoodLine = 0;
-        mlStringCache = new BitSet();
+    @Override public boolean isIncremental() {
+        return true;
     }
 
     public void initStyleApplicators() {
@@ -55,7 +55,7 @@ public class PGoTextStyler extends PAbstractTextStyler {
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
         TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
-        boolean mlString = startsInMLString(lineIndex);
+        boolean mlString = mlStringCache.getStartState(lineIndex);
         int lastStart = 0;
         for (int i = 0; i < line.length(); ) {
             if (mlString) {
@@ -135,44 +135,6 @@ public class PGoTextStyler extends PAbstractTextStyler {
         return result;
     }
 
-    private void initTextListener() {
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
-            public void textCompletelyReplaced(PTextEvent event) {
-                initMLStringCache();
-            }
-
-            public void textInserted(PTextEvent event) {
-                dirtyFromOffset(event);
-            }
-
-            public void textRemoved(PTextEvent event) {
-                dirtyFromOffset(event);
-            }
-        });
-    }
-
-    private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        if (StringUtilities.contains(event.getCharacters(), '`') || StringUtilities.contains(event.getCharacters(), '\n')) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
-        }
-    }
-
-    private boolean startsInMLString(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLineContents(i).toString();
-                mlStringCache.set(i + 1, lineEndsInMLString(line, mlStringCache.get(i)));
-            }
-            lastGoodLine = lineIndex;
-        }
-        return mlStringCache.get(lineIndex);
-    }
-
     private boolean lineEndsInMLString(String line, boolean startsInMLString) {
         boolean inString = startsInMLString;
         int index = 0;
@@ -9,14 +9,29 @@ import e.util.*;
  * This allows PTextArea to easily index the text by lines.
  * Note that this class deals only with logical lines, that is lines separated by line terminators.
  * Line wrapping is neither handled nor represented here: see SplitLine for that.
+ *
+ * We only keep each line's length (including its newline) and render width, in primitive arrays.
+ * The lengths are in a FenwickTree, so a line's start is a prefix sum, and the line containing an index can be found from the sums, both in O(log n), and changing a line's length is O(log n) too.
+ * The arrays have a gap of unused slots, which have zero length and so don't affect the sums, after the lines most recently added or removed.
+ * Adding or removing lines near there just fills or empties slots, so typing a newline is O(log n) as well.
+ * Moving the gap further than a small fraction of the lines, or running out of gap, rebuilds the arrays in O(n).
  */
 public class PLineList implements PTextListener {
     private static final int INVALID_WIDTH = -1;
     
+    // How big a gap to leave when we rebuild the arrays, as a fraction of the line count, and at least.
+    private static final int GAP_FRACTION = 16;
+    private static final int MIN_GAP_LENGTH = 64;
+    
     private final PTextBuffer text;
     
-    private ArrayList<Line> lines;
-    private int lastValidLineIndex;
+    // The length of the line in each slot.
+    private FenwickTree lengths;
+    // The render width of the line in each slot, or INVALID_WIDTH.
+    private int[] widths;
+    // The first slot of the gap, which is also the index of the line after it, and the number of slots in it.
+    private int gapStart;
+    private int gapLength;
     
     private final ArrayList<PLineListener> listeners = new ArrayList<PLineListener>();
     
@@ -28,8 +43,8 @@ public class PLineList implements PTextListener {
     
     public void logLineInfo() {
         Log.warn("Dumping PLineList line info:");
-        for (int i = 0; i < lines.size(); i++) {
-            Line line = lines.get(i);
+        for (int i = 0; i < size(); i++) {
+            Line line = getLine(i);
             Log.warn(i + ": start " + line.getStart() + ", length " + line.getLength() + ", end " + (line.getStart() + line.getLength()) + ", width " + line.width);
         }
     }
@@ -54,9 +69,7 @@ public class PLineList implements PTextListener {
      * contained in the coordinates argument.
      */
     public int getIndex(PCoordinates coords) {
-        validateStartPositions(coords.getLineIndex());
-        Line line = getLine(coords.getLineIndex());
-        return line.getStart() + coords.getCharOffset();
+        return getLineStart(coords.getLineIndex()) + coords.getCharOffset();
     }
     
     /**
@@ -67,9 +80,8 @@ public class PLineList implements PTextListener {
         if (index < 0 || index >= text.length()) {
             throw new IndexOutOfBoundsException("Index " + index + " out of bounds in text of length " + text.length());
         }
-        validateStartPositions(lines.size());
         int line = getLineIndex(index);
-        int charOffset = index - getLine(line).getStart();
+        int charOffset = index - getLineStart(line);
         return new PCoordinates(line, charOffset);
     }
     
@@ -78,34 +90,48 @@ public class PLineList implements PTextListener {
      * within the underlying PTextBuffer model.
      */
     public int getLineIndex(int charIndex) {
-        int minLine = 0;
-        int maxLine = lines.size();
-        while (maxLine - minLine > 1) {
-            int midLine = (maxLine + minLine) / 2;
-            Line mid = getLine(midLine);
-            if (mid.containsIndex(charIndex)) {
-                return midLine;
-            }
-            if (charIndex < mid.getStart()) {
-                maxLine = midLine;
-            } else {
-                minLine = midLine;
-            }
+        // The gap's slots are empty, so this is never in the gap: either it's before it, or it's past it because the line after the gap starts at or before 'charIndex'.
+        int slot = lengths.findEnd(charIndex);
+        if (slot >= lengths.size()) {
+            // The end of the text, which we consider part of the last line.
+            return size() - 1;
         }
-        return minLine;
+        return (slot < gapStart) ? slot : slot - gapLength;
     }
     
     /**
      * Returns the number of lines within this model.
      */
     public int size() {
-        return lines.size();
+        return lengths.size() - gapLength;
     }
     
     /** Returns an object representing information about the line with the given index. */
     public Line getLine(int lineIndex) {
-        validateStartPositions(lineIndex);
-        return lines.get(lineIndex);
+        int slot = getSlot(lineIndex);
+        return new Line(this, lineIndex, lengths.sumTo(slot), lengths.get(slot), widths[slot]);
+    }
+    
+    private int getSlot(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= size()) {
+            throw new IndexOutOfBoundsException("line " + lineIndex + " not in [0, " + size() + ")");
+        }
+        return (lineIndex < gapStart) ? lineIndex : lineIndex + gapLength;
+    }
+    
+    /** Returns the same as getLine(lineIndex).getStart(), without making a Line. */
+    int getLineStart(int lineIndex) {
+        return lengths.sumTo(getSlot(lineIndex));
+    }
+    
+    private int getLineLength(int lineIndex) {
+        return lengths.get(getSlot(lineIndex));
+    }
+    
+    private void setLineLength(int lineIndex, int length) {
+        int slot = getSlot(lineIndex);
+        lengths.set(slot, length);
+        widths[slot] = INVALID_WIDTH;
     }
     
     private void fireEvent(PLineEvent event) {
@@ -126,32 +152,25 @@ public class PLineList implements PTextListener {
             }
         }
     }
-
+    
     /** Handles text insertion notifications from the underlying PTextBuffer model. */
     public void textInserted(PTextEvent event) {
         int lineIndex = getLineIndex(event.getOffset());
-        int startIndex = lineIndex;
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
             int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            int endChars = line.getLength() - charOffset;  // The characters after the insert position.
-            line.setLength(charOffset + segmentLengths[0]);
-            for (int i = 1; i < segmentLengths.length; i++) {
-                lineIndex++;
-                line = new Line(line.getStart() + line.getLength(), segmentLengths[i]);
-                lines.add(lineIndex, line);
-            }
-            line.setLength(line.getLength() + endChars);
+            int charOffset = event.getOffset() - getLineStart(lineIndex);
+            int endChars = getLineLength(lineIndex) - charOffset;  // The characters after the insert position.
+            segmentLengths[0] += charOffset;
+            segmentLengths[newlineCount] += endChars;
+            replaceLines(lineIndex, 1, segmentLengths);
         } else {
-            line.setLength(line.getLength() + chars.length());
+            setLineLength(lineIndex, getLineLength(lineIndex) + chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
-        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, startIndex, 1));
+        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
-            fireEvent(new PLineEvent(this, PLineEvent.ADDED, startIndex + 1, newlineCount));
+            fireEvent(new PLineEvent(this, PLineEvent.ADDED, lineIndex + 1, newlineCount));
         }
     }
     
@@ -160,22 +179,15 @@ public class PLineList implements PTextListener {
         int lineIndex = getLineIndex(event.getOffset());
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
-            // FIXME: Elliott suggests that we might only need the last element of this array.
-            int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            // FIXME: Elliott suggests that reordering could remove the need for the tricksy arithmetic.
-            if (segmentLengths.length > 2) {
-                lines.subList(lineIndex + 1, lineIndex + 1 + segmentLengths.length - 2).clear();
-            }
-            int endChars = getLine(lineIndex + 1).getLength() - segmentLengths[segmentLengths.length - 1];
-            lines.remove(lineIndex + 1);
-            line.setLength(charOffset + endChars);
+            // The line the removal starts in is joined to what's left of the line it ends in.
+            int lastSegmentLength = getLastSegmentLength(chars);
+            int charOffset = event.getOffset() - getLineStart(lineIndex);
+            int endChars = getLineLength(lineIndex + newlineCount) - lastSegmentLength;
+            replaceLines(lineIndex, newlineCount + 1, new int[] { charOffset + endChars });
         } else {
-            line.setLength(line.getLength() - chars.length());
+            setLineLength(lineIndex, getLineLength(lineIndex) - chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
         fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
             fireEvent(new PLineEvent(this, PLineEvent.REMOVED, lineIndex + 1, newlineCount));
@@ -194,46 +206,129 @@ public class PLineList implements PTextListener {
         return result;
     }
     
+    /** Returns the number of characters after the last newline in 'chars'. */
+    private static int getLastSegmentLength(CharSequence chars) {
+        int i = chars.length();
+        while (chars.charAt(i - 1) != '\n') {
+            --i;
+        }
+        return chars.length() - i;
+    }
+    
     /** Handles complete text replacement notifications from the underlying PTextBuffer model. */
     public void textCompletelyReplaced(PTextEvent event) {
         generateLines();
-        fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, lines.size()));
+        fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, size()));
     }
     
-    private void linesAreInvalidAfter(int lineIndex) {
-        lastValidLineIndex = Math.min(lastValidLineIndex, lineIndex);
+    /**
+     * Replaces the 'removeCount' lines starting at 'firstLine' with lines of the given lengths, whose widths aren't yet known.
+     */
+    private void replaceLines(int firstLine, int removeCount, int[] newLengths) {
+        final int growth = newLengths.length - removeCount;
+        final int gapDistance = Math.abs(firstLine + removeCount - gapStart);
+        if (growth > gapLength || gapDistance > lengths.size() / GAP_FRACTION) {
+            rebuild(firstLine, removeCount, newLengths);
+            return;
+        }
+        // Bring the gap to the end of the lines being removed, and then grow it back over them.
+        moveGap(firstLine + removeCount);
+        for (int slot = firstLine; slot < gapStart; ++slot) {
+            lengths.set(slot, 0);
+        }
+        gapLength += removeCount;
+        gapStart = firstLine;
+        // Now fill the start of the gap with the new lines.
+        for (int i = 0; i < newLengths.length; ++i) {
+            lengths.set(gapStart + i, newLengths[i]);
+            widths[gapStart + i] = INVALID_WIDTH;
+        }
+        gapStart += newLengths.length;
+        gapLength -= newLengths.length;
     }
     
-    private void validateStartPositions(int toLineIndex) {
-        if (toLineIndex > lastValidLineIndex) {
-            for (int i = lastValidLineIndex; i < toLineIndex; i++) {
-                // We must get the lines straight out of the ArrayList, and must not call getLine,
-                // since that in turn would call this method, resulting in an infinite recursion.
-                Line prevLine = lines.get(i);
-                Line thisLine = lines.get(i + 1);
-                thisLine.setStart(prevLine.getStart() + prevLine.getLength());
+    /** Moves the gap so that it's just before the line with index 'lineIndex', moving the lines in between across it. */
+    private void moveGap(int lineIndex) {
+        if (lineIndex < gapStart) {
+            // Move the lines before the gap to after it, last first so we never overwrite a line we've yet to move.
+            for (int slot = gapStart - 1; slot >= lineIndex; --slot) {
+                moveSlot(slot, slot + gapLength);
+            }
+        } else {
+            for (int slot = gapStart + gapLength; slot < lineIndex + gapLength; ++slot) {
+                moveSlot(slot, slot - gapLength);
             }
-            lastValidLineIndex = toLineIndex;
         }
+        gapStart = lineIndex;
+    }
+    
+    private void moveSlot(int from, int to) {
+        int length = lengths.get(from);
+        lengths.set(from, 0);
+        lengths.set(to, length);
+        widths[to] = widths[from];
+    }
+    
+    /**
+     * Rebuilds the arrays, replacing the 'removeCount' lines starting at 'firstLine' with lines of the given lengths, and leaving a new gap after them.
+     */
+    private void rebuild(int firstLine, int removeCount, int[] newLengths) {
+        final int[] oldLengths = lengths.toArray();
+        final int[] oldWidths = widths;
+        final int oldGapStart = gapStart;
+        final int oldGapLength = gapLength;
+        final int lineCount = size() - removeCount + newLengths.length;
+        final int newGapStart = firstLine + newLengths.length;
+        final int newGapLength = Math.max(MIN_GAP_LENGTH, lineCount / GAP_FRACTION);
+    
+        int[] slotLengths = new int[lineCount + newGapLength];
+        widths = new int[slotLengths.length];
+        for (int line = 0; line < firstLine; ++line) {
+            int oldSlot = (line < oldGapStart) ? line : line + oldGapLength;
+            slotLengths[line] = oldLengths[oldSlot];
+            widths[line] = oldWidths[oldSlot];
+        }
+        for (int i = 0; i < newLengths.length; ++i) {
+            slotLengths[firstLine + i] = newLengths[i];
+            widths[firstLine + i] = INVALID_WIDTH;
+        }
+        for (int line = newGapStart; line < lineCount; ++line) {
+            int oldLine = line - newLengths.length + removeCount;
+            int oldSlot = (oldLine < oldGapStart) ? oldLine : oldLine + oldGapLength;
+            slotLengths[line + newGapLength] = oldLengths[oldSlot];
+            widths[line + newGapLength] = oldWidths[oldSlot];
+        }
+        // The new gap's slots are already zero. Their widths don't matter.
+        lengths = new FenwickTree(slotLengths, slotLengths.length);
+        gapStart = newGapStart;
+        gapLength = newGapLength;
     }
     
     private void generateLines() {
-        lines = new ArrayList<Line>();
+        int[] lineLengths = new int[1024];
+        int lineCount = 0;
         int lastLineStart = 0;
         int nextNewline;
         while ((nextNewline = text.indexOf('\n', lastLineStart)) != -1) {
             // Everything from the last line start up to and including the newline is a new line.
-            lines.add(new Line(lastLineStart, nextNewline + 1 - lastLineStart));
+            if (lineCount == lineLengths.length) {
+                lineLengths = Arrays.copyOf(lineLengths, 2 * lineCount);
+            }
+            lineLengths[lineCount++] = nextNewline + 1 - lastLineStart;
             lastLineStart = nextNewline + 1;
         }
-        lines.add(new Line(lastLineStart, text.length() - lastLineStart));
-        lastValidLineIndex = lines.size() - 1;
+        // The last line, which may be empty, has no newline; the gap goes after it.
+        gapStart = lineCount + 1;
+        gapLength = MIN_GAP_LENGTH;
+        int[] slotLengths = Arrays.copyOf(lineLengths, gapStart + gapLength);
+        slotLengths[lineCount] = text.length() - lastLineStart;
+        lengths = new FenwickTree(slotLengths, slotLengths.length);
+        widths = new int[slotLengths.length];
+        Arrays.fill(widths, INVALID_WIDTH);
     }
     
     public void invalidateWidths() {
-        for (int i = 0; i < lines.size(); ++i) {
-            lines.get(i).width = INVALID_WIDTH;
-        }
+        Arrays.fill(widths, INVALID_WIDTH);
     }
     
     /**
@@ -247,72 +342,66 @@ public class PLineList implements PTextListener {
     
     /** Returns whether the render width is valid.  To be used only by the PTextArea. */
     public boolean isWidthValid(int lineIndex) {
-        return getLine(lineIndex).width != INVALID_WIDTH;
+        return getWidth(lineIndex) != INVALID_WIDTH;
     }
     
     /** Returns the render width of the text.  To be used only by the PTextArea. */
     public int getWidth(int lineIndex) {
-        return getLine(lineIndex).width;
+        return widths[getSlot(lineIndex)];
     }
     
     /**
      * A PLineList.Line holds information about the location and length of a particular line of
      * text.  It also contains information about how wide this line is when its text is rendered.
-     * 
-     * FIXME: we create a large number of these small but long-lived objects. Maybe PLineList should contain three int[]s instead? We could still hand a Line to callers if we wished.
+     *
+     * The PLineList only keeps the numbers, so this is a snapshot, which setWidth writes through to the PLineList it came from.
      */
     public static class Line {
-        private int start;
-        private int length;
+        private final PLineList lineList;
+        private final int lineIndex;
+        private final int start;
+        private final int length;
         private int width;
-        
+    
         public Line(int start, int length) {
+            this(null, -1, start, length, INVALID_WIDTH);
+        }
+    
+        private Line(PLineList lineList, int lineIndex, int start, int length, int width) {
+            this.lineList = lineList;
+            this.lineIndex = lineIndex;
             this.start = start;
             this.length = length;
-            this.width = INVALID_WIDTH;
+            this.width = width;
         }
-        
+    
         /** Sets the render width of the text.  To be used only by the PTextArea. */
         public void setWidth(int width) {
             this.width = width;
+            if (lineList != null) {
+                lineList.widths[lineList.getSlot(lineIndex)] = width;
+            }
         }
-        
+    
         /** Returns the character offset within the underlying PTextBuffer model of the start of this line. */
         public int getStart() {
             return start;
         }
-        
+    
         /** Returns the number of characters in this line, including the newline character if there is one. */
         public int getLength() {
             return length;
         }
-        
-        private void setStart(int start) {
-            this.start = start;
-        }
-        
-        private void setLength(int length) {
-            this.length = length;
-            this.width = INVALID_WIDTH;
-        }
-        
+    
         private int getLengthBeforeTerminator(PTextBuffer text) {
             return isLineTerminated(text) ? length - 1 : length;
         }
-        
+    
         /** Returns the offset of the end of this line, not including any newline character. */
         public int getEndOffsetBeforeTerminator(PTextBuffer text) {
             return start + getLengthBeforeTerminator(text);
         }
-        
-        /**
-         * Returns true if the specified character offset from the start of the underlying PTextBuffer model is
-         * held within this line.
-         */
-        private boolean containsIndex(int charIndex) {
-            return (charIndex >= start) && (charIndex < start + length);
-        }
-        
+    
         /** Returns true when this line is terminated by a newline character. */
         private boolean isLineTerminated(PTextBuffer text) {
             if (length == 0) {
@@ -0,0 +1,183 @@
+package e.ptextarea;
+
+import java.util.*;
+import e.util.*;
+import org.jessies.test.*;
+
+/**
+ * Remembers, for a styler, the state its lexer is in at the end of each line: whether the line ends inside a multi-line comment, say.
+ * The state at the end of one line is the state at the start of the next, so styling a line only means lexing the lines before it once.
+ *
+ * After an edit, we re-lex from the first edited line only until a line after the edit ends in the same state it did before:
+ * the lines after that start in the same state they always did, so their styling can't have changed, and we don't touch them.
+ * The lines in between, whose starting state did change, are restyled with PTextArea.restyleLines.
+ * So typing normally re-lexes one line, and opening a comment re-lexes until the next place a comment would have ended anyway.
+ *
+ * We only know the states of the lines up to the last one anything asked about, and only lex further when asked.
+ */
+abstract class PLineStateCache implements PTextListener {
+    private final PTextArea textArea;
+    // The state at the end of each line, for lines before validLineCount.
+    private boolean[] endStates = new boolean[256];
+    private int validLineCount = 0;
+    
+    PLineStateCache(PTextArea textArea) {
+        this.textArea = textArea;
+        // The PLineList listens too, and was here first, so it's always up to date by the time we hear about a change.
+        textArea.getTextBuffer().addTextListener(this);
+    }
+    
+    /**
+     * Returns the state at the end of 'line', which starts in 'startState'.
+     */
+    protected abstract boolean getEndState(String line, boolean startState);
+    
+    /**
+     * Returns the state at the start of the line with the given index.
+     */
+    public synchronized boolean getStartState(int lineIndex) {
+        if (lineIndex == 0) {
+            return false;
+        }
+        if (validLineCount < lineIndex) {
+            ensureCapacity(lineIndex);
+            PLineList lineList = textArea.getLineList();
+            for (int i = validLineCount; i < lineIndex; ++i) {
+                endStates[i] = getEndState(lineList.getLineContents(i).toString(), (i == 0) ? false : endStates[i - 1]);
+            }
+            validLineCount = lineIndex;
+        }
+        return endStates[lineIndex - 1];
+    }
+    
+    private void ensureCapacity(int lineCount) {
+        if (lineCount > endStates.length) {
+            endStates = Arrays.copyOf(endStates, Math.max(lineCount, 2 * endStates.length));
+        }
+    }
+    
+    public synchronized void textCompletelyReplaced(PTextEvent event) {
+        // The text area restyles everything anyway.
+        validLineCount = 0;
+    }
+    
+    public void textInserted(PTextEvent event) {
+        linesReplaced(event, 1, 1 + StringUtilities.count(event.getCharacters(), '\n'));
+    }
+    
+    public void textRemoved(PTextEvent event) {
+        linesReplaced(event, 1 + StringUtilities.count(event.getCharacters(), '\n'), 1);
+    }
+    
+    /**
+     * Handles an edit which replaced 'oldLineCount' lines, starting with the one containing the event's offset, with 'newLineCount' lines.
+     */
+    private synchronized void linesReplaced(PTextEvent event, int oldLineCount, int newLineCount) {
+        final int firstLine = textArea.getLineList().getLineIndex(event.getOffset());
+        if (validLineCount < firstLine + oldLineCount) {
+            // We didn't know how the old lines ended, so nobody's styled anything after them, and there's nothing to restyle.
+            validLineCount = Math.min(validLineCount, firstLine);
+            return;
+        }
+        
+        // Move the states of the lines after the edit along with their lines.
+        // The end of the last old line is now the end of the last new line, so we move its state too, to compare with.
+        final int oldEnd = firstLine + oldLineCount;
+        final int newEnd = firstLine + newLineCount;
+        ensureCapacity(validLineCount + newLineCount - oldLineCount);
+        System.arraycopy(endStates, oldEnd - 1, endStates, newEnd - 1, validLineCount - oldEnd + 1);
+        validLineCount += newLineCount - oldLineCount;
+        
+        PLineList lineList = textArea.getLineList();
+        int i = firstLine;
+        for (; i < validLineCount; ++i) {
+            boolean endState = getEndState(lineList.getLineContents(i).toString(), (i == 0) ? false : endStates[i - 1]);
+            if (i >= newEnd - 1 && endState == endStates[i]) {
+                break;
+            }
+            endStates[i] = endState;
+        }
+        // The lines after the new lines, up to and including the one after the last line we changed the state of, start differently.
+        if (i > newEnd - 1 && newEnd < lineList.size()) {
+            textArea.restyleLines(newEnd, Math.min(i, lineList.size() - 1));
+        }
+    }
+    
+    private static final PTextBuffer.SelectionSetter NO_SELECTION = new PTextBuffer.SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    private static PTextArea makeTextArea(String text) {
+        PTextArea textArea = new PTextArea();
+        new PCTextStyler(textArea);
+        textArea.getTextBuffer().replace(NO_SELECTION, 0, 0, text, NO_SELECTION);
+        return textArea;
+    }
+    
+    private static String describeSegments(PTextArea textArea) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < textArea.getLineCount(); ++i) {
+            for (PLineSegment segment : textArea.getLineSegments(i)) {
+                result.append(segment.getStyle()).append('@').append(segment.getOffset()).append('-').append(segment.getEnd()).append(' ');
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Styles every line of 'textArea', so the styling's cached, then makes the given edit,
+     * and checks that the styling we end up with is the same as styling the new text from scratch.
+     */
+    private static void checkEdit(PTextArea textArea, int offset, int removeCount, String insertion) {
+        describeSegments(textArea);
+        textArea.getTextBuffer().replace(NO_SELECTION, offset, removeCount, insertion, NO_SELECTION);
+        String text = textArea.getTextBuffer().toString();
+        Assert.equals(describeSegments(textArea), describeSegments(makeTextArea(text)));
+    }
+    
+    @Test private static void testSplittingAndJoiningLines() {
+        PTextArea textArea = makeTextArea("int x = 1; // one\nint y = 2;\n\"two\";\nreturn x;\n");
+        // Split the first line in two, then join them back up.
+        checkEdit(textArea, 10, 0, "\n");
+        checkEdit(textArea, 10, 1, "");
+        // Join the first two lines, so the second ends up in the first's comment.
+        checkEdit(textArea, 17, 1, "");
+        checkEdit(textArea, 17, 0, "\n");
+    }
+    
+    @Test private static void testOpeningAndClosingComments() {
+        PTextArea textArea = makeTextArea("int x = 1;\nint y = 2;\n/* old */\nint z = 3;\n\"four\";\n");
+        // Opening a comment changes the lines up to the place the old comment ended.
+        checkEdit(textArea, 0, 0, "/*");
+        checkEdit(textArea, 0, 2, "");
+        checkEdit(textArea, 11, 0, "/*");
+        checkEdit(textArea, 13, 0, "*/");
+        checkEdit(textArea, 11, 4, "");
+        // Joining lines inside a comment, and splitting a comment's closing line.
+        checkEdit(textArea, 0, 0, "/*\n");
+        checkEdit(textArea, 13, 1, "");
+        checkEdit(textArea, 28, 0, "\n");
+        checkEdit(textArea, 0, 3, "");
+    }
+    
+    @Test private static void testRandomEdits() {
+        final String[] insertions = { "\n", "x", "/*", "*/", "\"", "//", "\n/*\n", "*/\n" };
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; ++i) {
+            text.append(insertions[random.nextInt(insertions.length)]).append("int x;\n");
+        }
+        PTextArea textArea = makeTextArea(text.toString());
+        for (int i = 0; i < 200; ++i) {
+            final int length = textArea.getTextBuffer().length();
+            if (random.nextBoolean() && length > 0) {
+                int offset = random.nextInt(length);
+                checkEdit(textArea, offset, Math.min(length - offset, 1 + random.nextInt(4)), "");
+            } else {
+                checkEdit(textArea, random.nextInt(length + 1), 0, insertions[random.nextInt(insertions.length)]);
+            }
+        }
+    }
+}
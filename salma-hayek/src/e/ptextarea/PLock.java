@@ -1,7 +1,9 @@
 package e.ptextarea;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PLock manages the locking for a PTextArea, although it could likely be used for any
@@ -13,6 +15,8 @@ import e.util.*;
  * 3: Many read locks can be given.
  * 4: While at least one read lock is held, no write lock may be given, except to the thread which holds the
  *     read lock when it is the only one holding a read lock.
+ * 5: While a thread waits for the write lock, no read locks are given to threads which don't already hold one,
+ *     so a steady stream of readers can't keep a writer waiting forever.
  * 
  * Using this class correctly is very important.  Failure to do so will result in the whole text area locking up.
  * Follow this pattern:
@@ -25,94 +29,161 @@ import e.util.*;
  *         area.getLock().relinquishReadLock();
  *     }
  * }
- *
+ * 
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
  * 
- * FIXME: switch to java.util.concurrent.ReentrantReadWriteLock?
+ * Short reads can avoid the lock altogether, if they can cope with seeing the text half way through a change:
+ * 
+ *     long stamp = lock.tryOptimisticRead();
+ *     if (stamp != 0) {
+ *         try {
+ *             int result = readSomething();
+ *             if (lock.validate(stamp)) {
+ *                 return result;
+ *             }
+ *         } catch (RuntimeException ex) {
+ *             // We raced with a writer, and should try again with the read lock.
+ *         }
+ *     }
+ *     // Get the read lock as above, and call readSomething again.
+ * 
+ * We don't use java.util.concurrent.locks.ReentrantReadWriteLock because it doesn't allow rule 4,
+ * and we don't require Java 8 for StampedLock, which isn't reentrant anyway.
+ * Taking and giving up a read lock, which we do for every line we paint, is just a ThreadLocal lookup when the
+ * thread already holds one, and otherwise a couple of atomic operations; we only synchronize to wait.
  * 
  * @author Phil Norman
  */
 
 public class PLock {
-    private Map<Thread, Integer> readLocks = new HashMap<Thread, Integer>();
-    private Thread writeLock = null;
+    // How many read locks the current thread holds.
+    private final ThreadLocal<int[]> readLockCounts = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    // How many threads hold read locks.
+    private final AtomicInteger readerCount = new AtomicInteger(0);
+    // The thread holding the write lock, or, briefly, the one checking whether it can.
+    private final AtomicReference<Thread> writeLock = new AtomicReference<Thread>(null);
+    // Only touched by the thread holding the write lock.
     private int writeLockCount = 0;
+    private final AtomicInteger waitingWriterCount = new AtomicInteger(0);
+    // Odd while the write lock is held; each writer increments it when it gets the lock and again when it relinquishes it.
+    // Starts at 2 so that no valid stamp is 0.
+    private final AtomicLong version = new AtomicLong(2);
     
-    public synchronized void getReadLock() {
+    public void getReadLock() {
+        int[] lockCount = readLockCounts.get();
+        if (lockCount[0]++ > 0) {
+            // No other thread can get the write lock while we hold a read lock, and we mustn't wait for one that wants it.
+            return;
+        }
         Thread currentThread = Thread.currentThread();
         final long startTimeNs = System.nanoTime();
         boolean gotStuck = false;
-        while (canClaimReadLock(currentThread) == false) {
+        while (true) {
+            readerCount.incrementAndGet();
+            if (canClaimReadLock(currentThread)) {
+                break;
+            }
+            // Back out, and let the writer know in case it's waiting for us.
+            readerCount.decrementAndGet();
             gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get read lock.", ex);
+            synchronized (this) {
+                notifyAll();
+                while (canClaimReadLock(currentThread) == false) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Log.warn("Interrupted while attempting to get read lock.", ex);
+                    }
+                }
             }
         }
         report(gotStuck, startTimeNs, "read");
-        if (readLocks.containsKey(currentThread)) {
-            readLocks.put(currentThread, 1 + readLocks.get(currentThread));
-        } else {
-            readLocks.put(currentThread, 1);
-        }
     }
     
     private boolean canClaimReadLock(Thread currentThread) {
-        return ((writeLock == null) || (writeLock == currentThread));
+        Thread writer = writeLock.get();
+        return (writer == currentThread) || (writer == null && waitingWriterCount.get() == 0);
     }
     
-    public synchronized void relinquishReadLock() {
-        Thread currentThread = Thread.currentThread();
-        if (readLocks.containsKey(currentThread) == false) {
-            throw new RuntimeException("Cannot relinquish read lock on thread " + currentThread + " because it does not hold a lock.");
+    public void relinquishReadLock() {
+        int[] lockCount = readLockCounts.get();
+        if (lockCount[0] == 0) {
+            throw new RuntimeException("Cannot relinquish read lock on thread " + Thread.currentThread() + " because it does not hold a lock.");
         }
-        int newLockCount = readLocks.get(currentThread) - 1;
-        if (newLockCount == 0) {
-            readLocks.remove(currentThread);
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
-        } else {
-            readLocks.put(currentThread, newLockCount);
+        if (--lockCount[0] == 0) {
+            readerCount.decrementAndGet();
+            if (writeLock.get() != null || waitingWriterCount.get() > 0) {
+                synchronized (this) {
+                    notifyAll();  // IMPORTANT: allow waiting writers to wake up and check if they can get the lock now.
+                }
+            }
         }
     }
     
-    public synchronized void getWriteLock() {
+    public void getWriteLock() {
         //Log.warn("getWriteLock() in thread " + Thread.currentThread());
         //dumpLocks();
         Thread currentThread = Thread.currentThread();
+        if (writeLock.get() == currentThread) {
+            writeLockCount++;
+            return;
+        }
         final long startTimeNs = System.nanoTime();
         boolean gotStuck = false;
-        while (canClaimWriteLock(currentThread) == false) {
+        waitingWriterCount.incrementAndGet();
+        while (tryClaimWriteLock(currentThread) == false) {
             gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get write lock.", ex);
+            synchronized (this) {
+                while (canClaimWriteLock(currentThread) == false) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Log.warn("Interrupted while attempting to get write lock.", ex);
+                    }
+                }
             }
         }
+        waitingWriterCount.decrementAndGet();
+        version.incrementAndGet();
         report(gotStuck, startTimeNs, "write");
-        writeLock = currentThread;
         writeLockCount++;
     }
     
     private boolean canClaimWriteLock(Thread currentThread) {
-        if (writeLock == currentThread) {
-            return true;
-        } else if (writeLock != null) {
+        return writeLock.get() == null && readerCount.get() <= ourReaderCount();
+    }
+    
+    /**
+     * Takes the write lock if there's no writer and no other reader.
+     * Readers check for us after counting themselves, and we check for them after marking ourselves, so one of us always sees the other.
+     */
+    private boolean tryClaimWriteLock(Thread currentThread) {
+        if (writeLock.compareAndSet(null, currentThread) == false) {
             return false;
-        } else if (readLocks.size() == 0) {
+        }
+        if (readerCount.get() <= ourReaderCount()) {
             return true;
-        } else if (readLocks.size() > 1) {
-            return false;
-        } else {
-            return readLocks.containsKey(currentThread);
         }
+        writeLock.set(null);
+        synchronized (this) {
+            notifyAll();  // Any reader which saw us in the meantime is waiting for us.
+        }
+        return false;
+    }
+    
+    private int ourReaderCount() {
+        return (readLockCounts.get()[0] > 0) ? 1 : 0;
     }
     
-    public synchronized void relinquishWriteLock() {
+    public void relinquishWriteLock() {
         //Log.warn("relinquishWriteLock() in thread " + Thread.currentThread());
         Thread currentThread = Thread.currentThread();
-        if (writeLock != currentThread) {
+        if (writeLock.get() != currentThread) {
             throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
         }
         if (writeLockCount <= 0) {
@@ -120,11 +191,31 @@ public class PLock {
         }
         writeLockCount--;
         if (writeLockCount == 0) {
-            writeLock = null;
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+            version.incrementAndGet();
+            writeLock.set(null);
+            synchronized (this) {
+                notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+            }
         }
     }
     
+    /**
+     * Returns a stamp to pass to validate after reading without a lock, or 0 if the write lock is held, in which case you should get the read lock instead.
+     * This never waits, and never allocates.
+     */
+    public long tryOptimisticRead() {
+        long stamp = version.get();
+        return ((stamp & 1) == 0) ? stamp : 0;
+    }
+    
+    /**
+     * Returns true if nobody has had the write lock since 'stamp' was returned by tryOptimisticRead, so anything read since then is consistent.
+     */
+    public boolean validate(long stamp) {
+        // A compare-and-set rather than a plain get so that the reads before it can't be reordered after it.
+        return stamp != 0 && version.compareAndSet(stamp, stamp);
+    }
+    
     private void report(boolean gotStuck, long startTimeNs, String type) {
         if (gotStuck == false) {
             return;
@@ -137,13 +228,161 @@ public class PLock {
         Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
     }
     
-    private synchronized void dumpLocks() {
+    private void dumpLocks() {
         Log.warn("PLock dump...");
-        Log.warn("Write lock on " + writeLock + " (count=" + writeLockCount + ")");
-        Log.warn(readLocks.size() + " read locks:");
-        for (Thread thread : readLocks.keySet()) {
-            Log.warn("  on " + thread + " (count=" + readLocks.get(thread) + ")");
-        }
+        Log.warn("Write lock on " + writeLock.get() + " (count=" + writeLockCount + ")");
+        Log.warn(readerCount.get() + " threads hold read locks; " + waitingWriterCount.get() + " threads wait for the write lock.");
         Log.warn("End of PLock dump.");
     }
+    
+    // How long the tests wait for another thread before deciding it's stuck.
+    private static final long TEST_TIMEOUT_MS = 5000;
+    
+    private static Thread startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PLock test");
+        thread.start();
+        return thread;
+    }
+    
+    /**
+     * Waits until 'thread' has either finished or is waiting for a lock, and returns true if it's waiting.
+     */
+    private static boolean isWaiting(Thread thread) throws InterruptedException {
+        final long endTimeNs = System.nanoTime() + TEST_TIMEOUT_MS * 1000 * 1000;
+        while (System.nanoTime() < endTimeNs) {
+            Thread.State state = thread.getState();
+            if (state == Thread.State.WAITING) {
+                return true;
+            } else if (state == Thread.State.TERMINATED) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        throw new RuntimeException(thread + " neither finished nor waited");
+    }
+    
+    private static void assertFinishes(Thread thread) throws InterruptedException {
+        thread.join(TEST_TIMEOUT_MS);
+        Assert.equals(thread.isAlive(), false);
+    }
+    
+    /**
+     * Runs 'runnable' on another thread, so that if it deadlocks, the test fails rather than hangs.
+     */
+    private static void assertRunsToCompletion(Runnable runnable) throws InterruptedException {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final Runnable test = runnable;
+        assertFinishes(startThread(new Runnable() {
+            public void run() {
+                test.run();
+                finished.set(true);
+            }
+        }));
+        Assert.equals(finished.get(), true);
+    }
+    
+    @Test private static void testNestedReadLocks() throws InterruptedException {
+        final PLock lock = new PLock();
+        lock.getReadLock();
+        lock.getReadLock();
+        lock.relinquishReadLock();
+        Thread writer = startThread(new Runnable() {
+            public void run() {
+                lock.getWriteLock();
+                lock.relinquishWriteLock();
+            }
+        });
+        // We still hold a read lock, so the writer waits.
+        Assert.equals(isWaiting(writer), true);
+        // A thread which already holds a read lock gets another straight away, even while a writer waits.
+        lock.getReadLock();
+        lock.relinquishReadLock();
+        Assert.equals(writer.isAlive(), true);
+        lock.relinquishReadLock();
+        assertFinishes(writer);
+        boolean threw = false;
+        try {
+            lock.relinquishReadLock();
+        } catch (RuntimeException ex) {
+            threw = true;
+        }
+        Assert.equals(threw, true);
+    }
+    
+    @Test private static void testOnlyReaderCanTakeWriteLock() throws InterruptedException {
+        final PLock lock = new PLock();
+        // Rule 4: the only reader can take the write lock, and take read locks while it holds it.
+        assertRunsToCompletion(new Runnable() {
+            public void run() {
+                lock.getReadLock();
+                lock.getWriteLock();
+                lock.getReadLock();
+                lock.relinquishReadLock();
+                lock.relinquishWriteLock();
+                lock.relinquishReadLock();
+            }
+        });
+        // But not while another thread holds a read lock.
+        lock.getReadLock();
+        Thread upgrader = startThread(new Runnable() {
+            public void run() {
+                lock.getReadLock();
+                lock.getWriteLock();
+                lock.relinquishWriteLock();
+                lock.relinquishReadLock();
+            }
+        });
+        Assert.equals(isWaiting(upgrader), true);
+        lock.relinquishReadLock();
+        assertFinishes(upgrader);
+    }
+    
+    @Test private static void testWritersArePreferred() throws InterruptedException {
+        final PLock lock = new PLock();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        lock.getReadLock();
+        Thread writer = startThread(new Runnable() {
+            public void run() {
+                lock.getWriteLock();
+                events.add("write");
+                lock.relinquishWriteLock();
+            }
+        });
+        Assert.equals(isWaiting(writer), true);
+        // Rule 5: only a reader holds the lock, but a new reader waits behind the waiting writer.
+        Thread reader = startThread(new Runnable() {
+            public void run() {
+                lock.getReadLock();
+                events.add("read");
+                lock.relinquishReadLock();
+            }
+        });
+        Assert.equals(isWaiting(reader), true);
+        Assert.equals(events.size(), 0);
+        lock.relinquishReadLock();
+        assertFinishes(writer);
+        assertFinishes(reader);
+        Assert.equals(events, Arrays.asList("write", "read"));
+    }
+    
+    @Test private static void testValidate() {
+        PLock lock = new PLock();
+        final long stamp = lock.tryOptimisticRead();
+        Assert.equals(stamp != 0, true);
+        Assert.equals(lock.validate(stamp), true);
+        // Reading doesn't invalidate a stamp.
+        lock.getReadLock();
+        lock.relinquishReadLock();
+        Assert.equals(lock.validate(stamp), true);
+        // Writing does, and there's no stamp to be had while the write lock is held.
+        lock.getWriteLock();
+        Assert.equals(lock.tryOptimisticRead(), 0L);
+        Assert.equals(lock.validate(stamp), false);
+        lock.relinquishWriteLock();
+        Assert.equals(lock.validate(stamp), false);
+        final long newStamp = lock.tryOptimisticRead();
+        Assert.equals(newStamp != 0 && newStamp != stamp, true);
+        Assert.equals(lock.validate(newStamp), true);
+        Assert.equals(lock.validate(0), false);
+    }
 }
@@ -0,0 +1,152 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures contention for a PTextBuffer's PLock between typing and the threads that read the text while we type.
+ *
+ * While the main thread types, at a steady rate, into a synthetic log:
+ *   a background reader repeatedly takes the read lock and reads all the text, as the spelling checker and TagsUpdater do;
+ *   a painter repeatedly looks up the start of each line on a screenful, as PTextArea does for every line it paints,
+ *     first taking the read lock for each lookup, and then reading optimistically as PTextArea.getLineStartOffset does.
+ * We report the time each keystroke took, including waiting for the lock, and how much reading the other threads got done.
+ *
+ * Usage: PLockBenchmark [KEYSTROKES]
+ */
+public class PLockBenchmark {
+    private static final int LINE_COUNT = 20000;
+    private static final int SCREEN_LINE_COUNT = 60;
+    private static final long KEYSTROKE_INTERVAL_NS = 2 * 1000 * 1000;
+    
+    private static final PTextBuffer.SelectionSetter NO_SELECTION = new PTextBuffer.SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    private final PTextBuffer buffer;
+    private final PLineList lines;
+    private volatile boolean isTyping;
+    private final AtomicLong backgroundReadCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    // Somewhere to put results, so the reads can't be optimized away.
+    private volatile int checksum;
+    
+    private PLockBenchmark() {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < LINE_COUNT; ++line) {
+            text.append("2026-10-18 12:00:00.000 INFO  [worker-").append(line % 16).append("] request ").append(line).append(" handled\n");
+        }
+        this.buffer = new PTextBuffer();
+        buffer.replace(NO_SELECTION, 0, 0, text, NO_SELECTION);
+        this.lines = new PLineList(buffer);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int keystrokeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        PLockBenchmark benchmark = new PLockBenchmark();
+        // The first run warms up.
+        benchmark.run(keystrokeCount, false, false);
+        benchmark.run(keystrokeCount, false, true);
+        benchmark.run(keystrokeCount, true, true);
+    }
+    
+    private void run(int keystrokeCount, final boolean optimistic, boolean shouldReport) throws Exception {
+        isTyping = true;
+        backgroundReadCount.set(0);
+        lookupCount.set(0);
+        Thread backgroundReader = new Thread(new Runnable() {
+            public void run() {
+                while (isTyping) {
+                    readAllText();
+                }
+            }
+        }, "background reader");
+        Thread painter = new Thread(new Runnable() {
+            public void run() {
+                Random random = new Random(0);
+                while (isTyping) {
+                    paintScreen(random, optimistic);
+                }
+            }
+        }, "painter");
+        backgroundReader.start();
+        painter.start();
+        
+        long[] durations_ns = new long[keystrokeCount];
+        Random random = new Random(1);
+        int position = buffer.length() / 2;
+        long startTime_ns = System.nanoTime();
+        long nextKeystroke_ns = startTime_ns;
+        for (int i = 0; i < keystrokeCount; ++i) {
+            while (System.nanoTime() < nextKeystroke_ns) {
+                Thread.sleep(0, 100 * 1000);
+            }
+            nextKeystroke_ns += KEYSTROKE_INTERVAL_NS;
+            if (i % 100 == 0) {
+                // Move somewhere else, as if we'd clicked.
+                position = random.nextInt(buffer.length());
+            }
+            final long t0_ns = System.nanoTime();
+            if (i % 10 == 9) {
+                buffer.replace(NO_SELECTION, --position, 1, null, NO_SELECTION);
+            } else {
+                buffer.replace(NO_SELECTION, position++, 0, (i % 40 == 0) ? "\n" : "x", NO_SELECTION);
+            }
+            durations_ns[i] = System.nanoTime() - t0_ns;
+        }
+        final double duration_s = TimeUtilities.nsToS(System.nanoTime() - startTime_ns);
+        isTyping = false;
+        backgroundReader.join();
+        painter.join();
+        
+        if (shouldReport) {
+            Arrays.sort(durations_ns);
+            String kind = optimistic ? "optimistic" : "read lock";
+            System.out.println(String.format("%s: keystroke median %s, 99th percentile %s, max %s", kind, TimeUtilities.nsToString(durations_ns[keystrokeCount / 2]), TimeUtilities.nsToString(durations_ns[keystrokeCount * 99 / 100]), TimeUtilities.nsToString(durations_ns[keystrokeCount - 1])));
+            System.out.println(String.format("%s: %.0f line lookups/s, %.1f background reads/s", kind, lookupCount.get() / duration_s, backgroundReadCount.get() / duration_s));
+        }
+    }
+    
+    private void readAllText() {
+        PLock lock = buffer.getLock();
+        lock.getReadLock();
+        try {
+            checksum += StringUtilities.count(buffer, '\n');
+        } finally {
+            lock.relinquishReadLock();
+        }
+        backgroundReadCount.incrementAndGet();
+    }
+    
+    private void paintScreen(Random random, boolean optimistic) {
+        PLock lock = buffer.getLock();
+        final int firstLine = random.nextInt(LINE_COUNT - SCREEN_LINE_COUNT);
+        int sum = 0;
+        for (int line = firstLine; line < firstLine + SCREEN_LINE_COUNT; ++line) {
+            if (optimistic) {
+                final long stamp = lock.tryOptimisticRead();
+                if (stamp != 0) {
+                    try {
+                        int start = lines.getLineStart(line);
+                        if (lock.validate(stamp)) {
+                            sum += start;
+                            continue;
+                        }
+                    } catch (RuntimeException ex) {
+                        // Fall back to the read lock, as PTextArea does.
+                    }
+                }
+            }
+            lock.getReadLock();
+            try {
+                sum += lines.getLineStart(line);
+            } finally {
+                lock.relinquishReadLock();
+            }
+        }
+        checksum += sum;
+        lookupCount.addAndGet(SCREEN_LINE_COUNT);
+    }
+}
@@ -0,0 +1,520 @@
+package e.ptextarea;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import e.util.*;
+import org.jessies.test.*;
+
+/**
+ * The text of a file too big to read and decode up front, as the original text of a PPieceTable.
+ *
+ * The file is mapped rather than read, so the OS pages it in as it's needed, and it doesn't use any heap.
+ * It's decoded a chunk at a time when something reads that part of the text, and we keep the most recently used chunks decoded.
+ * To know where each chunk's characters start, and to hand PLineList its line index without decoding anything, we make one pass over the bytes when the file's opened.
+ * That pass looks at eight bytes at a time for as long as they're plain ASCII, which is the usual case for the big logs this is for, and finds the newlines among them with bit twiddling rather than a byte at a time.
+ *
+ * We decode the same way ByteBufferDecoder would: UTF-8 if the file's valid UTF-8, and ISO-8859-1 otherwise.
+ * UTF-16 files, which have a byte order mark, aren't handled here; map returns null for them.
+ * Line endings are normalized as PTextBuffer.readFromFile does: if there are any CR LF pairs, they become LF; otherwise, any CRs become LF.
+ *
+ * Other programs can change the file while we have it mapped: logs get truncated by logrotate, or rewritten.
+ * Reading a truncated part of the mapping faults, and rewritten text doesn't match the index we made.
+ * So before decoding a chunk we check the file's size and modification time are as they were when we mapped it.
+ * If they aren't, or reading the mapping faults anyway, we stop using the mapping, and read chunks from the file as it is now.
+ * Those chunks are made to fit the length and line breaks we've already reported, and kept, so the text doesn't change under the editor again.
+ * Evergreen notices the file's changed, and the user can revert to the new text.
+ * PTextBuffer copies the text into memory before writing back to the same file.
+ */
+final class PMappedFileText {
+    // Files at least this big are mapped rather than read.
+    static final long MIN_BYTE_COUNT = 32 * 1024 * 1024;
+
+    // Chunks are this many bytes, give or take the end of a character or line ending.
+    private static final int CHUNK_BYTE_COUNT = 64 * 1024;
+    // Enough decoded text to cover several screens anywhere in the file, and a few big regular expression matches.
+    private static final int MAX_CACHED_CHUNK_COUNT = 64;
+
+    private static final long ALL_HIGH_BITS = 0x8080808080808080L;
+    private static final long ALL_LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long ALL_LF = 0x0a0a0a0a0a0a0a0aL;
+    private static final long ALL_CR = 0x0d0d0d0d0d0d0d0dL;
+
+    private static final class Chunk {
+        private final int charStart;
+        private final char[] chars;
+
+        private Chunk(int charStart, char[] chars) {
+            this.charStart = charStart;
+            this.chars = chars;
+        }
+    }
+
+    private final File file;
+    // The file's size and modification time when we mapped it.
+    private final long byteCount;
+    private final long lastModified;
+    private final ByteBuffer bytes;
+    private final boolean isUtf8;
+    private final String lineEnding;
+    // Where each chunk starts, in bytes and in characters, with an extra entry for the end.
+    private final int[] chunkByteStarts;
+    private final int[] chunkCharStarts;
+    // The index of every newline in the text.
+    private final int[] newlineIndexes;
+
+    // Set once the file's changed since we mapped it, after which we keep every chunk we decode.
+    private volatile boolean isDetached = false;
+    private final LinkedHashMap<Integer, Chunk> chunks = new LinkedHashMap<Integer, Chunk>(MAX_CACHED_CHUNK_COUNT, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Chunk> eldest) {
+            return isDetached == false && size() > MAX_CACHED_CHUNK_COUNT;
+        }
+    };
+    // What the last lookup found. Readers can run concurrently, so these are replaced rather than modified.
+    private volatile Chunk lastChunk;
+    private volatile int lastNewline;
+
+    private PMappedFileText(File file, long lastModified, ByteBuffer bytes, boolean isUtf8, String lineEnding, int[] chunkByteStarts, int[] chunkCharStarts, int[] newlineIndexes) {
+        this.file = file;
+        this.byteCount = bytes.limit();
+        this.lastModified = lastModified;
+        this.bytes = bytes;
+        this.isUtf8 = isUtf8;
+        this.lineEnding = lineEnding;
+        this.chunkByteStarts = chunkByteStarts;
+        this.chunkCharStarts = chunkCharStarts;
+        this.newlineIndexes = newlineIndexes;
+    }
+
+    /**
+     * Maps 'file', and indexes its text.
+     * Returns null if the file can't be handled this way, in which case it should be read as usual.
+     */
+    static PMappedFileText map(File file) throws IOException {
+        // We take the time first, so if the file changes while we map it, it'll look changed afterwards.
+        final long lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long byteCount = channel.size();
+            if (byteCount > Integer.MAX_VALUE) {
+                return null;
+            }
+            // The mapping stays valid after the channel's closed.
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, byteCount);
+            bytes.order(ByteOrder.LITTLE_ENDIAN);
+            if (byteCount > 1) {
+                int possibleBom = ((bytes.get(0) & 0xff) << 8) | (bytes.get(1) & 0xff);
+                if (possibleBom == 0xfeff || possibleBom == 0xfffe) {
+                    return null;
+                }
+            }
+            PMappedFileText result = index(file, lastModified, bytes, true);
+            if (result == null) {
+                result = index(file, lastModified, bytes, false);
+            }
+            return result;
+        } catch (InternalError ex) {
+            // The file was truncated while we were indexing it. Reading it as usual will cope.
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the pass over 'bytes' that finds the chunks and the newlines, decoding as UTF-8 or ISO-8859-1.
+     * Returns null if we're decoding UTF-8 and the bytes aren't valid UTF-8.
+     */
+    private static PMappedFileText index(File file, long lastModified, ByteBuffer bytes, boolean utf8) {
+        final int byteCount = bytes.limit();
+        final int chunkCount = Math.max(1, (byteCount + CHUNK_BYTE_COUNT - 1) / CHUNK_BYTE_COUNT);
+        int[] chunkByteStarts = new int[chunkCount + 1];
+        int[] chunkCharStarts = new int[chunkCount + 1];
+        int actualChunkCount = 0;
+        // We don't know which line endings we've got until the end, so we count as if CR LF pairs are becoming LF, and note the other CRs separately.
+        // If there turn out to be no pairs, the count's the same either way.
+        int[] lfIndexes = new int[1024];
+        int lfCount = 0;
+        int[] crIndexes = new int[16];
+        int crCount = 0;
+        boolean sawCrLf = false;
+        boolean previousWasCr = false;
+
+        int charCount = 0;
+        // The continuation bytes we're still expecting in the current UTF-8 sequence, and the range the next one must be in.
+        int pendingCount = 0;
+        int minContinuation = 0x80;
+        int maxContinuation = 0xbf;
+
+        int i = 0;
+        while (i < byteCount) {
+            chunkByteStarts[actualChunkCount] = i;
+            chunkCharStarts[actualChunkCount] = charCount;
+            ++actualChunkCount;
+            int chunkEnd = (int) Math.min(byteCount, (long) i + CHUNK_BYTE_COUNT);
+            // Don't split a character, or a CR LF pair, between chunks.
+            while (chunkEnd < byteCount && ((utf8 && (bytes.get(chunkEnd) & 0xc0) == 0x80) || (bytes.get(chunkEnd - 1) == '\r' && bytes.get(chunkEnd) == '\n'))) {
+                ++chunkEnd;
+            }
+            while (i < chunkEnd) {
+                if (pendingCount == 0 && previousWasCr == false && i + 8 <= chunkEnd) {
+                    long word = bytes.getLong(i);
+                    if ((word & ALL_HIGH_BITS) == 0 && zeroBytes(word ^ ALL_CR) == 0) {
+                        // Eight ASCII characters, none of them CR.
+                        long lfs = zeroBytes(word ^ ALL_LF);
+                        while (lfs != 0) {
+                            if (lfCount == lfIndexes.length) {
+                                lfIndexes = Arrays.copyOf(lfIndexes, lfCount * 2);
+                            }
+                            lfIndexes[lfCount++] = charCount + (Long.numberOfTrailingZeros(lfs) >>> 3);
+                            lfs &= lfs - 1;
+                        }
+                        charCount += 8;
+                        i += 8;
+                        continue;
+                    }
+                }
+                final int b = bytes.get(i++) & 0xff;
+                if (pendingCount > 0) {
+                    if (b < minContinuation || b > maxContinuation) {
+                        return null;
+                    }
+                    minContinuation = 0x80;
+                    maxContinuation = 0xbf;
+                    --pendingCount;
+                } else if (b < 0x80 || utf8 == false) {
+                    if (b == '\n') {
+                        if (previousWasCr) {
+                            // The CR goes, and this LF takes its place.
+                            --crCount;
+                            --charCount;
+                            sawCrLf = true;
+                        }
+                        if (lfCount == lfIndexes.length) {
+                            lfIndexes = Arrays.copyOf(lfIndexes, lfCount * 2);
+                        }
+                        lfIndexes[lfCount++] = charCount;
+                    } else if (b == '\r') {
+                        if (crCount == crIndexes.length) {
+                            crIndexes = Arrays.copyOf(crIndexes, crCount * 2);
+                        }
+                        crIndexes[crCount++] = charCount;
+                    }
+                    ++charCount;
+                } else if (b >= 0xc2 && b <= 0xdf) {
+                    pendingCount = 1;
+                    ++charCount;
+                } else if (b >= 0xe0 && b <= 0xef) {
+                    // These are the ranges the JDK's decoder accepts: no overlong forms, and no surrogates.
+                    pendingCount = 2;
+                    minContinuation = (b == 0xe0) ? 0xa0 : 0x80;
+                    maxContinuation = (b == 0xed) ? 0x9f : 0xbf;
+                    ++charCount;
+                } else if (b >= 0xf0 && b <= 0xf4) {
+                    // A supplementary character, which takes two chars.
+                    pendingCount = 3;
+                    minContinuation = (b == 0xf0) ? 0x90 : 0x80;
+                    maxContinuation = (b == 0xf4) ? 0x8f : 0xbf;
+                    charCount += 2;
+                } else {
+                    return null;
+                }
+                previousWasCr = (b == '\r');
+            }
+        }
+        if (pendingCount > 0) {
+            return null;
+        }
+        chunkByteStarts[actualChunkCount] = byteCount;
+        chunkCharStarts[actualChunkCount] = charCount;
+
+        String lineEnding = "\n";
+        int[] newlineIndexes = Arrays.copyOf(lfIndexes, lfCount);
+        if (sawCrLf) {
+            lineEnding = "\r\n";
+        } else if (crCount > 0) {
+            // Without any CR LF pairs, every CR is a newline.
+            lineEnding = "\r";
+            newlineIndexes = Arrays.copyOf(newlineIndexes, lfCount + crCount);
+            System.arraycopy(crIndexes, 0, newlineIndexes, lfCount, crCount);
+            Arrays.sort(newlineIndexes);
+        }
+        return new PMappedFileText(file, lastModified, bytes, utf8, lineEnding, Arrays.copyOf(chunkByteStarts, actualChunkCount + 1), Arrays.copyOf(chunkCharStarts, actualChunkCount + 1), newlineIndexes);
+    }
+
+    /**
+     * Returns a word with the top bit set in each byte of 'word' that's zero, and no other bits set.
+     */
+    private static long zeroBytes(long word) {
+        // Adding 0x7f to the low seven bits of each byte sets its top bit unless they're all zero, and can't carry into the next byte.
+        return ~(((word & ALL_LOW_SEVEN_BITS) + ALL_LOW_SEVEN_BITS) | word | ALL_LOW_SEVEN_BITS);
+    }
+
+    /** Returns the name of the character encoding the file's in. */
+    String getEncodingName() {
+        return isUtf8 ? "UTF-8" : "ISO-8859-1";
+    }
+
+    /** Returns the line ending the file used, which has been turned into "\n" in the text. */
+    String getLineEnding() {
+        return lineEnding;
+    }
+
+    int length() {
+        return chunkCharStarts[chunkCharStarts.length - 1];
+    }
+
+    char charAt(int index) {
+        Chunk chunk = getChunk(index);
+        return chunk.chars[index - chunk.charStart];
+    }
+
+    /** Copies the characters from 'start' up to 'end' into 'destination', starting at 'destinationOffset'. */
+    void getChars(int start, int end, char[] destination, int destinationOffset) {
+        while (start < end) {
+            Chunk chunk = getChunk(start);
+            int count = Math.min(end - start, chunk.charStart + chunk.chars.length - start);
+            System.arraycopy(chunk.chars, start - chunk.charStart, destination, destinationOffset, count);
+            start += count;
+            destinationOffset += count;
+        }
+    }
+
+    /** Returns the index of the first 'ch' at or after 'start' and before 'end', or -1. */
+    int indexOf(char ch, int start, int end) {
+        if (ch == '\n') {
+            return indexOfNewline(start, end);
+        }
+        while (start < end) {
+            Chunk chunk = getChunk(start);
+            final int chunkEnd = Math.min(end, chunk.charStart + chunk.chars.length);
+            final char[] chars = chunk.chars;
+            for (int i = start; i < chunkEnd; ++i) {
+                if (chars[i - chunk.charStart] == ch) {
+                    return i;
+                }
+            }
+            start = chunkEnd;
+        }
+        return -1;
+    }
+
+    private int indexOfNewline(int start, int end) {
+        // We're usually asked for one line after another, so try the newline after the last one first.
+        int i = lastNewline + 1;
+        if (i >= newlineIndexes.length || newlineIndexes[i] < start || (i > 0 && newlineIndexes[i - 1] >= start)) {
+            i = Arrays.binarySearch(newlineIndexes, start);
+            if (i < 0) {
+                i = -i - 1;
+            }
+        }
+        if (i < newlineIndexes.length && newlineIndexes[i] < end) {
+            lastNewline = i;
+            return newlineIndexes[i];
+        }
+        return -1;
+    }
+
+    /** Returns the chunk containing the character at 'index', decoding it if need be. */
+    private Chunk getChunk(int index) {
+        Chunk chunk = lastChunk;
+        if (chunk != null && index >= chunk.charStart && index < chunk.charStart + chunk.chars.length) {
+            return chunk;
+        }
+        int chunkIndex = Arrays.binarySearch(chunkCharStarts, index);
+        if (chunkIndex < 0) {
+            chunkIndex = -chunkIndex - 2;
+        }
+        synchronized (chunks) {
+            chunk = chunks.get(chunkIndex);
+        }
+        if (chunk == null) {
+            // Two threads might decode the same chunk at once, but they'll get the same result.
+            chunk = new Chunk(chunkCharStarts[chunkIndex], decodeChunk(chunkIndex));
+            synchronized (chunks) {
+                chunks.put(chunkIndex, chunk);
+            }
+        }
+        lastChunk = chunk;
+        return chunk;
+    }
+
+    private char[] decodeChunk(int chunkIndex) {
+        if (isDetached == false) {
+            if (file.length() == byteCount && file.lastModified() == lastModified) {
+                try {
+                    char[] result = decodeMappedChunk(chunkIndex);
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (InternalError ex) {
+                    // The file was truncated after we checked, and reading the mapping faulted.
+                }
+            }
+            detach();
+        }
+        return readChangedChunk(chunkIndex);
+    }
+
+    private synchronized void detach() {
+        if (isDetached == false) {
+            isDetached = true;
+            Log.warn("\"" + file + "\" changed while mapped; reading the rest of it as it is now.");
+        }
+    }
+
+    /**
+     * Decodes a chunk from the mapping, returning null if it doesn't match our index, because the file's changed.
+     */
+    private char[] decodeMappedChunk(int chunkIndex) {
+        final int byteStart = chunkByteStarts[chunkIndex];
+        final int byteEnd = chunkByteStarts[chunkIndex + 1];
+        char[] decoded;
+        int decodedCount;
+        if (isUtf8) {
+            ByteBuffer in = bytes.duplicate();
+            in.limit(byteEnd).position(byteStart);
+            CharBuffer out = CharBuffer.allocate(byteEnd - byteStart);
+            CoderResult result = Charset.forName("UTF-8").newDecoder().decode(in, out, true);
+            if (result.isError()) {
+                // We checked the whole file was valid UTF-8 when we opened it.
+                return null;
+            }
+            decoded = out.array();
+            decodedCount = out.position();
+        } else {
+            decodedCount = byteEnd - byteStart;
+            decoded = new char[decodedCount];
+            for (int i = 0; i < decodedCount; ++i) {
+                decoded[i] = (char) (bytes.get(byteStart + i) & 0xff);
+            }
+        }
+        char[] result = new char[getChunkCharCount(chunkIndex)];
+        return (normalizeLineEndings(decoded, decodedCount, result) == result.length) ? result : null;
+    }
+
+    /**
+     * Reads a chunk from the file as it is now, for when the mapping can't be trusted.
+     * The text needn't fit our index any more, so we make it: anything missing becomes spaces, anything extra goes, and the line breaks stay where they were.
+     * If the file's only been appended to, that's the same text we'd have got from the mapping.
+     */
+    private char[] readChangedChunk(int chunkIndex) {
+        final int byteStart = chunkByteStarts[chunkIndex];
+        ByteBuffer in = ByteBuffer.allocate(chunkByteStarts[chunkIndex + 1] - byteStart);
+        try {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                // Unlike reading a mapping, reading past the end of a file is harmless.
+                FileChannel channel = stream.getChannel();
+                while (in.hasRemaining() && channel.read(in, byteStart + in.position()) > 0) {
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException ex) {
+            // The file may have gone altogether. Use whatever we got.
+        }
+        String decoded = new String(in.array(), 0, in.position(), Charset.forName(getEncodingName()));
+        char[] result = new char[getChunkCharCount(chunkIndex)];
+        Arrays.fill(result, ' ');
+        normalizeLineEndings(decoded.toCharArray(), decoded.length(), result);
+        final int charStart = chunkCharStarts[chunkIndex];
+        for (int i = 0; i < result.length; ++i) {
+            if (result[i] == '\n') {
+                result[i] = ' ';
+            }
+        }
+        int newline = Arrays.binarySearch(newlineIndexes, charStart);
+        if (newline < 0) {
+            newline = -newline - 1;
+        }
+        for (; newline < newlineIndexes.length && newlineIndexes[newline] < charStart + result.length; ++newline) {
+            result[newlineIndexes[newline] - charStart] = '\n';
+        }
+        return result;
+    }
+
+    private int getChunkCharCount(int chunkIndex) {
+        return chunkCharStarts[chunkIndex + 1] - chunkCharStarts[chunkIndex];
+    }
+
+    /**
+     * Copies as many of the 'decodedCount' characters in 'decoded' as fit into 'result', normalizing the line endings as readFromFile would.
+     * Returns how many characters went into 'result', or -1 if some didn't fit.
+     */
+    private int normalizeLineEndings(char[] decoded, int decodedCount, char[] result) {
+        int resultCount = 0;
+        for (int i = 0; i < decodedCount; ++i) {
+            char ch = decoded[i];
+            if (ch == '\r') {
+                if (lineEnding.equals("\r\n") && i + 1 < decodedCount && decoded[i + 1] == '\n') {
+                    continue;
+                } else if (lineEnding.equals("\r")) {
+                    ch = '\n';
+                }
+            }
+            if (resultCount == result.length) {
+                return -1;
+            }
+            result[resultCount++] = ch;
+        }
+        return resultCount;
+    }
+
+    private static File makeTestFile(int lineCount) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lineCount; ++i) {
+            text.append("line ").append(i).append(" of a log that's being written to\n");
+        }
+        File file = File.createTempFile("PMappedFileText-", ".txt");
+        file.deleteOnExit();
+        StringUtilities.writeFile(file, text.toString());
+        return file;
+    }
+
+    private static String getText(PMappedFileText text) {
+        char[] chars = new char[text.length()];
+        text.getChars(0, chars.length, chars, 0);
+        return new String(chars);
+    }
+
+    @Test private static void testTruncatedWhileMapped() throws IOException {
+        File file = makeTestFile(20000);
+        String original = StringUtilities.readFile(file);
+        PMappedFileText text = map(file);
+        Assert.equals(text.length(), original.length());
+        // Decode the first chunk while the file's intact.
+        Assert.equals(text.charAt(0), 'l');
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(1000);
+        randomAccessFile.close();
+        file.setLastModified(text.lastModified + 2000);
+
+        // The rest of the text has gone, but reading it doesn't fail, and it keeps its length and its lines.
+        String truncated = getText(text);
+        Assert.equals(truncated.length(), original.length());
+        Assert.equals(truncated.substring(0, CHUNK_BYTE_COUNT / 2), original.substring(0, CHUNK_BYTE_COUNT / 2));
+        for (int i = CHUNK_BYTE_COUNT * 2; i < original.length(); ++i) {
+            Assert.equals(truncated.charAt(i), (original.charAt(i) == '\n') ? '\n' : ' ');
+        }
+        // And it doesn't change again.
+        Assert.equals(getText(text), truncated);
+        file.delete();
+    }
+
+    @Test private static void testAppendedWhileMapped() throws IOException {
+        File file = makeTestFile(20000);
+        String original = StringUtilities.readFile(file);
+        PMappedFileText text = map(file);
+        FileWriter writer = new FileWriter(file, true);
+        writer.write("another line\n");
+        writer.close();
+        file.setLastModified(text.lastModified + 2000);
+        // Everything we'd mapped is still there, so we see the same text, and not the new line.
+        Assert.equals(getText(text), original);
+        file.delete();
+    }
+}
@@ -38,6 +38,11 @@ public class PPatchTextStyler extends PAbstractTextStyler {
     
     public void initStyleApplicators() {}
     
+    @Override public boolean isIncremental() {
+        // Each line's styling depends only on its own text.
+        return true;
+    }
+    
     public static class PatchHighlight extends PColoredHighlight {
         public static final String HIGHLIGHTER_NAME = "PatchHighlight";
         
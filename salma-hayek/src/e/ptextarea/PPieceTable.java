@@ -0,0 +1,429 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Stores text as a sequence of pieces of other char[]s, so an edit copies nothing but the characters being inserted.
+ *
+ * The original text is a single piece, and isn't copied, so opening a file costs no more than reading it.
+ * For a very big file, the original text can be a PMappedFileText instead, so opening it doesn't even cost that.
+ * Inserted characters are appended to an add buffer, which is never changed after that, and a piece referring to them is put in the sequence.
+ * Removing characters just shortens, splits, or drops pieces.
+ * The add buffer is a list of chunks rather than one growing array, so it's never copied either.
+ *
+ * The pieces are kept in a treap (a binary tree kept balanced by giving each node a random priority, and keeping higher priorities nearer the root), ordered by their position in the text.
+ * Each node knows the length of its subtree, so finding the piece for an index, and splitting or joining the sequence there, are O(log n) in the number of pieces, wherever the edit is and however long the text.
+ * Compare PGapBuffer, where an edit far from the last one moves all the text in between, and growing the buffer copies all of it.
+ *
+ * Typing appends to the add buffer right after the previous character, so we lengthen the previous piece rather than adding a piece per keystroke.
+ *
+ * Reading the text through charAt, which is how regular expressions and the stylers read it, would cost a search per character, so we remember the piece the last charAt found, and only search again when the index isn't in it.
+ * indexOf starts from the same piece, because it's mostly used to find one line after another.
+ *
+ * Like PGapBuffer, this relies on PTextBuffer's lock: any number of threads can read at once, but edits need exclusive access.
+ */
+final class PPieceTable implements PTextStorage {
+    // Inserted characters go into chunks of at least this size, so there aren't many chunks, but we never copy the ones we have.
+    private static final int ADD_CHUNK_SIZE = 16 * 1024;
+
+    private static final class Piece {
+        // Null if this is a piece of the mapped file.
+        private final char[] chars;
+        private final int start;
+        private int length;
+        private int priority;
+        private Piece left;
+        private Piece right;
+        // The total length of the pieces in this subtree.
+        private int subtreeLength;
+
+        private Piece(char[] chars, int start, int length, int priority) {
+            this.chars = chars;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.subtreeLength = length;
+        }
+
+        private void updateSubtreeLength() {
+            subtreeLength = subtreeLength(left) + length + subtreeLength(right);
+        }
+    }
+
+    /**
+     * A piece, and the index in the text of its first character.
+     */
+    private static final class PieceLocation {
+        private final Piece piece;
+        private final int offset;
+
+        private PieceLocation(Piece piece, int offset) {
+            this.piece = piece;
+            this.offset = offset;
+        }
+    }
+
+    private final Random random = new Random();
+    private Piece root;
+    // The original text, if it's a mapped file.
+    private final PMappedFileText mappedText;
+
+    // The add chunk we're currently appending to, and how much of it is used.
+    private char[] addChunk = new char[0];
+    private int addChunkLength = 0;
+
+    // The piece made by the last insertion, and the index just after it, so typing can lengthen it, or null if there's been another edit since.
+    private Piece lastInsertion;
+    private int lastInsertionEnd;
+
+    // What the last charAt found. Readers can run concurrently, so this is replaced rather than modified.
+    private volatile PieceLocation lastCharAtLocation;
+
+    /**
+     * Note that this does not copy the given char[].
+     */
+    PPieceTable(char[] text) {
+        this.mappedText = null;
+        if (text.length > 0) {
+            root = new Piece(text, 0, text.length, random.nextInt());
+        }
+    }
+
+    PPieceTable(PMappedFileText mappedText) {
+        this.mappedText = mappedText;
+        if (mappedText.length() > 0) {
+            root = new Piece(null, 0, mappedText.length(), random.nextInt());
+        }
+    }
+
+    private static int subtreeLength(Piece piece) {
+        return (piece != null) ? piece.subtreeLength : 0;
+    }
+
+    public int length() {
+        return subtreeLength(root);
+    }
+
+    public char charAt(int index) {
+        PieceLocation location = getPieceLocation(index);
+        Piece piece = location.piece;
+        int i = piece.start + index - location.offset;
+        return (piece.chars != null) ? piece.chars[i] : mappedText.charAt(i);
+    }
+
+    /** Returns the piece containing the character at 'index', which must be in range, trying the last one we found first. */
+    private PieceLocation getPieceLocation(int index) {
+        PieceLocation location = lastCharAtLocation;
+        if (location == null || index < location.offset || index >= location.offset + location.piece.length) {
+            location = findPiece(index);
+            lastCharAtLocation = location;
+        }
+        return location;
+    }
+
+    private PieceLocation findPiece(int index) {
+        Piece piece = root;
+        int offset = 0;
+        while (true) {
+            int leftLength = subtreeLength(piece.left);
+            if (index < offset + leftLength) {
+                piece = piece.left;
+            } else if (index < offset + leftLength + piece.length) {
+                return new PieceLocation(piece, offset + leftLength);
+            } else {
+                offset += leftLength + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+
+    /**
+     * Walks the pieces in order, starting with the one containing a given index.
+     */
+    private final class PieceIterator {
+        // The pieces still to visit whose right subtrees haven't been visited either, next on top.
+        private final ArrayList<Piece> stack = new ArrayList<Piece>();
+        private int nextOffset;
+
+        // The current piece, and the index of its first character.
+        private Piece piece;
+        private int offset;
+
+        private PieceIterator(int index) {
+            Piece node = root;
+            int nodeOffset = 0;
+            while (node != null) {
+                int leftLength = subtreeLength(node.left);
+                if (index < nodeOffset + leftLength) {
+                    stack.add(node);
+                    node = node.left;
+                } else if (index < nodeOffset + leftLength + node.length) {
+                    stack.add(node);
+                    nextOffset = nodeOffset + leftLength;
+                    break;
+                } else {
+                    nodeOffset += leftLength + node.length;
+                    node = node.right;
+                }
+            }
+        }
+
+        /** Moves to the next piece, returning false if there isn't one. */
+        private boolean next() {
+            if (stack.isEmpty()) {
+                return false;
+            }
+            piece = stack.remove(stack.size() - 1);
+            offset = nextOffset;
+            nextOffset += piece.length;
+            for (Piece node = piece.right; node != null; node = node.left) {
+                stack.add(node);
+            }
+            return true;
+        }
+    }
+
+    public void getChars(int start, int end, char[] destination, int destinationOffset) {
+        PieceIterator it = new PieceIterator(start);
+        while (start < end && it.next()) {
+            int pieceOffset = start - it.offset;
+            int count = Math.min(it.piece.length - pieceOffset, end - start);
+            if (it.piece.chars != null) {
+                System.arraycopy(it.piece.chars, it.piece.start + pieceOffset, destination, destinationOffset, count);
+            } else {
+                mappedText.getChars(it.piece.start + pieceOffset, it.piece.start + pieceOffset + count, destination, destinationOffset);
+            }
+            start += count;
+            destinationOffset += count;
+        }
+    }
+
+    public int indexOf(char ch, int startIndex) {
+        // Callers tend to look for one line after another, so the piece we want is usually the last one we found.
+        PieceLocation location = getPieceLocation(startIndex);
+        int result = indexOf(location.piece, ch, startIndex - location.offset);
+        if (result != -1) {
+            return location.offset + result;
+        }
+        PieceIterator it = new PieceIterator(location.offset + location.piece.length);
+        while (it.next()) {
+            result = indexOf(it.piece, ch, 0);
+            if (result != -1) {
+                lastCharAtLocation = new PieceLocation(it.piece, it.offset);
+                return it.offset + result;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the index within 'piece' of the first 'ch' at or after 'startIndex' within 'piece', or -1. */
+    private int indexOf(Piece piece, char ch, int startIndex) {
+        final char[] chars = piece.chars;
+        final int end = piece.start + piece.length;
+        if (chars == null) {
+            int index = mappedText.indexOf(ch, piece.start + startIndex, end);
+            return (index != -1) ? index - piece.start : -1;
+        }
+        for (int i = piece.start + startIndex; i < end; ++i) {
+            if (chars[i] == ch) {
+                return i - piece.start;
+            }
+        }
+        return -1;
+    }
+
+    public void writeTo(Writer writer) throws IOException {
+        PieceIterator it = new PieceIterator(0);
+        char[] buffer = null;
+        while (it.next()) {
+            if (it.piece.chars != null) {
+                writer.write(it.piece.chars, it.piece.start, it.piece.length);
+            } else {
+                if (buffer == null) {
+                    buffer = new char[ADD_CHUNK_SIZE];
+                }
+                for (int i = it.piece.start; i < it.piece.start + it.piece.length; i += buffer.length) {
+                    int count = Math.min(buffer.length, it.piece.start + it.piece.length - i);
+                    mappedText.getChars(i, i + count, buffer, 0);
+                    writer.write(buffer, 0, count);
+                }
+            }
+        }
+    }
+
+    public void insert(int position, CharSequence chars) {
+        lastCharAtLocation = null;
+        final int count = chars.length();
+        if (count > addChunk.length - addChunkLength) {
+            addChunk = new char[Math.max(ADD_CHUNK_SIZE, count)];
+            addChunkLength = 0;
+        }
+        copyChars(chars, addChunk, addChunkLength);
+
+        if (lastInsertion != null && position == lastInsertionEnd && lastInsertion.chars == addChunk && lastInsertion.start + lastInsertion.length == addChunkLength) {
+            // We're continuing the last insertion.
+            lengthenPiece(position - 1, count);
+            lastInsertionEnd += count;
+        } else {
+            Piece piece = new Piece(addChunk, addChunkLength, count, random.nextInt());
+            Piece[] parts = split(root, position);
+            root = merge(merge(parts[0], piece), parts[1]);
+            lastInsertion = piece;
+            lastInsertionEnd = position + count;
+        }
+        addChunkLength += count;
+    }
+
+    private static void copyChars(CharSequence chars, char[] destination, int destinationOffset) {
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(destination, destinationOffset);
+        } else if (chars instanceof String) {
+            ((String) chars).getChars(0, chars.length(), destination, destinationOffset);
+        } else {
+            for (int i = 0; i < chars.length(); ++i) {
+                destination[destinationOffset + i] = chars.charAt(i);
+            }
+        }
+    }
+
+    /** Adds 'count' to the length of the piece containing the character at 'index', and to the subtrees above it. */
+    private void lengthenPiece(int index, int count) {
+        Piece piece = root;
+        int offset = 0;
+        while (true) {
+            piece.subtreeLength += count;
+            int leftLength = subtreeLength(piece.left);
+            if (index < offset + leftLength) {
+                piece = piece.left;
+            } else if (index < offset + leftLength + piece.length) {
+                piece.length += count;
+                return;
+            } else {
+                offset += leftLength + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+
+    public void remove(int position, int count) {
+        lastCharAtLocation = null;
+        lastInsertion = null;
+        Piece[] head = split(root, position);
+        Piece[] tail = split(head[1], count);
+        root = merge(head[0], tail[1]);
+    }
+
+    /**
+     * Splits the subtree 'piece' into a subtree of its first 'offset' characters and a subtree of the rest, splitting a piece in two if need be.
+     */
+    private static Piece[] split(Piece piece, int offset) {
+        if (piece == null) {
+            return new Piece[2];
+        }
+        int leftLength = subtreeLength(piece.left);
+        if (offset <= leftLength) {
+            Piece[] parts = split(piece.left, offset);
+            piece.left = parts[1];
+            piece.updateSubtreeLength();
+            parts[1] = piece;
+            return parts;
+        } else if (offset >= leftLength + piece.length) {
+            Piece[] parts = split(piece.right, offset - leftLength - piece.length);
+            piece.right = parts[0];
+            piece.updateSubtreeLength();
+            parts[0] = piece;
+            return parts;
+        } else {
+            // The split is within this piece.
+            // Both halves can keep its priority, because each has a subset of its children.
+            int headLength = offset - leftLength;
+            Piece tail = new Piece(piece.chars, piece.start + headLength, piece.length - headLength, piece.priority);
+            tail.right = piece.right;
+            tail.updateSubtreeLength();
+            piece.length = headLength;
+            piece.right = null;
+            piece.updateSubtreeLength();
+            return new Piece[] { piece, tail };
+        }
+    }
+
+    /**
+     * Joins two subtrees, with all of 'head' before all of 'tail'.
+     */
+    private static Piece merge(Piece head, Piece tail) {
+        if (head == null) {
+            return tail;
+        } else if (tail == null) {
+            return head;
+        } else if (head.priority > tail.priority) {
+            head.right = merge(head.right, tail);
+            head.updateSubtreeLength();
+            return head;
+        } else {
+            tail.left = merge(head, tail.left);
+            tail.updateSubtreeLength();
+            return tail;
+        }
+    }
+
+    private static String contents(PTextStorage storage) {
+        char[] chars = new char[storage.length()];
+        storage.getChars(0, chars.length, chars, 0);
+        return new String(chars);
+    }
+
+    @Test private static void testRandomEdits() {
+        // Edit a piece table, a gap buffer, and a StringBuilder the same way, and check they agree throughout.
+        Random random = new Random(0);
+        StringBuilder expected = new StringBuilder("hello\nworld\n");
+        PTextStorage[] storages = new PTextStorage[] { new PPieceTable(expected.toString().toCharArray()), new PGapBuffer(expected.toString().toCharArray()) };
+        int typingPosition = 0;
+        for (int i = 0; i < 2000; ++i) {
+            int position;
+            String insertion = null;
+            int removeCount = 0;
+            if (random.nextInt(3) == 0) {
+                // Typing, which lengthens the last piece.
+                position = Math.min(typingPosition, expected.length());
+                insertion = (random.nextInt(8) == 0) ? "\n" : "x";
+            } else {
+                position = random.nextInt(expected.length() + 1);
+                if (random.nextBoolean()) {
+                    insertion = "insertion" + i + "\n";
+                } else {
+                    removeCount = random.nextInt(Math.min(20, expected.length() - position) + 1);
+                }
+            }
+            for (PTextStorage storage : storages) {
+                if (insertion != null) {
+                    storage.insert(position, insertion);
+                } else {
+                    storage.remove(position, removeCount);
+                }
+            }
+            if (insertion != null) {
+                expected.insert(position, insertion);
+                typingPosition = position + insertion.length();
+            } else {
+                expected.delete(position, position + removeCount);
+            }
+            for (PTextStorage storage : storages) {
+                Assert.equals(storage.length(), expected.length());
+                if (expected.length() > 0) {
+                    int index = random.nextInt(expected.length());
+                    Assert.equals(storage.charAt(index), expected.charAt(index));
+                    Assert.equals(storage.indexOf('\n', index), expected.indexOf("\n", index));
+                }
+            }
+        }
+        for (PTextStorage storage : storages) {
+            Assert.equals(contents(storage), expected.toString());
+            for (int i = 0; i < expected.length(); ++i) {
+                Assert.equals(storage.charAt(i), expected.charAt(i));
+            }
+        }
+    }
+}
@@ -24,4 +24,9 @@ public class PPlainTextStyler extends PAbstractTextStyler {
     }
     
     public void initStyleApplicators() {}
+    
+    @Override public boolean isIncremental() {
+        // Each line's styling depends only on its own text.
+        return true;
+    }
 }
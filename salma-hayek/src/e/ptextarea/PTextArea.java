@@ -47,7 +47,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     private ArrayList<PCaretListener> caretListeners = new ArrayList<PCaretListener>();
     private ArrayList<PFindListener> findListeners = new ArrayList<PFindListener>();
-    private TreeMap<Integer, List<PLineSegment>> segmentCache = new TreeMap<Integer, List<PLineSegment>>();
+    // The styled segments of each line, indexed by line, or null; it's only as long as it needs to be to hold the last line we've styled.
+    private ArrayList<CachedSegments> segmentCache = new ArrayList<CachedSegments>();
     
     private UnaryFunctor<String, String> pastedTextReformatter = new UnaryFunctor<String, String>() {
         public String evaluate(String s) {
@@ -540,9 +541,21 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public int getLineStartOffset(int line) {
+        // This is called for every line we paint, so try without the lock first.
+        final long stamp = getLock().tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int result = lines.getLineStart(line);
+                if (getLock().validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException ex) {
+                // We raced with a change, or 'line' is out of range; either way, the locked read below will sort it out.
+            }
+        }
         getLock().getReadLock();
         try {
-            return lines.getLine(line).getStart();
+            return lines.getLineStart(line);
         } finally {
             getLock().relinquishReadLock();
         }
@@ -563,6 +576,17 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public int getLineOfOffset(int offset) {
+        final long stamp = getLock().tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int result = lines.getLineIndex(offset);
+                if (getLock().validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException ex) {
+                // As in getLineStartOffset.
+            }
+        }
         getLock().getReadLock();
         try {
             return lines.getLineIndex(offset);
@@ -825,12 +849,31 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     // FIXME: when should you call getLineSegments, and when should you call getLineSegmentsForSplitLine?
     public List<PLineSegment> getLineSegments(int lineIndex) {
+        // If it's cached, and nothing changed while we looked, we don't need the lock.
+        final long stamp = getLock().tryOptimisticRead();
+        if (stamp != 0) {
+            CachedSegments cached = getCachedSegments(lineIndex);
+            try {
+                if (cached != null && cached.lineStart == lines.getLineStart(lineIndex) && getLock().validate(stamp)) {
+                    return cached.segments;
+                }
+            } catch (RuntimeException ex) {
+                // We raced with a change; see getLineStartOffset.
+            }
+        }
         getLock().getReadLock();
         try {
-            // Return it straight away if we've already cached it.
-            synchronized (segmentCache) {
-                if (segmentCache.containsKey(lineIndex)) {
-                    return segmentCache.get(lineIndex);
+            // Return it straight away if we've already cached it, moving it first if text before the line has changed since.
+            final int lineStart = lines.getLineStart(lineIndex);
+            CachedSegments cached = getCachedSegments(lineIndex);
+            if (cached != null) {
+                if (cached.lineStart == lineStart) {
+                    return cached.segments;
+                }
+                cached = cached.translatedTo(lineStart);
+                if (cached != null) {
+                    putCachedSegments(lineIndex, cached);
+                    return cached.segments;
                 }
             }
             
@@ -845,25 +888,32 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             
             // Finally, deal with tabs.
             segments = applyStyleApplicator(tabStyleApplicator, line, segments);
-            synchronized (segmentCache) {
-                segmentCache.put(lineIndex, segments);
-            }
+            putCachedSegments(lineIndex, new CachedSegments(lineStart, segments));
             return segments;
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
+    private CachedSegments getCachedSegments(int lineIndex) {
+        synchronized (segmentCache) {
+            return (lineIndex < segmentCache.size()) ? segmentCache.get(lineIndex) : null;
+        }
+    }
+    
+    private void putCachedSegments(int lineIndex, CachedSegments cached) {
+        synchronized (segmentCache) {
+            while (segmentCache.size() <= lineIndex) {
+                segmentCache.add(null);
+            }
+            segmentCache.set(lineIndex, cached);
+        }
+    }
+    
     private void clearSegmentCacheFrom(int lineIndex) {
         synchronized (segmentCache) {
-            // Take a copy of the indices.  Otherwise, if we try removing stuff from the segment cache
-            // based on values taken from the sub-tree from the line index onwards, we incur a
-            // concurrent modification exception.
-            // FIXME: http://java.sun.com/j2se/1.5.0/docs/api/java/util/HashMap.html#keySet() implies that we can use Iterator.remove to avoid this copy.
-            Set<Integer> keySet = segmentCache.tailMap(lineIndex).keySet();
-            Integer[] indices = keySet.toArray(new Integer[keySet.size()]);
-            for (int index : indices) {
-                segmentCache.remove(index);
+            if (lineIndex < segmentCache.size()) {
+                segmentCache.subList(lineIndex, segmentCache.size()).clear();
             }
         }
     }
@@ -874,6 +924,72 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    /** Throws away the cached segments for the lines from 'beginLineIndex' up to but not including 'endLineIndex'. */
+    private void clearSegmentCache(int beginLineIndex, int endLineIndex) {
+        synchronized (segmentCache) {
+            for (int i = beginLineIndex; i < endLineIndex && i < segmentCache.size(); ++i) {
+                segmentCache.set(i, null);
+            }
+        }
+    }
+    
+    /** Makes room in the cache for 'count' lines added at 'lineIndex'. */
+    private void insertIntoSegmentCache(int lineIndex, int count) {
+        synchronized (segmentCache) {
+            if (lineIndex < segmentCache.size()) {
+                segmentCache.addAll(lineIndex, Collections.<CachedSegments>nCopies(count, null));
+            }
+        }
+    }
+    
+    /** Removes the cached segments for the 'count' lines starting at 'lineIndex', which have been removed. */
+    private void removeFromSegmentCache(int lineIndex, int count) {
+        synchronized (segmentCache) {
+            if (lineIndex < segmentCache.size()) {
+                segmentCache.subList(lineIndex, Math.min(lineIndex + count, segmentCache.size())).clear();
+            }
+        }
+    }
+    
+    /**
+     * Throws away the styling of the lines from 'firstLineIndex' to 'lastLineIndex' inclusive, and repaints them.
+     * Incremental stylers call this when an edit changes how lines other than the edited ones should look.
+     */
+    void restyleLines(int firstLineIndex, int lastLineIndex) {
+        clearSegmentCache(firstLineIndex, lastLineIndex + 1);
+        if (isLineWrappingInvalid() == false) {
+            repaintLines(getSplitLineIndex(firstLineIndex), getSplitLineIndex(lastLineIndex + 1) - 1);
+        }
+    }
+    
+    /**
+     * A line's segments, and where the line started when we made them.
+     * If only text before the line changes, an incremental styler would style it the same, just further along.
+     */
+    private static class CachedSegments {
+        private final int lineStart;
+        private final List<PLineSegment> segments;
+        
+        private CachedSegments(int lineStart, List<PLineSegment> segments) {
+            this.lineStart = lineStart;
+            this.segments = segments;
+        }
+        
+        /** Returns a copy for a line starting at 'newLineStart', or null if we have a segment that can't be moved, such as a link. */
+        private CachedSegments translatedTo(int newLineStart) {
+            final int delta = newLineStart - lineStart;
+            List<PLineSegment> result = new ArrayList<PLineSegment>(segments.size());
+            for (PLineSegment segment : segments) {
+                PAbstractSegment moved = (segment instanceof PAbstractSegment) ? ((PAbstractSegment) segment).translatedBy(delta) : null;
+                if (moved == null) {
+                    return null;
+                }
+                result.add(moved);
+            }
+            return new CachedSegments(newLineStart, result);
+        }
+    }
+    
     private List<PLineSegment> applyStyleApplicator(StyleApplicator styleApplicator, String line, List<PLineSegment> inputSegments) {
         List<PLineSegment> result = new ArrayList<PLineSegment>();
         for (PLineSegment segment : inputSegments) {
@@ -1013,11 +1129,15 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
 
     public void linesAdded(PLineEvent event) {
+        int lineIndex = event.getLineIndex();
+        if (textStyler.isIncremental()) {
+            insertIntoSegmentCache(lineIndex, event.getLength());
+        } else {
+            clearSegmentCacheFrom(lineIndex);
+        }
         if (isLineWrappingInvalid()) {
             return;
         }
-        int lineIndex = event.getLineIndex();
-        clearSegmentCacheFrom(lineIndex);
         int splitIndex = getSplitLineIndex(lineIndex);
         int firstSplitIndex = splitIndex;
         changeLineIndices(lineIndex, event.getLength());
@@ -1029,10 +1149,14 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public void linesRemoved(PLineEvent event) {
+        if (textStyler.isIncremental()) {
+            removeFromSegmentCache(event.getLineIndex(), event.getLength());
+        } else {
+            clearSegmentCacheFrom(event.getLineIndex());
+        }
         if (isLineWrappingInvalid()) {
             return;
         }
-        clearSegmentCacheFrom(event.getLineIndex());
         int beginSplitIndex = getSplitLineIndex(event.getLineIndex());
         int endSplitIndex = getSplitLineIndex(event.getLineIndex() + event.getLength());
         removeSplitLines(beginSplitIndex, endSplitIndex);
@@ -1054,7 +1178,12 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public void linesChanged(PLineEvent event) {
-        clearSegmentCacheFrom(event.getLineIndex());
+        if (textStyler.isIncremental()) {
+            // The styler tells us about any other lines whose styling changes.
+            clearSegmentCache(event.getLineIndex(), event.getLineIndex() + event.getLength());
+        } else {
+            clearSegmentCacheFrom(event.getLineIndex());
+        }
         if (isLineWrappingInvalid()) {
             return;
         }
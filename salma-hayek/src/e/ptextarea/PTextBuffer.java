@@ -7,6 +7,7 @@ import java.nio.charset.*;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import org.jessies.os.*;
 
 /**
  * The PTextArea's model. It can be used as a CharSequence, for efficient
@@ -33,10 +34,17 @@ import javax.swing.event.ChangeListener;
  * fall back to UTF-8. If the file doesn't decode correctly, we try ISO-8859-1.
  * If that also fails, we throw an exception.
  * 
+ * Files of PMappedFileText.MIN_BYTE_COUNT bytes or more are mapped rather
+ * than read, and decoded as they're needed, so even a huge log opens quickly.
+ * If the file's truncated or rewritten while it's mapped, we read what's
+ * left of it instead; see PMappedFileText.
+ * 
  * A file written to disk with 'writeToFile' will use the current
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
  * 
+ * The characters themselves are kept in a PTextStorage; see PPieceTable.
+ * 
  * @author Elliott Hughes
  * @author Phil Norman
  */
@@ -45,12 +53,9 @@ public class PTextBuffer implements CharSequence {
     public static final String INDENTATION_PROPERTY = "IndentationProperty";
     public static final String LINE_ENDING_PROPERTY = "LineEndingProperty";
     
-    private static final int MIN_BUFFER_EXTENSION = 100;
-    private static final int MAX_GAP_SIZE = 1024 * 2;
-    
-    private char[] text = new char[0];
-    private int gapPosition;
-    private int gapLength;
+    private PTextStorage storage = newStorage(new char[0]);
+    // The file our text is mapped from, or null.
+    private File mappedFile;
     private ArrayList<PTextListener> textListeners = new ArrayList<PTextListener>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
@@ -64,6 +69,14 @@ public class PTextBuffer implements CharSequence {
         initDefaultProperties();
     }
     
+    private static boolean useGapBuffer() {
+        return "gap".equals(System.getProperty("e.ptextarea.PTextBuffer.storage"));
+    }
+    
+    private static PTextStorage newStorage(char[] text) {
+        return useGapBuffer() ? new PGapBuffer(text) : new PPieceTable(text);
+    }
+    
     /**
      * Returns the lock object for this buffer.  This should only be used within this package.
      */
@@ -146,6 +159,17 @@ public class PTextBuffer implements CharSequence {
     public void readFromFile(File file) {
         getLock().getWriteLock();
         try {
+            // Windows won't let us write to a file while it's mapped, and we can't unmap it ourselves.
+            if (file.length() >= PMappedFileText.MIN_BYTE_COUNT && useGapBuffer() == false && OS.isWindows() == false) {
+                PMappedFileText mappedText = PMappedFileText.map(file);
+                if (mappedText != null) {
+                    putProperty(CHARSET_PROPERTY, mappedText.getEncodingName());
+                    putProperty(LINE_ENDING_PROPERTY, mappedText.getLineEnding());
+                    setStorage(new PPieceTable(mappedText), file);
+                    return;
+                }
+            }
+            
             // Read all the bytes in.
             final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
             
@@ -183,6 +207,7 @@ public class PTextBuffer implements CharSequence {
     public void writeToFile(File file) {
         FileOutputStream openFile = null;
         try {
+            unmapIfWritingTo(file);
             openFile = new FileOutputStream(file);
             String charsetName = (String) getProperty(CHARSET_PROPERTY);
             // The CharsetEncoder created here will silently replace characters which cannot
@@ -231,14 +256,7 @@ public class PTextBuffer implements CharSequence {
             
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
             if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
+                storage.writeTo(writer);
             } else {
                 // Split our internal content into lines, and write them
                 // out individually. Expensive, but why aren't you using
@@ -257,17 +275,38 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * Copies our text into memory if it's mapped from 'file', because writing to the file will change the mapping.
+     */
+    private void unmapIfWritingTo(File file) throws IOException {
+        getLock().getWriteLock();
+        try {
+            if (mappedFile != null && mappedFile.getCanonicalFile().equals(file.getCanonicalFile())) {
+                storage = newStorage(copyCharArray(0, length()));
+                mappedFile = null;
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
     /**
      * Sets the text, replacing anything that was here before.
      * Note that this method does not copy the given char[].
      */
     private void setText(char[] text) {
+        setStorage(newStorage(text), null);
+    }
+    
+    /**
+     * Replaces our text with that in 'newStorage', which is mapped from 'newMappedFile' if that's not null.
+     */
+    private void setStorage(PTextStorage newStorage, File newMappedFile) {
         getLock().getWriteLock();
         try {
-            this.text = text;
-            gapPosition = 0;
-            gapLength = 0;
-            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
+            this.storage = newStorage;
+            this.mappedFile = newMappedFile;
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, subSequence(0, length())));
         } finally {
             getLock().relinquishWriteLock();
         }
@@ -293,61 +332,13 @@ public class PTextBuffer implements CharSequence {
                 throw new IllegalArgumentException("start=" + start + " charCount=" + charCount + " length()=" + length());
             }
             char[] result = new char[charCount];
-            try {
-                int copyCount = 0;
-                if (start < gapPosition) {
-                    copyCount = Math.min(charCount, gapPosition - start);
-                    System.arraycopy(text, start, result, 0, copyCount);
-                }
-                if (start + charCount >= gapPosition) {
-                    int textPosition = Math.max(start, gapPosition) + gapLength;
-                    System.arraycopy(text, textPosition, result, copyCount, result.length - copyCount);
-                }
-            } catch (ArrayIndexOutOfBoundsException ex) {
-                Log.warn("Requested get text from " + start + ", length " + charCount + "; size is " + length() +".", ex);
-            }
+            storage.getChars(start, start + charCount, result, 0);
             return result;
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
-    /** Moves the gap to the specified position. */
-    private void moveGap(int newPosition) {
-        if (gapPosition == newPosition) {
-            return;
-        }
-        if (newPosition < gapPosition) {
-            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
-        } else {
-            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
-        }
-        gapPosition = newPosition;
-    }
-    
-    private void changeBufferLength(int lengthChange) {
-        char[] newText = new char[text.length + lengthChange];
-        System.arraycopy(text, 0, newText, 0, gapPosition);
-        int endOffset = gapPosition + gapLength;
-        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
-        gapLength += lengthChange;
-        text = newText;
-    }
-    
-    /** Expands the buffer. */
-    private void expandBuffer(int requiredGapLength) {
-        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
-        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
-    }
-    
-    /** Shrinks the buffer. */
-    private void shrinkBuffer() {
-        if (gapLength > MAX_GAP_SIZE) {
-            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
-            changeBufferLength(desiredGapLength - gapLength);
-        }
-    }
-    
     public void replace(SelectionSetter beforeCaret, int position, int removeCount, CharSequence add, SelectionSetter afterCaret) {
         getLock().getWriteLock();
         try {
@@ -369,30 +360,13 @@ public class PTextBuffer implements CharSequence {
     
     /** Special remove method used by the undo buffer. */
     private void removeWithoutUndo(int position, CharSequence chars) {
-        moveGap(position + chars.length());
-        gapPosition -= chars.length();
-        gapLength += chars.length();
-        shrinkBuffer();
+        storage.remove(position, chars.length());
         fireTextEvent(new PTextEvent(this, PTextEvent.REMOVE, position, chars));
     }
     
     /** Special insertion method used by the undo buffer. */
     private void insertWithoutUndo(int position, CharSequence chars) {
-        moveGap(position);
-        int textLength = chars.length();
-        while (textLength > gapLength) {
-            expandBuffer(textLength);
-        }
-        if (chars instanceof CharArrayCharSequence) {
-            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
-        } else {
-            // This is the price you pay for giving us a String.
-            for (int i = 0; i < chars.length(); ++i) {
-                text[gapPosition + i] = chars.charAt(i);
-            }
-        }
-        gapPosition += textLength;
-        gapLength -= textLength;
+        storage.insert(position, chars);
         fireTextEvent(new PTextEvent(this, PTextEvent.INSERT, position, chars));
     }
     
@@ -401,7 +375,7 @@ public class PTextBuffer implements CharSequence {
         if (index < 0 || index >= length()) {
             throwIOOBE(index);
         }
-        return (index < gapPosition) ? text[index] : text[index + gapLength];
+        return storage.charAt(index);
     }
     
     private void throwIOOBE(int index) {
@@ -421,19 +395,12 @@ public class PTextBuffer implements CharSequence {
         } else if (startIndex >= length()) {
             return -1;
         }
-        
-        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
-        for (int i = startIndex; i < length(); ++i) {
-            if (text[gapBufferIndex++] == ch) {
-                return i;
-            }
-        }
-        return -1;
+        return storage.indexOf(ch, startIndex);
     }
     
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
-        return text.length - gapLength;
+        return storage.length();
     }
     
     /**
@@ -451,10 +418,7 @@ public class PTextBuffer implements CharSequence {
     public String toString() {
         getLock().getReadLock();
         try {
-            StringBuilder result = new StringBuilder();
-            result.append(text, 0, gapPosition);
-            result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
-            return result.toString();
+            return new String(copyCharArray(0, length()));
         } finally {
             getLock().relinquishReadLock();
         }
@@ -4,6 +4,7 @@ import e.gui.*;
 import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
+import org.jessies.test.*;
 
 /**
  * A PTextSegment is a PLineSegment which knows how to deal with styled characters.
@@ -71,6 +72,14 @@ public class PTextSegment extends PAbstractSegment {
         linkAction.actionPerformed(null);
     }
     
+    /**
+     * Link actions can remember where their link was (EErrorsWindow's do), and we can't move those, so a link can't be moved.
+     */
+    @Override
+    PAbstractSegment translatedBy(int delta) {
+        return (linkAction != null) ? null : super.translatedBy(delta);
+    }
+    
     @Override
     public String toString() {
         String result = "PTextSegment[" + super.toString();
@@ -83,4 +92,16 @@ public class PTextSegment extends PAbstractSegment {
         result += "]";
         return result;
     }
+    
+    @Test private static void testTranslatedBy() {
+        PTextSegment segment = new PTextSegment(null, 5, 10, PStyle.NORMAL);
+        segment.setToolTip("tool tip");
+        PTextSegment moved = (PTextSegment) segment.translatedBy(3);
+        Assert.equals(moved.getOffset(), 8);
+        Assert.equals(moved.getEnd(), 13);
+        Assert.equals(moved.getToolTip(), "tool tip");
+        Assert.equals(segment.getOffset(), 5);
+        segment.setLinkAction(NoOpAction.INSTANCE);
+        Assert.equals(segment.translatedBy(3), null);
+    }
 }
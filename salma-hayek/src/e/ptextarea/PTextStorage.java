@@ -0,0 +1,33 @@
+package e.ptextarea;
+
+import java.io.*;
+
+/**
+ * Holds a PTextBuffer's characters.
+ * PTextBuffer does the locking, the undo, the bounds checking, and tells the listeners; the storage just has to keep the characters.
+ * 
+ * PTextBuffer uses a PPieceTable. PGapBuffer is what it used to use, and can still be chosen for comparison by setting the system property "e.ptextarea.PTextBuffer.storage" to "gap".
+ * PTextStorageBenchmark compares the two.
+ */
+interface PTextStorage {
+    /** Returns the number of characters. */
+    public int length();
+    
+    /** Returns the character at 'index'. */
+    public char charAt(int index);
+    
+    /** Copies the characters from 'start' up to 'end' into 'destination', starting at 'destinationOffset'. */
+    public void getChars(int start, int end, char[] destination, int destinationOffset);
+    
+    /** Returns the index of the first 'ch' at or after 'startIndex', or -1. */
+    public int indexOf(char ch, int startIndex);
+    
+    /** Inserts a copy of 'chars' at 'position'. */
+    public void insert(int position, CharSequence chars);
+    
+    /** Removes the 'count' characters starting at 'position'. */
+    public void remove(int position, int count);
+    
+    /** Writes all the characters to 'writer'. */
+    public void writeTo(Writer writer) throws IOException;
+}
@@ -0,0 +1,148 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.*;
+
+/**
+ * Compares PPieceTable with PGapBuffer on the things an editor does to a big file.
+ *
+ * The text is a synthetic log, with a line mentioning ERROR every so often.
+ * Each iteration starts from a fresh copy of it, and times, in turn:
+ *   open - wrapping the text and making the first edit, in the middle, which is when a gap buffer first has to make room.
+ *   typing - typing, with the occasional backspace, at places spread through the text.
+ *   both ends - alternately typing at the start and at the end.
+ *   replace all - replacing every ERROR with WARNING, front to back, as a find-and-replace or multiple cursors would, one edit at a time.
+ *   random access - charAt at random indexes.
+ *   sequential read - charAt over the whole text, as regular expressions read it; after all those edits, a piece table has a lot of pieces.
+ *   line scan - indexOf('\n') over the whole text, as PLineList does.
+ * We report the median time for each, over the timed iterations.
+ *
+ * Usage: PTextStorageBenchmark [MEGACHARS]
+ */
+public class PTextStorageBenchmark {
+    private static final int WARM_UP_ITERATIONS = 3;
+    private static final int TIMED_ITERATIONS = 10;
+
+    private static final String[] WORKLOADS = { "open", "typing", "both ends", "replace all", "random access", "sequential read", "line scan" };
+
+    private static final int TYPING_PLACE_COUNT = 20;
+    private static final int TYPED_CHAR_COUNT = 200;
+    private static final int BOTH_ENDS_EDIT_COUNT = 200;
+    private static final int RANDOM_ACCESS_COUNT = 1000000;
+
+    private final char[] text;
+    // Somewhere to put results, so the reads can't be optimized away.
+    private int checksum;
+
+    private PTextStorageBenchmark(int charCount) {
+        this.text = makeLog(charCount);
+    }
+
+    public static void main(String[] args) {
+        int megachars = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        PTextStorageBenchmark benchmark = new PTextStorageBenchmark(megachars * 1024 * 1024);
+        benchmark.run("piece table");
+        benchmark.run("gap buffer");
+    }
+
+    private static char[] makeLog(int charCount) {
+        StringBuilder result = new StringBuilder(charCount + 128);
+        Random random = new Random(0);
+        for (int line = 0; result.length() < charCount; ++line) {
+            String level = (line % 50 == 0) ? "ERROR" : "INFO ";
+            result.append(String.format("2026-10-18 12:%02d:%02d.%03d %s [worker-%d] request %d handled in %d ms\n", (line / 60000) % 60, (line / 1000) % 60, line % 1000, level, random.nextInt(16), line, random.nextInt(500)));
+        }
+        result.setLength(charCount);
+        char[] chars = new char[charCount];
+        result.getChars(0, charCount, chars, 0);
+        return chars;
+    }
+
+    private PTextStorage newStorage(String kind, char[] chars) {
+        return kind.equals("gap buffer") ? new PGapBuffer(chars) : new PPieceTable(chars);
+    }
+
+    private void run(String kind) {
+        long[][] durations_ns = new long[WORKLOADS.length][TIMED_ITERATIONS];
+        checksum = 0;
+        for (int iteration = 0; iteration < WARM_UP_ITERATIONS + TIMED_ITERATIONS; ++iteration) {
+            char[] chars = text.clone();
+            Random random = new Random(iteration);
+            PTextStorage storage = null;
+            for (int workload = 0; workload < WORKLOADS.length; ++workload) {
+                long t0_ns = System.nanoTime();
+                if (workload == 0) {
+                    storage = newStorage(kind, chars);
+                    storage.insert(storage.length() / 2, "x");
+                } else {
+                    runWorkload(WORKLOADS[workload], storage, random);
+                }
+                long duration_ns = System.nanoTime() - t0_ns;
+                if (iteration >= WARM_UP_ITERATIONS) {
+                    durations_ns[workload][iteration - WARM_UP_ITERATIONS] = duration_ns;
+                }
+            }
+        }
+        for (int workload = 0; workload < WORKLOADS.length; ++workload) {
+            Arrays.sort(durations_ns[workload]);
+            System.out.println(String.format("%s %s: %s", kind, WORKLOADS[workload], TimeUtilities.nsToString(durations_ns[workload][TIMED_ITERATIONS / 2])));
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    private void runWorkload(String workload, PTextStorage storage, Random random) {
+        if (workload.equals("typing")) {
+            for (int place = 0; place < TYPING_PLACE_COUNT; ++place) {
+                int position = random.nextInt(storage.length());
+                for (int i = 0; i < TYPED_CHAR_COUNT; ++i) {
+                    if (i % 10 == 9) {
+                        storage.remove(--position, 1);
+                    } else {
+                        storage.insert(position++, "x");
+                    }
+                }
+            }
+        } else if (workload.equals("both ends")) {
+            for (int i = 0; i < BOTH_ENDS_EDIT_COUNT; ++i) {
+                storage.insert((i % 2 == 0) ? 0 : storage.length(), "x");
+            }
+        } else if (workload.equals("replace all")) {
+            for (int i = 0; (i = indexOf(storage, "ERROR", i)) != -1; i += "WARNING".length()) {
+                storage.remove(i, "ERROR".length());
+                storage.insert(i, "WARNING");
+            }
+        } else if (workload.equals("random access")) {
+            final int length = storage.length();
+            for (int i = 0; i < RANDOM_ACCESS_COUNT; ++i) {
+                checksum += storage.charAt(random.nextInt(length));
+            }
+        } else if (workload.equals("sequential read")) {
+            final int length = storage.length();
+            for (int i = 0; i < length; ++i) {
+                checksum += storage.charAt(i);
+            }
+        } else if (workload.equals("line scan")) {
+            for (int i = 0; (i = storage.indexOf('\n', i)) != -1; ++i) {
+                ++checksum;
+            }
+        }
+    }
+
+    /** Finds 'pattern' the way a simple find would, through charAt. */
+    private static int indexOf(PTextStorage storage, String pattern, int startIndex) {
+        final char first = pattern.charAt(0);
+        final int end = storage.length() - pattern.length();
+        for (int i = startIndex; i <= end; ++i) {
+            if (storage.charAt(i) == first) {
+                int j = 1;
+                while (j < pattern.length() && storage.charAt(i + j) == pattern.charAt(j)) {
+                    ++j;
+                }
+                if (j == pattern.length()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -22,4 +22,11 @@ public interface PTextStyler {
     public String[] getKeywords();
     
     public void initStyleApplicators();
+    
+    /**
+     * Returns true if editing a line only changes the styling of the lines after it when the styler says so,
+     * by calling PTextArea.restyleLines. The text area can then keep the segments of the lines it hasn't been told about.
+     * Otherwise, the text area has to assume an edit can change the styling of every line after it.
+     */
+    public boolean isIncremental();
 }
@@ -0,0 +1,202 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A growable list of ints that can also tell you the sum of any prefix of the list, in O(log n).
+ * Changing a value is O(log n) too, as is appending a value, or finding where the running total passes a given value.
+ * Removing values from the end is O(1); anything else means building a new tree, which toArray and the array constructor do in O(n).
+ *
+ * Useful for mapping between line numbers and character offsets: store the lengths of the lines, and sumTo(i) is the start of line i.
+ *
+ * See Peter M. Fenwick, "A new data structure for cumulative frequency tables", Software: Practice and Experience, 1994.
+ */
+public final class FenwickTree {
+    // tree[i] holds the sum of the values with 1-based indexes (i - lowestOneBit(i), i].
+    // tree[0] is unused.
+    private int[] tree;
+    private int size;
+
+    public FenwickTree() {
+        this(16);
+    }
+
+    public FenwickTree(int initialCapacity) {
+        this.tree = new int[initialCapacity + 1];
+    }
+
+    /** Makes a tree of the first 'count' of 'values', in O(n). */
+    public FenwickTree(int[] values, int count) {
+        this.tree = new int[count + 1];
+        System.arraycopy(values, 0, tree, 1, count);
+        // Each node's own value is in place, so adding each finished node into the next node that covers it finishes that one in turn.
+        for (int i = 1; i <= count; ++i) {
+            final int parent = i + Integer.lowestOneBit(i);
+            if (parent <= count) {
+                tree[parent] += tree[i];
+            }
+        }
+        this.size = count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Appends 'value' to the list. */
+    public void append(int value) {
+        final int i = size + 1;
+        if (i >= tree.length) {
+            tree = Arrays.copyOf(tree, 2 * tree.length);
+        }
+        // The new node covers the values just before it, as well as the new value.
+        tree[i] = value + sumTo(i - 1) - sumTo(i - Integer.lowestOneBit(i));
+        size = i;
+    }
+
+    /** Returns the value at 'index'. */
+    public int get(int index) {
+        checkIndex(index);
+        return sumTo(index + 1) - sumTo(index);
+    }
+
+    /** Replaces the value at 'index' with 'value'. */
+    public void set(int index, int value) {
+        final int delta = value - get(index);
+        for (int i = index + 1; i <= size; i += Integer.lowestOneBit(i)) {
+            tree[i] += delta;
+        }
+    }
+
+    /** Returns the sum of the values with indexes less than 'end'. */
+    public int sumTo(int end) {
+        if (end < 0 || end > size) {
+            throw new IndexOutOfBoundsException("end " + end + " not in [0, " + size + "]");
+        }
+        int sum = 0;
+        for (int i = end; i > 0; i -= Integer.lowestOneBit(i)) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the largest 'end' such that sumTo(end) <= 'target'.
+     * Only meaningful if none of the values are negative.
+     * If every value is positive and 'target' is in [sumTo(index), sumTo(index + 1)), this returns 'index'.
+     */
+    public int findEnd(int target) {
+        int end = 0;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            int next = end + step;
+            if (next <= size && tree[next] <= target) {
+                end = next;
+                target -= tree[next];
+            }
+        }
+        return end;
+    }
+
+    /** Removes all but the first 'newSize' values. */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("new size " + newSize + " not in [0, " + size + "]");
+        }
+        // A node only covers values at or before its own index, so the remaining nodes are still correct.
+        size = newSize;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Returns a copy of the values, in O(n). */
+    public int[] toArray() {
+        int[] result = Arrays.copyOf(tree, size + 1);
+        // Undo the array constructor, in reverse.
+        for (int i = size; i > 0; --i) {
+            final int parent = i + Integer.lowestOneBit(i);
+            if (parent <= size) {
+                result[parent] -= result[i];
+            }
+        }
+        return Arrays.copyOfRange(result, 1, size + 1);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " not in [0, " + size + ")");
+        }
+    }
+
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(get(i));
+        }
+        return result.append("]").toString();
+    }
+
+    private static FenwickTree fromValues(int... values) {
+        FenwickTree result = new FenwickTree(1);
+        for (int value : values) {
+            result.append(value);
+        }
+        return result;
+    }
+
+    @Test private static void testSums() {
+        FenwickTree tree = fromValues(3, 1, 4, 1, 5, 9, 2, 6);
+        Assert.equals(tree.size(), 8);
+        Assert.equals(tree.toString(), "[3, 1, 4, 1, 5, 9, 2, 6]");
+        Assert.equals(tree.sumTo(0), 0);
+        Assert.equals(tree.sumTo(1), 3);
+        Assert.equals(tree.sumTo(5), 14);
+        Assert.equals(tree.sumTo(8), 31);
+        tree.set(2, 10);
+        Assert.equals(tree.get(2), 10);
+        Assert.equals(tree.sumTo(2), 4);
+        Assert.equals(tree.sumTo(3), 14);
+        Assert.equals(tree.sumTo(8), 37);
+    }
+
+    @Test private static void testTruncate() {
+        FenwickTree tree = fromValues(3, 1, 4, 1, 5, 9, 2, 6);
+        tree.truncate(5);
+        Assert.equals(tree.sumTo(5), 14);
+        tree.append(7);
+        tree.append(8);
+        tree.append(9);
+        Assert.equals(tree.toString(), "[3, 1, 4, 1, 5, 7, 8, 9]");
+        Assert.equals(tree.sumTo(8), 38);
+        tree.clear();
+        Assert.equals(tree.size(), 0);
+        Assert.equals(tree.findEnd(100), 0);
+    }
+
+    @Test private static void testFindEnd() {
+        // Three lines of lengths 6, 1, and 4 start at 0, 6, and 7.
+        FenwickTree tree = fromValues(6, 1, 4);
+        Assert.equals(tree.findEnd(0), 0);
+        Assert.equals(tree.findEnd(5), 0);
+        Assert.equals(tree.findEnd(6), 1);
+        Assert.equals(tree.findEnd(7), 2);
+        Assert.equals(tree.findEnd(10), 2);
+        Assert.equals(tree.findEnd(11), 3);
+        Assert.equals(tree.findEnd(-1), 0);
+    }
+
+    @Test private static void testArrays() {
+        int[] values = new int[] { 3, 1, 4, 1, 5, 9, 2, 6, 5, 3, 5 };
+        FenwickTree tree = new FenwickTree(values, values.length);
+        Assert.equals(tree.toString(), fromValues(values).toString());
+        Assert.equals(tree.sumTo(11), 44);
+        tree.set(4, 0);
+        Assert.equals(Arrays.toString(tree.toArray()), "[3, 1, 4, 1, 0, 9, 2, 6, 5, 3, 5]");
+        Assert.equals(new FenwickTree(values, 0).toArray().length, 0);
+    }
+}
@@ -43,13 +43,13 @@ public class GuiUtilities {
     }
     
     @SuppressWarnings("deprecation") // getMenuShortcutKeyMaskEx requires Java 10.
-    private static final int defaultKeyStrokeModifier = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+    private static final int defaultKeyStrokeModifier = GraphicsEnvironment.isHeadless() ? InputEvent.CTRL_MASK : Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
     
     /**
      * An invisible cursor, useful if you want to hide the cursor when the
      * user is typing.
      */
-    public static final Cursor INVISIBLE_CURSOR = Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
+    public static final Cursor INVISIBLE_CURSOR = GraphicsEnvironment.isHeadless() ? Cursor.getDefaultCursor() : Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
     
     private static final Color MAC_OS_ALTERNATE_ROW_COLOR = new Color(0.92f, 0.95f, 0.99f);
     
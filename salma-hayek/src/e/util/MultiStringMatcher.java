@@ -0,0 +1,240 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Finds every occurrence of any of a set of strings in a single pass over the text, however many strings there are.
+ *
+ * The strings are compiled into an Aho-Corasick automaton, with the failure links followed at construction time so it's a DFA: each character of the text costs one table lookup, and nothing's ever re-examined.
+ * The text can arrive in pieces; match returns the state to pass in with the next piece, so occurrences split across pieces are still found.
+ *
+ * The table has a column per distinct character in the strings, plus one for all the others, so it stays small however wide the alphabet.
+ *
+ * See Alfred V. Aho and Margaret J. Corasick, "Efficient string matching: an aid to bibliographic search", CACM, 1975.
+ */
+public final class MultiStringMatcher {
+    /** The state before any text has been seen. Other states are just numbers to pass back in. */
+    public static final int INITIAL_STATE = 0;
+
+    /**
+     * Told about each occurrence match finds.
+     */
+    public interface Listener {
+        /** Called for each occurrence of the string with the given index that ends just before 'end'. */
+        public void matched(int stringIndex, int end);
+    }
+
+    private final String[] strings;
+    // The column for each ASCII character, and for the other characters in the strings, in order; column 0 is for every other character.
+    private final int[] asciiColumns = new int[128];
+    private final char[] otherChars;
+    private final int[] otherColumns;
+    private final int columnCount;
+    // The state after each (state, column), at state + column.
+    // A state is the index of its row in this table, so the inner loop doesn't multiply; it's complemented (and so negative) if any strings end there.
+    private final int[] transitions;
+    // The indexes of the strings that end in each state, or null, indexed by row number (the state divided by columnCount).
+    private final int[][] matches;
+
+    public MultiStringMatcher(List<String> strings, boolean ignoreCase) {
+        this.strings = strings.toArray(new String[strings.size()]);
+
+        // Give each character a column, with both cases sharing one if we're ignoring case.
+        TreeMap<Character, Integer> columnsByChar = new TreeMap<Character, Integer>();
+        int nextColumn = 1;
+        for (String string : strings) {
+            if (string.length() == 0) {
+                throw new IllegalArgumentException("can't match the empty string");
+            }
+            for (char ch : string.toCharArray()) {
+                if (columnsByChar.containsKey(ch) == false) {
+                    int column = nextColumn++;
+                    columnsByChar.put(ch, column);
+                    if (ignoreCase) {
+                        columnsByChar.put(Character.toLowerCase(ch), column);
+                        columnsByChar.put(Character.toUpperCase(ch), column);
+                    }
+                }
+            }
+        }
+        this.columnCount = nextColumn;
+        ArrayList<Character> others = new ArrayList<Character>();
+        for (Map.Entry<Character, Integer> entry : columnsByChar.entrySet()) {
+            char ch = entry.getKey();
+            if (ch < asciiColumns.length) {
+                asciiColumns[ch] = entry.getValue();
+            } else {
+                others.add(ch);
+            }
+        }
+        this.otherChars = new char[others.size()];
+        this.otherColumns = new int[others.size()];
+        for (int i = 0; i < otherChars.length; ++i) {
+            otherChars[i] = others.get(i);
+            otherColumns[i] = columnsByChar.get(otherChars[i]);
+        }
+
+        // Build the trie, with -1 for a missing edge.
+        ArrayList<int[]> trie = new ArrayList<int[]>();
+        ArrayList<int[]> stringsEndingAt = new ArrayList<int[]>();
+        trie.add(newRow());
+        stringsEndingAt.add(null);
+        for (int i = 0; i < this.strings.length; ++i) {
+            int state = INITIAL_STATE;
+            for (char ch : this.strings[i].toCharArray()) {
+                int column = getColumn(ch);
+                if (trie.get(state)[column] == -1) {
+                    trie.get(state)[column] = trie.size();
+                    trie.add(newRow());
+                    stringsEndingAt.add(null);
+                }
+                state = trie.get(state)[column];
+            }
+            stringsEndingAt.set(state, append(stringsEndingAt.get(state), i));
+        }
+
+        // Fill in the missing edges breadth first, so each state's failure state is finished before the state itself.
+        final int stateCount = trie.size();
+        this.transitions = new int[stateCount * columnCount];
+        this.matches = new int[stateCount][];
+        int[] failures = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int queueHead = 0;
+        int queueTail = 0;
+        for (int column = 0; column < columnCount; ++column) {
+            int child = trie.get(INITIAL_STATE)[column];
+            if (child == -1) {
+                transitions[column] = INITIAL_STATE;
+            } else {
+                transitions[column] = child;
+                failures[child] = INITIAL_STATE;
+                queue[queueTail++] = child;
+            }
+        }
+        while (queueHead < queueTail) {
+            int state = queue[queueHead++];
+            int failure = failures[state];
+            // A state also matches whatever its longest proper suffix in the trie matches.
+            matches[state] = concat(stringsEndingAt.get(state), matches[failure]);
+            for (int column = 0; column < columnCount; ++column) {
+                int child = trie.get(state)[column];
+                if (child == -1) {
+                    transitions[state * columnCount + column] = transitions[failure * columnCount + column];
+                } else {
+                    transitions[state * columnCount + column] = child;
+                    failures[child] = transitions[failure * columnCount + column];
+                    queue[queueTail++] = child;
+                }
+            }
+        }
+
+        // Turn state numbers into row offsets, marking those with matches.
+        for (int i = 0; i < transitions.length; ++i) {
+            int state = transitions[i];
+            transitions[i] = (matches[state] != null) ? ~(state * columnCount) : state * columnCount;
+        }
+    }
+
+    private int[] newRow() {
+        int[] row = new int[columnCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int[] append(int[] array, int value) {
+        return concat(array, new int[] { value });
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private int getColumn(char ch) {
+        if (ch < asciiColumns.length) {
+            return asciiColumns[ch];
+        }
+        int i = Arrays.binarySearch(otherChars, ch);
+        return (i >= 0) ? otherColumns[i] : 0;
+    }
+
+    /** Returns the number of strings we're looking for. */
+    public int getStringCount() {
+        return strings.length;
+    }
+
+    /** Returns the string with the given index, in the order they were given to the constructor. */
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    /**
+     * Scans chars[start, end), continuing from 'state', and tells 'listener' about every occurrence that ends in that range.
+     * Returns the state to continue from with the next piece of text, or you can start afresh with INITIAL_STATE.
+     */
+    public int match(int state, char[] chars, int start, int end, Listener listener) {
+        final int[] transitions = this.transitions;
+        final int[] asciiColumns = this.asciiColumns;
+        final int columnCount = this.columnCount;
+        for (int i = start; i < end; ++i) {
+            char ch = chars[i];
+            int column = (ch < 128) ? asciiColumns[ch] : getColumn(ch);
+            state = transitions[state + column];
+            if (state < 0) {
+                state = ~state;
+                for (int stringIndex : matches[state / columnCount]) {
+                    listener.matched(stringIndex, i + 1);
+                }
+            }
+        }
+        return state;
+    }
+
+    private static String findAll(MultiStringMatcher matcher, String text) {
+        final StringBuilder result = new StringBuilder();
+        final char[] chars = text.toCharArray();
+        matcher.match(INITIAL_STATE, chars, 0, chars.length, new Listener() {
+            public void matched(int stringIndex, int end) {
+                result.append(stringIndex).append('@').append(end).append(' ');
+            }
+        });
+        return result.toString().trim();
+    }
+
+    @Test private static void testOverlappingMatches() {
+        // The classic example from the paper.
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("he", "she", "his", "hers"), false);
+        Assert.equals(findAll(matcher, "ushers"), "1@4 0@4 3@6");
+        Assert.equals(findAll(matcher, "his hers"), "2@3 0@6 3@8");
+        Assert.equals(findAll(matcher, "nothing"), "");
+    }
+
+    @Test private static void testIgnoreCase() {
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("password:", "BUILD FAILED"), true);
+        Assert.equals(findAll(matcher, "Password: "), "0@9");
+        Assert.equals(findAll(matcher, "build failed"), "1@12");
+        Assert.equals(findAll(new MultiStringMatcher(Arrays.asList("password:"), false), "Password:"), "");
+    }
+
+    @Test private static void testPieces() {
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("error:", "été"), false);
+        final ArrayList<Integer> ends = new ArrayList<Integer>();
+        Listener listener = new Listener() {
+            public void matched(int stringIndex, int end) {
+                ends.add(end);
+            }
+        };
+        char[] chars = "an err".toCharArray();
+        int state = matcher.match(INITIAL_STATE, chars, 0, chars.length, listener);
+        chars = "or: été".toCharArray();
+        matcher.match(state, chars, 0, chars.length, listener);
+        Assert.equals(ends.toString(), "[3, 7]");
+    }
+}
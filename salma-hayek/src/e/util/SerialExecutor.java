@@ -0,0 +1,43 @@
+package e.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the threads of another Executor.
+ * This gives you the ordering of a single-thread executor without a thread of your own, so many
+ * mostly-idle SerialExecutors can share a pool that only has as many threads as there are busy ones.
+ * 
+ * This is the SerialExecutor from the java.util.concurrent.Executor documentation.
+ */
+public final class SerialExecutor implements Executor {
+    private final Executor executor;
+    // Guarded by this.
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private Runnable active;
+    
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    public synchronized void execute(final Runnable task) {
+        tasks.add(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+    
+    private synchronized void scheduleNext() {
+        if ((active = tasks.poll()) != null) {
+            executor.execute(active);
+        }
+    }
+}
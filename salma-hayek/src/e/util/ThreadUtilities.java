@@ -23,6 +23,19 @@ public class ThreadUtilities {
         });
     }
     
+    /**
+     * Returns a ScheduledExecutorService that uses a single worker thread, just like
+     * {@link Executors#newSingleThreadScheduledExecutor}. The worker thread
+     * will have the given name.
+     */
+    public static ScheduledExecutorService newSingleThreadScheduledExecutor(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory() {
+            public String newThreadName() {
+                return threadName;
+            }
+        });
+    }
+    
     /**
      * Returns an Executor that uses a fixed-size pool of worker thread, just like
      * {@link Executors#newFixedThreadPool}. The worker thread's name is
@@ -33,6 +46,16 @@ public class ThreadUtilities {
         return Executors.newFixedThreadPool(size, new NamedThreadFactory(poolName));
     }
     
+    /**
+     * Returns an Executor that creates worker threads as needed and lets them die after a minute idle,
+     * just like {@link Executors#newCachedThreadPool}. The worker thread's name is
+     * poolName-thread-N, where N is the sequence number of the thread created
+     * by this Executor's thread factory.
+     */
+    public static ExecutorService newCachedThreadPool(String poolName) {
+        return Executors.newCachedThreadPool(new NamedThreadFactory(poolName));
+    }
+    
     private static abstract class DaemonThreadFactory implements ThreadFactory {
         public abstract String newThreadName();
         
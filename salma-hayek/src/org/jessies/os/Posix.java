@@ -1,5 +1,7 @@
 package org.jessies.os;
 
+import java.nio.ByteBuffer;
+
 /**
  * Selected POSIX API.
  * 
@@ -82,6 +84,17 @@ public class Posix {
     /** Posix.waitpid flag to also return if a child is merely stopped. */
     public static final int WUNTRACED = PosixJNI.get_WUNTRACED();
     
+    /** Posix.poll event bit for data other than high-priority data that may be read without blocking. */
+    public static final int POLLIN = PosixJNI.get_POLLIN();
+    /** Posix.poll event bit for normal data that may be written without blocking. */
+    public static final int POLLOUT = PosixJNI.get_POLLOUT();
+    /** Posix.poll revents bit for an error on the fd. Always reported; needn't be requested. */
+    public static final int POLLERR = PosixJNI.get_POLLERR();
+    /** Posix.poll revents bit for a hang up on the fd. Always reported; needn't be requested. */
+    public static final int POLLHUP = PosixJNI.get_POLLHUP();
+    /** Posix.poll revents bit for an fd that isn't open. Always reported; needn't be requested. */
+    public static final int POLLNVAL = PosixJNI.get_POLLNVAL();
+    
     /**
      * Returns true if the requested access is permitted, false otherwise.
      * The 'accessMode' should be a bitwise or of the R_OK, W_OK, X_OK, and F_OK constants.
@@ -364,6 +377,32 @@ public class Posix {
         return PosixJNI.open(path, flags, mode);
     }
     
+    /**
+     * Creates a pipe, storing the fd for the read end in fds[0] and the fd for the write end in fds[1].
+     * Returns 0 on success, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/pipe.html
+     */
+    public static int pipe(int[] fds) {
+        if (fds == null || fds.length < 2) {
+            throw new IllegalArgumentException("'fds' must have room for two fds");
+        }
+        return PosixJNI.pipe(fds);
+    }
+    
+    /**
+     * Waits up to 'timeoutMs' milliseconds (forever if negative) for one of the first 'fdCount' fds in 'fds' to be ready.
+     * The events of interest for fds[i] are in events[i], a bitwise or of POLLIN and POLLOUT.
+     * On return, revents[i] says which events occurred, plus POLLERR, POLLHUP, or POLLNVAL.
+     * Returns the number of fds with non-zero revents (0 on timeout), -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/poll.html
+     */
+    public static int poll(int[] fds, int[] events, int[] revents, int fdCount, int timeoutMs) {
+        if (fdCount < 0 || fdCount > fds.length || fdCount > events.length || fdCount > revents.length) {
+            throw new IllegalArgumentException("arrays too small; fdCount=" + fdCount + ", fds.length=" + fds.length + ", events.length=" + events.length + ", revents.length=" + revents.length);
+        }
+        return PosixJNI.poll(fds, events, revents, fdCount, timeoutMs);
+    }
+    
     /**
      * Reads 'byteCount' bytes from file descriptor 'fd' at offset 'fileOffset' into 'buffer' at 'bufferOffset'.
      * Returns the number of bytes read, -errno on error.
@@ -394,6 +433,21 @@ public class Posix {
         return PosixJNI.read(fd, buffer, bufferOffset, byteCount);
     }
     
+    /**
+     * Reads up to buffer.remaining() bytes from file descriptor 'fd' into the direct ByteBuffer 'buffer' at its position, and advances the position.
+     * Unlike the byte[] variant, this reads straight into the buffer, without copying through the C heap.
+     * Returns the number of bytes read, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/read.html
+     */
+    public static int read(int fd, ByteBuffer buffer) {
+        checkDirectBuffer(buffer);
+        int result = PosixJNI.read(fd, buffer, buffer.position(), buffer.remaining());
+        if (result > 0) {
+            buffer.position(buffer.position() + result);
+        }
+        return result;
+    }
+    
     // FIXME: readlink. How do we express the String-or-int return type? Pass in a String[] and assign to element 0?
     
     /**
@@ -471,6 +525,30 @@ public class Posix {
         return PosixJNI.write(fd, buffer, bufferOffset, byteCount);
     }
     
+    /**
+     * Writes up to buffer.remaining() bytes from the direct ByteBuffer 'buffer' at its position to file descriptor 'fd', and advances the position.
+     * Unlike the byte[] variant, this writes straight from the buffer, without copying through the C heap.
+     * Returns the number of bytes written, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/write.html
+     */
+    public static int write(int fd, ByteBuffer buffer) {
+        checkDirectBuffer(buffer);
+        int result = PosixJNI.write(fd, buffer, buffer.position(), buffer.remaining());
+        if (result > 0) {
+            buffer.position(buffer.position() + result);
+        }
+        return result;
+    }
+    
+    private static void checkDirectBuffer(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException("buffer == null");
+        }
+        if (buffer.isDirect() == false) {
+            throw new IllegalArgumentException("buffer must be direct; use the byte[] variant for heap buffers");
+        }
+    }
+    
     private static void checkBufferArgs(byte[] buffer, int bufferOffset, int byteCount) {
         if (buffer == null) {
             throw new NullPointerException("buffer == null");
@@ -1,5 +1,7 @@
 package org.jessies.os;
 
+import java.nio.ByteBuffer;
+
 /**
  * Home to all the native methods needed to implement the POSIX-related classes in org.jessies.os.
  * As well as gathering everything into one C++ class and one library, this gives us an extra level of indirection.
@@ -75,6 +77,12 @@ class PosixJNI {
     static native int get_WNOHANG();
     static native int get_WUNTRACED();
     
+    static native int get_POLLIN();
+    static native int get_POLLOUT();
+    static native int get_POLLERR();
+    static native int get_POLLHUP();
+    static native int get_POLLNVAL();
+    
     static native int get_E2BIG();
     static native int get_EACCES();
     static native int get_EADDRINUSE();
@@ -194,9 +202,12 @@ class PosixJNI {
     static native int mknod(String path, int mode, long device);
     static native int open(String path, int flags);
     static native int open(String path, int flags, int mode);
+    static native int pipe(int[] fds);
+    static native int poll(int[] fds, int[] events, int[] revents, int fdCount, int timeoutMs);
     static native int pread(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int pwrite(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int read(int fd, byte[] buffer, int bufferOffset, int byteCount);
+    static native int read(int fd, ByteBuffer buffer, int bufferOffset, int byteCount);
     static native int rmdir(String path);
     static native int stat(String path, Stat stat);
     static native String strerror(int errno);
@@ -206,4 +217,5 @@ class PosixJNI {
     static native int unlink(String path);
     static native int waitpid(int pid, WaitStatus status, int flags);
     static native int write(int fd, byte[] buffer, int bufferOffset, int byteCount);
+    static native int write(int fd, ByteBuffer buffer, int bufferOffset, int byteCount);
 }
@@ -17,6 +17,7 @@ public class InfoDialog {
     private JTextField processes;
     private JTextField logFilename;
     private JTextField ptyFilename;
+    private JTextField rendering;
     private JCheckBox suspendLogging;
     private JTerminalPane terminal;
     
@@ -31,6 +32,7 @@ public class InfoDialog {
         this.processes = new UneditableTextField();
         this.logFilename = new UneditableTextField();
         this.ptyFilename = new UneditableTextField();
+        this.rendering = new UneditableTextField();
         this.suspendLogging = makeSuspendLoggingCheckBox();
     }
     
@@ -63,6 +65,7 @@ public class InfoDialog {
         formPanel.addRow("Pseudo-Terminal:", ptyFilename);
         formPanel.addRow("Processes:", processes);
         formPanel.addRow("Log Filename:", logFilename);
+        formPanel.addRow("Rendering:", rendering);
         if (GuiUtilities.isMacOs() || GuiUtilities.isWindows()) {
             JButton showInFinderButton = new JButton(GuiUtilities.isMacOs() ? "Show in Finder" : "Show in Explorer");
             showInFinderButton.addActionListener(new ActionListener() {
@@ -95,6 +98,8 @@ public class InfoDialog {
             processes.setText("");
         }
         
+        rendering.setText(terminal.getControl().getRenderScheduler().toString());
+        
         final TerminalLogWriter terminalLogWriter = terminal.getControl().getTerminalLogWriter();
         logFilename.setText(terminalLogWriter.getInfo());
         suspendLogging.setSelected(terminalLogWriter.isSuspended());
@@ -210,6 +210,32 @@ public class Palettes {
             if (colorSetting != null) return Terminator.getPreferences().getColor(colorSetting);
             return getColor(index);
         }
+        
+        // Two inks are equal if they'll always give the same color, so that equal Styles can be interned.
+        @Override public boolean equals(Object obj) {
+            if (obj instanceof Ink == false) {
+                return false;
+            }
+            Ink ink = (Ink) obj;
+            if (index != ink.index) {
+                return false;
+            }
+            if (fixedColor == null ? ink.fixedColor != null : fixedColor.equals(ink.fixedColor) == false) {
+                return false;
+            }
+            if (colorSetting == null ? ink.colorSetting != null : colorSetting.equals(ink.colorSetting) == false) {
+                return false;
+            }
+            return true;
+        }
+        
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + index;
+            result = 31 * result + (fixedColor != null ? fixedColor.hashCode() : 0);
+            result = 31 * result + (colorSetting != null ? colorSetting.hashCode() : 0);
+            return result;
+        }
     }
     
     public static Ink getInk(int index) {
@@ -0,0 +1,86 @@
+package terminator;
+
+import e.util.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Measures how long a running Terminator takes to open a new window, from the moment a client connects to the TerminatorServer until the new terminal's first output (usually the shell's prompt) has been painted.
+ * That's what the terminator script's user waits for, less the time it takes to start Ruby.
+ *
+ * Each window is opened by TerminatorServer.benchmarkNewWindow, which waits for the first output to be painted before replying, and closes the window again afterwards.
+ * We open a series of windows, starting with an untimed one, and report the minimum, median, and maximum, in milliseconds.
+ *
+ * Usage: StartupBenchmark PORT_FILE [ITERATIONS]
+ * where PORT_FILE is the TerminatorServer's port file, as in the terminator script.
+ */
+public class StartupBenchmark {
+    private static final int DEFAULT_ITERATIONS = 20;
+    // Long enough for the previous window to close, as it would between a user's requests.
+    private static final long PAUSE_MS = 2000;
+    
+    private final File portFile;
+    private final File secretFile;
+    
+    private StartupBenchmark(File portFile) {
+        this.portFile = portFile;
+        this.secretFile = new File(portFile.getPath() + ".secret");
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: StartupBenchmark PORT_FILE [ITERATIONS]");
+            System.exit(1);
+        }
+        StartupBenchmark benchmark = new StartupBenchmark(new File(args[0]));
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+        benchmark.run(iterations);
+    }
+    
+    private void run(int iterations) throws Exception {
+        openWindow();
+        long[] durations_ms = new long[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            durations_ms[i] = openWindow();
+        }
+        Arrays.sort(durations_ms);
+        System.out.println("min " + durations_ms[0] + " ms, median " + durations_ms[iterations / 2] + " ms, max " + durations_ms[iterations - 1] + " ms (" + iterations + " windows)");
+    }
+    
+    /**
+     * Asks the server to open a window, and returns how long it was until the first output was painted, in milliseconds.
+     */
+    private long openWindow() throws Exception {
+        Thread.sleep(PAUSE_MS);
+        Matcher matcher = Pattern.compile("^(.+):(\\d+)$").matcher(StringUtilities.readFile(portFile).trim());
+        if (matcher.matches() == false) {
+            throw new IOException("couldn't understand the port file \"" + portFile + "\"");
+        }
+        // The server makes a new secret for each connection, so we have to read it each time.
+        String secret = StringUtilities.readFile(secretFile).trim();
+        String command = "benchmarkNewWindow --working-directory " + StringUtilities.urlEncode(System.getProperty("user.dir"));
+        
+        long startTime_ns = System.nanoTime();
+        Socket socket = new Socket(InetAddress.getByName(null), Integer.parseInt(matcher.group(2)));
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out.println(secret);
+            out.println(command);
+            String authentication = in.readLine();
+            if ("Authentication OK".equals(authentication) == false) {
+                throw new IOException("server said \"" + authentication + "\"");
+            }
+            String reply = in.readLine();
+            long duration_ms = (System.nanoTime() - startTime_ns) / 1000000;
+            if (reply == null || reply.startsWith("First output painted") == false) {
+                throw new IOException("server said \"" + reply + "\"");
+            }
+            return duration_ms;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -2,58 +2,84 @@ package terminator;
 
 import e.gui.*;
 import e.util.*;
-import java.awt.event.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
-import javax.swing.Timer;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import org.jessies.test.*;
 
 /**
  * Logs terminal output to a file.
  * Logging can be temporarily suspended.
  * If the terminal logs directory does not exist or we can't open the log file for some other reason, logging is automatically suspended, and can't be un-suspended.
+ *
+ * The reader thread only copies output into a buffer; all the disk IO happens on a single writer thread shared by every terminal.
+ * If the disk can't keep up, the buffer grows; if it gets really big, the TerminalControl stops reading from the pty until we've caught up, rather than lose output.
+ * It can't simply wait, because it shares its PtyReaderLoop thread with other terminals.
+ * Logs can optionally be gzipped as they're written, and capped in size by starting a new file and deleting the one before it.
  */
 public class TerminalLogWriter {
     // We can't use ':' to separate the hours, minutes, and seconds because it's not allowed on all file systems.
     private static final DateFormat FILENAME_TIMESTAMP_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss.SSSZ");
+
+    private static final ScheduledExecutorService executor = ThreadUtilities.newSingleThreadScheduledExecutor("Terminal Log Writer");
+
+    // How long we let output accumulate before writing it out, unless the buffer's filling up.
+    private static final long DRAIN_DELAY_MS = 1000;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    // How big we let the buffer grow before we ask the reader to pause.
+    private static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private volatile String info = "(not logging)";
+    private volatile boolean isLogging = false;
+    private volatile boolean isSuspended = false;
+    private volatile boolean isClosed = false;
+
+    // Guarded by 'this'. The reader thread appends to 'pending'; the writer thread swaps it for 'spare' and writes it out.
+    private char[] pending = new char[BUFFER_SIZE];
+    private int pendingLength = 0;
+    private char[] spare = new char[BUFFER_SIZE];
+    private boolean isDrainScheduled = false;
+    private boolean isUrgentDrainScheduled = false;
+    private boolean isReaderPaused = false;
     
-    private String info = "(not logging)";
+    // Run on the writer thread when there's room for more output after shouldPauseReader returned true.
+    private final Runnable readerResumer;
+
+    // Only accessed on the writer thread, after construction.
     private Writer writer;
-    private Writer suspendedWriter;
-    private Timer flushTimer;
-    
-    public TerminalLogWriter(List<String> command) {
-        // Establish the invariant that writer != null.
-        // suspendedWriter is still null - when we're not suspended.
-        this.writer = NullWriter.INSTANCE;
-        this.flushTimer = new Timer(1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                flush();
-            }
-        });
-        flushTimer.setRepeats(false);
-        // If the user has chosen to disable terminal logging, just leave the NullWriter in place.
-        // Note that this has to occur after the 'flushTimer' initialisation has taken place, otherwise the
-        // 'append' method will throw a null pointer exception, which will prevent the terminal from being
-        // redrawn correctly.
+    private File currentFile;
+    private File previousFile;
+    private String filenamePrefix;
+    private String filenameExtension;
+    private int partNumber = 1;
+    private boolean shouldCompress;
+    private long sizeLimitBytes;
+
+    public TerminalLogWriter(List<String> command, Runnable readerResumer) {
+        this.readerResumer = readerResumer;
+        // If the user has chosen to disable terminal logging, just leave 'isLogging' false.
         if (!Terminator.getPreferences().getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY)) {
             return;
         }
+        this.shouldCompress = Terminator.getPreferences().getBoolean(TerminatorPreferences.COMPRESS_LOGS);
+        this.sizeLimitBytes = 1024L * 1024L * Terminator.getPreferences().getInt(TerminatorPreferences.LOG_SIZE_LIMIT);
+        this.filenameExtension = shouldCompress ? ".txt.gz" : ".txt";
         try {
             initLogging(StringUtilities.join(command, " "));
         } catch (Throwable th) {
             SimpleDialog.showDetails(null, "Couldn't Open Log File", th);
         }
     }
-    
-    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength) {
+
+    private synchronized static String makeLogFilenamePrefix(String commandLine, int truncationLength) {
         String mostInterestingPartOfCommandLine = commandLine.substring(0, truncationLength);
         String suffix = StringUtilities.urlEncode(mostInterestingPartOfCommandLine);
         String timestamp = FILENAME_TIMESTAMP_FORMATTER.format(new Date());
-        String leafname = timestamp + "-" + suffix + ".txt";
-        return new File(logsDirectory, leafname);
+        return timestamp + "-" + suffix;
     }
-    
+
     private void initLogging(String commandLine) throws IOException {
         String logsDirectoryName = System.getProperty("org.jessies.terminator.logDirectory");
         File logsDirectory = new File(logsDirectoryName);
@@ -73,16 +99,19 @@ public class TerminalLogWriter {
             this.info = "(\"" + logsDirectoryName + "\" is not writable)";
             return;
         }
-        
+
         // Try to create a log file.
         // We'll keep truncating the name until we either succeed or there's no name left.
         // This avoids assumptions about maximum filename or path lengths.
         for (int truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
-            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength);
+            File logFile = new File(logsDirectory, makeLogFilenamePrefix(commandLine, truncationLength) + filenameExtension);
             try {
                 this.info = "(\"" + logFile + "\" could not be opened for writing)";
-                this.writer = new BufferedWriter(new FileWriter(logFile));
+                this.writer = openWriter(logFile);
+                this.currentFile = logFile;
+                this.filenamePrefix = logFile.getPath().substring(0, logFile.getPath().length() - filenameExtension.length());
                 this.info = logFile.toString();
+                this.isLogging = true;
                 return;
             } catch (IOException ex) {
                 if (truncationLength == 0) {
@@ -92,70 +121,250 @@ public class TerminalLogWriter {
             }
         }
     }
-    
-    public void append(char[] chars, int charCount, boolean sawNewline) throws IOException {
-        writer.write(chars, 0, charCount);
-        if (sawNewline) {
-            flushTimer.restart();
+
+    private Writer openWriter(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (shouldCompress) {
+            out = new GzipMemberOutputStream(out);
         }
+        return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+
+    /**
+     * Queues 'charCount' characters from 'chars' to be logged.
+     * Called on the reader thread, which this never blocks; see shouldPauseReader.
+     */
+    public void append(char[] chars, int charCount) {
+        if (isLogging == false || isSuspended || isClosed) {
+            return;
+        }
+        synchronized (this) {
+            if (pendingLength + charCount > pending.length) {
+                makeRoomFor(charCount);
+            }
+            System.arraycopy(chars, 0, pending, pendingLength, charCount);
+            pendingLength += charCount;
+            if (pendingLength >= pending.length / 2) {
+                scheduleUrgentDrain();
+            } else if (isDrainScheduled == false) {
+                isDrainScheduled = true;
+                executor.schedule(drainer, DRAIN_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Grows 'pending' so it can take another 'charCount' characters.
+     */
+    private synchronized void makeRoomFor(int charCount) {
+        pending = Arrays.copyOf(pending, Math.max(pendingLength + charCount, 2 * pending.length));
     }
     
+    /**
+     * Tests whether the disk has fallen too far behind, in which case the reader should stop reading until our 'readerResumer' is run.
+     * A single read can only take us a little way past the limit.
+     */
+    public synchronized boolean shouldPauseReader() {
+        if (pendingLength < MAX_BUFFER_SIZE) {
+            return false;
+        }
+        isReaderPaused = true;
+        return true;
+    }
+
+    private synchronized void scheduleUrgentDrain() {
+        if (isUrgentDrainScheduled == false) {
+            isUrgentDrainScheduled = true;
+            executor.execute(drainer);
+        }
+    }
+
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    // Only called on the writer thread.
+    private void drain() {
+        char[] chars;
+        int charCount;
+        boolean shouldResumeReader;
+        synchronized (this) {
+            chars = pending;
+            charCount = pendingLength;
+            pending = spare;
+            pendingLength = 0;
+            spare = null;
+            isDrainScheduled = false;
+            isUrgentDrainScheduled = false;
+            shouldResumeReader = isReaderPaused;
+            isReaderPaused = false;
+        }
+        if (shouldResumeReader) {
+            // The reader can carry on while we write this lot out.
+            readerResumer.run();
+        }
+        try {
+            if (writer != null && charCount > 0) {
+                writer.write(chars, 0, charCount);
+                writer.flush();
+                rotateIfNecessary();
+            }
+        } catch (Throwable th) {
+            Log.warn("Exception occurred writing log \"" + info + "\".", th);
+        } finally {
+            synchronized (this) {
+                // Don't hang on to a buffer that grew to cope with a burst of output.
+                spare = (chars.length > BUFFER_SIZE) ? new char[BUFFER_SIZE] : chars;
+            }
+        }
+    }
+
+    /**
+     * Starts a new part once the current one has used half the size limit, deleting the part before it.
+     * So we keep at most two parts, and at least half the limit's worth of the most recent output.
+     */
+    private void rotateIfNecessary() throws IOException {
+        if (sizeLimitBytes <= 0 || currentFile.length() < sizeLimitBytes / 2) {
+            return;
+        }
+        writer.close();
+        writer = null;
+        if (previousFile != null && previousFile.delete() == false) {
+            Log.warn("Failed to delete old log \"" + previousFile + "\".");
+        }
+        previousFile = currentFile;
+        ++partNumber;
+        File newFile = new File(filenamePrefix + "-part" + partNumber + filenameExtension);
+        writer = openWriter(newFile);
+        currentFile = newFile;
+        info = newFile.toString();
+    }
+
+    /**
+     * Writes out everything logged so far, waiting until it's on disk.
+     */
     public void flush() {
+        if (isLogging == false) {
+            return;
+        }
         try {
-            writer.flush();
+            executor.submit(drainer).get();
         } catch (Throwable th) {
             Log.warn("Exception occurred flushing log writer \"" + info + "\".", th);
         }
     }
-    
+
     public void close() {
-        try {
-            suspend(false);
-            writer.close();
-            writer = NullWriter.INSTANCE;
-        } catch (Throwable th) {
-            Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
+        if (isLogging == false || isClosed) {
+            return;
         }
+        isClosed = true;
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+                try {
+                    if (writer != null) {
+                        writer.close();
+                        writer = null;
+                    }
+                } catch (Throwable th) {
+                    Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
+                }
+            }
+        });
     }
-    
+
     public String getInfo() {
         return info;
     }
-    
+
     public void suspend(boolean shouldSuspend) {
         flush();
-        if (shouldSuspend == isSuspended()) {
-            return;
-        }
-        if (shouldSuspend) {
-            suspendedWriter = writer;
-            writer = NullWriter.INSTANCE;
-        } else {
-            writer = suspendedWriter;
-            suspendedWriter = null;
-        }
+        isSuspended = shouldSuspend;
     }
-    
+
     public boolean isSuspended() {
-        return (suspendedWriter != null);
+        return isSuspended;
     }
     
-    public static class NullWriter extends Writer {
-        public static final Writer INSTANCE = new NullWriter();
+    /**
+     * Compresses everything written to it, finishing a complete gzip member each time it's flushed.
+     * So everything we've flushed is readable even if we're killed before we close the file.
+     * (Java 6's GZIPOutputStream can't flush what it's compressed without finishing the stream.)
+     * A file of concatenated members is a valid gzip file, which gunzip(1) and zcat(1) read as one.
+     */
+    private static class GzipMemberOutputStream extends OutputStream {
+        private final OutputStream out;
+        // Lets us close each member, freeing its Deflater, without closing the file.
+        private final OutputStream nonClosingOut;
+        private GZIPOutputStream member;
         
-        private NullWriter() {
+        GzipMemberOutputStream(final OutputStream out) {
+            this.out = out;
+            this.nonClosingOut = new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    out.write(b);
+                }
+                
+                @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+            };
         }
         
-        @Override public void close() {
+        private GZIPOutputStream getMember() throws IOException {
+            if (member == null) {
+                member = new GZIPOutputStream(nonClosingOut);
+            }
+            return member;
         }
         
-        @Override public void flush() {
+        @Override public void write(int b) throws IOException {
+            getMember().write(b);
         }
         
-        @Override public void write(int c) {
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            getMember().write(bytes, offset, length);
         }
         
-        @Override public void write(char[] buffer, int offset, int byteCount) {
+        @Override public void flush() throws IOException {
+            if (member != null) {
+                member.close();
+                member = null;
+            }
+            out.flush();
         }
+        
+        @Override public void close() throws IOException {
+            flush();
+            out.close();
+        }
+    }
+    
+    private static String gunzip(byte[] bytes) throws IOException {
+        Reader in = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes)), "UTF-8");
+        StringBuilder result = new StringBuilder();
+        char[] buffer = new char[1024];
+        int charCount;
+        while ((charCount = in.read(buffer)) != -1) {
+            result.append(buffer, 0, charCount);
+        }
+        return result.toString();
+    }
+    
+    @Test private static void testGzipMembers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(new GzipMemberOutputStream(bytes), "UTF-8");
+        writer.write("hello, ");
+        writer.flush();
+        // What we've flushed so far is readable without closing the stream.
+        Assert.equals(gunzip(bytes.toByteArray()), "hello, ");
+        writer.write("world\n");
+        writer.flush();
+        writer.write("\u00e9t\u00e9");
+        writer.close();
+        Assert.equals(gunzip(bytes.toByteArray()), "hello, world\n\u00e9t\u00e9");
     }
 }
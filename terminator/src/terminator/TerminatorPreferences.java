@@ -26,9 +26,12 @@ public class TerminatorPreferences extends Preferences {
     public static final String HIDE_MOUSE_WHEN_TYPING = "hideMouseWhenTyping";
     public static final String INITIAL_COLUMN_COUNT = "initialColumnCount";
     public static final String INITIAL_ROW_COUNT = "initialRowCount";
+    public static final String MAX_FRAME_RATE = "maxFrameRate";
     public static final String PALETTE = "palette";
     public static final String SCROLL_ON_KEY_PRESS = "scrollKey";
     public static final String SCROLL_ON_TTY_OUTPUT = "scrollTtyOutput";
+    public static final String SCROLLBACK_LINE_LIMIT = "scrollbackLineLimit";
+    public static final String SPILL_SCROLLBACK_TO_DISK = "spillScrollbackToDisk";
     public static final String VISUAL_BELL = "visualBell";
     
     /**
@@ -49,6 +52,16 @@ public class TerminatorPreferences extends Preferences {
      */
     public static final String LOG_TERMINAL_ACTIVITY = "logTerminalActivity";
     
+    /**
+     * Whether to gzip terminal logs as they're written.
+     */
+    public static final String COMPRESS_LOGS = "compressLogs";
+    
+    /**
+     * How much disk space, in MiB, each terminal's logs may use; older output is deleted to stay within the limit.
+     */
+    public static final String LOG_SIZE_LIMIT = "logSizeLimit";
+    
     private static final Color CREAM = new Color(0xfefaea);
     private static final Color LIGHT_BLUE = new Color(0xb3d4ff);
     private static final Color NEAR_BLACK = new Color(0x181818);
@@ -76,16 +89,21 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", ALWAYS_SHOW_TABS, Boolean.FALSE, "Always show tab bar");
         addPreference("Behavior", SCROLL_ON_KEY_PRESS, Boolean.TRUE, "Scroll to bottom on key press");
         addPreference("Behavior", SCROLL_ON_TTY_OUTPUT, Boolean.FALSE, "Scroll to bottom on output");
+        addPreference("Behavior", SCROLLBACK_LINE_LIMIT, Integer.valueOf(0), "Scrollback lines (0 for unlimited)");
+        addPreference("Behavior", SPILL_SCROLLBACK_TO_DISK, Boolean.FALSE, "Keep old scrollback in $HOME/.terminator/scrollback/");
         addPreference("Behavior", HIDE_MOUSE_WHEN_TYPING, Boolean.TRUE, "Hide mouse when typing");
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
         addPreference("Behavior", LOG_TERMINAL_ACTIVITY, Boolean.TRUE, "Log terminal activity in $HOME/.terminator/logs/");
+        addPreference("Behavior", COMPRESS_LOGS, Boolean.FALSE, "Compress logs with gzip");
+        addPreference("Behavior", LOG_SIZE_LIMIT, Integer.valueOf(0), "Log size limit per terminal in MiB (0 for unlimited)");
         addPreference("Behavior", ERROR_LINK_CMD, "", "Error link handling script");
         
         addPreference("Appearance", ANTI_ALIAS, Boolean.TRUE, "Anti-alias text");
         addPreference("Appearance", BLINK_CURSOR, Boolean.TRUE, "Blink cursor");
         addPreference("Appearance", BLOCK_CURSOR, Boolean.FALSE, "Use block cursor");
         addPreference("Appearance", FANCY_BELL, Boolean.TRUE, "High-quality rendering of the visual bell");
+        addPreference("Appearance", MAX_FRAME_RATE, Integer.valueOf(60), "Maximum screen updates per second");
         addPreference("Appearance", ALPHA, Double.valueOf(1.0), "Terminal opacity");
         addPreference("Appearance", FONT, new Font(GuiUtilities.getMonospacedFontName(), Font.PLAIN, 12), "Font");
         addPreference("Appearance", PALETTE, Palettes.fromString("ANSI"), "Palette");
@@ -1,8 +1,12 @@
 package terminator;
 
 import e.util.*;
+import java.awt.*;
 import java.io.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import terminator.view.*;
 
 /**
  * Improves the performance of opening a new shell from the command line or
@@ -12,15 +16,11 @@ import java.util.*;
  * We don't accept connections except from localhost.
  */
 public class TerminatorServer {
+    // How long benchmarkNewWindow waits for a terminal to show some output.
+    private static final long FIRST_OUTPUT_TIMEOUT_S = 30;
+    
     public void parseCommandLine(PrintWriter out, String line) {
-        List<String> arguments = new ArrayList<String>();
-        String[] encodedArguments = line.split(" ");
-        for (String encodedArgument : encodedArguments) {
-            String argument = StringUtilities.urlDecode(encodedArgument);
-            arguments.add(argument);
-        }
-        // Discard this method's name.
-        arguments.remove(0);
+        List<String> arguments = decodeArguments(line);
         // We only have one pipe.
         PrintWriter err = out;
         TerminatorOpener opener = new TerminatorOpener(arguments, err);
@@ -34,4 +34,57 @@ public class TerminatorServer {
         }
         GuiUtilities.waitForWindowToDisappear(window);
     }
+    
+    /**
+     * Opens a window just as parseCommandLine would, waits until its first output (usually the shell's prompt) has been painted, says how long that took, and closes the window again.
+     * The arguments are as for parseCommandLine.
+     * This is the server half of StartupBenchmark.
+     */
+    public void benchmarkNewWindow(PrintWriter out, String line) throws Exception {
+        List<String> arguments = decodeArguments(line);
+        final TerminatorOpener opener = new TerminatorOpener(arguments, out);
+        final CountDownLatch firstOutputPainted = new CountDownLatch(1);
+        final TerminatorFrame[] window = new TerminatorFrame[1];
+        final long startTime_ns = System.nanoTime();
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                window[0] = opener.createUi();
+                if (window[0] != null) {
+                    window[0].getPanes().get(0).getTerminalView().setFirstOutputPaintListener(new Runnable() {
+                        public void run() {
+                            firstOutputPainted.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        if (window[0] == null) {
+            // Any syntax error will have been reported.
+            return;
+        }
+        if (firstOutputPainted.await(FIRST_OUTPUT_TIMEOUT_S, TimeUnit.SECONDS)) {
+            out.println("First output painted after " + TimeUtilities.nsToString(System.nanoTime() - startTime_ns));
+        } else {
+            out.println("No output painted after " + FIRST_OUTPUT_TIMEOUT_S + "s");
+        }
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                for (JTerminalPane pane : new ArrayList<JTerminalPane>(window[0].getPanes())) {
+                    pane.doCloseAction();
+                }
+            }
+        });
+    }
+    
+    private static List<String> decodeArguments(String line) {
+        List<String> arguments = new ArrayList<String>();
+        String[] encodedArguments = line.split(" ");
+        for (String encodedArgument : encodedArguments) {
+            String argument = StringUtilities.urlDecode(encodedArgument);
+            arguments.add(argument);
+        }
+        // Discard the method's name.
+        arguments.remove(0);
+        return arguments;
+    }
 }
@@ -0,0 +1,118 @@
+package terminator.model;
+
+import java.util.*;
+
+/**
+ * The text of a very long line, such as a megabyte of minified JSON with no newlines, stored as a sequence of short Strings.
+ *
+ * TextLine keeps ordinary lines in a single String, because it's small and most lines don't change much.
+ * A program writing a long line writes it a few kilobytes at a time, though, and copying the whole line for each write would make that quadratic.
+ * Here a change only copies the chunks it touches, plus the arrays of references, which are a few thousand times shorter than the text.
+ *
+ * Like a String, a ChunkedText is never modified; replace returns a new one that shares the unchanged chunks.
+ * Two ChunkedTexts are only equal if they're the same object.
+ */
+final class ChunkedText implements CharSequence {
+    // Lines longer than this are worth chunking; shorter ones are cheaper as a String.
+    static final int MAX_STRING_LENGTH = 16 * 1024;
+    // The size of the chunks we make; chunks we've split, or joined with new text, may end up shorter.
+    private static final int CHUNK_LENGTH = 4 * 1024;
+
+    private final String[] chunks;
+    // The index of the start of each chunk, plus a final entry for the length.
+    private final int[] starts;
+
+    private ChunkedText(String[] chunks) {
+        this.chunks = chunks;
+        this.starts = new int[chunks.length + 1];
+        for (int i = 0; i < chunks.length; ++i) {
+            starts[i + 1] = starts[i] + chunks[i].length();
+        }
+    }
+
+    /**
+     * Returns 'text' with [start, end) replaced by newText[newStart, newEnd).
+     * The result is a String if it's short enough, and a ChunkedText otherwise.
+     */
+    static CharSequence replace(CharSequence text, int start, int end, CharSequence newText, int newStart, int newEnd) {
+        final int newLength = text.length() - (end - start) + (newEnd - newStart);
+        if (newLength <= MAX_STRING_LENGTH) {
+            StringBuilder result = new StringBuilder(newLength);
+            appendTo(result, text, 0, start);
+            result.append(newText, newStart, newEnd);
+            appendTo(result, text, end, text.length());
+            return result.toString();
+        }
+        ChunkedText chunkedText = (text instanceof ChunkedText) ? (ChunkedText) text : new ChunkedText(new String[] { text.toString() });
+        return chunkedText.replace(start, end, newText, newStart, newEnd);
+    }
+
+    private ChunkedText replace(int start, int end, CharSequence newText, int newStart, int newEnd) {
+        // Rebuild just the chunks that [start, end) touches, which is only the last chunk when appending.
+        final int firstChunk = (start == length()) ? Math.max(0, chunks.length - 1) : findChunk(start);
+        final int lastChunk = (end == start) ? firstChunk : findChunk(end - 1);
+        StringBuilder middle = new StringBuilder();
+        middle.append(chunks[firstChunk], 0, start - starts[firstChunk]);
+        middle.append(newText, newStart, newEnd);
+        middle.append(chunks[lastChunk], Math.min(end - starts[lastChunk], chunks[lastChunk].length()), chunks[lastChunk].length());
+
+        ArrayList<String> newChunks = new ArrayList<String>(chunks.length + middle.length() / CHUNK_LENGTH + 1);
+        newChunks.addAll(Arrays.asList(chunks).subList(0, firstChunk));
+        for (int i = 0; i < middle.length(); i += CHUNK_LENGTH) {
+            newChunks.add(middle.substring(i, Math.min(middle.length(), i + CHUNK_LENGTH)));
+        }
+        newChunks.addAll(Arrays.asList(chunks).subList(lastChunk + 1, chunks.length));
+        return new ChunkedText(newChunks.toArray(new String[newChunks.size()]));
+    }
+
+    /** Returns the index of the chunk containing the character at 'index'. */
+    private int findChunk(int index) {
+        // We never make an empty chunk, so an exact match can only be the start of one.
+        int i = Arrays.binarySearch(starts, index);
+        return (i >= 0) ? i : -i - 2;
+    }
+
+    /** Appends text[start, end) to 'out', a chunk at a time if 'text' is a ChunkedText. */
+    static void appendTo(StringBuilder out, CharSequence text, int start, int end) {
+        if (text instanceof ChunkedText) {
+            ((ChunkedText) text).appendTo(out, start, end);
+        } else {
+            out.append(text, start, end);
+        }
+    }
+
+    private void appendTo(StringBuilder out, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        for (int i = findChunk(start); i < chunks.length && starts[i] < end; ++i) {
+            out.append(chunks[i], Math.max(start, starts[i]) - starts[i], Math.min(end, starts[i + 1]) - starts[i]);
+        }
+    }
+
+    public int length() {
+        return starts[chunks.length];
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index=" + index + " length()=" + length());
+        }
+        int chunk = findChunk(index);
+        return chunks[chunk].charAt(index - starts[chunk]);
+    }
+
+    /** Returns a String, so callers needn't worry about holding on to the rest of the line. */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length()) {
+            throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length()=" + length());
+        }
+        StringBuilder result = new StringBuilder(end - start);
+        appendTo(result, start, end);
+        return result.toString();
+    }
+
+    @Override public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
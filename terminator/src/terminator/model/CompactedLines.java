@@ -0,0 +1,167 @@
+package terminator.model;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import terminator.Palettes;
+
+/**
+ * An immutable block of lines that have scrolled far enough off the top of the screen that they'll never change again.
+ *
+ * A live TextLine costs a String, a TextLine, and an int[] of style runs.
+ * Here, the text of all the lines is stored as UTF-8, followed by all their runs, in a single ByteBuffer.
+ * A line with only the default style has no runs at all.
+ * Only the index of where each line starts is kept in int[]s; the ByteBuffer can be moved off the heap with spillTo.
+ *
+ * Lines are recreated as TextLines on demand; callers mustn't expect changes to such a TextLine to stick.
+ */
+final class CompactedLines {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Lines before firstLine have been discarded; we keep them until the whole block goes.
+    private int firstLine;
+    private final int lineCount;
+
+    // The UTF-8 text of all the lines, followed by the (length, style id) pairs of all the lines, as returned by TextLine.getRawRuns.
+    // Either on the heap or in a ScrollbackFile. We never move its position, so reads from different threads don't interfere.
+    // Volatile because a LineStore.HistorySnapshot may read it on another thread without the LineStore's lock.
+    private volatile ByteBuffer data;
+    // Null unless data is in a ScrollbackFile.
+    private ScrollbackFile.Segment segment;
+    // The offset in data of the start of each line's text, plus a final entry for the end of the last line.
+    private final int[] byteStarts;
+    // The start index of each line relative to the start of the block, counting one for each line's newline, plus a final entry for the block's total.
+    private final int[] charStarts;
+    // The offset in data of each line's first run, plus a final entry.
+    // A line with no runs uses the default style throughout.
+    private final int[] runStarts;
+
+    // Null if every line has the default background.
+    private final Palettes.Ink[] backgrounds;
+
+    CompactedLines(List<TextLine> lines) {
+        this.lineCount = lines.size();
+        this.byteStarts = new int[lineCount + 1];
+        this.charStarts = new int[lineCount + 1];
+        this.runStarts = new int[lineCount + 1];
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int runCount = 0;
+        Palettes.Ink[] backgrounds = null;
+        int charCount = 0;
+        for (int i = 0; i < lineCount; ++i) {
+            TextLine line = lines.get(i);
+            byte[] lineBytes = line.getRawText().toString().getBytes(UTF_8);
+            byteStarts[i] = bytes.size();
+            charStarts[i] = charCount;
+            bytes.write(lineBytes, 0, lineBytes.length);
+            charCount += line.lengthIncludingNewline();
+
+            int[] lineRuns = line.getRawRuns();
+            if (lineRuns != null) {
+                runCount += lineRuns.length;
+            }
+
+            if (line.getRawBackground() != null) {
+                if (backgrounds == null) {
+                    backgrounds = new Palettes.Ink[lineCount];
+                }
+                backgrounds[i] = line.getRawBackground();
+            }
+        }
+        byteStarts[lineCount] = bytes.size();
+        charStarts[lineCount] = charCount;
+
+        this.data = ByteBuffer.allocate(bytes.size() + 4 * runCount);
+        data.put(bytes.toByteArray());
+        for (int i = 0; i < lineCount; ++i) {
+            runStarts[i] = data.position();
+            int[] lineRuns = lines.get(i).getRawRuns();
+            if (lineRuns != null) {
+                data.asIntBuffer().put(lineRuns);
+                data.position(data.position() + 4 * lineRuns.length);
+            }
+        }
+        runStarts[lineCount] = data.position();
+        this.backgrounds = backgrounds;
+    }
+
+    /** Returns the number of lines remaining in this block. */
+    int size() {
+        return lineCount - firstLine;
+    }
+
+    /** Returns the number of characters remaining in this block, counting one for each newline. */
+    int charCount() {
+        return charStarts[lineCount] - charStarts[firstLine];
+    }
+
+    /** Returns the start index of the given line, relative to the start of this block. */
+    int getStartIndex(int index) {
+        return charStarts[firstLine + index] - charStarts[firstLine];
+    }
+
+    /** Returns the index of the line containing the given character index, relative to the start of this block. */
+    int getLineIndex(int charIndex) {
+        int i = Arrays.binarySearch(charStarts, firstLine, lineCount, charStarts[firstLine] + charIndex);
+        return ((i >= 0) ? i : -i - 2) - firstLine;
+    }
+
+    /** Discards the oldest 'count' lines. */
+    void discard(int count) {
+        firstLine += count;
+    }
+
+    /**
+     * Returns the index, counting discarded lines, of the oldest remaining line.
+     * A line's index counting discarded lines doesn't change, and can be passed to recreate even after the line's been discarded.
+     */
+    int getFirstLine() {
+        return firstLine;
+    }
+
+    boolean isSpilled() {
+        return segment != null;
+    }
+
+    /** Moves our text and runs out of the heap and into the given file. */
+    void spillTo(ScrollbackFile file) throws IOException {
+        ByteBuffer source = data.duplicate();
+        source.clear();
+        ScrollbackFile.Segment newSegment = file.getSegmentFor(source.remaining());
+        data = file.write(newSegment, source);
+        segment = newSegment;
+    }
+
+    /**
+     * Tells us that the LineStore has finished with this block, so the space it was spilled to can be reclaimed.
+     * Anyone else still holding the block can go on reading it.
+     */
+    void release() {
+        if (segment != null) {
+            segment.release();
+        }
+    }
+
+    /** Recreates the given line. */
+    TextLine get(int index) {
+        return recreate(firstLine + index);
+    }
+
+    /** Recreates the line with the given index, counting discarded lines. */
+    TextLine recreate(int i) {
+        byte[] bytes = new byte[byteStarts[i + 1] - byteStarts[i]];
+        ByteBuffer text = data.duplicate();
+        text.position(byteStarts[i]);
+        text.get(bytes);
+        int[] lineRuns = null;
+        if (runStarts[i] != runStarts[i + 1]) {
+            lineRuns = new int[(runStarts[i + 1] - runStarts[i]) / 4];
+            for (int run = 0; run < lineRuns.length; ++run) {
+                lineRuns[run] = data.getInt(runStarts[i] + 4 * run);
+            }
+        }
+        return new TextLine((backgrounds != null) ? backgrounds[i] : null, new String(bytes, UTF_8), lineRuns);
+    }
+}
@@ -0,0 +1,529 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Holds all of a terminal's lines, oldest first.
+ *
+ * The most recent lines are kept as live TextLines that TerminalModel can change in place.
+ * Older lines can't change any more, so compact() squeezes them into CompactedLines blocks, which use a fraction of the space.
+ * Reading a compacted line gives you a recreated TextLine, which is fine for find, selection, the bird view and painting.
+ * Anything that changes a line should only touch the bottom of the store, which is always live.
+ * If something does change a compacted line, the blocks back to that line are made live again first.
+ *
+ * discardOldest() lets TerminalModel enforce the scrollback limit, and the limit on characters; see getLineCountOverCharLimit.
+ *
+ * For really long histories, setScrollbackDirectory() lets all but the newest few blocks be spilled to a ScrollbackFile.
+ * Then all that's left on the heap for each old line is the index of where it starts.
+ * Blocks we discard or revive are released, so the file's space is reclaimed as the scrollback limit throws lines away.
+ * Recently read compacted lines are cached, so scrolling back and forth, or painting the same lines over and over, doesn't keep recreating them.
+ *
+ * This class also maps between line indexes and character indexes, in O(log n) whichever line last changed.
+ * Compacted lines have their start indexes in the blocks.
+ * Live lines have their lengths in a FenwickTree, so changing a line's length is O(log n) too.
+ * Lines added or removed part-way through the live lines mean the tree is rebuilt from that point on.
+ * Anyone changing a live line in place needs to call lineChanged.
+ *
+ * Everything else is for the EDT only, but getHistoryLine lets another thread (the background find) read compacted lines.
+ * getHistorySnapshot goes further, and holds on to compacted lines for another thread however the store changes in the meantime.
+ * So anything to do with the blocks is synchronized, and lines are also numbered counting those discarded, which doesn't change under the reader.
+ */
+public class LineStore {
+    // How many lines go in each compacted block.
+    // Bigger blocks amortize the per-block overhead; smaller blocks make it cheaper to revive the newest block.
+    static final int BLOCK_LINE_COUNT = 256;
+    // How many of the newest blocks to keep on the heap when spilling.
+    private static final int UNSPILLED_BLOCK_COUNT = 16;
+    // How many recreated compacted lines to cache. A few screens' worth is plenty.
+    private static final int CACHED_LINE_COUNT = 512;
+    // How many characters of compacted lines we keep, whatever the scrollback limit.
+    // Character indexes are ints everywhere (here, in TerminalModel's Locations, and in find and selection),
+    // so a history of a couple of billion characters would overflow them. With spilling and no line limit, that's only 27 million 80-column lines.
+    // Half the range leaves plenty of room for the live lines, and for the output compacted between checks.
+    static final int MAX_COMPACTED_CHAR_COUNT = Integer.MAX_VALUE / 2;
+
+    private final ArrayList<CompactedLines> blocks = new ArrayList<CompactedLines>();
+    // The index of the first line of each block, and the start index of that line, kept in step with blocks.
+    private int[] blockFirstLines = new int[16];
+    private int[] blockStartIndexes = new int[16];
+    private int compactedLineCount;
+    private int compactedCharCount;
+    private int maxCompactedCharCount = MAX_COMPACTED_CHAR_COUNT;
+    // How many lines have ever been discarded or cleared.
+    private long discardedLineCount;
+
+    private ArrayList<TextLine> liveLines = new ArrayList<TextLine>();
+    // The length, including the newline, of each live line.
+    // Live lines beyond the end of the tree haven't been added yet; see updateLiveLengths.
+    private final FenwickTree liveLengths = new FenwickTree();
+    
+    // Null unless we're spilling, in which case the file's created when first needed.
+    private File scrollbackDirectory;
+    private int scrollbackSegmentSize = ScrollbackFile.SEGMENT_SIZE;
+    private ScrollbackFile scrollbackFile;
+    // The blocks before this index have been spilled.
+    private int spilledBlockCount;
+    
+    // Lock on this before use.
+    private final LinkedHashMap<Integer, TextLine> cachedLines = new LinkedHashMap<Integer, TextLine>(CACHED_LINE_COUNT, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, TextLine> eldest) {
+            return size() > CACHED_LINE_COUNT;
+        }
+    };
+
+    public int size() {
+        return compactedLineCount + liveLines.size();
+    }
+
+    /**
+     * Returns the given line.
+     * For a compacted line, that's a recreated TextLine that the caller mustn't change.
+     */
+    public TextLine get(int index) {
+        if (index >= compactedLineCount) {
+            return liveLines.get(index - compactedLineCount);
+        }
+        synchronized (this) {
+            TextLine line = cachedLines.get(index);
+            if (line == null) {
+                int block = findBlock(index);
+                line = blocks.get(block).get(index - blockFirstLines[block]);
+                cachedLines.put(index, line);
+            }
+            return line;
+        }
+    }
+
+    public void set(int index, TextLine line) {
+        ensureLive(index);
+        liveLines.set(index - compactedLineCount, line);
+        lineChanged(index);
+    }
+
+    public void add(TextLine line) {
+        liveLines.add(line);
+    }
+
+    public void add(int index, TextLine line) {
+        ensureLive(index);
+        liveLines.add(index - compactedLineCount, line);
+        liveLinesMoved(index - compactedLineCount);
+    }
+
+    public void remove(int index) {
+        ensureLive(index);
+        liveLines.remove(index - compactedLineCount);
+        liveLinesMoved(index - compactedLineCount);
+    }
+
+    /**
+     * Tells us that the given live line has been changed in place, so its length may be different.
+     */
+    public void lineChanged(int index) {
+        final int liveIndex = index - compactedLineCount;
+        if (liveIndex < liveLengths.size()) {
+            liveLengths.set(liveIndex, liveLines.get(liveIndex).lengthIncludingNewline());
+        }
+    }
+
+    // The live lines from 'liveIndex' on aren't where they were, so forget their lengths.
+    private void liveLinesMoved(int liveIndex) {
+        if (liveIndex < liveLengths.size()) {
+            liveLengths.truncate(liveIndex);
+        }
+    }
+
+    private void updateLiveLengths() {
+        for (int i = liveLengths.size(); i < liveLines.size(); ++i) {
+            liveLengths.append(liveLines.get(i).lengthIncludingNewline());
+        }
+    }
+
+    /** Returns the start index of the given line, which may be one past the last line. */
+    public int getStartIndex(int index) {
+        if (index < compactedLineCount) {
+            synchronized (this) {
+                int block = findBlock(index);
+                return blockStartIndexes[block] + blocks.get(block).getStartIndex(index - blockFirstLines[block]);
+            }
+        }
+        updateLiveLengths();
+        return compactedCharCount + liveLengths.sumTo(index - compactedLineCount);
+    }
+
+    /** Returns the number of characters in all the lines, counting one for each newline. */
+    public int length() {
+        return getStartIndex(size());
+    }
+
+    /**
+     * Returns the index of the line containing the given character index.
+     * Character indexes past the end are treated as being in the last line.
+     */
+    public int getLineIndex(int charIndex) {
+        if (charIndex < compactedCharCount) {
+            synchronized (this) {
+                int block = Arrays.binarySearch(blockStartIndexes, 0, blocks.size(), Math.max(0, charIndex));
+                if (block < 0) {
+                    block = -block - 2;
+                }
+                return blockFirstLines[block] + blocks.get(block).getLineIndex(charIndex - blockStartIndexes[block]);
+            }
+        }
+        updateLiveLengths();
+        int liveIndex = liveLengths.findEnd(charIndex - compactedCharCount);
+        return Math.min(compactedLineCount + liveIndex, size() - 1);
+    }
+
+    /** Removes all the lines. */
+    public synchronized void clear() {
+        discardedLineCount += size();
+        forgetCachedLines();
+        for (CompactedLines block : blocks) {
+            block.release();
+        }
+        blocks.clear();
+        spilledBlockCount = 0;
+        if (scrollbackFile != null) {
+            scrollbackFile.close();
+            scrollbackFile = null;
+        }
+        compactedLineCount = 0;
+        compactedCharCount = 0;
+        // Using a new ArrayList ensures we free space without risking expensive nulling-out of now-unused elements.
+        liveLines = new ArrayList<TextLine>();
+        liveLengths.clear();
+    }
+
+    /** Returns how many lines have ever been discarded, which is the difference between an absolute line index and a line index. */
+    public long getDiscardedLineCount() {
+        return discardedLineCount;
+    }
+
+    /**
+     * Returns the compacted line with the given absolute line index, or null if it's been discarded or isn't compacted any more.
+     * Unlike anything else here, this can be called from any thread.
+     */
+    public synchronized TextLine getHistoryLine(long absoluteIndex) {
+        long index = absoluteIndex - discardedLineCount;
+        if (index < 0 || index >= compactedLineCount) {
+            return null;
+        }
+        return get((int) index);
+    }
+
+    /**
+     * Returns the 'count' compacted lines starting at 'index'.
+     * Unlike getHistoryLine, the snapshot keeps the lines even if they're later discarded or revived, and can be read from any thread.
+     * It costs little more than a reference to each block the lines are in, because compacted blocks never change.
+     */
+    public synchronized HistorySnapshot getHistorySnapshot(int index, int count) {
+        if (index < 0 || count < 0 || index + count > compactedLineCount) {
+            throw new IndexOutOfBoundsException("Lines " + index + " to " + (index + count) + " aren't all compacted");
+        }
+        HistorySnapshot snapshot = new HistorySnapshot();
+        int block = (count > 0) ? findBlock(index) : 0;
+        while (snapshot.lineCount < count) {
+            CompactedLines lines = blocks.get(block);
+            int lineInBlock = index + snapshot.lineCount - blockFirstLines[block];
+            snapshot.add(lines, lines.getFirstLine() + lineInBlock, Math.min(lines.size() - lineInBlock, count - snapshot.lineCount));
+            ++block;
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Some compacted lines, captured by getHistorySnapshot.
+     */
+    public static final class HistorySnapshot {
+        private final ArrayList<CompactedLines> blocks = new ArrayList<CompactedLines>();
+        // For each block, the index in the block, counting discarded lines, of our first line from it, and the index of that line in the snapshot.
+        private int[] firstLinesInBlocks = new int[4];
+        private int[] snapshotIndexes = new int[4];
+        private int lineCount = 0;
+        
+        private HistorySnapshot() {
+        }
+        
+        private void add(CompactedLines block, int firstLineInBlock, int count) {
+            if (blocks.size() == snapshotIndexes.length) {
+                firstLinesInBlocks = Arrays.copyOf(firstLinesInBlocks, 2 * blocks.size());
+                snapshotIndexes = Arrays.copyOf(snapshotIndexes, 2 * blocks.size());
+            }
+            firstLinesInBlocks[blocks.size()] = firstLineInBlock;
+            snapshotIndexes[blocks.size()] = lineCount;
+            blocks.add(block);
+            lineCount += count;
+        }
+        
+        public int size() {
+            return lineCount;
+        }
+        
+        /** Recreates the given line of the snapshot. */
+        public TextLine get(int index) {
+            if (index < 0 || index >= lineCount) {
+                throw new IndexOutOfBoundsException("Line " + index + " isn't in a snapshot of " + lineCount + " lines");
+            }
+            int block = Arrays.binarySearch(snapshotIndexes, 0, blocks.size(), index);
+            if (block < 0) {
+                block = -block - 2;
+            }
+            return blocks.get(block).recreate(firstLinesInBlocks[block] + index - snapshotIndexes[block]);
+        }
+    }
+
+    /** Returns the number of compacted lines, which is also the index of the first live line. */
+    public int getCompactedLineCount() {
+        return compactedLineCount;
+    }
+
+    /** Returns the number of characters in the compacted lines, which is also the start index of the first live line. */
+    public int getCompactedCharCount() {
+        return compactedCharCount;
+    }
+
+    /**
+     * Returns how many of the oldest lines to discard to get back under MAX_COMPACTED_CHAR_COUNT, or 0 if we're not over it.
+     * We go an eighth of the limit under, so we're not discarding a few lines after every frame.
+     */
+    public synchronized int getLineCountOverCharLimit() {
+        if (compactedCharCount <= maxCompactedCharCount) {
+            return 0;
+        }
+        int excessCharCount = compactedCharCount - maxCompactedCharCount + maxCompactedCharCount / 8;
+        // Discard up to and including the line containing the last excess character.
+        return getLineIndex(excessCharCount - 1) + 1;
+    }
+    
+    /** Lets tests use a small character limit. */
+    void setMaxCompactedCharCount(int maxCompactedCharCount) {
+        this.maxCompactedCharCount = maxCompactedCharCount;
+    }
+
+    /**
+     * Compacts the oldest live lines a block at a time, leaving at least 'liveLineCount' live lines.
+     * The caller's responsible for making sure 'liveLineCount' covers every line that might still change.
+     */
+    public synchronized void compact(int liveLineCount) {
+        boolean compacted = false;
+        while (liveLines.size() >= liveLineCount + BLOCK_LINE_COUNT) {
+            List<TextLine> oldestLines = liveLines.subList(0, BLOCK_LINE_COUNT);
+            CompactedLines block = new CompactedLines(oldestLines);
+            oldestLines.clear();
+            addBlock(block);
+            compacted = true;
+        }
+        if (compacted) {
+            // Every live line has moved. Rebuilding is O(n log n), but we only do it once every BLOCK_LINE_COUNT lines.
+            liveLinesMoved(0);
+        }
+        spillOldBlocks();
+    }
+    
+    /**
+     * Sets the directory to spill old blocks to, or null to keep everything on the heap.
+     * Blocks that have already been spilled stay spilled.
+     */
+    public void setScrollbackDirectory(File directory) {
+        setScrollbackDirectory(directory, ScrollbackFile.SEGMENT_SIZE);
+    }
+    
+    /** Lets tests use small segments. */
+    void setScrollbackDirectory(File directory, int segmentSize) {
+        this.scrollbackDirectory = directory;
+        this.scrollbackSegmentSize = segmentSize;
+    }
+    
+    private void spillOldBlocks() {
+        if (scrollbackDirectory == null) {
+            return;
+        }
+        try {
+            for (; spilledBlockCount < blocks.size() - UNSPILLED_BLOCK_COUNT; ++spilledBlockCount) {
+                if (scrollbackFile == null) {
+                    scrollbackFile = ScrollbackFile.create(scrollbackDirectory, scrollbackSegmentSize);
+                }
+                blocks.get(spilledBlockCount).spillTo(scrollbackFile);
+            }
+        } catch (IOException ex) {
+            // Carry on with everything on the heap; we'll try again when the user next changes the preference.
+            Log.warn("Couldn't spill scrollback to \"" + scrollbackDirectory + "\"", ex);
+            scrollbackDirectory = null;
+        }
+    }
+
+    /**
+     * Makes sure the given line and all those after it are live, reviving compacted blocks as necessary.
+     */
+    public synchronized void ensureLive(int index) {
+        if (index < compactedLineCount) {
+            forgetCachedLines();
+        }
+        while (index < compactedLineCount) {
+            CompactedLines block = blocks.remove(blocks.size() - 1);
+            ArrayList<TextLine> revivedLines = new ArrayList<TextLine>(block.size() + liveLines.size());
+            for (int i = 0; i < block.size(); ++i) {
+                revivedLines.add(block.get(i));
+            }
+            block.release();
+            revivedLines.addAll(liveLines);
+            liveLines = revivedLines;
+            liveLinesMoved(0);
+            compactedLineCount -= block.size();
+            compactedCharCount -= block.charCount();
+        }
+        spilledBlockCount = Math.min(spilledBlockCount, blocks.size());
+    }
+
+    /**
+     * Throws away the oldest 'count' lines.
+     * Every remaining line's index goes down by 'count', and its start index by the number of characters discarded.
+     */
+    public synchronized void discardOldest(int count) {
+        forgetCachedLines();
+        discardedLineCount += count;
+        int discardedBlockCount = 0;
+        int discardedCharCount = 0;
+        while (count > 0 && discardedBlockCount < blocks.size()) {
+            CompactedLines block = blocks.get(discardedBlockCount);
+            if (block.size() > count) {
+                discardedCharCount += block.getStartIndex(count);
+                block.discard(count);
+                compactedLineCount -= count;
+                count = 0;
+            } else {
+                discardedCharCount += block.charCount();
+                compactedLineCount -= block.size();
+                count -= block.size();
+                block.release();
+                ++discardedBlockCount;
+            }
+        }
+        blocks.subList(0, discardedBlockCount).clear();
+        spilledBlockCount = Math.max(0, spilledBlockCount - discardedBlockCount);
+        compactedCharCount -= discardedCharCount;
+        recalculateBlockStarts();
+        if (count > 0) {
+            liveLines.subList(0, count).clear();
+            liveLinesMoved(0);
+        }
+    }
+
+    private synchronized void forgetCachedLines() {
+        cachedLines.clear();
+    }
+    
+    private void addBlock(CompactedLines block) {
+        blocks.add(block);
+        if (blocks.size() > blockFirstLines.length) {
+            blockFirstLines = Arrays.copyOf(blockFirstLines, 2 * blocks.size());
+            blockStartIndexes = Arrays.copyOf(blockStartIndexes, 2 * blocks.size());
+        }
+        blockFirstLines[blocks.size() - 1] = compactedLineCount;
+        blockStartIndexes[blocks.size() - 1] = compactedCharCount;
+        compactedLineCount += block.size();
+        compactedCharCount += block.charCount();
+    }
+
+    private void recalculateBlockStarts() {
+        int lineCount = 0;
+        int charCount = 0;
+        for (int i = 0; i < blocks.size(); ++i) {
+            blockFirstLines[i] = lineCount;
+            blockStartIndexes[i] = charCount;
+            lineCount += blocks.get(i).size();
+            charCount += blocks.get(i).charCount();
+        }
+    }
+
+    /** Returns the index in 'blocks' of the block containing the given compacted line. */
+    private int findBlock(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Line " + index + " doesn't exist");
+        }
+        int block = Arrays.binarySearch(blockFirstLines, 0, blocks.size(), index);
+        return (block >= 0) ? block : -block - 2;
+    }
+
+    @Test private static void testSpillingWithScrollbackLimit() throws IOException {
+        File directory = File.createTempFile("scrollback-", ".test");
+        directory.delete();
+        LineStore store = new LineStore();
+        // A block of these lines is about 20KiB, so a segment holds three.
+        store.setScrollbackDirectory(directory, 64 * 1024);
+        final int limit = 24 * BLOCK_LINE_COUNT;
+        final int lineCount = 200 * BLOCK_LINE_COUNT;
+        long sizeHalfWay = 0;
+        for (int i = 0; i < lineCount; ++i) {
+            store.add(new TextLine(null, String.format("%08d %s", i, StringUtilities.nCopies(70, '.')), null));
+            if (i % BLOCK_LINE_COUNT == 0) {
+                store.compact(BLOCK_LINE_COUNT);
+                if (store.size() > limit + BLOCK_LINE_COUNT) {
+                    store.discardOldest(store.size() - limit);
+                }
+            }
+            if (i == lineCount / 2) {
+                sizeHalfWay = store.scrollbackFile.getSize();
+            }
+        }
+        Assert.gt((int) sizeHalfWay, 0);
+        Assert.equals(store.scrollbackFile.getSize() <= sizeHalfWay, true);
+        // Everything we kept reads back as it was written.
+        for (int i = 0; i < store.getCompactedLineCount(); ++i) {
+            Assert.equals(store.get(i).getString().substring(0, 8), String.format("%08d", store.getDiscardedLineCount() + i));
+        }
+        store.clear();
+        Assert.equals(store.scrollbackFile, null);
+        directory.delete();
+    }
+    
+    @Test private static void testCharLimit() {
+        LineStore store = new LineStore();
+        final int limit = 100 * 1000;
+        store.setMaxCompactedCharCount(limit);
+        final String text = StringUtilities.nCopies(99, 'x');
+        for (int i = 0; i < 20 * BLOCK_LINE_COUNT; ++i) {
+            store.add(new TextLine(null, text, null));
+            if (i % BLOCK_LINE_COUNT == 0) {
+                store.compact(BLOCK_LINE_COUNT);
+                int excessLineCount = store.getLineCountOverCharLimit();
+                if (excessLineCount > 0) {
+                    Assert.gt(store.getCompactedCharCount(), limit);
+                    store.discardOldest(excessLineCount);
+                    // We go an eighth under the limit, but no further than the line it falls in.
+                    Assert.equals(store.getCompactedCharCount() <= limit - limit / 8, true);
+                    Assert.gt(store.getCompactedCharCount() + 100, limit - limit / 8);
+                }
+                Assert.equals(store.getCompactedCharCount() <= limit, true);
+            }
+        }
+        Assert.gt((int) store.getDiscardedLineCount(), 0);
+        // Everything we kept is still where the character indexes say it is.
+        Assert.equals(store.getLineIndex(store.getStartIndex(store.size() - 1)), store.size() - 1);
+    }
+    
+    @Test private static void testHistorySnapshot() {
+        LineStore store = new LineStore();
+        for (int i = 0; i < 5 * BLOCK_LINE_COUNT; ++i) {
+            store.add(new TextLine(null, "line " + i, null));
+        }
+        store.compact(BLOCK_LINE_COUNT);
+        Assert.equals(store.getCompactedLineCount(), 4 * BLOCK_LINE_COUNT);
+        final int first = 100;
+        final int count = 3 * BLOCK_LINE_COUNT;
+        LineStore.HistorySnapshot snapshot = store.getHistorySnapshot(first, count);
+        // Throw away the start of the snapshot, and bring its end back to life and change it.
+        store.discardOldest(first + 50);
+        store.ensureLive(2 * BLOCK_LINE_COUNT);
+        store.set(2 * BLOCK_LINE_COUNT, new TextLine(null, "changed", null));
+        Assert.equals(snapshot.size(), count);
+        for (int i = 0; i < count; ++i) {
+            Assert.equals(snapshot.get(i).getString(), "line " + (first + i));
+        }
+        Assert.equals(store.getHistorySnapshot(0, 0).size(), 0);
+    }
+}
@@ -0,0 +1,69 @@
+package terminator.model;
+
+/**
+ * An unchanging copy of what's on a TerminalModel's screen at one moment: the lines, their styles, and where the cursor is.
+ *
+ * A TerminalModel is only safe to read on the thread that updates it; a snapshot can be read anywhere, at any time.
+ * Taking one is cheap, because a line's text and styles are never changed in place, so the snapshot can share them with the model.
+ * Rows and columns count from 0 at the top left of the screen, ignoring any history above it.
+ */
+public final class ScreenSnapshot {
+    private final int columnCount;
+    private final TextLine[] lines;
+    private final int cursorRow;
+    private final int cursorColumn;
+    private final boolean isUsingAlternateBuffer;
+
+    ScreenSnapshot(int columnCount, TextLine[] lines, int cursorRow, int cursorColumn, boolean isUsingAlternateBuffer) {
+        this.columnCount = columnCount;
+        this.lines = lines;
+        this.cursorRow = cursorRow;
+        this.cursorColumn = cursorColumn;
+        this.isUsingAlternateBuffer = isUsingAlternateBuffer;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public int getRowCount() {
+        return lines.length;
+    }
+
+    /** Returns the text on the given row, with tabs expanded to spaces, and without trailing blanks the program never wrote. */
+    public String getLine(int row) {
+        return lines[row].getString();
+    }
+
+    /** Returns the style of the character at the given position, or the default style beyond the end of the line. */
+    public Style getStyleAt(int row, int column) {
+        TextLine line = lines[row];
+        return (column < line.length()) ? line.getStyleAt(column) : Style.getDefaultStyle();
+    }
+
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    /** Tests whether a full-screen program such as vim or less was using the alternate screen. */
+    public boolean isUsingAlternateBuffer() {
+        return isUsingAlternateBuffer;
+    }
+
+    /** Returns the whole screen as text, one line per row. */
+    public String getText() {
+        StringBuilder result = new StringBuilder();
+        for (int row = 0; row < lines.length; ++row) {
+            result.append(getLine(row)).append('\n');
+        }
+        return result.toString();
+    }
+
+    @Override public String toString() {
+        return getText();
+    }
+}
@@ -0,0 +1,135 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Per-terminal files in ~/.terminator/scrollback/ that LineStore spills compacted lines into, for really long histories.
+ * Each file is a segment mapped into memory, so the operating system pages the history in and out for us.
+ *
+ * Each file is deleted as soon as it's mapped, so it goes away when nothing refers to its mapping any more (or when we exit, if we crash).
+ * Where the file system won't let us delete an open file, we fall back to deleting it on exit.
+ *
+ * LineStore releases each block it spilled when it's done with it, because the block was discarded or revived.
+ * Once every block in a segment has been released, we forget the segment, so a scrollback limit also limits how much disk and address space we use.
+ * We can't reuse a segment's space in place: a selection may still be reading a discarded block.
+ * A forgotten segment's mapping, and its disk space, go when the last such block is garbage collected.
+ */
+final class ScrollbackFile {
+    // Each mapping is this big. Nothing we write is anywhere near as big, so nothing needs to straddle two segments.
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * One mapped file, and how many of the blocks written to it are still in use.
+     */
+    final class Segment {
+        private final MappedByteBuffer buffer;
+        // Where the next write goes.
+        private int offset = 0;
+        private int blockCount = 0;
+
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Tells us that a block written to this segment won't be read by LineStore again.
+         */
+        void release() {
+            synchronized (ScrollbackFile.this) {
+                if (--blockCount == 0 && this != currentSegment) {
+                    segments.remove(this);
+                }
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    // The segments with blocks still in use, and the one we're writing to.
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private Segment currentSegment;
+
+    private ScrollbackFile(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Starts a new set of scrollback files in the given directory, creating the directory if necessary. */
+    static ScrollbackFile create(File directory, int segmentSize) throws IOException {
+        if (directory.exists() == false && directory.mkdirs() == false) {
+            throw new IOException("couldn't create \"" + directory + "\"");
+        }
+        return new ScrollbackFile(directory, segmentSize);
+    }
+
+    /**
+     * Returns the segment to write 'size' bytes to, mapping a new one if the current one's full.
+     */
+    synchronized Segment getSegmentFor(int size) throws IOException {
+        if (size > segmentSize) {
+            throw new IOException("can't write " + size + " bytes to a scrollback file in \"" + directory + "\"");
+        }
+        if (currentSegment == null || currentSegment.offset + size > segmentSize) {
+            Segment oldSegment = currentSegment;
+            currentSegment = new Segment(mapNewFile());
+            segments.add(currentSegment);
+            if (oldSegment != null && oldSegment.blockCount == 0) {
+                segments.remove(oldSegment);
+            }
+        }
+        return currentSegment;
+    }
+
+    private MappedByteBuffer mapNewFile() throws IOException {
+        File file = File.createTempFile("scrollback-", ".tmp", directory);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping outlives the channel, and keeps the file's space until it's garbage collected.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ex) {
+                Log.warn("Problem closing \"" + file + "\"", ex);
+            }
+            if (file.delete() == false) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Copies the remaining contents of 'source' to 'segment', which must have come from getSegmentFor, and returns a read-only buffer mapping the copy.
+     * The caller should release the segment when it's finished with the copy.
+     */
+    synchronized ByteBuffer write(Segment segment, ByteBuffer source) {
+        final int size = source.remaining();
+        ByteBuffer destination = segment.buffer.duplicate();
+        destination.position(segment.offset);
+        destination.limit(segment.offset + size);
+        destination.put(source);
+        destination.position(segment.offset);
+        segment.offset += size;
+        ++segment.blockCount;
+        return destination.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns how many bytes of mapped segments still have blocks in use.
+     */
+    synchronized long getSize() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Forgets all the segments. Any buffers returned by write remain valid until they're garbage collected.
+     */
+    synchronized void close() {
+        segments.clear();
+        currentSegment = null;
+    }
+}
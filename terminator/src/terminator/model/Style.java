@@ -1,12 +1,22 @@
 package terminator.model;
 
 import java.awt.*;
+import java.util.*;
 import terminator.*;
 
 /**
  * Objects of this class are immutable.
+ * 
+ * Styles are interned, so there's only ever one instance of each distinct style, and each has a small int id.
+ * TextLine stores the ids rather than references.
+ * The table only grows, but even programs that use lots of colors tend to use the same few combinations over and over.
  */
 public final class Style {
+    // The interned styles, indexed by id. Only makeStyle modifies these.
+    private static final HashMap<Style, Style> internedStyles = new HashMap<Style, Style>();
+    private static volatile Style[] stylesById = new Style[64];
+    
+    // The default style has id 0.
     private static final Style DEFAULT_STYLE = makeStyle(null, null, false, false, false);
 
     // This style's foreground/background color, or null to indicate this style doesn't affect the foreground/background color.
@@ -18,6 +28,8 @@ public final class Style {
     private final boolean isUnderlined;
     private final boolean isReverseVideo;
     
+    private int id;
+    
     @Override public String toString() {
         return "Style[foreground=" + foreground + ", background=" + background + ", isBold=" + isBold + ", isUnderlined=" + isUnderlined + ", isReverseVideo=" + isReverseVideo + "]";
     }
@@ -102,7 +114,31 @@ public final class Style {
         return DEFAULT_STYLE;
     }
     
-    public static Style makeStyle(Palettes.Ink foreground, Palettes.Ink background, boolean isBold, boolean isUnderlined, boolean isReverseVideo) {
-        return new Style(foreground, background, isBold, isUnderlined, isReverseVideo);
+    public static synchronized Style makeStyle(Palettes.Ink foreground, Palettes.Ink background, boolean isBold, boolean isUnderlined, boolean isReverseVideo) {
+        Style style = new Style(foreground, background, isBold, isUnderlined, isReverseVideo);
+        Style result = internedStyles.get(style);
+        if (result == null) {
+            result = style;
+            result.id = internedStyles.size();
+            internedStyles.put(result, result);
+            Style[] newStylesById = stylesById;
+            if (result.id == newStylesById.length) {
+                newStylesById = Arrays.copyOf(newStylesById, 2 * newStylesById.length);
+            }
+            newStylesById[result.id] = result;
+            // Writing the volatile field publishes the new style to other threads' fromId.
+            stylesById = newStylesById;
+        }
+        return result;
+    }
+    
+    /** Returns the id of this style, which is an index into the table used by fromId. */
+    int getId() {
+        return id;
+    }
+    
+    /** Returns the style with the given id. */
+    static Style fromId(int id) {
+        return stylesById[id];
     }
 }
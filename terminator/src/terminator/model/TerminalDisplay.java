@@ -0,0 +1,55 @@
+package terminator.model;
+
+import terminator.Palettes;
+
+/**
+ * Whatever's showing a TerminalModel: a TerminalView in a window, or nothing much in a HeadlessTerminal.
+ *
+ * The model tells its display what changed after each batch of actions, so the display can redraw just that.
+ * Line indexes are the model's, counting from the oldest line of history.
+ * Nothing here needs a screen or Swing, so a TerminalModel can run in a headless JVM with no display.
+ * (The only AWT class involved is the java.awt.Color inside a Palettes.Ink, which doesn't need a screen either.)
+ */
+public interface TerminalDisplay {
+    /** Lines from 'lineIndex' on may have changed, moved, or gone. */
+    public void linesChangedFrom(int lineIndex);
+
+    /** The line at 'lineIndex' has changed in place. */
+    public void lineChanged(int lineIndex);
+
+    /** The oldest 'count' lines have been thrown away, so every line index has gone down by 'count'. */
+    public void linesDiscarded(int count);
+
+    /** Everything should be redrawn, as if the size had changed. */
+    public void sizeChanged();
+
+    /** The number of columns or lines in the model has changed. */
+    public void sizeChanged(int oldWidth, int oldHeight, int newWidth, int newHeight);
+
+    /** The text from 'start' up to 'end' has changed, so anything that refers to it, such as a selection, may now be wrong. */
+    public void textChanged(Location start, Location end);
+
+    /** Highlights on lines from 'firstLineIndex' on no longer refer to anything. */
+    public void removeHighlightsFrom(int firstLineIndex);
+
+    /** Tests whether the user is looking at the most recent output, so scrollOnTtyOutput knows whether to follow it. */
+    public boolean isAtBottom();
+
+    /** There's been output, which the display may want to scroll to show. */
+    public void scrollOnTtyOutput(boolean wereAtBottom);
+
+    public void setCursorPosition(Location cursorPosition);
+
+    public void setCursorVisible(boolean isVisible);
+
+    public void setCursorStyle(int style);
+
+    /** The screen's background, beyond the end of any text, should now be 'background'. */
+    public void backgroundChanged(Palettes.Ink background);
+
+    /** The program has asked for a new window title. */
+    public void setWindowTitle(String title);
+
+    /** Something's changed that doesn't fit any of the above; the display should redraw whatever it's showing. */
+    public void repaint();
+}
@@ -1,30 +1,38 @@
 package terminator.model;
 
-import java.awt.*;
+import java.awt.Dimension;
+import java.io.*;
 import java.util.*;
-import javax.swing.*;
 import e.util.*;
 import terminator.terminal.*;
-import terminator.view.*;
 import terminator.*;
 
 public class TerminalModel {
-    private TerminalView view;
+    // How many lines of history to keep as live TextLines, before LineStore compacts them.
+    private static final int LIVE_HISTORY_LINE_COUNT = 1000;
+    
+    private TerminalDisplay display;
     private int width;
     private int height;
-    private ArrayList<TextLine> textLines = new ArrayList<TextLine>();
+    private final LineStore textLines = new LineStore();
+    // Whether we've told textLines to spill old lines to disk.
+    private boolean isSpillingScrollback = false;
+    // The display sets these from the user's preferences; a headless model keeps everything, in memory.
+    private int scrollbackLineLimit = 0;
+    private boolean shouldSpillScrollback = false;
     private Style currentStyle = Style.getDefaultStyle();
     private int firstScrollLineIndex;
     private int lastScrollLineIndex;
     private Location cursorPosition;
-    private int lastValidStartIndex = 0;
     private boolean insertMode = false;
     private ArrayList<Integer> tabPositions = new ArrayList<Integer>();
     private int maxLineWidth = width;
     private int flushes = 0;
     
-    // Used for reducing the number of lines changed events sent up to the view.
+    // Used for reducing the number of lines changed events sent up to the display.
+    // Lines from firstLineChanged on may have moved; lines in linesChanged before that have only changed in place.
     private int firstLineChanged;
+    private final BitSet linesChanged = new BitSet();
     
     // Fields used for saving and restoring state.
     private Location savedPosition;
@@ -43,15 +51,18 @@ public class TerminalModel {
     
     private boolean bracketedPasteMode = false;
         
-    // Whether we've already printed a warning about too much input having been chopped.
-    // Such a warning is only printed once per terminal, in order to avoid massive input
-    // causing massive logging.
-    private boolean warnedAboutExcessiveWidth = false;
-    
-    public TerminalModel(TerminalView view, int width, int height) {
-        this.view = view;
+    public TerminalModel(TerminalDisplay display, int width, int height) {
+        this.display = display;
         setSize(width, height);
-        cursorPosition = view.getCursorPosition();
+        cursorPosition = new Location(0, 0);
+    }
+    
+    /**
+     * Sets how many lines of history to keep, or 0 for no limit, and whether to keep the older ones on disk rather than in memory.
+     */
+    public void setScrollbackOptions(int lineLimit, boolean shouldSpill) {
+        this.scrollbackLineLimit = lineLimit;
+        this.shouldSpillScrollback = shouldSpill;
     }
     
     public void updateMaxLineWidth(int aLineWidth) {
@@ -94,21 +105,20 @@ public class TerminalModel {
         if (viewInactive && !canViewInactiveBuffer()) return;
         // If we get here, it's safe to switch to view the inactive buffer.
         viewInactiveScreen = viewInactive;
-        lineIsDirty(getFirstDisplayLine());
         linesChangedFrom(getFirstDisplayLine());
-        view.linesChangedFrom(getFirstDisplayLine());
-        view.repaint();
+        display.linesChangedFrom(getFirstDisplayLine());
+        display.repaint();
         checkInvariant();
     }
     
     public void checkInvariant() {
-        int highestStartLineIndex = -1;
-        for (int lineNumber = 0; lineNumber <= lastValidStartIndex; ++ lineNumber) {
-            int thisStartLineIndex = textLines.get(lineNumber).getLineStartIndex();
-            if (thisStartLineIndex <= highestStartLineIndex) {
-                throw new RuntimeException("the lineStartIndex must increase monotonically as the line number increases");
-            }
-            highestStartLineIndex = thisStartLineIndex;
+        // LineStore can only know a line's length if we tell it about changes; the cursor's line is the one most likely to have changed.
+        if (cursorPosition == null) {
+            return;
+        }
+        int lineIndex = cursorPosition.getLineIndex();
+        if (lineIndex < textLines.size() && getStartIndex(lineIndex + 1) - getStartIndex(lineIndex) != getLineLength(lineIndex)) {
+            throw new RuntimeException("the start index of line " + (lineIndex + 1) + " doesn't follow from line " + lineIndex + "'s length");
         }
     }
     
@@ -120,7 +130,7 @@ public class TerminalModel {
         
         // If we don't remove the highlights, we'll see the mouse
         // cursor change when we move over where they were.
-        view.removeHighlightsFrom(0);
+        display.removeHighlightsFrom(0);
         
         // We want to keep any lines after the cursor, so remember them.
         // FIXME: if the user's editing a really long logical line at
@@ -128,16 +138,15 @@ public class TerminalModel {
         // multiple physical lines, and the cursor may not be on the
         // first of those lines. Ideally we should keep all pertinent
         // lines. Unfortunately, I can't see how we'd know.
-        ArrayList<TextLine> retainedLines = new ArrayList<TextLine>(textLines.subList(cursorPosition.getLineIndex(), textLines.size()));
+        ArrayList<TextLine> retainedLines = new ArrayList<TextLine>();
+        for (int i = cursorPosition.getLineIndex(); i < textLines.size(); ++i) {
+            retainedLines.add(textLines.get(i));
+        }
         
         // Revert to just the right number of empty lines to fill the
         // current window size.
-        // Using a new ArrayList ensures we free space without risking
-        // expensive nulling-out of now-unused elements. The assumption
-        // being that we're most likely to be asked to clear the
-        // scrollback when it's insanely large.
-        textLines = new ArrayList<TextLine>();
-        setSize(width, view.getVisibleSizeInCharacters().height);
+        textLines.clear();
+        setSize(width, height);
         maxLineWidth = width;
         
         // Re-insert the lines after the cursor.
@@ -146,13 +155,12 @@ public class TerminalModel {
         }
         
         // Make sure all the lines will be redrawn.
-        view.sizeChanged();
-        lineIsDirty(0);
+        display.sizeChanged();
         
         resetCursorPosition();
         
         // Redraw ourselves.
-        view.repaint();
+        display.repaint();
         checkInvariant();
     }
     
@@ -161,7 +169,7 @@ public class TerminalModel {
         // FIXME: it's a bit crazy that these aren't tied!
         // FIXME: it's even crazier that they use different origins!
         setCursorPosition(-1, 1);
-        view.setCursorPosition(cursorPosition);
+        display.setCursorPosition(cursorPosition);
     }
     
     public void flushScrollBuffer() {
@@ -212,7 +220,7 @@ public class TerminalModel {
         // Since we don't save the alternate buffer, reset background to default before switching to it.
         // When switching back, we don't want the background that was probably set while in the alternate buffer.
         // FIXME: should we save the screen's old background along with savedScreen?
-        view.setBackground(Terminator.getPreferences().getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        display.backgroundChanged(Palettes.getBackgroundInk());
         if (useAlternateBuffer) {
             savedScreen = new TextLine[height];
             for (int i = 0; i < height; i++) {
@@ -233,12 +241,11 @@ public class TerminalModel {
             }
             savedScreen = null;
         }
-        lineIsDirty(getFirstDisplayLine());
         for (int i = 0; i < height; i++) {
             int index = getFirstDisplayLine() + i;
             linesChangedFrom(index);
         }
-        view.repaint();
+        display.repaint();
         checkInvariant();
     }
     
@@ -287,8 +294,7 @@ public class TerminalModel {
     
     /** Returns the start character index of the indexed line. */
     public int getStartIndex(int lineIndex) {
-        ensureValidStartIndex(lineIndex);
-        return getTextLine(lineIndex).getLineStartIndex();
+        return textLines.getStartIndex(lineIndex);
     }
     
     /**
@@ -297,19 +303,8 @@ public class TerminalModel {
      * of the end of the last line.
      */
     public Location getLocationFromCharIndex(int charIndex) {
-        int lowLine = 0;
-        int highLine = textLines.size();
-        
-        while (highLine - lowLine > 1) {
-            int midLine = (lowLine + highLine) / 2;
-            int mid = getStartIndex(midLine);
-            if (mid <= charIndex) {
-                lowLine = midLine;
-            } else {
-                highLine = midLine;
-            }
-        }
-        return new Location(lowLine, charIndex - getStartIndex(lowLine));
+        int lineIndex = textLines.getLineIndex(charIndex);
+        return new Location(lineIndex, charIndex - getStartIndex(lineIndex));
     }
     
     /** Returns the char index equivalent to the given Location. */
@@ -319,26 +314,39 @@ public class TerminalModel {
     
     /** Returns the count of all characters in the buffer, including NLs. */
     public int length() {
-        int lastIndex = textLines.size() - 1;
-        return getStartIndex(lastIndex) + getLineLength(lastIndex);
+        return textLines.length();
     }
     
-    private void lineIsDirty(int dirtyLineIndex) {
-        lastValidStartIndex = Math.min(lastValidStartIndex, dirtyLineIndex + 1);
+    public int getLineCount() {
+        return textLines.size();
     }
     
-    private void ensureValidStartIndex(int lineIndex) {
-        if (lineIndex > lastValidStartIndex) {
-            for (int i = lastValidStartIndex; i < lineIndex; i++) {
-                TextLine line = getTextLine(i);
-                getTextLine(i + 1).setLineStartIndex(line.getLineStartIndex() + line.lengthIncludingNewline());
-            }
-            lastValidStartIndex = lineIndex;
-        }
+    /**
+     * Returns how many lines have ever been thrown away, by the scrollback limit or clearing the scroll buffer.
+     * Adding this to a line index gives an absolute line index, which stays the same as older lines are thrown away.
+     */
+    public long getDiscardedLineCount() {
+        return textLines.getDiscardedLineCount();
     }
     
-    public int getLineCount() {
-        return textLines.size();
+    /** Returns the number of lines of history, at the top, that won't change again. */
+    public int getHistoryLineCount() {
+        return textLines.getCompactedLineCount();
+    }
+    
+    /**
+     * Returns the history line with the given absolute line index, or null if it's no longer history.
+     * This is safe to call from any thread, unlike everything else here.
+     */
+    public TextLine getHistoryLine(long absoluteIndex) {
+        return textLines.getHistoryLine(absoluteIndex);
+    }
+    
+    /**
+     * Returns the given lines of history, which must all still be history, in a form that any thread can read even after they've stopped being history.
+     */
+    public LineStore.HistorySnapshot getHistorySnapshot(int firstLineIndex, int lineCount) {
+        return textLines.getHistorySnapshot(firstLineIndex, lineCount);
     }
     
     public void fullReset() {
@@ -346,13 +354,21 @@ public class TerminalModel {
         int firstLineToClear = getFirstDisplayLine();
         for (int i = 0; i < height; i++) {
             getTextLine(firstLineToClear + i).clear();
+            lineChanged(firstLineToClear + i);
         }
-        view.repaint();
+        display.repaint();
     }
     
     public void linesChangedFrom(int firstLineChanged) {
         this.firstLineChanged = Math.min(this.firstLineChanged, firstLineChanged);
-        view.getSelectionHighlighter().textChanged(new Location(firstLineChanged, 0), new Location(getLineCount() + 1, 0));
+        display.textChanged(new Location(firstLineChanged, 0), new Location(getLineCount() + 1, 0));
+    }
+    
+    /** Notes that the given line has changed in place, without any line moving. */
+    private void lineChanged(int lineIndex) {
+        textLines.lineChanged(lineIndex);
+        linesChanged.set(lineIndex);
+        display.textChanged(new Location(lineIndex, 0), new Location(lineIndex + 1, 0));
     }
     
     public Dimension getCurrentSizeInChars() {
@@ -362,27 +378,129 @@ public class TerminalModel {
     public Location getCursorPosition() {
         return cursorPosition;
     }
+
+    /**
+     * Returns a copy of what's currently on the screen, which can be kept and read on any thread.
+     */
+    public ScreenSnapshot getScreenSnapshot() {
+        int firstDisplayLine = getFirstDisplayLine();
+        TextLine[] lines = new TextLine[height];
+        for (int i = 0; i < height; ++i) {
+            lines[i] = copyOf(getTextLine(firstDisplayLine + i));
+        }
+        return new ScreenSnapshot(width, lines, cursorPosition.getLineIndex() - firstDisplayLine, cursorPosition.getCharOffset(), usingAlternateBuffer());
+    }
+    
+    /**
+     * Returns copies of the display lines from 'firstLineIndex' up to but not including 'endLineIndex'.
+     * The copies don't change when the lines do, so they're safe to read from any thread.
+     * They're cheap, because they share the lines' text and styles, which are only ever replaced.
+     */
+    public TextLine[] copyDisplayLines(int firstLineIndex, int endLineIndex) {
+        TextLine[] lines = new TextLine[endLineIndex - firstLineIndex];
+        for (int i = 0; i < lines.length; ++i) {
+            lines[i] = copyOf(getDisplayTextLine(firstLineIndex + i));
+        }
+        return lines;
+    }
+    
+    private static TextLine copyOf(TextLine line) {
+        return new TextLine(line.getRawBackground(), line.getRawText(), line.getRawRuns());
+    }
     
     public void processActions(TerminalAction[] actions) {
         firstLineChanged = Integer.MAX_VALUE;
-        boolean wereAtBottom = view.isAtBottom();
+        linesChanged.clear();
+        boolean wereAtBottom = display.isAtBottom();
         boolean needsScroll = false;
         Dimension initialSize = getCurrentSizeInChars();
         for (TerminalAction action : actions) {
             action.perform(this);
         }
+        int discardedLineCount = discardExcessHistory();
+        if (discardedLineCount > 0) {
+            display.linesDiscarded(discardedLineCount);
+            if (firstLineChanged != Integer.MAX_VALUE) {
+                firstLineChanged = Math.max(0, firstLineChanged - discardedLineCount);
+            }
+            BitSet remainingLinesChanged = linesChanged.get(discardedLineCount, Math.max(discardedLineCount, linesChanged.length()));
+            linesChanged.clear();
+            linesChanged.or(remainingLinesChanged);
+        }
+        compactHistory();
         if (firstLineChanged != Integer.MAX_VALUE) {
             needsScroll = true;
-            view.linesChangedFrom(firstLineChanged);
+            display.linesChangedFrom(firstLineChanged);
+        }
+        // Lines that have only changed in place can be redrawn on their own, unless they're among those already redrawn.
+        final int lineCount = Math.min(firstLineChanged, getLineCount());
+        for (int i = linesChanged.nextSetBit(0); i >= 0 && i < lineCount; i = linesChanged.nextSetBit(i + 1)) {
+            needsScroll = true;
+            display.lineChanged(i);
         }
         Dimension finalSize = getCurrentSizeInChars();
         if (initialSize.equals(finalSize) == false) {
-            view.sizeChanged(initialSize, finalSize);
+            display.sizeChanged(initialSize.width, initialSize.height, finalSize.width, finalSize.height);
         }
         if (needsScroll) {
-            view.scrollOnTtyOutput(wereAtBottom);
+            display.scrollOnTtyOutput(wereAtBottom);
+        }
+        display.setCursorPosition(cursorPosition);
+    }
+    
+    /**
+     * Throws away the oldest lines if we're over the user's scrollback limit, or LineStore's limit on characters, returning how many lines went.
+     * We wait until we're at least a block over the line limit, so we're not shuffling everything up a line at a time.
+     */
+    private int discardExcessHistory() {
+        int limit = scrollbackLineLimit;
+        int excessLineCount = getFirstDisplayLine() - limit;
+        if (limit <= 0 || excessLineCount < LineStore.BLOCK_LINE_COUNT) {
+            excessLineCount = 0;
+        }
+        excessLineCount = Math.max(excessLineCount, textLines.getLineCountOverCharLimit());
+        if (excessLineCount == 0) {
+            return 0;
+        }
+        textLines.discardOldest(excessLineCount);
+        cursorPosition = getLocationAfterDiscarding(cursorPosition, excessLineCount);
+        savedPosition = getLocationAfterDiscarding(savedPosition, excessLineCount);
+        checkInvariant();
+        return excessLineCount;
+    }
+    
+    private static Location getLocationAfterDiscarding(Location location, int discardedLineCount) {
+        if (location == null) {
+            return location;
+        }
+        return new Location(Math.max(0, location.getLineIndex() - discardedLineCount), location.getCharOffset());
+    }
+    
+    /**
+     * Compacts the history beyond what's likely to change.
+     * Everything on the screen, and anywhere the cursor might get back to, stays live.
+     */
+    private void compactHistory() {
+        int firstLineThatMightChange = Math.min(getFirstDisplayLine(), cursorPosition.getLineIndex());
+        if (savedPosition != null) {
+            firstLineThatMightChange = Math.min(firstLineThatMightChange, savedPosition.getLineIndex());
+        }
+        updateScrollbackSpilling();
+        textLines.compact(textLines.size() - firstLineThatMightChange + LIVE_HISTORY_LINE_COUNT);
+    }
+    
+    private void updateScrollbackSpilling() {
+        boolean shouldSpill = shouldSpillScrollback;
+        if (shouldSpill == isSpillingScrollback) {
+            return;
+        }
+        isSpillingScrollback = shouldSpill;
+        String dotDirectory = System.getProperty("org.jessies.terminator.dotDirectory");
+        if (shouldSpill && dotDirectory != null) {
+            textLines.setScrollbackDirectory(new File(dotDirectory, "scrollback"));
+        } else {
+            textLines.setScrollbackDirectory(null);
         }
-        view.setCursorPosition(cursorPosition);
     }
     
     public void setStyle(Style style) {
@@ -409,7 +527,6 @@ public class TerminalModel {
         // Use a private copy of the first display line throughout this method to avoid mutation
         // caused by textLines.add()/textLines.remove().
         final int firstDisplayLine = getFirstDisplayLine();
-        lineIsDirty(firstDisplayLine);
         if (index > firstDisplayLine + lastScrollLineIndex) {
             for (int i = firstDisplayLine + lastScrollLineIndex + 1; i <= index; i++) {
                 textLines.add(i, lineToInsert);
@@ -422,7 +539,7 @@ public class TerminalModel {
                 int removeIndex = firstDisplayLine + firstScrollLineIndex;
                 textLines.remove(removeIndex);
                 linesChangedFrom(removeIndex);
-                view.repaint();
+                display.repaint();
             } else {
                 cursorPosition = new Location(index, cursorPosition.getCharOffset());
             }
@@ -443,6 +560,10 @@ public class TerminalModel {
         return width;
     }
     
+    public int getHeight() {
+        return height;
+    }
+    
     /** Get the logical text line. This is not necessarily the same as what should be displayed, but it is where output should go. */
     public TextLine getTextLine(int index) {
         if (index >= textLines.size()) {
@@ -471,7 +592,6 @@ public class TerminalModel {
     
     public void setSize(int width, int height) {
         this.width = width;
-        lineIsDirty(0);
         if (this.height > height && textLines.size() >= this.height) {
             for (int i = 0; i < (this.height - height); i++) {
                 int lineToRemove = textLines.size() - 1;
@@ -492,6 +612,8 @@ public class TerminalModel {
         while (getFirstDisplayLine() < 0) {
             textLines.add(new TextLine(Palettes.getBackgroundInk()));
         }
+        // A taller screen may now include lines we'd compacted.
+        textLines.ensureLive(getFirstDisplayLine());
         checkInvariant();
     }
     
@@ -500,46 +622,26 @@ public class TerminalModel {
     }
     
     /**
-     * Process the characters in the given line. The string is composed of
+     * Process the characters text[start, end). The text is composed of
      * normal printable characters, escape sequences having been extracted
-     * elsewhere.
+     * elsewhere, and already translated into the current character set.
      */
-    public void processLine(String untranslatedLine) {
-        String line = view.getTerminalControl().translate(untranslatedLine);
-        // Java is unable to correctly render windowing components wider than 32768 pixels,
-        // and at sizes much larger than that, we end up with things getting horribly slow.
-        // For example, cat a multi-megabyte file with no newlines, and Terminator can lock
-        // up on you for many seconds.
-        int maxChars = 32700 / view.getCharUnitSize().width;
-        int charsLeft = maxChars - cursorPosition.getCharOffset();
-        if (charsLeft <= 0) {
-            return;
-        }
-        if (line.length() > charsLeft) {
-            if (!warnedAboutExcessiveWidth) {
-                warnedAboutExcessiveWidth = true;
-                Log.warn("Line too wide in terminal; chopping input");
-            }
-            line = line.substring(0, charsLeft);
-        }
+    public void processLine(CharSequence text, int start, int end) {
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         if (insertMode) {
-            //Log.warn("Inserting text \"" + line + "\" at " + cursorPosition + ".");
-            textLine.insertTextAt(cursorPosition.getCharOffset(), line, currentStyle);
+            //Log.warn("Inserting text \"" + text.substring(start, end) + "\" at " + cursorPosition + ".");
+            textLine.insertTextAt(cursorPosition.getCharOffset(), text, start, end, currentStyle);
         } else {
-            //Log.warn("Writing text \"" + line + "\" at " + cursorPosition + ".");
-            textLine.writeTextAt(cursorPosition.getCharOffset(), line, currentStyle);
+            //Log.warn("Writing text \"" + text.substring(start, end) + "\" at " + cursorPosition + ".");
+            textLine.writeTextAt(cursorPosition.getCharOffset(), text, start, end, currentStyle);
         }
-        textAdded(line.length());
+        textAdded(end - start);
     }
     
     private void textAdded(int length) {
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         updateMaxLineWidth(textLine.length());
-        // cursorPosition's line still has a valid *start* index, so we invalidate
-        // only the next line's start position.
-        lineIsDirty(cursorPosition.getLineIndex() + 1);
-        linesChangedFrom(cursorPosition.getLineIndex());
+        lineChanged(cursorPosition.getLineIndex());
         moveCursorHorizontally(length);
     }
     
@@ -582,11 +684,11 @@ public class TerminalModel {
     
     /** Sets whether the cursor should be visible. */
     public void setCursorVisible(boolean isDisplayed) {
-        view.setCursorVisible(isDisplayed);
+        display.setCursorVisible(isDisplayed);
     }
     
     public void setCursorStyle(int style) {
-        view.setCursorStyle(style);
+        display.setCursorStyle(style);
     }
     
     /** Inserts lines at the current cursor position. */
@@ -601,8 +703,7 @@ public class TerminalModel {
         int start = cursorPosition.getCharOffset();
         int end = start + count;
         line.killText(start, end);
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
-        linesChangedFrom(cursorPosition.getLineIndex());
+        lineChanged(cursorPosition.getLineIndex());
     }
     
     public void killHorizontally(boolean fromStart, boolean toEnd) {
@@ -620,8 +721,7 @@ public class TerminalModel {
             int start = fromStart ? 0 : cursorPosition.getCharOffset();
             line.killText(start, oldLineLength);
         }
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
-        linesChangedFrom(cursorPosition.getLineIndex());
+        lineChanged(cursorPosition.getLineIndex());
     }
     
     /** Erases from either the top or the cursor, to either the bottom or the cursor. */
@@ -642,18 +742,19 @@ public class TerminalModel {
             TextLine cl = getTextLine(i);
             cl.clear();
             cl.setBackground(currentStyle.getRawBackground());
+            lineChanged(i);
         }
         TextLine line = getTextLine(cursorPosition.getLineIndex());
         int oldLineLength = line.length();
         if (toBottom) {
-            view.setBackground(currentStyle.getBackground());
+            Palettes.Ink background = currentStyle.getRawBackground();
+            display.backgroundChanged(background != null ? background : Palettes.getBackgroundInk());
             line.killText(cursorPosition.getCharOffset(), oldLineLength);
         } else /* only fromTop = true */ {
             // The current position is always erased, hence the + 1.
             line.writeTextAt(0, StringUtilities.nCopies(cursorPosition.getCharOffset() + 1, ' '), currentStyle);
         }
-        lineIsDirty(start + 1);
-        linesChangedFrom(start);
+        lineChanged(cursorPosition.getLineIndex());
     }
     
     /**
@@ -719,9 +820,8 @@ public class TerminalModel {
         int removeIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(addIndex);
         linesChangedFrom(addIndex);
-        view.repaint();
+        display.repaint();
         checkInvariant();
     }
     
@@ -731,15 +831,13 @@ public class TerminalModel {
         int addIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(removeIndex);
         linesChangedFrom(removeIndex);
-        view.repaint();
+        display.repaint();
         checkInvariant();
     }
     
     public void setWindowTitle(String newWindowTitle) {
-        JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, view);
-        terminalPane.setTerminalName(newWindowTitle);
+        display.setWindowTitle(newWindowTitle);
     }
     
     public void setBracketedPasteMode(boolean value) {
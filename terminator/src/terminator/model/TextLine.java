@@ -21,8 +21,6 @@ public class TextLine {
     
     // The default background, used beyond the last character of the line.
     private Palettes.Ink background;
-    // The index in characters into the containing buffer of the first character of this line.
-    private int lineStartIndex;
     
     // The characters on this line.
     // An immutable String may seem like an odd choice, but we've tried StringBuilder too.
@@ -31,18 +29,32 @@ public class TextLine {
     // In terms of code, there's nothing in it; the StringBuilder delete and insert methods are arguably more readable, but that only affects a handful of lines.
     // All in all, then, String is actually the best choice in our current environment.
     // (If we switched rendering over to AttributedCharacterIterator or something else that didn't require a String, that might change the balance.)
-    private String text;
+    // The exception is a line longer than ChunkedText.MAX_STRING_LENGTH, which is a ChunkedText instead, so that writing to the end of a megabyte-long line doesn't copy the megabyte.
+    private CharSequence text;
     
-    // The styles to be applied to the characters on this line.
-    // styles == null => all characters use the default style.
-    // Otherwise, styles.length == text.length(), and the style information for text.charAt(i) is styles[i] (never null).
-    private Style[] styles;
+    // The styles to be applied to the characters on this line, as (length, style id) pairs.
+    // runs == null => all characters use the default style.
+    // Otherwise, the lengths add up to text.length(), no length is 0, and adjacent runs have different styles.
+    // A coloured line typically has a handful of runs, so this is much smaller than a Style reference per character.
+    private int[] runs;
     
     public TextLine(Palettes.Ink bg) {
         background = bg;
         clear();
     }
     
+    /** Recreates a line from its internal representation, as returned by getRawText, getRawRuns and getRawBackground. */
+    TextLine(Palettes.Ink bg, CharSequence text, int[] runs) {
+        this.background = bg;
+        this.text = text;
+        this.runs = runs;
+    }
+    
+    /** Returns the background as given to the constructor, which may be null. */
+    Palettes.Ink getRawBackground() {
+        return background;
+    }
+    
     public Palettes.Ink getBackground() {
         return background == null ? Palettes.getBackgroundInk() : background;
     }
@@ -51,16 +63,23 @@ public class TextLine {
         background = bg;
     }
     
-    public int getLineStartIndex() {
-        return lineStartIndex;
-    }
-    
-    public void setLineStartIndex(int lineStartIndex) {
-        this.lineStartIndex = lineStartIndex;
+    public Style getStyleAt(int index) {
+        if (runs == null) {
+            return Style.getDefaultStyle();
+        }
+        return Style.fromId(runs[findRun(index) + 1]);
     }
     
-    public Style getStyleAt(int index) {
-        return (styles == null) ? Style.getDefaultStyle() : styles[index];
+    /** Returns the index in 'runs' of the run containing the character at 'index'. */
+    private int findRun(int index) {
+        if (index < 0 || index >= text.length()) {
+            throw new IndexOutOfBoundsException("index=" + index + " length()=" + length());
+        }
+        int run = 0;
+        for (int runEnd = runs[0]; runEnd <= index; runEnd += runs[run]) {
+            run += 2;
+        }
+        return run;
     }
     
     /**
@@ -79,16 +98,14 @@ public class TextLine {
             throw new AssertionError("start=" + start + " end=" + end + " length()=" + length());
         }
         // If we have no styling, only caller can affect styling of a run.
-        if (styles == null) {
+        if (runs == null) {
             return end;
         }
-        Style toMatch = styles[start];
-        for (int i = start + 1; i < end; i++) {
-            if (!toMatch.equals(styles[i])) {
-                return i;
-            }
+        int runEnd = 0;
+        for (int run = 0; runEnd <= start; run += 2) {
+            runEnd += runs[run];
         }
-        return end;
+        return Math.min(runEnd, end);
     }
     
     /**
@@ -97,23 +114,100 @@ public class TextLine {
      * This isn't called toString because you need to come here and think about whether you want this method or getTabbedString instead.
      */
     public String getString() {
-        return text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        return text.toString().replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+    }
+    
+    /** Returns the internal representation of the text, with TAB_START and TAB_CONTINUE rather than tabs. */
+    CharSequence getRawText() {
+        return text;
+    }
+    
+    /** Returns the (length, style id) pairs, or null if the whole line uses the default style. Callers mustn't modify the array. */
+    int[] getRawRuns() {
+        return runs;
+    }
+    
+    /**
+     * Returns an immutable object equal to the content key of any line with the same text, styles and background, now or later.
+     * Lines are changed in place, so this lets a cache recognize a line it's seen before without hanging on to the line itself.
+     * (A line long enough to be a ChunkedText only matches itself, but such lines are too long to cache anyway.)
+     */
+    public Object getContentKey() {
+        return new ContentKey(background, text, runs);
+    }
+    
+    // Our text and runs are never modified, only replaced, so we can share them.
+    private static final class ContentKey {
+        private final Palettes.Ink background;
+        private final CharSequence text;
+        private final int[] runs;
+        
+        private ContentKey(Palettes.Ink background, CharSequence text, int[] runs) {
+            this.background = background;
+            this.text = text;
+            this.runs = runs;
+        }
+        
+        @Override public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof ContentKey == false) {
+                return false;
+            }
+            ContentKey key = (ContentKey) obj;
+            if (background == null ? key.background != null : background.equals(key.background) == false) {
+                return false;
+            }
+            return text.equals(key.text) && Arrays.equals(runs, key.runs);
+        }
+        
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + (background != null ? background.hashCode() : 0);
+            result = 31 * result + text.hashCode();
+            result = 31 * result + Arrays.hashCode(runs);
+            return result;
+        }
     }
     
+    /** Like getString().substring(beginIndex, endIndex), but only costs as much as the substring, however long the line. */
     public String getSubstring(int beginIndex, int endIndex) {
-        return getString().substring(beginIndex, endIndex);
+        return text.subSequence(beginIndex, endIndex).toString().replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
     }
 
     /** Returns the text, with all the tabs put back in for use with clipboard stuff. */
     public String getTabbedString(int start, int end) {
-        StringBuilder buf = new StringBuilder();
+        StringBuilder buf = new StringBuilder(end - start);
+        appendTabbedString(buf, start, end);
+        return buf.toString();
+    }
+    
+    /**
+     * Appends the text in [start, end) to 'out', with all the tabs put back in.
+     * The stretches between TAB_CONTINUE characters are appended whole, rather than a character at a time.
+     */
+    public void appendTabbedString(StringBuilder out, int start, int end) {
+        int segmentStart = start;
+        for (int i = indexOfTabContinue(start, end); i != -1; i = indexOfTabContinue(i + 1, end)) {
+            ChunkedText.appendTo(out, text, segmentStart, i);
+            segmentStart = i + 1;
+        }
+        ChunkedText.appendTo(out, text, segmentStart, end);
+    }
+    
+    /** Returns the index of the first TAB_CONTINUE in [start, end), or -1. */
+    private int indexOfTabContinue(int start, int end) {
+        if (text instanceof String) {
+            int i = ((String) text).indexOf(TAB_CONTINUE, start);
+            return (i < end) ? i : -1;
+        }
         for (int i = start; i < end; i++) {
-            char ch = text.charAt(i);
-            if (ch != TAB_CONTINUE) {
-                buf.append(ch);
+            if (text.charAt(i) == TAB_CONTINUE) {
+                return i;
             }
         }
-        return buf.toString();
+        return -1;
     }
     
     public int length() {
@@ -160,7 +254,7 @@ public class TextLine {
     
     public void clear() {
         text = "";
-        styles = null;
+        runs = null;
     }
     
     public void killText(int startIndex, int endIndex) {
@@ -168,8 +262,9 @@ public class TextLine {
             return;
         }
         endIndex = Math.min(endIndex, text.length());
-        text = text.substring(0, startIndex) + text.substring(endIndex);
-        removeStyleData(startIndex, endIndex);
+        final int oldLength = text.length();
+        text = ChunkedText.replace(text, startIndex, endIndex, "", 0, 0);
+        replaceRuns(oldLength, startIndex, endIndex, 0, null);
     }
     
     public void insertTabAt(int offset, int tabLength, Style style) {
@@ -185,20 +280,31 @@ public class TextLine {
     
     /** Inserts text at the given position, moving anything already there further to the right. */
     public void insertTextAt(int offset, String newText, Style style) {
+        insertTextAt(offset, newText, 0, newText.length(), style);
+    }
+    
+    /** Inserts newText[start, end) at the given position, moving anything already there further to the right. */
+    public void insertTextAt(int offset, CharSequence newText, int start, int end, Style style) {
         ensureOffsetIsOK(offset);
-        text = text.substring(0, offset) + newText + text.substring(offset);
-        insertStyleData(offset, newText.length(), style);
+        final int count = end - start;
+        final int oldLength = text.length();
+        text = ChunkedText.replace(text, offset, offset, newText, start, end);
+        replaceRuns(oldLength, offset, offset, count, style);
     }
     
     /** Writes text at the given position, overwriting anything underneath. */
     public void writeTextAt(int offset, String newText, Style style) {
+        writeTextAt(offset, newText, 0, newText.length(), style);
+    }
+    
+    /** Writes newText[start, end) at the given position, overwriting anything underneath. */
+    public void writeTextAt(int offset, CharSequence newText, int start, int end, Style style) {
         ensureOffsetIsOK(offset);
-        if (offset + newText.length() < text.length()) {
-            text = text.substring(0, offset) + newText + text.substring(offset + newText.length());
-        } else {
-            text = text.substring(0, offset) + newText;
-        }
-        overwriteStyleData(offset, newText.length(), style);
+        final int count = end - start;
+        final int oldLength = text.length();
+        // Build the new line in one go, rather than via a String for the new text and another for each concatenation.
+        text = ChunkedText.replace(text, offset, Math.min(offset + count, oldLength), newText, start, end);
+        replaceRuns(oldLength, offset, Math.min(offset + count, oldLength), count, style);
     }
     
     private void ensureOffsetIsOK(int offset) {
@@ -214,53 +320,57 @@ public class TextLine {
         char[] pad = new char[count];
         Arrays.fill(pad, ' ');
         int oldTextLength = text.length();
-        text += new String(pad);
-        insertStyleData(oldTextLength, count, Style.getDefaultStyle());
+        text = ChunkedText.replace(text, oldTextLength, oldTextLength, new String(pad), 0, count);
+        replaceRuns(oldTextLength, oldTextLength, oldTextLength, count, Style.getDefaultStyle());
     }
     
-    private void overwriteStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
+    /**
+     * Replaces the styles of the old characters [start, end) with 'count' characters in 'style'.
+     * 'oldLength' is the length of the line before the corresponding change to 'text'.
+     * This covers insertion (start == end), overwriting, and removal (count == 0).
+     */
+    private void replaceRuns(int oldLength, int start, int end, int count, Style style) {
+        final int id = (count == 0) ? 0 : style.getId();
+        if (runs == null && id == 0) {
             return;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, oldStyleData.length);
+        int[] oldRuns = (runs != null) ? runs : new int[] { oldLength, 0 };
+        // We can add at most two runs: the new one, and the second half of one we split.
+        int[] newRuns = new int[oldRuns.length + 4];
+        int newRunsLength = 0;
+        int runStart = 0;
+        for (int run = 0; run < oldRuns.length && runStart < start; run += 2) {
+            int runLength = Math.min(oldRuns[run], start - runStart);
+            newRunsLength = appendRun(newRuns, newRunsLength, runLength, oldRuns[run + 1]);
+            runStart += oldRuns[run];
         }
-        Arrays.fill(styles, offset, offset + count, value);
-    }
-    
-    private void insertStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
-            return;
+        newRunsLength = appendRun(newRuns, newRunsLength, count, id);
+        runStart = 0;
+        for (int run = 0; run < oldRuns.length; run += 2) {
+            int runEnd = runStart + oldRuns[run];
+            if (runEnd > end) {
+                newRunsLength = appendRun(newRuns, newRunsLength, runEnd - Math.max(runStart, end), oldRuns[run + 1]);
+            }
+            runStart = runEnd;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, offset);
-            System.arraycopy(oldStyleData, offset, styles, offset + count, oldStyleData.length - offset);
+        if (newRunsLength == 0 || (newRunsLength == 2 && newRuns[1] == 0)) {
+            runs = null;
+        } else {
+            runs = Arrays.copyOf(newRuns, newRunsLength);
         }
-        Arrays.fill(styles, offset, offset + count, value);
     }
     
-    private void removeStyleData(int startIndex, int endIndex) {
-        if (styles == null) {
-            return;
+    /** Appends a run to 'runs', merging it with the previous run if they're the same style. Returns the new length of the used part of 'runs'. */
+    private static int appendRun(int[] runs, int length, int runLength, int id) {
+        if (runLength == 0) {
+            return length;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        // insert and overwrite can get here when oldStyleData is null, but remove can't.
-        System.arraycopy(oldStyleData, 0, styles, 0, startIndex);
-        System.arraycopy(oldStyleData, endIndex, styles, startIndex, oldStyleData.length - endIndex);
-    }
-    
-    /**
-     * Ensures that the "styles" array is the right size for the current "text".
-     * You should only call this if you know that the line requires non-default styling.
-     */
-    private Style[] maybeResizeStyleData() {
-        Style[] oldStyleData = styles;
-        if (styles == null || styles.length != text.length()) {
-            styles = new Style[text.length()];
-            Arrays.fill(styles, 0, styles.length, Style.getDefaultStyle());
+        if (length > 0 && runs[length - 1] == id) {
+            runs[length - 2] += runLength;
+            return length;
         }
-        return oldStyleData;
+        runs[length] = runLength;
+        runs[length + 1] = id;
+        return length + 2;
     }
 }
@@ -0,0 +1,225 @@
+package terminator.terminal;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Synthesizes the standard recordings InputBenchmark replays when it isn't given any.
+ *
+ * Generating them, rather than checking in real recordings, keeps binaries out of the repository and lets us make them as big as we like.
+ * Each imitates a common kind of session closely enough to exercise the same paths through TerminalControl and TerminalModel:
+ * "cat" is plain text; "sgr" is colorful compiler and ls(1) output; "vim" is a full-screen program on the alternate screen, with cursor motion, scrolling regions, and a resize; "tabs" is tab-separated columns; "json" is minified JSON, all on one very long line.
+ * The output is split into reads of the sizes a pty tends to return, and the same seed always gives the same recordings.
+ *
+ * Usage: BenchmarkCorpus DIRECTORY
+ */
+final class BenchmarkCorpus {
+    private static final int TARGET_SIZE = 2 * 1024 * 1024;
+    // Linux's pty buffer means reads rarely return more than this.
+    private static final int MAX_READ_SIZE = 4095;
+
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "terminal", "model", "view", "control",
+        "return", "final", "private", "static", "void", "int", "String", "new", "if", "else", "for", "while",
+        "0x7fff", "42", "src/terminator/model/TerminalModel.java", "error:", "warning:", "null", "true", "false",
+    };
+
+    private final Random random;
+
+    private BenchmarkCorpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: BenchmarkCorpus DIRECTORY");
+            System.exit(1);
+        }
+        for (SessionRecording recording : getRecordings()) {
+            File file = new File(args[0], recording.getName() + ".recording");
+            recording.writeTo(file);
+            System.out.println("Wrote " + file);
+        }
+    }
+
+    static List<SessionRecording> getRecordings() {
+        ArrayList<SessionRecording> recordings = new ArrayList<SessionRecording>();
+        recordings.add(new BenchmarkCorpus(1).makeCat());
+        recordings.add(new BenchmarkCorpus(2).makeSgr());
+        recordings.add(new BenchmarkCorpus(3).makeVim());
+        recordings.add(new BenchmarkCorpus(4).makeTabs());
+        recordings.add(new BenchmarkCorpus(5).makeJson());
+        return recordings;
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private SessionRecording makeCat() {
+        StringBuilder output = new StringBuilder(TARGET_SIZE);
+        while (output.length() < TARGET_SIZE) {
+            int indent = 4 * random.nextInt(4);
+            for (int i = 0; i < indent; ++i) {
+                output.append(' ');
+            }
+            int wordCount = random.nextInt(14);
+            for (int i = 0; i < wordCount; ++i) {
+                output.append(word()).append(' ');
+            }
+            output.append("\r\n");
+        }
+        return toRecording("cat", output);
+    }
+
+    private SessionRecording makeSgr() {
+        StringBuilder output = new StringBuilder(TARGET_SIZE);
+        while (output.length() < TARGET_SIZE) {
+            if (random.nextInt(3) == 0) {
+                // A compiler diagnostic.
+                output.append("\u001b[1m").append(word()).append(":").append(random.nextInt(1000)).append(":").append(random.nextInt(80)).append(": \u001b[0m");
+                output.append(random.nextBoolean() ? "\u001b[1;31merror: \u001b[0m" : "\u001b[1;35mwarning: \u001b[0m");
+                for (int i = random.nextInt(10); i >= 0; --i) {
+                    output.append(word()).append(' ');
+                }
+            } else {
+                // A line of ls --color.
+                for (int i = random.nextInt(6); i >= 0; --i) {
+                    output.append("\u001b[0m\u001b[").append(random.nextBoolean() ? "01;34" : "38;5;" + random.nextInt(256)).append('m');
+                    output.append(word()).append("\u001b[0m  ");
+                }
+            }
+            output.append("\r\n");
+        }
+        return toRecording("sgr", output);
+    }
+
+    private SessionRecording makeVim() {
+        final int columnCount = 80;
+        final int rowCount = 24;
+        ArrayList<SessionRecording.Event> events = new ArrayList<SessionRecording.Event>();
+        StringBuilder output = new StringBuilder(TARGET_SIZE / 2);
+        // Enter the alternate screen, clear it, and draw the initial screen.
+        output.append("\u001b[?1049h\u001b[1;24r\u001b[27m\u001b[m\u001b[H\u001b[2J");
+        for (int row = 1; row < rowCount; ++row) {
+            appendVimLine(output, row);
+        }
+        int byteCount = 0;
+        while (byteCount + output.length() < TARGET_SIZE) {
+            switch (random.nextInt(4)) {
+            case 0:
+                // Scroll down a line within the text area, and draw the new bottom line.
+                output.append("\u001b[1;23r\u001b[23;1H\n\u001b[1;24r");
+                appendVimLine(output, rowCount - 1);
+                break;
+            case 1:
+                // Scroll up a line with a reverse index, and draw the new top line.
+                output.append("\u001b[1;23r\u001b[1;1H\u001bM\u001b[1;24r");
+                appendVimLine(output, 1);
+                break;
+            case 2:
+                // Insert some text on the current line.
+                output.append("\u001b[").append(1 + random.nextInt(rowCount - 1)).append(';').append(1 + random.nextInt(40)).append('H');
+                output.append("\u001b[4h").append(word()).append(' ').append("\u001b[4l");
+                break;
+            default:
+                // Redraw the whole screen, as after a page down.
+                output.append("\u001b[H\u001b[2J");
+                for (int row = 1; row < rowCount; ++row) {
+                    appendVimLine(output, row);
+                }
+                break;
+            }
+            // Update the status line in reverse video, and put the cursor back.
+            output.append("\u001b[").append(rowCount).append(";1H\u001b[7m\"").append(word()).append(".java\" ").append(random.nextInt(5000)).append("L\u001b[K\u001b[27m");
+            output.append("\u001b[").append(1 + random.nextInt(rowCount - 1)).append(';').append(1 + random.nextInt(columnCount)).append('H');
+            if (events.isEmpty() && byteCount + output.length() > TARGET_SIZE / 2) {
+                // Halfway through, the user makes the window bigger.
+                byteCount += addReads(events, output);
+                events.add(SessionRecording.Event.sizeChange(events.get(events.size() - 1).getTime(), 120, 40));
+                output.setLength(0);
+            }
+        }
+        // Leave the alternate screen.
+        output.append("\u001b[?1049l");
+        addReads(events, output);
+        return new SessionRecording("vim", events);
+    }
+
+    private void appendVimLine(StringBuilder output, int row) {
+        output.append("\u001b[").append(row).append(";1H");
+        if (random.nextInt(8) == 0) {
+            output.append("\u001b[94m~\u001b[m\u001b[K");
+            return;
+        }
+        output.append("\u001b[33m").append(String.format("%4d ", random.nextInt(9999))).append("\u001b[m");
+        for (int i = random.nextInt(10); i >= 0; --i) {
+            if (random.nextInt(4) == 0) {
+                output.append("\u001b[38;5;").append(random.nextInt(256)).append('m').append(word()).append("\u001b[m ");
+            } else {
+                output.append(word()).append(' ');
+            }
+        }
+        output.append("\u001b[K");
+    }
+
+    private SessionRecording makeTabs() {
+        StringBuilder output = new StringBuilder(TARGET_SIZE);
+        while (output.length() < TARGET_SIZE) {
+            // Something like ps(1) or a TSV file, with ragged columns.
+            for (int column = 0; column < 8; ++column) {
+                output.append(random.nextBoolean() ? word() : Integer.toString(random.nextInt(100000)));
+                output.append('\t');
+                if (random.nextInt(4) == 0) {
+                    output.append('\t');
+                }
+            }
+            output.append("\r\n");
+        }
+        return toRecording("tabs", output);
+    }
+
+    private SessionRecording makeJson() {
+        StringBuilder output = new StringBuilder(TARGET_SIZE);
+        output.append('[');
+        while (output.length() < TARGET_SIZE) {
+            output.append("{\"id\":").append(random.nextInt(100000)).append(",\"name\":\"").append(word()).append("\",\"tags\":[");
+            for (int i = random.nextInt(4); i >= 0; --i) {
+                output.append('"').append(word()).append("\",");
+            }
+            output.append("\"").append(word()).append("\"],\"ok\":").append(random.nextBoolean()).append("},");
+        }
+        output.append("{}]\r\n");
+        return toRecording("json", output);
+    }
+
+    private SessionRecording toRecording(String name, CharSequence output) {
+        ArrayList<SessionRecording.Event> events = new ArrayList<SessionRecording.Event>();
+        addReads(events, output);
+        return new SessionRecording(name, events);
+    }
+
+    /**
+     * Splits 'output' into reads of realistic sizes, appending them to 'events' a plausible time apart.
+     * Returns the number of bytes added.
+     */
+    private int addReads(List<SessionRecording.Event> events, CharSequence output) {
+        byte[] bytes;
+        try {
+            bytes = output.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        long time_ns = events.isEmpty() ? 0 : events.get(events.size() - 1).getTime();
+        int offset = 0;
+        while (offset < bytes.length) {
+            // Busy programs mostly fill the pty's buffer, but there are always some shorter reads.
+            int readSize = (random.nextInt(4) == 0) ? 1 + random.nextInt(MAX_READ_SIZE) : MAX_READ_SIZE;
+            int end = Math.min(bytes.length, offset + readSize);
+            time_ns += 50000 + random.nextInt(100000);
+            events.add(SessionRecording.Event.output(time_ns, Arrays.copyOfRange(bytes, offset, end)));
+            offset = end;
+        }
+        return bytes.length;
+    }
+}
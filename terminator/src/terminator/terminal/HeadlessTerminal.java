@@ -0,0 +1,188 @@
+package terminator.terminal;
+
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import terminator.*;
+import terminator.model.*;
+
+/**
+ * A terminal with no window, for driving programs that expect a terminal, and reading their screens, from code.
+ *
+ * It's the same TerminalControl and TerminalModel as a terminal in a window, so it understands everything Terminator does.
+ * It has no pane, so no RenderScheduler, no Swing timer, no log, and nothing that needs a display or the user's preferences; it runs in a headless JVM.
+ * Output is performed on whichever thread reads it, rather than on the EDT, under the model's lock; getScreenSnapshot takes the same lock.
+ * (It does still use a few AWT classes that don't need a display, such as the Dimension TerminalControl.sizeChanged takes.)
+ * Terminals with a process are read by the shared PtyReaderLoops, so thousands of them need only a handful of threads.
+ *
+ * Either start a process, whose output is read as it arrives, or hand over recorded output with process.
+ */
+public class HeadlessTerminal {
+    private final TerminalModel model;
+    private final TerminalControl control;
+    private final Display display = new Display();
+    private volatile String title = "";
+
+    /**
+     * Does what a TerminalView would, minus the drawing.
+     */
+    private class Display implements TerminalDisplay {
+        public void linesChangedFrom(int lineIndex) {
+        }
+
+        public void lineChanged(int lineIndex) {
+        }
+
+        public void linesDiscarded(int count) {
+        }
+
+        public void sizeChanged() {
+        }
+
+        public void sizeChanged(int oldWidth, int oldHeight, int newWidth, int newHeight) {
+        }
+
+        public void textChanged(Location start, Location end) {
+        }
+
+        public void removeHighlightsFrom(int firstLineIndex) {
+        }
+
+        public boolean isAtBottom() {
+            return true;
+        }
+
+        public void scrollOnTtyOutput(boolean wereAtBottom) {
+        }
+
+        public void setCursorPosition(Location cursorPosition) {
+        }
+
+        public void setCursorVisible(boolean isVisible) {
+        }
+
+        public void setCursorStyle(int style) {
+        }
+
+        public void backgroundChanged(Palettes.Ink background) {
+        }
+
+        public void setWindowTitle(String newTitle) {
+            title = newTitle;
+        }
+
+        public void repaint() {
+        }
+    }
+
+    /**
+     * Creates a terminal of the given size, keeping at most 'scrollbackLineLimit' lines of history (0 for no limit).
+     */
+    public HeadlessTerminal(int columnCount, int rowCount, int scrollbackLineLimit) {
+        this.model = new TerminalModel(display, columnCount, rowCount);
+        model.setScrollbackOptions(scrollbackLineLimit, false);
+        this.control = new TerminalControl(null, model) {
+            @Override void dispatchTerminalActions(TerminalAction[] actions, StringBuilder text) {
+                performActions(actions);
+                recycleBatchText(text);
+            }
+
+            @Override void ringBell() {
+            }
+        };
+    }
+
+    private void performActions(TerminalAction[] actions) {
+        synchronized (model) {
+            model.processActions(actions);
+        }
+    }
+
+    /**
+     * Starts 'command' in 'workingDirectory' (null for ours), and starts reading its output.
+     */
+    public void start(List<String> command, String workingDirectory) throws Throwable {
+        control.initProcess(command, workingDirectory);
+        setSize(model.getWidth(), model.getHeight());
+        control.start();
+    }
+
+    /**
+     * Processes 'count' bytes of output from 'bytes', starting at 'offset', as if the process had written them.
+     * For replaying output captured elsewhere; there's no need to call this for the output of a started process.
+     */
+    public void process(byte[] bytes, int offset, int count) throws IOException {
+        control.processInput(new ByteArrayChannel(ByteBuffer.wrap(bytes, offset, count)));
+    }
+
+    /**
+     * Hands out a ByteBuffer's contents as if they'd been read from a pty.
+     */
+    static class ByteArrayChannel implements ReadableByteChannel {
+        private final ByteBuffer bytes;
+
+        ByteArrayChannel(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        public int read(ByteBuffer buffer) {
+            if (bytes.hasRemaining() == false) {
+                return -1;
+            }
+            int byteCount = Math.min(buffer.remaining(), bytes.remaining());
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(chunk.position() + byteCount);
+            buffer.put(chunk);
+            bytes.position(bytes.position() + byteCount);
+            return byteCount;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Sends 's' to the process, as if it had been typed.
+     */
+    public void sendUtf8String(String s) {
+        control.sendUtf8String(s);
+    }
+
+    /**
+     * Changes the size of the screen, and tells the process.
+     */
+    public void setSize(int columnCount, int rowCount) throws IOException {
+        synchronized (model) {
+            control.sizeChanged(new Dimension(columnCount, rowCount), new Dimension(0, 0));
+        }
+    }
+
+    /**
+     * Returns a copy of what's on the screen now.
+     */
+    public ScreenSnapshot getScreenSnapshot() {
+        synchronized (model) {
+            return model.getScreenSnapshot();
+        }
+    }
+
+    /**
+     * Returns the most recent title the program asked for, or the empty string if it never did.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Kills the process, if there is one.
+     */
+    public void destroy() {
+        control.destroyProcess();
+    }
+}
@@ -0,0 +1,165 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Measures the throughput of TerminalControl's reader thread: decoding, scanning for special characters, escape sequence parsing, and TerminalAction construction; and of TerminalModel.
+ *
+ * Each file should be a SessionRecording, or raw pty output, as captured by script(1), say.
+ * With no files, we replay the BenchmarkCorpus.
+ * Recordings are replayed as fast as we can, one recorded read(2) at a time, through the same code the reader thread uses, copied straight into TerminalControl's direct buffer as the kernel would.
+ * First the resulting actions are counted and discarded, to measure the reader thread alone.
+ * Then the same again, but watching for a typical set of OutputTriggers, to measure what they add.
+ * Then the recording's replayed through a HeadlessTerminal, so the actions are performed on a TerminalModel too, and its size changes happen; that's everything but rendering.
+ *
+ * We report bytes and actions per second, and how much garbage we made doing it, which is often what costs the most in the end.
+ *
+ * Usage: InputBenchmark [FILE...]
+ */
+public class InputBenchmark {
+    private static final int WARM_UP_ITERATIONS = 10;
+    private static final int TIMED_ITERATIONS = 50;
+    
+    // The sort of thing people want to be told about, some of which turn up in the BenchmarkCorpus.
+    private static final String[] TRIGGERS = {
+        "bell password:", "bell passphrase", "alert BUILD FAILED", "alert BUILD SUCCESSFUL", "alert Exception in thread",
+        "alert Segmentation fault", "alert core dumped", "alert Traceback (most recent call last)", "command error:", "command warning:",
+        "command undefined reference to", "command No such file or directory", "bell Permission denied", "bell [sudo]", "alert FAILED",
+        "alert Killed", "bell Are you sure", "bell (yes/no)", "alert OutOfMemoryError", "alert panic:",
+    };
+
+    private long actionCount;
+
+    public static void main(String[] filenames) throws IOException {
+        List<SessionRecording> recordings;
+        if (filenames.length == 0) {
+            recordings = BenchmarkCorpus.getRecordings();
+        } else {
+            recordings = new ArrayList<SessionRecording>();
+            for (String filename : filenames) {
+                recordings.add(SessionRecording.fromFile(new File(filename), 4095));
+            }
+        }
+        for (SessionRecording recording : recordings) {
+            new InputBenchmark().replay(recording);
+        }
+    }
+
+    /**
+     * Hands out the output in a recording as if it were being read from a pty, one recorded read at a time.
+     */
+    private static class ReplayChannel implements ReadableByteChannel {
+        private final Iterator<SessionRecording.Event> events;
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+        ReplayChannel(SessionRecording recording) {
+            this.events = recording.getEvents().iterator();
+        }
+
+        public int read(ByteBuffer buffer) {
+            while (bytes.hasRemaining() == false) {
+                if (events.hasNext() == false) {
+                    return -1;
+                }
+                SessionRecording.Event event = events.next();
+                if (event.isSizeChange() == false) {
+                    bytes = ByteBuffer.wrap(event.getBytes());
+                }
+            }
+            // A recorded read normally fits, but the reader may still be holding a partial character from last time.
+            int byteCount = Math.min(buffer.remaining(), bytes.remaining());
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(chunk.position() + byteCount);
+            buffer.put(chunk);
+            bytes.position(bytes.position() + byteCount);
+            return byteCount;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * One way of replaying a recording.
+     */
+    private interface Replayer {
+        void replay(SessionRecording recording) throws IOException;
+    }
+
+    private void replay(SessionRecording recording) throws IOException {
+        final TerminalControl control = new TerminalControl(null, null) {
+            @Override void dispatchTerminalActions(TerminalAction[] actions, StringBuilder text) {
+                actionCount += actions.length;
+                recycleBatchText(text);
+            }
+
+            @Override void ringBell() {
+            }
+        };
+        Replayer parser = new Replayer() {
+            public void replay(SessionRecording recording) throws IOException {
+                control.processInput(new ReplayChannel(recording));
+            }
+        };
+        time("parse", recording, parser);
+        control.setOutputTriggers(new OutputTriggers(Arrays.asList(TRIGGERS)));
+        time("parse+triggers", recording, parser);
+
+        // The same again, but performing the actions on a model, and with the recorded size changes.
+        final HeadlessTerminal terminal = new HeadlessTerminal(80, 24, 10000);
+        time("model", recording, new Replayer() {
+            public void replay(SessionRecording recording) throws IOException {
+                for (SessionRecording.Event event : recording.getEvents()) {
+                    if (event.isSizeChange()) {
+                        terminal.setSize(event.getColumnCount(), event.getRowCount());
+                    } else {
+                        terminal.process(event.getBytes(), 0, event.getBytes().length);
+                    }
+                }
+                terminal.setSize(80, 24);
+            }
+        });
+    }
+
+    private void time(String stage, SessionRecording recording, Replayer replayer) throws IOException {
+        for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+            replayer.replay(recording);
+        }
+        actionCount = 0;
+        long allocatedBytesBefore = getAllocatedBytes();
+        long t0_ns = System.nanoTime();
+        for (int i = 0; i < TIMED_ITERATIONS; ++i) {
+            replayer.replay(recording);
+        }
+        long duration_ns = System.nanoTime() - t0_ns;
+        long allocatedBytes = getAllocatedBytes() - allocatedBytesBefore;
+
+        long byteCount = recording.getByteCount();
+        double seconds = TimeUtilities.nsToS(duration_ns);
+        double totalMegabytes = ((double) byteCount * TIMED_ITERATIONS) / (1024 * 1024);
+        String allocation = (allocatedBytes < 0) ? "allocation unknown" : String.format("%.1f MiB/s allocated", (allocatedBytes / (1024.0 * 1024.0)) / seconds);
+        // Only the parse stage counts actions; the model stage performs them instead.
+        String actions = (actionCount == 0) ? "" : String.format("%.0f actions/s (%d per replay), ", actionCount / seconds, actionCount / TIMED_ITERATIONS);
+        System.out.println(String.format("%s %s: %d bytes x %d in %s: %.1f MiB/s, %s%s", recording.getName(), stage, byteCount, TIMED_ITERATIONS, TimeUtilities.nsToString(duration_ns), totalMegabytes / seconds, actions, allocation));
+    }
+
+    /**
+     * Returns how many bytes this thread has allocated, or -1 if the JVM won't tell us.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
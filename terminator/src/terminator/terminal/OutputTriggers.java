@@ -0,0 +1,146 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import javax.swing.*;
+import terminator.*;
+import terminator.view.*;
+
+/**
+ * Watches terminal output for text the user wants to know about, such as "password:", "BUILD FAILED", or "Exception in thread".
+ *
+ * The triggers come from ~/.terminator/triggers, one per line: an action, a space, and the text to look for.
+ * Blank lines and lines starting with '#' are ignored.
+ * The actions are:
+ *   bell - flashes the visual bell, as if the program had rung it.
+ *   alert - flashes the bell and brings the terminal's window to the front, which most window managers turn into a request for attention if it isn't focused.
+ *   command - runs the error link command on the line, as if it had been clicked on.
+ * Matching ignores case.
+ * Text broken up by escape sequences (colors, say) still matches, but not text broken up by a newline or carriage return.
+ * Each trigger fires at most once per line.
+ *
+ * All the triggers are compiled into one MultiStringMatcher, which TerminalControl runs over the text of the output as it's read.
+ * That costs a table lookup per character, however many triggers there are, and nothing at all if there aren't any.
+ * Each new terminal picks up any changes to the file.
+ */
+final class OutputTriggers {
+    private static final String BELL = "bell";
+    private static final String ALERT = "alert";
+    private static final String COMMAND = "command";
+
+    // Commands are run one at a time, in the order they were triggered.
+    private static final ExecutorService commandExecutor = ThreadUtilities.newSingleThreadExecutor("Output Trigger Commands");
+
+    private static OutputTriggers instance;
+    private static long instanceLastModified;
+
+    private final MultiStringMatcher matcher;
+    private final String[] actions;
+
+    /** Parses triggers in the format of the triggers file. Problems are logged, and the offending lines ignored. */
+    OutputTriggers(List<String> lines) {
+        ArrayList<String> texts = new ArrayList<String>();
+        ArrayList<String> actions = new ArrayList<String>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String action = (space == -1) ? line : line.substring(0, space);
+            String text = (space == -1) ? "" : line.substring(space + 1).trim();
+            if (action.equals(BELL) == false && action.equals(ALERT) == false && action.equals(COMMAND) == false) {
+                Log.warn("Ignoring output trigger with unknown action \"" + action + "\"");
+            } else if (text.length() == 0) {
+                Log.warn("Ignoring output trigger with nothing to look for: \"" + line + "\"");
+            } else {
+                actions.add(action);
+                texts.add(text);
+            }
+        }
+        this.matcher = new MultiStringMatcher(texts, true);
+        this.actions = actions.toArray(new String[actions.size()]);
+    }
+
+    /**
+     * Returns the current triggers, or null if there aren't any.
+     */
+    static synchronized OutputTriggers getInstance() {
+        String dotDirectory = System.getProperty("org.jessies.terminator.dotDirectory");
+        if (dotDirectory == null) {
+            return null;
+        }
+        File file = new File(dotDirectory, "triggers");
+        long lastModified = file.lastModified();
+        if (lastModified != instanceLastModified) {
+            instanceLastModified = lastModified;
+            instance = null;
+            if (file.exists()) {
+                try {
+                    OutputTriggers triggers = new OutputTriggers(Arrays.asList(StringUtilities.readLinesFromFile(file)));
+                    if (triggers.actions.length > 0) {
+                        instance = triggers;
+                    }
+                } catch (RuntimeException ex) {
+                    Log.warn("Couldn't read output triggers from \"" + file + "\"", ex);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Scans chars[start, end), continuing from 'state', telling 'listener' the index of each trigger that matches.
+     * Returns the state to pass in with the next text on the same line.
+     */
+    int match(int state, char[] chars, int start, int end, MultiStringMatcher.Listener listener) {
+        return matcher.match(state, chars, start, end, listener);
+    }
+
+    /**
+     * Performs the action for the trigger with the given index, which matched 'line' in 'pane'.
+     * Runs on the EDT.
+     */
+    void fire(int index, JTerminalPane pane, String line) {
+        String action = actions[index];
+        if (action.equals(BELL)) {
+            pane.flash();
+        } else if (action.equals(ALERT)) {
+            pane.flash();
+            Window window = SwingUtilities.getWindowAncestor(pane);
+            if (window != null && window.isActive() == false) {
+                window.toFront();
+            }
+        } else if (action.equals(COMMAND)) {
+            runCommand(pane.getTerminalName(), line);
+        }
+    }
+
+    private static void runCommand(final String title, final String line) {
+        final String command = Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD);
+        if (command.length() == 0) {
+            Log.warn("Output trigger matched \"" + line + "\", but there's no error link command to run");
+            return;
+        }
+        commandExecutor.execute(new Runnable() {
+            public void run() {
+                ArrayList<String> lines = new ArrayList<String>();
+                if (ProcessUtilities.backQuote(null, new String[] { command, line, title }, lines, lines) != 0) {
+                    Log.warn("External command " + command + " failed:\n" + StringUtilities.join(lines, "\n"));
+                }
+            }
+        });
+    }
+
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder("OutputTriggers[");
+        for (int i = 0; i < actions.length; ++i) {
+            result.append((i == 0) ? "" : ", ").append(actions[i]).append(" \"").append(matcher.getString(i)).append('"');
+        }
+        return result.append(']').toString();
+    }
+}
@@ -0,0 +1,166 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures how quickly a terminal's output is read while lots of other terminals are busy.
+ *
+ * Starts BUSY_COUNT terminals running yes(1), whose output is decoded and parsed (but not performed) as TerminalControl would,
+ * and one quiet terminal running cat(1). We repeatedly write a line to the quiet terminal and time how long it takes for the pty's echo to be read.
+ * All the terminals are read by the shared PtyReaderLoops, so this also shows that the thread count doesn't grow with the number of terminals.
+ *
+ * Needs the native libraries, so run it with -Dorg.jessies.libraryDirectories=...
+ *
+ * Usage: PtyLatencyBenchmark [BUSY_COUNT [SAMPLE_COUNT]]
+ */
+public class PtyLatencyBenchmark {
+    private static final String BUSY_LINE = "\u001b[1mThe quick brown fox\u001b[m jumps over the lazy dog, 0123456789.";
+
+    private final AtomicLong busyByteCount = new AtomicLong(0);
+    private final BlockingQueue<Long> echoTimes = new LinkedBlockingQueue<Long>();
+
+    public static void main(String[] args) throws Exception {
+        int busyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int sampleCount = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        new PtyLatencyBenchmark().run(busyCount, sampleCount);
+    }
+
+    private void run(int busyCount, int sampleCount) throws Exception {
+        int threadCountBefore = Thread.activeCount();
+        ArrayList<PtyProcess> processes = new ArrayList<PtyProcess>();
+        try {
+            for (int i = 0; i < busyCount; ++i) {
+                PtyProcess process = new PtyProcess("yes", new String[] { "yes", BUSY_LINE }, null);
+                processes.add(process);
+                PtyReaderLoop.getInstance().add(new BusyReader(process));
+            }
+            PtyProcess quietProcess = new PtyProcess("cat", new String[] { "cat" }, null);
+            processes.add(quietProcess);
+            PtyReaderLoop.getInstance().add(new EchoReader(quietProcess));
+            int threadCountAfter = Thread.activeCount();
+
+            // Let everything get going.
+            Thread.sleep(1000);
+
+            OutputStream out = quietProcess.getOutputStream();
+            byte[] line = "x\n".getBytes("UTF-8");
+            long[] latencies_ns = new long[sampleCount];
+            busyByteCount.set(0);
+            long t0_ns = System.nanoTime();
+            for (int i = 0; i < sampleCount; ++i) {
+                echoTimes.clear();
+                long writeTime_ns = System.nanoTime();
+                out.write(line, 0, line.length);
+                Long echoTime_ns = echoTimes.poll(10, TimeUnit.SECONDS);
+                if (echoTime_ns == null) {
+                    throw new RuntimeException("no echo after 10s");
+                }
+                latencies_ns[i] = echoTime_ns - writeTime_ns;
+                Thread.sleep(10);
+            }
+            long duration_ns = System.nanoTime() - t0_ns;
+            Arrays.sort(latencies_ns);
+
+            double busyMegabytesPerSecond = (busyByteCount.get() / (1024.0 * 1024.0)) / TimeUtilities.nsToS(duration_ns);
+            System.out.println(String.format("%d busy terminals, %.1f MiB/s between them; threads %d before, %d after", busyCount, busyMegabytesPerSecond, threadCountBefore, threadCountAfter));
+            System.out.println(String.format("echo latency over %d samples: median %s, 90%% %s, 99%% %s, max %s", sampleCount, TimeUtilities.nsToString(percentile(latencies_ns, 50)), TimeUtilities.nsToString(percentile(latencies_ns, 90)), TimeUtilities.nsToString(percentile(latencies_ns, 99)), TimeUtilities.nsToString(latencies_ns[sampleCount - 1])));
+        } finally {
+            for (PtyProcess process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static long percentile(long[] sortedValues, int percent) {
+        return sortedValues[Math.min(sortedValues.length - 1, sortedValues.length * percent / 100)];
+    }
+
+    private class BusyReader extends PtyReaderLoop.Reader {
+        private final int fd;
+        private final ReadableByteChannel in;
+        private final TerminalControl control;
+
+        BusyReader(PtyProcess process) {
+            this.fd = process.getFd();
+            this.in = new CountingChannel(process.getChannel());
+            this.control = new TerminalControl(null, null) {
+                @Override void dispatchTerminalActions(TerminalAction[] actions, StringBuilder text) {
+                    recycleBatchText(text);
+                }
+            };
+        }
+
+        int getFd() {
+            return fd;
+        }
+
+        boolean readAvailable() {
+            try {
+                return control.readAndProcess(in);
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+
+    private class CountingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel in;
+
+        CountingChannel(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        public int read(ByteBuffer buffer) throws IOException {
+            int n = in.read(buffer);
+            if (n > 0) {
+                busyByteCount.addAndGet(n);
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class EchoReader extends PtyReaderLoop.Reader {
+        private final int fd;
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+
+        EchoReader(PtyProcess process) {
+            this.fd = process.getFd();
+            this.in = process.getInputStream();
+        }
+
+        int getFd() {
+            return fd;
+        }
+
+        boolean readAvailable() {
+            try {
+                int n = in.read(buffer, 0, buffer.length);
+                for (int i = 0; i < n; ++i) {
+                    // The pty echoes our line as soon as we write it; cat(1) then writes it again.
+                    if (buffer[i] == 'x') {
+                        echoTimes.offer(System.nanoTime());
+                        break;
+                    }
+                }
+                return n >= 0;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+}
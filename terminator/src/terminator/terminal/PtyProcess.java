@@ -3,6 +3,8 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.Dimension;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.concurrent.*;
 import org.jessies.os.*;
 
@@ -30,7 +32,8 @@ public class PtyProcess {
                     throw new IOException("read(" + fd + ", buffer, " + arrayOffset + ", " + byteCount + ") failed: " + Errno.toString(-n));
                 }
             }
-            return n;
+            // read(2) returns 0 at end of file, but InputStream returns -1.
+            return (n == 0 && byteCount > 0) ? -1 : n;
         }
     }
     
@@ -68,6 +71,59 @@ public class PtyProcess {
         }
     }
     
+    /**
+     * Reads and writes the pty through ByteBuffers.
+     * With a direct buffer, read(2) and write(2) use the buffer's memory, with no copying on the way.
+     * Heap buffers work too, but go through PtyInputStream and PtyOutputStream, which copy.
+     */
+    private class PtyChannel implements ByteChannel {
+        public int read(ByteBuffer buffer) throws IOException {
+            if (buffer.isDirect() == false) {
+                int n = inStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (n > 0) {
+                    buffer.position(buffer.position() + n);
+                }
+                return n;
+            }
+            final int byteCount = buffer.remaining();
+            int n = 0;
+            while ((n = Posix.read(fd, buffer)) < 0) {
+                if (n != -Errno.EINTR) {
+                    throw new IOException("read(" + fd + ", buffer, " + byteCount + ") failed: " + Errno.toString(-n));
+                }
+            }
+            // read(2) returns 0 at end of file, but channels return -1.
+            return (n == 0 && byteCount > 0) ? -1 : n;
+        }
+        
+        public int write(ByteBuffer buffer) throws IOException {
+            final int byteCount = buffer.remaining();
+            if (buffer.isDirect() == false) {
+                outStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), byteCount);
+                buffer.position(buffer.limit());
+                return byteCount;
+            }
+            // As in PtyOutputStream, we may be interrupted before or after writing some of the bytes.
+            while (buffer.hasRemaining()) {
+                int n = Posix.write(fd, buffer);
+                if (n < 0 && n != -Errno.EINTR) {
+                    throw new IOException("write(" + fd + ", buffer, " + buffer.remaining() + ") failed: " + Errno.toString(-n));
+                }
+            }
+            return byteCount;
+        }
+        
+        public boolean isOpen() {
+            return fd != -1;
+        }
+        
+        /**
+         * Does nothing: the fd belongs to the PtyProcess, which closes it in waitFor.
+         */
+        public void close() {
+        }
+    }
+    
     private int fd = -1;
     private int pid;
     private String slavePtyName;
@@ -79,8 +135,16 @@ public class PtyProcess {
     
     private InputStream inStream;
     private OutputStream outStream;
+    private ByteChannel channel;
     
-    private final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Child Forker/Reaper");
+    // Shared by all PtyProcess instances, so we don't need a thread per terminal.
+    // Waiting for a child mustn't block this thread, or no other terminal could start, so we use WNOHANG and retry from the caller's thread.
+    private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Child Forker/Reaper");
+    // How long to wait between checks on a child that hasn't exited yet.
+    private static final long MIN_WAIT_INTERVAL_MS = 10;
+    private static final long MAX_WAIT_INTERVAL_MS = 1000;
+    
+    private boolean hasExited = false;
     
     private static boolean libraryLoaded = false;
     
@@ -127,6 +191,7 @@ public class PtyProcess {
         startProcess(executable, argv, workingDirectory);
         inStream = new PtyInputStream();
         outStream = new PtyOutputStream();
+        channel = new PtyChannel();
     }
     
     public InputStream getInputStream() {
@@ -137,6 +202,13 @@ public class PtyProcess {
         return outStream;
     }
     
+    /**
+     * Returns a channel for the pty, which can read and write direct ByteBuffers without copying.
+     */
+    public ByteChannel getChannel() {
+        return channel;
+    }
+    
     public int getFd() {
         return fd;
     }
@@ -159,18 +231,28 @@ public class PtyProcess {
         });
     }
     
+    /**
+     * Waits for the child to exit, sleeping on the calling thread between checks.
+     */
     public void waitFor() throws Exception {
-        invoke(new Callable<Exception>() {
-            public Exception call() {
-                try {
-                    waitFor0();
-                    return null;
-                } catch (Exception ex) {
-                    return ex;
+        long interval_ms = MIN_WAIT_INTERVAL_MS;
+        while (true) {
+            invoke(new Callable<Exception>() {
+                public Exception call() {
+                    try {
+                        waitFor0();
+                        return null;
+                    } catch (Exception ex) {
+                        return ex;
+                    }
                 }
+            });
+            if (hasExited) {
+                return;
             }
-        });
-        executorService.shutdownNow();
+            Thread.sleep(interval_ms);
+            interval_ms = Math.min(2 * interval_ms, MAX_WAIT_INTERVAL_MS);
+        }
     }
     
     private void waitFor0() throws IOException {
@@ -180,18 +262,24 @@ public class PtyProcess {
         // Even if it hasn't, we're no longer reading its output, which may cause the child to block in the kernel,
         // preventing it from terminating, even if root sends it SIGKILL.
         // If we close the pipe before waiting, then we may let it finish and collect an exit status.
-        Posix.close(fd);
-        fd = -1;
+        if (fd != -1) {
+            Posix.close(fd);
+            fd = -1;
+        }
         
-        // Loop until waitpid(2) returns a status or a real error.
+        // Loop until waitpid(2) returns a status, reports that the child's still running, or returns a real error.
         WaitStatus status = new WaitStatus();
         int result;
-        while ((result = Posix.waitpid(pid, status, 0)) < 0) {
+        while ((result = Posix.waitpid(pid, status, Posix.WNOHANG)) < 0) {
             if (result != -Errno.EINTR) {
                 // Something really went wrong; give up.
                 throw new IOException("waitpid(" + pid + ") failed: " + Errno.toString(-result));
             }
         }
+        if (result == 0) {
+            return;
+        }
+        hasExited = true;
         
         // Translate the status.
         if (status.WIFEXITED()) {
@@ -0,0 +1,197 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.jessies.os.*;
+
+/**
+ * Reads the output of many terminals on one thread, using poll(2) to find out which have something to say.
+ *
+ * We used to have a reader thread per terminal, which meant hundreds of threads, almost all of them asleep, for users with lots of tabs.
+ * Now there are at most LOOP_COUNT reader threads however many terminals there are, and each terminal is read by whichever loop it was given to.
+ * A Reader is only called when its fd is readable, so its single read(2) won't block, and it should do nothing else that might.
+ *
+ * A Reader that's producing output faster than it can be shown can pause itself, and be resumed from another thread when there's room.
+ * Other threads make their changes by queuing them for the loop's own thread, which owns the list of readers, and waking it up through a pipe.
+ */
+final class PtyReaderLoop implements Runnable {
+    // Enough that one flood of output doesn't hold up every other terminal, but still a constant.
+    private static final int LOOP_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final PtyReaderLoop[] loops = new PtyReaderLoop[LOOP_COUNT];
+    private static int nextLoop = 0;
+
+    private static final byte[] WAKE_UP_BYTE = new byte[1];
+
+    /**
+     * Something a PtyReaderLoop reads for.
+     */
+    static abstract class Reader {
+        // Only accessed on the loop's thread.
+        private boolean isPaused = false;
+
+        /** Returns the fd to poll. */
+        abstract int getFd();
+
+        /**
+         * Called on the loop's thread when getFd is readable, or has hung up.
+         * Should read(2) once, and return false if the fd has reached end of file or failed, in which case the loop forgets about it.
+         * Mustn't block, or it will hold up every other Reader on the same loop.
+         */
+        abstract boolean readAvailable();
+    }
+
+    private final String name;
+    // Only accessed on the loop's thread.
+    private final ArrayList<Reader> readers = new ArrayList<Reader>();
+    private int[] fds = new int[16];
+    private int[] events = new int[16];
+    private int[] revents = new int[16];
+    private Reader[] polledReaders = new Reader[16];
+
+    private final ConcurrentLinkedQueue<Runnable> pendingChanges = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean isWakeUpPending = new AtomicBoolean(false);
+    private final int wakeUpReadFd;
+    private final int wakeUpWriteFd;
+    private final byte[] wakeUpBytes = new byte[64];
+
+    /**
+     * Returns one of the shared loops, starting it if necessary.
+     * Terminals are shared between the loops round-robin.
+     */
+    static synchronized PtyReaderLoop getInstance() throws IOException {
+        int index = nextLoop;
+        nextLoop = (nextLoop + 1) % LOOP_COUNT;
+        if (loops[index] == null) {
+            loops[index] = new PtyReaderLoop("Pty Reader " + index);
+            Thread thread = new Thread(loops[index], loops[index].name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return loops[index];
+    }
+
+    private PtyReaderLoop(String name) throws IOException {
+        this.name = name;
+        int[] pipeFds = new int[2];
+        int rc = Posix.pipe(pipeFds);
+        if (rc < 0) {
+            throw new IOException("pipe() failed: " + Errno.toString(-rc));
+        }
+        this.wakeUpReadFd = pipeFds[0];
+        this.wakeUpWriteFd = pipeFds[1];
+    }
+
+    /** Starts reading for 'reader'. */
+    void add(final Reader reader) {
+        post(new Runnable() {
+            public void run() {
+                readers.add(reader);
+            }
+        });
+    }
+
+    /**
+     * Stops polling for 'reader' until it's resumed.
+     * Only for use on the loop's thread, from within the reader's readAvailable.
+     */
+    void pause(Reader reader) {
+        reader.isPaused = true;
+    }
+
+    /** Starts polling for a paused reader again. Can be called on any thread. */
+    void resume(final Reader reader) {
+        post(new Runnable() {
+            public void run() {
+                reader.isPaused = false;
+            }
+        });
+    }
+
+    private void post(Runnable change) {
+        pendingChanges.add(change);
+        // One byte in the pipe is enough to wake the loop however many changes are pending.
+        if (isWakeUpPending.compareAndSet(false, true)) {
+            int rc;
+            while ((rc = Posix.write(wakeUpWriteFd, WAKE_UP_BYTE, 0, 1)) == -Errno.EINTR) {
+            }
+            if (rc < 0) {
+                Log.warn(name + " couldn't wake up: " + Errno.toString(-rc));
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                pollOnce();
+            } catch (Throwable th) {
+                Log.warn("Problem in " + name, th);
+            }
+        }
+    }
+
+    private void pollOnce() {
+        Runnable change;
+        while ((change = pendingChanges.poll()) != null) {
+            change.run();
+        }
+
+        ensureCapacity(readers.size() + 1);
+        int fdCount = 0;
+        fds[fdCount] = wakeUpReadFd;
+        events[fdCount] = Posix.POLLIN;
+        polledReaders[fdCount] = null;
+        ++fdCount;
+        for (Reader reader : readers) {
+            if (reader.isPaused == false) {
+                fds[fdCount] = reader.getFd();
+                events[fdCount] = Posix.POLLIN;
+                polledReaders[fdCount] = reader;
+                ++fdCount;
+            }
+        }
+
+        int rc = Posix.poll(fds, events, revents, fdCount, -1);
+        if (rc < 0) {
+            if (rc != -Errno.EINTR) {
+                Log.warn(name + " poll() failed: " + Errno.toString(-rc));
+            }
+            return;
+        }
+
+        if (revents[0] != 0) {
+            // Clear the flag first, so that a change posted while we're reading gets a byte of its own.
+            isWakeUpPending.set(false);
+            Posix.read(wakeUpReadFd, wakeUpBytes, 0, wakeUpBytes.length);
+        }
+        for (int i = 1; i < fdCount; ++i) {
+            if (revents[i] == 0) {
+                continue;
+            }
+            Reader reader = polledReaders[i];
+            boolean keepReading = false;
+            try {
+                keepReading = reader.readAvailable();
+            } catch (Throwable th) {
+                Log.warn("Problem reading fd " + reader.getFd() + " in " + name, th);
+            }
+            if (keepReading == false) {
+                readers.remove(reader);
+            }
+            polledReaders[i] = null;
+        }
+    }
+
+    private void ensureCapacity(int fdCount) {
+        if (fds.length < fdCount) {
+            int newLength = Math.max(fdCount, 2 * fds.length);
+            fds = new int[newLength];
+            events = new int[newLength];
+            revents = new int[newLength];
+            polledReaders = new Reader[newLength];
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Measures how fast we can read from a pty whose child writes as fast as it can.
+ *
+ * Compares reading into a byte[] through PtyInputStream, which has to copy every read through the C heap,
+ * with reading into a direct ByteBuffer through the PtyProcess' channel, which doesn't,
+ * and with that followed by the copy into a heap buffer TerminalControl does so it can decode quickly.
+ *
+ * Needs the native libraries, so run it with -Dorg.jessies.libraryDirectories=...
+ *
+ * Usage: PtyThroughputBenchmark [SECONDS_PER_RUN]
+ */
+public class PtyThroughputBenchmark {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String LINE = "The quick brown fox jumps over the lazy dog, 0123456789.";
+
+    private interface ReadStrategy {
+        /** Reads once from 'process', returning the number of bytes read, or -1 at end of file. */
+        int read(PtyProcess process) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long duration_ns = (long) (1000000000L * ((args.length > 0) ? Double.parseDouble(args[0]) : 3.0));
+
+        final byte[] array = new byte[BUFFER_SIZE];
+        final ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer heap = ByteBuffer.allocate(BUFFER_SIZE);
+        ReadStrategy streamStrategy = new ReadStrategy() {
+            public int read(PtyProcess process) throws IOException {
+                return process.getInputStream().read(array, 0, array.length);
+            }
+            @Override public String toString() {
+                return "InputStream into byte[]";
+            }
+        };
+        ReadStrategy channelStrategy = new ReadStrategy() {
+            public int read(PtyProcess process) throws IOException {
+                direct.clear();
+                return process.getChannel().read(direct);
+            }
+            @Override public String toString() {
+                return "channel into direct buffer";
+            }
+        };
+        ReadStrategy channelAndCopyStrategy = new ReadStrategy() {
+            public int read(PtyProcess process) throws IOException {
+                direct.clear();
+                int n = process.getChannel().read(direct);
+                direct.flip();
+                heap.clear();
+                heap.put(direct);
+                return n;
+            }
+            @Override public String toString() {
+                return "channel into direct buffer, copied to heap";
+            }
+        };
+
+        // Run everything twice, and only report the second run, so the JIT has had its chance.
+        for (int i = 0; i < 2; ++i) {
+            for (ReadStrategy strategy : new ReadStrategy[] { streamStrategy, channelStrategy, channelAndCopyStrategy }) {
+                String result = run(strategy, duration_ns);
+                if (i == 1) {
+                    System.out.println(result);
+                }
+            }
+        }
+    }
+
+    private static String run(ReadStrategy strategy, long duration_ns) throws Exception {
+        PtyProcess process = new PtyProcess("yes", new String[] { "yes", LINE }, null);
+        try {
+            long byteCount = 0;
+            long readCount = 0;
+            long t0_ns = System.nanoTime();
+            long elapsed_ns;
+            while ((elapsed_ns = System.nanoTime() - t0_ns) < duration_ns) {
+                int n = strategy.read(process);
+                if (n < 0) {
+                    throw new EOFException("yes(1) stopped");
+                }
+                byteCount += n;
+                ++readCount;
+            }
+            double megabytesPerSecond = (byteCount / (1024.0 * 1024.0)) / TimeUtilities.nsToS(elapsed_ns);
+            return String.format("%s: %.1f MiB/s, %d bytes per read", strategy, megabytesPerSecond, byteCount / Math.max(1, readCount));
+        } finally {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+import terminator.*;
+import terminator.model.*;
+
+/**
+ * Gets batches of TerminalActions from the reader thread onto the EDT.
+ *
+ * The reader thread produces a batch per read(2), which during a burst of output can be dozens per frame.
+ * Performing each batch separately would mean a processActions, a linesChangedFrom and a repaint for each.
+ * Instead, batches wait here until the next frame, when they're all performed in one call to processActions.
+ * That merges their changed lines into a single range, and their repaints into one paint.
+ * We run at most TerminatorPreferences.MAX_FRAME_RATE frames a second; output arriving after a quiet spell is performed immediately.
+ *
+ * If the EDT falls behind, the TerminalControl stops reading from the pty until the next frame makes room for more.
+ * It can't simply wait, because it shares its PtyReaderLoop thread with other terminals.
+ * The limit is on the amount of pending output rather than the number of batches, because batches vary so much in size.
+ */
+public class RenderScheduler {
+    // How much pending output (counting each character of text and each action) the reader may get ahead of the EDT.
+    // That's about what the old limit of 30 full read buffers allowed, so an interrupt shows up no later than it used to.
+    private static final int MAX_PENDING_WEIGHT = 256 * 1024;
+
+    private final TerminalModel model;
+    private final TerminalControl control;
+
+    // Guarded by this.
+    private ArrayList<TerminalAction[]> pendingActions = new ArrayList<TerminalAction[]>();
+    private ArrayList<StringBuilder> pendingTexts = new ArrayList<StringBuilder>();
+    private int pendingWeight;
+    private boolean isFrameScheduled;
+    private boolean isReaderPaused;
+    private long lastFrameTime_ns;
+
+    // Statistics, also guarded by this.
+    private int frameCount;
+    private int batchCount;
+    private int maxBatchesPerFrame;
+    private int readerPauseCount;
+
+    private final javax.swing.Timer frameTimer;
+    private final Runnable frameRunnable = new Runnable() {
+        public void run() {
+            performFrame();
+        }
+    };
+
+    RenderScheduler(TerminalControl control, TerminalModel model) {
+        this.control = control;
+        this.model = model;
+        this.frameTimer = new javax.swing.Timer(0, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                performFrame();
+            }
+        });
+        frameTimer.setRepeats(false);
+    }
+
+    /**
+     * Queues a batch of actions for the next frame.
+     * Once they've been performed, 'text' is handed back to the TerminalControl for reuse.
+     */
+    synchronized void submit(TerminalAction[] actions, StringBuilder text) {
+        pendingActions.add(actions);
+        pendingTexts.add(text);
+        pendingWeight += text.length() + actions.length;
+        if (isFrameScheduled == false) {
+            isFrameScheduled = true;
+            scheduleFrame();
+        }
+    }
+
+    /**
+     * Tests whether the EDT has too much to do already, in which case the reader should stop reading until TerminalControl.resumeReading is called.
+     * A single read can only take us a little way past the limit.
+     */
+    synchronized boolean shouldPauseReader() {
+        if (pendingWeight < MAX_PENDING_WEIGHT) {
+            return false;
+        }
+        isReaderPaused = true;
+        ++readerPauseCount;
+        return true;
+    }
+
+    private void scheduleFrame() {
+        final long frameInterval_ns = 1000000000L / Math.max(1, Terminator.getPreferences().getInt(TerminatorPreferences.MAX_FRAME_RATE));
+        final long delay_ms = (lastFrameTime_ns + frameInterval_ns - System.nanoTime()) / 1000000;
+        if (delay_ms <= 0) {
+            EventQueue.invokeLater(frameRunnable);
+        } else {
+            // javax.swing.Timer isn't thread-safe, so we have to start it from the EDT.
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    frameTimer.setInitialDelay((int) delay_ms);
+                    frameTimer.restart();
+                }
+            });
+        }
+    }
+
+    private void performFrame() {
+        ArrayList<TerminalAction[]> batches;
+        ArrayList<StringBuilder> texts;
+        boolean shouldResumeReader;
+        synchronized (this) {
+            batches = pendingActions;
+            texts = pendingTexts;
+            pendingActions = new ArrayList<TerminalAction[]>();
+            pendingTexts = new ArrayList<StringBuilder>();
+            pendingWeight = 0;
+            isFrameScheduled = false;
+            lastFrameTime_ns = System.nanoTime();
+            ++frameCount;
+            batchCount += batches.size();
+            maxBatchesPerFrame = Math.max(maxBatchesPerFrame, batches.size());
+            shouldResumeReader = isReaderPaused;
+            isReaderPaused = false;
+        }
+        if (shouldResumeReader) {
+            // The reader can carry on while we're busy with this frame.
+            control.resumeReading();
+        }
+        try {
+            model.processActions(concatenate(batches));
+        } catch (Throwable th) {
+            Log.warn("Couldn't process terminal actions for " + control.getPtyProcess(), th);
+        } finally {
+            for (StringBuilder text : texts) {
+                control.recycleBatchText(text);
+            }
+        }
+    }
+
+    private static TerminalAction[] concatenate(ArrayList<TerminalAction[]> batches) {
+        if (batches.size() == 1) {
+            return batches.get(0);
+        }
+        int actionCount = 0;
+        for (TerminalAction[] batch : batches) {
+            actionCount += batch.length;
+        }
+        TerminalAction[] result = new TerminalAction[actionCount];
+        int i = 0;
+        for (TerminalAction[] batch : batches) {
+            System.arraycopy(batch, 0, result, i, batch.length);
+            i += batch.length;
+        }
+        return result;
+    }
+
+    /** Describes how well we're merging batches, for the info dialog. */
+    @Override public synchronized String toString() {
+        if (frameCount == 0) {
+            return "(no output yet)";
+        }
+        return StringUtilities.pluralize(batchCount, "batch", "batches") + " in " + StringUtilities.pluralize(frameCount, "frame", "frames") + " (mean " + String.format("%.1f", ((double) batchCount) / frameCount) + ", max " + maxBatchesPerFrame + " per frame; reader paused " + StringUtilities.pluralize(readerPauseCount, "time", "times") + ")";
+    }
+}
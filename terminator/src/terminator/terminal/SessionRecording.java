@@ -0,0 +1,199 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A recording of a terminal session, for replaying through InputBenchmark.
+ *
+ * A recording is everything read from the pty, exactly as read(2) returned it, and every change of the terminal's size, each with the time since recording began.
+ * Keeping the read boundaries means a replay splits multi-byte characters and escape sequences just as the original session did.
+ *
+ * The format is the line "terminator-recording 1", followed by a sequence of records in DataOutputStream's big-endian encoding.
+ * An output record is the byte 'O', a long time in ns, an int byte count, and the bytes.
+ * A size change record is the byte 'S', a long time in ns, and int column and row counts.
+ *
+ * TerminalControl records a terminal if the "org.jessies.terminator.recordingDirectory" system property names a directory.
+ */
+public class SessionRecording {
+    private static final String MAGIC = "terminator-recording 1\n";
+    private static final byte OUTPUT = 'O';
+    private static final byte SIZE_CHANGE = 'S';
+
+    private final String name;
+    private final List<Event> events;
+
+    /**
+     * One thing that happened during a session: either some output or a size change.
+     */
+    public static class Event {
+        private final long time_ns;
+        private final byte[] bytes;
+        private final int columnCount;
+        private final int rowCount;
+
+        private Event(long time_ns, byte[] bytes, int columnCount, int rowCount) {
+            this.time_ns = time_ns;
+            this.bytes = bytes;
+            this.columnCount = columnCount;
+            this.rowCount = rowCount;
+        }
+
+        public static Event output(long time_ns, byte[] bytes) {
+            return new Event(time_ns, bytes, 0, 0);
+        }
+
+        public static Event sizeChange(long time_ns, int columnCount, int rowCount) {
+            return new Event(time_ns, null, columnCount, rowCount);
+        }
+
+        public long getTime() {
+            return time_ns;
+        }
+
+        public boolean isSizeChange() {
+            return (bytes == null);
+        }
+
+        /** Returns the output, which mustn't be modified, or null for a size change. */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getColumnCount() {
+            return columnCount;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+    }
+
+    public SessionRecording(String name, List<Event> events) {
+        this.name = name;
+        this.events = Collections.unmodifiableList(new ArrayList<Event>(events));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /** Returns the total number of bytes of output. */
+    public long getByteCount() {
+        long byteCount = 0;
+        for (Event event : events) {
+            if (event.isSizeChange() == false) {
+                byteCount += event.getBytes().length;
+            }
+        }
+        return byteCount;
+    }
+
+    /**
+     * Returns a recording of the file at 'file'.
+     * A file that isn't a recording is treated as raw pty output, as captured by script(1), say, and split into reads of at most 'readSize' bytes.
+     */
+    public static SessionRecording fromFile(File file, int readSize) throws IOException {
+        ByteBuffer buffer = ByteBufferUtilities.readFile(file);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        ArrayList<Event> events = new ArrayList<Event>();
+        byte[] magic = MAGIC.getBytes("US-ASCII");
+        if (bytes.length >= magic.length && Arrays.equals(magic, Arrays.copyOf(bytes, magic.length))) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, magic.length, bytes.length - magic.length));
+            int type;
+            while ((type = in.read()) != -1) {
+                long time_ns = in.readLong();
+                if (type == OUTPUT) {
+                    byte[] output = new byte[in.readInt()];
+                    in.readFully(output);
+                    events.add(Event.output(time_ns, output));
+                } else if (type == SIZE_CHANGE) {
+                    int columnCount = in.readInt();
+                    int rowCount = in.readInt();
+                    events.add(Event.sizeChange(time_ns, columnCount, rowCount));
+                } else {
+                    throw new IOException("unknown record type " + type + " in \"" + file + "\"");
+                }
+            }
+        } else {
+            for (int offset = 0; offset < bytes.length; offset += readSize) {
+                events.add(Event.output(0, Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + readSize))));
+            }
+        }
+        return new SessionRecording(file.toString(), events);
+    }
+
+    /**
+     * Writes this recording to 'file'.
+     */
+    public void writeTo(File file) throws IOException {
+        Recorder recorder = new Recorder(file);
+        try {
+            for (Event event : events) {
+                if (event.isSizeChange()) {
+                    recorder.writeSizeChange(event.getTime(), event.getColumnCount(), event.getRowCount());
+                } else {
+                    recorder.writeOutput(event.getTime(), event.getBytes(), event.getBytes().length);
+                }
+            }
+        } finally {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Writes a recording of a live session, timing the events itself.
+     * Output is recorded on the reader thread and size changes on the EDT, so the methods are synchronized.
+     * The writes are buffered, but this is a debugging aid, so we don't go to TerminalLogWriter's lengths to keep the disk off the reader thread.
+     */
+    public static class Recorder {
+        private final DataOutputStream out;
+        private final long startTime_ns = System.nanoTime();
+        private byte[] scratch = new byte[8192];
+
+        public Recorder(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            out.write(MAGIC.getBytes("US-ASCII"));
+        }
+
+        /** Records the bytes between the position and limit of 'bytes', without changing its position. */
+        public synchronized void recordOutput(ByteBuffer bytes) throws IOException {
+            int byteCount = bytes.remaining();
+            if (scratch.length < byteCount) {
+                scratch = new byte[byteCount];
+            }
+            bytes.duplicate().get(scratch, 0, byteCount);
+            writeOutput(System.nanoTime() - startTime_ns, scratch, byteCount);
+        }
+
+        public synchronized void recordSizeChange(int columnCount, int rowCount) throws IOException {
+            writeSizeChange(System.nanoTime() - startTime_ns, columnCount, rowCount);
+        }
+
+        private void writeOutput(long time_ns, byte[] bytes, int byteCount) throws IOException {
+            out.writeByte(OUTPUT);
+            out.writeLong(time_ns);
+            out.writeInt(byteCount);
+            out.write(bytes, 0, byteCount);
+        }
+
+        private void writeSizeChange(long time_ns, int columnCount, int rowCount) throws IOException {
+            out.writeByte(SIZE_CHANGE);
+            out.writeLong(time_ns);
+            out.writeInt(columnCount);
+            out.writeInt(rowCount);
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -3,6 +3,9 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
@@ -13,7 +16,7 @@ import terminator.view.*;
 import terminator.terminal.escape.*;
 
 /**
- * Ties together the subprocess reader thread, the subprocess writer thread, and the thread that processes the subprocess' output.
+ * Ties together the shared PtyReaderLoop that reads the subprocess' output, the executor that writes its input, and the EDT that performs its output.
  * Some basic processing is done here.
  */
 public class TerminalControl {
@@ -21,7 +24,7 @@ public class TerminalControl {
     private static final String CHARSET_NAME = "UTF-8";
     
     // This should be around your system's pipe size.
-    // Too much larger and you'll waste time copying unused char[].
+    // Too much larger and you'll waste cache on buffer space that's never touched.
     // Too much smaller and you'll waste time making excessive system calls reading just part of what's available.
     // FIXME: add a JNI call to return PIPE_BUF? (It's not strictly required to be the value we're looking for, but it probably is.)
     private static final int INPUT_BUFFER_SIZE = 8192;
@@ -35,6 +38,9 @@ public class TerminalControl {
     
     private static BufferedReader stepModeReader;
     
+    // Runs the work that might block but isn't worth a thread per terminal: writing to the pty and waiting for the process to exit.
+    private static final ExecutorService backgroundExecutor = ThreadUtilities.newCachedThreadPool("Terminal Background");
+    
     private JTerminalPane pane;
     private List<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
     private TerminalModel model;
@@ -42,11 +48,22 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
+    private ReadableByteChannel in;
     private OutputStream out;
     
-    private ExecutorService writerExecutor;
-    private Thread readerThread;
+    // The PtyReaderLoop thread decodes each read(2) worth of bytes from the same pair of buffers.
+    // Any incomplete multi-byte sequence at the end of one read stays in inputBytes until the next.
+    // We read into a direct buffer, which the kernel can fill without JNI copying it, and then copy into inputBytes.
+    // The decoder needs a heap buffer: its fast paths work on arrays, and decoding UTF-8 straight from a direct buffer is many times slower than one extra copy.
+    private final CharsetDecoder decoder = Charset.forName(CHARSET_NAME).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer readBytes = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+    private final ByteBuffer inputBytes = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private final CharBuffer inputChars = CharBuffer.allocate(INPUT_BUFFER_SIZE);
+    
+    // Keeps our writes in order, without a thread of our own.
+    private Executor writerExecutor;
+    private PtyReaderLoop readerLoop;
+    private PtyReader reader;
     
     private int characterSet;
     private char[] g = new char[4];
@@ -54,20 +71,50 @@ public class TerminalControl {
     private boolean automaticNewline;
     
     private TerminalLogWriter terminalLogWriter;
+    // Only non-null if we were asked to record sessions for InputBenchmark.
+    private volatile SessionRecording.Recorder recorder;
     
-    private StringBuilder lineBuffer = new StringBuilder();
-    
-    private EscapeParser escapeParser;
+    private final EscapeParser escapeParser = new EscapeParser(this);
     
     // Buffer of TerminalActions to perform.
     private ArrayList<TerminalAction> terminalActions = new ArrayList<TerminalAction>();
-    // Semaphore to prevent us from overrunning the EDT.
-    private Semaphore flowControl = new Semaphore(30);
+    // Merges batches of TerminalActions into frames on the EDT, and stops us overrunning it.
+    // Only terminals with a pane have one; the others perform or discard their actions themselves.
+    private RenderScheduler renderScheduler;
+    // How many spare batch text buffers to keep.
+    private static final int SPARE_BATCH_TEXT_COUNT = 32;
+    
+    // All the plain text in the current batch of TerminalActions.
+    // Each PlainTextAction refers to its range of this rather than having a String of its own.
+    // The text from lineStart onwards hasn't yet been given to a PlainTextAction.
+    private StringBuilder batchText = new StringBuilder(INPUT_BUFFER_SIZE);
+    private int lineStart = 0;
+    // Once the EDT has performed a batch, its text buffer comes back here for reuse.
+    private final BlockingQueue<StringBuilder> spareBatchTexts = new ArrayBlockingQueue<StringBuilder>(SPARE_BATCH_TEXT_COUNT);
+    
+    // The output triggers we're watching for, or null if there aren't any.
+    // The matcher state carries over from one run of text to the next until the end of the line.
+    private OutputTriggers outputTriggers;
+    private int triggerState = MultiStringMatcher.INITIAL_STATE;
+    // The triggers that have matched the current line, and those of them we haven't yet passed on to the EDT.
+    private final BitSet matchedTriggers = new BitSet();
+    private final BitSet pendingTriggers = new BitSet();
+    private final MultiStringMatcher.Listener triggerListener = new MultiStringMatcher.Listener() {
+        public void matched(int triggerIndex, int end) {
+            if (matchedTriggers.get(triggerIndex) == false) {
+                matchedTriggers.set(triggerIndex);
+                pendingTriggers.set(triggerIndex);
+            }
+        }
+    };
     
     public TerminalControl(JTerminalPane pane, TerminalModel model) {
         reset();
         this.pane = pane;
         this.model = model;
+        if (pane != null) {
+            this.renderScheduler = new RenderScheduler(this, model);
+        }
     }
     
     public void initProcess(List<String> command, String workingDirectory) throws Throwable {
@@ -89,13 +136,48 @@ public class TerminalControl {
         }
         
         // We log an announceConnectionLost message if we fail to create the PtyProcess, so we need the TerminalLogWriter first.
-        this.terminalLogWriter = new TerminalLogWriter(command);
+        // A HeadlessTerminal has no pane, and no preferences to say where to log, so it isn't logged.
+        if (pane != null) {
+            this.terminalLogWriter = new TerminalLogWriter(command, new Runnable() {
+                public void run() {
+                    resumeReading();
+                }
+            });
+            this.outputTriggers = OutputTriggers.getInstance();
+        }
         this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
         this.processIsRunning = true;
-        Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
+        Log.warn("Created " + ptyProcess + ((terminalLogWriter != null) ? " and logging to " + terminalLogWriter.getInfo() : ""));
+        initRecording();
+        this.in = ptyProcess.getChannel();
         this.out = ptyProcess.getOutputStream();
-        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+        writerExecutor = new SerialExecutor(backgroundExecutor);
+    }
+    
+    private void initRecording() {
+        String recordingDirectoryName = System.getProperty("org.jessies.terminator.recordingDirectory");
+        if (recordingDirectoryName == null) {
+            return;
+        }
+        File recordingFile = new File(recordingDirectoryName, "terminator-" + ptyProcess.getPid() + "-" + System.currentTimeMillis() + ".recording");
+        try {
+            this.recorder = new SessionRecording.Recorder(recordingFile);
+            Log.warn("Recording " + ptyProcess + " to " + recordingFile);
+        } catch (IOException ex) {
+            Log.warn("Couldn't record " + ptyProcess + " to " + recordingFile, ex);
+        }
+    }
+    
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.close();
+        } catch (IOException ex) {
+            Log.warn("Problem closing recording of " + ptyProcess, ex);
+        }
+        recorder = null;
     }
     
     public static ArrayList<String> getDefaultShell() {
@@ -120,7 +202,7 @@ public class TerminalControl {
      * invoked when all the user interface stuff is set up.
      */
     public void start() {
-        if (readerThread != null) {
+        if (reader != null) {
             // Detaching a tab causes start to be invoked again, but we shouldn't do anything.
             return;
         }
@@ -130,44 +212,124 @@ public class TerminalControl {
             return;
         }
         
-        readerThread = startThread("Reader", new ReaderRunnable());
-    }
-    
-    private Thread startThread(String name, Runnable runnable) {
-        Thread thread = new Thread(runnable, makeThreadName(name));
-        thread.setDaemon(true);
-        thread.start();
-        return thread;
-    }
-    
-    private String makeThreadName(String role) {
-        return "Process " + ptyProcess.getPid() + " (" + ptyProcess.getPtyName() + ") " + role;
+        reader = new PtyReader(ptyProcess.getFd());
+        try {
+            readerLoop = PtyReaderLoop.getInstance();
+        } catch (IOException ex) {
+            Log.warn("Couldn't start reading output from " + ptyProcess, ex);
+            announceConnectionLost("\n\r[Couldn't read from process.]");
+            return;
+        }
+        readerLoop.add(reader);
     }
     
-    private class ReaderRunnable implements Runnable {
-        public void run() {
+    /**
+     * Reads our pty whenever our PtyReaderLoop finds it readable.
+     */
+    private class PtyReader extends PtyReaderLoop.Reader {
+        // PtyProcess forgets its fd when it's closed, but we need to remember which fd we were polling.
+        private final int fd;
+        
+        PtyReader(int fd) {
+            this.fd = fd;
+        }
+        
+        int getFd() {
+            return fd;
+        }
+        
+        boolean readAvailable() {
             try {
-                while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
-                    if (readCount == -1) {
-                        Log.warn("read returned -1 from " + ptyProcess);
-                        return; // This isn't going to fix itself!
-                    }
-                    
-                    try {
-                        processBuffer(chars, readCount);
-                    } catch (Throwable th) {
-                        Log.warn("Problem processing output from " + ptyProcess, th);
-                    }
+                if (readAndProcess(in) == false) {
+                    Log.warn("read returned -1 from " + ptyProcess);
+                    terminate();
+                    return false;
                 }
             } catch (Throwable th) {
                 Log.warn("Problem reading output from " + ptyProcess, th);
-            } finally {
-                // Our reader might throw an exception before the child has terminated.
-                // So "handleProcessTermination" is perhaps not the ideal name.
-                handleProcessTermination();
+                terminate();
+                return false;
+            }
+            // Whichever asked us to pause resumes us. If the other's still behind, we'll pause again after our next read.
+            if ((renderScheduler != null && renderScheduler.shouldPauseReader()) || (terminalLogWriter != null && terminalLogWriter.shouldPauseReader())) {
+                readerLoop.pause(this);
             }
+            return true;
+        }
+        
+        private void terminate() {
+            // Our reader might throw an exception before the child has terminated.
+            // So "handleProcessTermination" is perhaps not the ideal name.
+            // Waiting for the child can take a while, and we mustn't hold up the other terminals on our PtyReaderLoop.
+            backgroundExecutor.execute(new Runnable() {
+                public void run() {
+                    handleProcessTermination();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Called by the RenderScheduler or the TerminalLogWriter when it has room for more output after asking us to pause.
+     */
+    void resumeReading() {
+        readerLoop.resume(reader);
+    }
+    
+    /**
+     * Reads and processes everything from 'in' until end of file.
+     * Problems processing the output are logged rather than thrown; only problems reading it end the loop.
+     * Package-private for InputBenchmark.
+     */
+    void processInput(ReadableByteChannel in) throws IOException {
+        while (readAndProcess(in)) {
+        }
+    }
+    
+    /**
+     * Performs a single read from 'in', and processes whatever it returned.
+     * Returns false at end of file.
+     * Package-private for PtyLatencyBenchmark.
+     */
+    boolean readAndProcess(ReadableByteChannel in) throws IOException {
+        readBytes.clear();
+        readBytes.limit(inputBytes.remaining());
+        int readCount = in.read(readBytes);
+        if (readCount == -1) {
+            return false; // This isn't going to fix itself!
+        }
+        readBytes.flip();
+        if (recorder != null) {
+            recorder.recordOutput(readBytes);
+        }
+        inputBytes.put(readBytes);
+        
+        try {
+            decodeInputBytes();
+        } catch (Throwable th) {
+            Log.warn("Problem processing output from " + ptyProcess, th);
+        }
+        return true;
+    }
+    
+    /**
+     * Decodes as much of 'inputBytes' as we can, and processes the resulting characters.
+     * Bytes that don't yet make up a whole character are left for next time.
+     */
+    private void decodeInputBytes() throws IOException {
+        inputBytes.flip();
+        try {
+            CoderResult result;
+            do {
+                result = decoder.decode(inputBytes, inputChars, false);
+                inputChars.flip();
+                if (inputChars.hasRemaining()) {
+                    processBuffer(inputChars.array(), inputChars.limit());
+                }
+                inputChars.clear();
+            } while (result.isOverflow());
+        } finally {
+            inputBytes.compact();
         }
     }
     
@@ -231,13 +393,10 @@ public class TerminalControl {
     }
     
     private void handleProcessTermination() {
+        // Any writes still queued will see this and do nothing.
         processIsRunning = false;
-
-        // The readerThread will have shut itself down by now.
-        // We need to handle the writer ExecutorService ourselves.
-        if (writerExecutor != null) {
-            writerExecutor.shutdownNow();
-        }
+        // The reader has read all it's going to.
+        stopRecording();
         
         // If the JNI side failed to start, ptyProcess can be null.
         // In that case, we'll already have reported the error.
@@ -257,7 +416,7 @@ public class TerminalControl {
         Log.warn("waitFor returned on " + ptyProcess);
         if (ptyProcess.didExitNormally()) {
             int status = ptyProcess.getExitStatus();
-            if (pane.shouldHoldOnExit(status)) {
+            if (pane == null || pane.shouldHoldOnExit(status)) {
                 announceConnectionLost("\n\r[Process exited with status " + status + ".]");
                 return;
             }
@@ -270,7 +429,7 @@ public class TerminalControl {
         }
 
         // If it wasn't a pane close that caused us to get here, close the pane.
-        if (processHasBeenDestroyed == false) {
+        if (processHasBeenDestroyed == false && pane != null) {
             EventQueue.invokeLater(new Runnable() {
                 public void run() {
                     pane.doCloseAction();
@@ -283,13 +442,13 @@ public class TerminalControl {
         try {
             final char[] buffer = message.toCharArray();
             processBuffer(buffer, buffer.length);
-            pane.getTerminalView().setCursorVisible(false);
+            model.setCursorVisible(false);
         } catch (Exception ex) {
             Log.warn("Couldn't say \"" + message + "\"", ex);
         }
     }
     
-    /** Must be called in the AWT dispatcher thread. */
+    /** Must be called in the AWT dispatcher thread, or for a HeadlessTerminal, with the model locked. */
     public void sizeChanged(final Dimension sizeInChars, final Dimension sizeInPixels) throws IOException {
         TerminalAction sizeChangeAction = new TerminalAction() {
             public void perform(TerminalModel model) {
@@ -301,25 +460,70 @@ public class TerminalControl {
             }
         };
         model.processActions(new TerminalAction[] { sizeChangeAction });
-        // Notify the pty that the size has changed.
-        ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
+        if (recorder != null) {
+            recorder.recordSizeChange(sizeInChars.width, sizeInChars.height);
+        }
+        // Notify the pty that the size has changed, if there is one.
+        if (ptyProcess != null) {
+            ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
+        }
     }
     
     private synchronized void processBuffer(char[] buffer, int size) throws IOException {
-        boolean sawNewline = false;
-        for (int i = 0; i < size; ++i) {
-            char ch = buffer[i];
-            if (ch == '\n') {
-                sawNewline = true;
+        int i = 0;
+        while (i < size) {
+            if (escapeParser.isInSequence() == false && SHOW_ASCII_RENDITION == false) {
+                // Most output is runs of printable text, which we can copy in one go rather than character by character.
+                int runEnd = i;
+                while (runEnd < size && isSpecialCharacter(buffer[runEnd]) == false) {
+                    ++runEnd;
+                }
+                if (runEnd > i) {
+                    batchText.append(buffer, i, runEnd - i);
+                    if (outputTriggers != null) {
+                        triggerState = outputTriggers.match(triggerState, buffer, i, runEnd, triggerListener);
+                    }
+                    i = runEnd;
+                    continue;
+                }
             }
-            processChar(ch);
+            processChar(buffer[i++]);
+        }
+        // There's no log until initProcess, and InputBenchmark and HeadlessTerminal never have one.
+        if (terminalLogWriter != null) {
+            terminalLogWriter.append(buffer, size);
         }
-        terminalLogWriter.append(buffer, size, sawNewline);
         flushLineBuffer();
+        flushTriggers();
         flushTerminalActions();
         fireChangeListeners();
     }
     
+    /**
+     * Tests whether 'ch' is one of the characters processChar treats specially.
+     * Everything else, including the control characters we don't understand, is just text.
+     */
+    private static boolean isSpecialCharacter(char ch) {
+        if (ch >= ' ') {
+            return false;
+        }
+        switch (ch) {
+        case Ascii.ESC:
+        case Ascii.LF:
+        case Ascii.CR:
+        case Ascii.BS:
+        case Ascii.HT:
+        case Ascii.VT:
+        case Ascii.SO:
+        case Ascii.SI:
+        case Ascii.BEL:
+        case Ascii.NUL:
+            return true;
+        default:
+            return false;
+        }
+    }
+    
     private synchronized void flushTerminalActions() {
         if (terminalActions.size() == 0) {
             return;
@@ -328,26 +532,35 @@ public class TerminalControl {
         final TerminalAction[] actions = terminalActions.toArray(new TerminalAction[terminalActions.size()]);
         terminalActions.clear();
         
-        boolean didAcquire = false;
+        // The actions we're about to hand over refer to this batch's text, so the next batch needs a buffer of its own.
+        final StringBuilder text = batchText;
+        batchText = spareBatchTexts.poll();
+        if (batchText == null) {
+            batchText = new StringBuilder(INPUT_BUFFER_SIZE);
+        }
+        lineStart = 0;
+        
+        dispatchTerminalActions(actions, text);
+    }
+    
+    /**
+     * Hands a batch of actions over to the EDT, via the RenderScheduler.
+     * Once they've been performed, 'text' is recycled.
+     * Package-private so terminals without a pane, which have no RenderScheduler, can do something else with them.
+     */
+    void dispatchTerminalActions(final TerminalAction[] actions, final StringBuilder text) {
         try {
-            flowControl.acquire();
-            didAcquire = true;
-            EventQueue.invokeLater(new Runnable() {
-                public void run() {
-                    try {
-                        model.processActions(actions);
-                    } catch (Throwable th) {
-                        Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
-                    } finally {
-                        flowControl.release();
-                    }
-                }
-            });
+            renderScheduler.submit(actions, text);
         } catch (Throwable th) {
             Log.warn("Couldn't flush terminal actions for " + ptyProcess, th);
-            if (didAcquire) {
-                flowControl.release();
-            }
+        }
+    }
+    
+    void recycleBatchText(StringBuilder text) {
+        // Don't hang on to the occasional huge buffer.
+        if (text.capacity() <= 4 * INPUT_BUFFER_SIZE) {
+            text.setLength(0);
+            spareBatchTexts.offer(text);
         }
     }
     
@@ -359,7 +572,7 @@ public class TerminalControl {
         return (ch != Ascii.BS && ch != Ascii.CR && ch != Ascii.VT);
     }
     
-    private synchronized void processChar(final char ch) {
+    private void processChar(final char ch) {
         // Enable this if you're having trouble working out what we're being asked to interpret.
         if (SHOW_ASCII_RENDITION) {
             if (ch >= ' ' || ch == '\n') {
@@ -372,20 +585,21 @@ public class TerminalControl {
         if (ch == Ascii.ESC) {
             flushLineBuffer();
             // If the old escape sequence is interrupted; we start a new one.
-            if (escapeParser != null) {
+            if (escapeParser.isInSequence()) {
                 Log.warn("Escape parser discarded with string \"" + escapeParser + "\"");
             }
-            escapeParser = new EscapeParser();
+            escapeParser.start();
             return;
         }
-        if (escapeParser != null && countsTowardsEscapeSequence(ch)) {
-            escapeParser.addChar(ch);
-            if (escapeParser.isComplete()) {
+        if (escapeParser.isInSequence() && countsTowardsEscapeSequence(ch)) {
+            if (escapeParser.addChar(ch)) {
                 processEscape();
-                escapeParser = null;
             }
         } else if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
             flushLineBuffer();
+            if (ch == Ascii.LF || ch == Ascii.CR) {
+                endTriggerLine();
+            }
             doStep();
             processSpecialCharacter(ch);
         } else if (ch == Ascii.SO) {
@@ -393,7 +607,7 @@ public class TerminalControl {
         } else if (ch == Ascii.SI) {
             invokeCharacterSetLater(0);
         } else if (ch == Ascii.BEL) {
-            pane.flash();
+            ringBell();
         } else if (ch == Ascii.NUL) {
             // Most telnetd(1) implementations seem to have a bug whereby
             // they send the NUL byte at the end of the C strings they want to
@@ -401,90 +615,179 @@ public class TerminalControl {
             // copy and pasted from one another these days, this silly mistake
             // only needed to be made once.
         } else {
-            lineBuffer.append(ch);
+            batchText.append(ch);
         }
     }
     
-    private static class PlainTextAction implements TerminalAction {
-        private String line;
+    /** Package-private so InputBenchmark and HeadlessTerminal, which have no pane, can override it. */
+    void ringBell() {
+        pane.flash();
+    }
+    
+    /**
+     * Writes a range of a batch's text to the model.
+     * The text belongs to the batch, so the model's free to translate it in place.
+     */
+    private class PlainTextAction implements TerminalAction {
+        private final StringBuilder text;
+        private final int start;
+        private final int end;
         
-        private PlainTextAction(String line) {
-            this.line = line;
+        private PlainTextAction(StringBuilder text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
         }
         
         public void perform(TerminalModel model) {
             if (DEBUG) {
-                Log.warn("Processing line \"" + line + "\"");
+                Log.warn("Processing line \"" + text.substring(start, end) + "\"");
             }
-            model.processLine(line);
+            translate(text, start, end);
+            model.processLine(text, start, end);
         }
         
         @Override public String toString() {
-            return "TerminalAction[Process line: " + line + "]";
+            return "TerminalAction[Process line: " + text.substring(start, end) + "]";
         }
     }
     
-    public String translate(String characters) {
+    /**
+     * Translates characters[start, end) in place into the currently invoked character set.
+     */
+    public void translate(StringBuilder characters, int start, int end) {
         if (g[characterSet] == 'B') {
-            return characters;
+            return;
         }
-        StringBuilder translation = new StringBuilder(characters.length());
-        for (int i = 0; i < characters.length(); ++i) {
-            translation.append(translateToCharacterSet(characters.charAt(i)));
+        for (int i = start; i < end; ++i) {
+            characters.setCharAt(i, translateToCharacterSet(characters.charAt(i)));
         }
-        return translation.toString();
     }
     
     private synchronized void flushLineBuffer() {
-        if (lineBuffer.length() == 0) {
+        final int lineEnd = batchText.length();
+        if (lineEnd == lineStart) {
             // Nothing to flush!
             return;
         }
         
-        final String line = lineBuffer.toString();
-        lineBuffer = new StringBuilder();
-        
         doStep();
         
         // Conform to the stated claim that the model's always mutated in the AWT dispatch thread.
-        terminalActions.add(new PlainTextAction(line));
+        terminalActions.add(new PlainTextAction(batchText, lineStart, lineEnd));
+        lineStart = lineEnd;
     }
     
-    public synchronized void processSpecialCharacter(final char ch) {
-        terminalActions.add(new TerminalAction() {
-            public void perform(TerminalModel model) {
-                if (DEBUG) {
-                    Log.warn("Processing special char \"" + getCharDesc(ch) + "\"");
-                }
-                model.processSpecialCharacter(ch);
+    /**
+     * Queues the actions for any triggers that have matched since last time, after the text they matched.
+     */
+    private void flushTriggers() {
+        for (int i = pendingTriggers.nextSetBit(0); i >= 0; i = pendingTriggers.nextSetBit(i + 1)) {
+            terminalActions.add(new TriggerAction(outputTriggers, i));
+        }
+        pendingTriggers.clear();
+    }
+    
+    /**
+     * Starts watching for triggers afresh, because a line of output has ended.
+     */
+    private void endTriggerLine() {
+        if (outputTriggers == null) {
+            return;
+        }
+        flushTriggers();
+        matchedTriggers.clear();
+        triggerState = MultiStringMatcher.INITIAL_STATE;
+    }
+    
+    /**
+     * Package-private so InputBenchmark can measure the cost of watching for triggers.
+     */
+    void setOutputTriggers(OutputTriggers outputTriggers) {
+        this.outputTriggers = outputTriggers;
+        this.triggerState = MultiStringMatcher.INITIAL_STATE;
+    }
+    
+    /**
+     * Fires an output trigger on the EDT, once the text that matched it is in the model, and the cursor's still on its line.
+     */
+    private class TriggerAction implements TerminalAction {
+        private final OutputTriggers triggers;
+        private final int index;
+        
+        private TriggerAction(OutputTriggers triggers, int index) {
+            this.triggers = triggers;
+            this.index = index;
+        }
+        
+        public void perform(TerminalModel model) {
+            String line = model.getTextLine(model.getCursorPosition().getLineIndex()).getString().trim();
+            triggers.fire(index, pane, line);
+        }
+        
+        @Override public String toString() {
+            return "TerminalAction[Output trigger " + index + "]";
+        }
+    }
+    
+    /**
+     * Performs one of the special characters understood by TerminalModel.processSpecialCharacter.
+     * These are so common (there's at least one per line of output) that we share one instance of each.
+     */
+    private static class SpecialCharacterAction implements TerminalAction {
+        private static final SpecialCharacterAction[] INSTANCES = new SpecialCharacterAction[' '];
+        static {
+            for (char ch : new char[] { Ascii.LF, Ascii.CR, Ascii.HT, Ascii.VT, Ascii.BS }) {
+                INSTANCES[ch] = new SpecialCharacterAction(ch);
             }
-            
-            @Override public String toString() {
-                return "TerminalAction[Special char " + getCharDesc(ch) + "]";
+        }
+        
+        private final char ch;
+        
+        private SpecialCharacterAction(char ch) {
+            this.ch = ch;
+        }
+        
+        public static TerminalAction get(char ch) {
+            TerminalAction result = (ch < INSTANCES.length) ? INSTANCES[ch] : null;
+            return (result != null) ? result : new SpecialCharacterAction(ch);
+        }
+        
+        public void perform(TerminalModel model) {
+            if (DEBUG) {
+                Log.warn("Processing special char \"" + getCharDesc() + "\"");
             }
-            
-            private String getCharDesc(char ch) {
-                switch (ch) {
-                    case Ascii.LF: return "LF";
-                    case Ascii.CR: return "CR";
-                    case Ascii.HT: return "HT";
-                    case Ascii.VT: return "VT";
-                    case Ascii.BS: return "BS";
-                    default: return "UK";
-                }
+            model.processSpecialCharacter(ch);
+        }
+        
+        @Override public String toString() {
+            return "TerminalAction[Special char " + getCharDesc() + "]";
+        }
+        
+        private String getCharDesc() {
+            switch (ch) {
+                case Ascii.LF: return "LF";
+                case Ascii.CR: return "CR";
+                case Ascii.HT: return "HT";
+                case Ascii.VT: return "VT";
+                case Ascii.BS: return "BS";
+                default: return "UK";
             }
-        });
+        }
+    }
+    
+    public synchronized void processSpecialCharacter(final char ch) {
+        terminalActions.add(SpecialCharacterAction.get(ch));
     }
     
     public synchronized void processEscape() {
-        if (DEBUG) {
-            Log.warn("Processing escape sequence \"" + StringUtilities.escapeForJava(escapeParser.toString()) + "\"");
-        }
-        
         // Invoke all escape sequence handling in the AWT dispatch thread - otherwise we'd have
         // to create billions upon billions of tiny little invokeLater(Runnable) things all over the place.
         doStep();
-        TerminalAction action = escapeParser.getAction(this);
+        TerminalAction action = escapeParser.getAction();
+        if (DEBUG) {
+            Log.warn("Processing escape sequence " + action);
+        }
         if (action != null) {
             terminalActions.add(action);
         }
@@ -622,6 +925,10 @@ public class TerminalControl {
         return ptyProcess;
     }
     
+    public RenderScheduler getRenderScheduler() {
+        return renderScheduler;
+    }
+    
     /**
      * Adds a change listener to be notified when the terminal's content changes.
      */
@@ -8,27 +8,84 @@ import terminator.model.*;
 import terminator.terminal.*;
 
 /**
-Parses 'CSI' escape sequences.  Such sequences always have '[' as their first character,
-and then are sometimes followed by a '?' character, then optionally a list of numbers
-separated by ';' characters, followed by the final character which tells us what to do with
-all that stuff.
+Performs 'CSI' escape sequences.  Such sequences always have '[' as their first character,
+and then are sometimes followed by a private marker character such as '?', then optionally a list of numbers
+separated by ';' characters, then optionally an intermediate character such as ' ' or '!', followed by the final character
+which tells us what to do with all that stuff.
+
+EscapeParser has already split the sequence into those parts, so we don't need to parse any Strings here.
 
 @author Phil Norman
 */
 
 public class CSIEscapeAction implements TerminalAction {
+    /** The value of a parameter that was omitted from the sequence, as in the first parameter of "CSI ;5H". */
+    public static final int MISSING = -1;
+    
     private TerminalControl control;
-    private String sequence;
+    // 0 if there was no private marker.
+    private char privateMarker;
+    // Always at least one element, though that may be MISSING.
+    private int[] parameters;
+    // 0 if there was no intermediate character.
+    private char intermediate;
+    private char finalChar;
     
-    public CSIEscapeAction(TerminalControl control, String sequence) {
+    public CSIEscapeAction(TerminalControl control, char privateMarker, int[] parameters, char intermediate, char finalChar) {
         this.control = control;
-        this.sequence = sequence;
+        this.privateMarker = privateMarker;
+        this.parameters = parameters;
+        this.intermediate = intermediate;
+        this.finalChar = finalChar;
     }
 
     public void perform(TerminalModel model) {
         if (processSequence(model) == false) {
-            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(sequence) + "\"");
+            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(getSequence()) + "\"");
+        }
+    }
+    
+    /** Reconstructs the sequence (without the ESC) for diagnostic purposes. */
+    private String getSequence() {
+        return toSequenceString(privateMarker, parameters, intermediate, String.valueOf(finalChar));
+    }
+    
+    static String toSequenceString(char privateMarker, int[] parameters, char intermediate, String finalChar) {
+        StringBuilder result = new StringBuilder("[");
+        if (privateMarker != 0) {
+            result.append(privateMarker);
+        }
+        for (int i = 0; i < parameters.length; ++i) {
+            if (i > 0) {
+                result.append(';');
+            }
+            if (parameters[i] != MISSING) {
+                result.append(parameters[i]);
+            }
+        }
+        if (intermediate != 0) {
+            result.append(intermediate);
+        }
+        result.append(finalChar);
+        return result.toString();
+    }
+    
+    /** Returns the index'th parameter, or 'defaultValue' if it was omitted. */
+    private int getParameter(int index, int defaultValue) {
+        if (index >= parameters.length || parameters[index] == MISSING) {
+            return defaultValue;
         }
+        return parameters[index];
+    }
+    
+    /** Returns the index'th parameter as a repeat count, where (as in xterm) both omitted and 0 mean 1. */
+    private int getCount(int index) {
+        return Math.max(1, getParameter(index, 1));
+    }
+    
+    /** Tests whether the sequence has no private marker and no intermediate, which is true of most sequences. */
+    private boolean isPlain() {
+        return privateMarker == 0 && intermediate == 0;
     }
     
     private String getSequenceType(char lastChar) {
@@ -60,82 +117,78 @@ public class CSIEscapeAction implements TerminalAction {
     }
     
     @Override public String toString() {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        return "CSIEscapeAction[" + getSequenceType(lastChar) + "]";
+        return "CSIEscapeAction[" + getSequenceType(finalChar) + "]";
     }
     
     private boolean processSequence(TerminalModel model) {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        String midSequence = sequence.substring(1, sequence.length() - 1);
-        switch (lastChar) {
+        switch (finalChar) {
         case 'A':
-            return moveCursor(model, midSequence, 0, -1);
+            return isPlain() && moveCursor(model, 0, -1);
         case 'B':
-            return moveCursor(model, midSequence, 0, 1);
+            return isPlain() && moveCursor(model, 0, 1);
         case 'C':
-            return moveCursor(model, midSequence, 1, 0);
+            return isPlain() && moveCursor(model, 1, 0);
         case 'c':
-            return deviceAttributesRequest(midSequence);
+            return isPlain() && deviceAttributesRequest();
         case 'D':
-            return moveCursor(model, midSequence, -1, 0);
+            return isPlain() && moveCursor(model, -1, 0);
         case 'd':
-            return moveCursorRowTo(model, midSequence);
+            return isPlain() && moveCursorRowTo(model);
         case 'G':
         case '`':
-            return moveCursorColumnTo(model, midSequence);
+            return isPlain() && moveCursorColumnTo(model);
         case 'f':
         case 'H':
-            return moveCursorTo(model, midSequence);
+            return isPlain() && moveCursorTo(model);
         case 'K':
-            return killLineContents(model, midSequence);
+            return isPlain() && killLineContents(model);
         case 'J':
-            return eraseInPage(model, midSequence);
+            return isPlain() && eraseInPage(model);
         case 'L':
-            return insertLines(model, midSequence);
+            return isPlain() && insertLines(model);
         case 'M':
-            return deleteLines(model, midSequence);
+            return isPlain() && deleteLines(model);
         case 'P':
-            return deleteCharacters(model, midSequence);
+            return isPlain() && deleteCharacters(model);
         case 'g':
-            return clearTabs(model, midSequence);
+            return isPlain() && clearTabs(model);
         case 'h':
-            return setDecPrivateMode(model, midSequence, true);
+            return intermediate == 0 && setDecPrivateMode(model, true);
         case 'l':
-            return setDecPrivateMode(model, midSequence, false);
+            return intermediate == 0 && setDecPrivateMode(model, false);
         case 'm':
-            return processFontEscape(model, midSequence);
+            return isPlain() && processFontEscape(model);
         case 'n':
-            return processDeviceStatusReport(model, midSequence);
+            return isPlain() && processDeviceStatusReport(model);
         case 'p':
-            if (midSequence.equals("!")) {
+            if (privateMarker == 0 && intermediate == '!') {
                 control.reset();
                 return true;
             }
             break;
         case 'q':
-            if (sequence.charAt(sequence.length() - 2) == ' ') {
-                int style = Integer.parseInt(sequence.substring(1, sequence.length() - 2));
-                model.setCursorStyle(style);
+            if (privateMarker == 0 && intermediate == ' ') {
+                model.setCursorStyle(getParameter(0, 0));
                 return true;
             } else {
-                Log.warn("unknown CSI q sequence " + StringUtilities.escapeForJava(sequence));
+                Log.warn("unknown CSI q sequence " + StringUtilities.escapeForJava(getSequence()));
             }
             break;
         case 'r':
-            if (midSequence.startsWith("?")) {
-                return restoreDecPrivateModes(midSequence);
+            if (privateMarker == '?') {
+                return restoreDecPrivateModes();
             } else {
-                return setScrollingRegion(model, midSequence);
+                return isPlain() && setScrollingRegion(model);
             }
         case 's':
-            return saveDecPrivateModes(midSequence);
+            return saveDecPrivateModes();
         }
-        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(sequence));
+        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(getSequence()));
         return false;
     }
     
-    public boolean clearTabs(TerminalModel model, String seq) {
-        int clearType = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean clearTabs(TerminalModel model) {
+        int clearType = getParameter(0, 0);
         if (clearType == 0) {
             // Clear horizontal tab at current cursor position.
             model.removeTabAtCursor();
@@ -150,25 +203,26 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    public boolean deleteLines(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
+    public boolean deleteLines(TerminalModel model) {
+        int count = getCount(0);
         for (int i = 0; i < count; i++) {
             model.deleteLine();
         }
         return true;
     }
     
-    public boolean insertLines(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
-        model.insertLines(count);
+    public boolean insertLines(TerminalModel model) {
+        model.insertLines(getCount(0));
         return true;
     }
     
-    private boolean setDecPrivateMode(TerminalModel model, String seq, boolean value) {
-        boolean isPrivateMode = seq.startsWith("?");
-        String[] modes = (isPrivateMode ? seq.substring(1) : seq).split(";");
-        for (String modeString : modes) {
-            int mode = Integer.parseInt(modeString);
+    private boolean setDecPrivateMode(TerminalModel model, boolean value) {
+        boolean isPrivateMode = (privateMarker == '?');
+        if (privateMarker != 0 && isPrivateMode == false) {
+            return false;
+        }
+        for (int i = 0; i < parameters.length; ++i) {
+            int mode = getParameter(i, 0);
             if (isPrivateMode) {
                 switch (mode) {
                 case 3:
@@ -219,7 +273,7 @@ public class CSIEscapeAction implements TerminalAction {
                     model.setBracketedPasteMode(value);
                     break;
                 default:
-                    Log.warn("Unknown private mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown private mode " + mode + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
             } else {
                 switch (mode) {
@@ -230,35 +284,33 @@ public class CSIEscapeAction implements TerminalAction {
                     control.setAutomaticNewline(value);
                     break;
                 default:
-                    Log.warn("Unknown mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown mode " + mode + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
             }
         }
         return true;
     }
     
-    private boolean restoreDecPrivateModes(String seq) {
-        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean restoreDecPrivateModes() {
+        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(getSequence()) + ")");
         return false;
     }
     
-    private boolean saveDecPrivateModes(String seq) {
-        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean saveDecPrivateModes() {
+        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(getSequence()) + ")");
         return false;
     }
     
-    public boolean setScrollingRegion(TerminalModel model, String seq) {
-        int index = seq.indexOf(';');
-        if (index == -1) {
-            model.setScrollingRegion(-1, -1);
-        } else {
-            model.setScrollingRegion(Integer.parseInt(seq.substring(0, index)), Integer.parseInt(seq.substring(index + 1)));
-        }
+    public boolean setScrollingRegion(TerminalModel model) {
+        // An omitted (or 0) top or bottom means the top or bottom of the screen, which the model represents as -1.
+        int top = getParameter(0, 0);
+        int bottom = getParameter(1, 0);
+        model.setScrollingRegion(top == 0 ? -1 : top, bottom == 0 ? -1 : bottom);
         return true;
     }
     
-    private boolean deviceAttributesRequest(String seq) {
-        if (seq.equals("") || seq.equals("0")) {
+    private boolean deviceAttributesRequest() {
+        if (parameters.length == 1 && getParameter(0, 0) == 0) {
             sendDeviceAttributes(control);
             return true;
         } else {
@@ -270,52 +322,46 @@ public class CSIEscapeAction implements TerminalAction {
         control.sendUtf8String(Ascii.ESC + "[?1;0c");
     }
     
-    public boolean deleteCharacters(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
-        model.deleteCharacters(count);
+    public boolean deleteCharacters(TerminalModel model) {
+        model.deleteCharacters(getCount(0));
         return true;
     }
     
-    public boolean killLineContents(TerminalModel model, String seq) {
-        int type = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean killLineContents(TerminalModel model) {
+        int type = getParameter(0, 0);
         boolean fromStart = (type >= 1);
         boolean toEnd = (type != 1);
         model.killHorizontally(fromStart, toEnd);
         return true;
     }
     
-    public boolean eraseInPage(TerminalModel model, String seq) {
-        int type = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean eraseInPage(TerminalModel model) {
+        int type = getParameter(0, 0);
         boolean fromTop = (type >= 1);
         boolean toBottom = (type != 1);
         model.eraseInPage(fromTop, toBottom);
         return true;
     }
     
-    public boolean moveCursorRowTo(TerminalModel model, String seq) {
-        model.setCursorPosition(-1, Integer.parseInt(seq));
+    public boolean moveCursorRowTo(TerminalModel model) {
+        model.setCursorPosition(-1, getParameter(0, 1));
         return true;
     }
     
-    public boolean moveCursorColumnTo(TerminalModel model, String seq) {
-        model.setCursorPosition(Integer.parseInt(seq), -1);
+    public boolean moveCursorColumnTo(TerminalModel model) {
+        model.setCursorPosition(getParameter(0, 1), -1);
         return true;
     }
     
-    public boolean moveCursorTo(TerminalModel model, String seq) {
-        int x = 1;
-        int y = 1;
-        int splitIndex = seq.indexOf(';');
-        if (splitIndex != -1) {
-            y = Integer.parseInt(seq.substring(0, splitIndex));
-            x = Integer.parseInt(seq.substring(splitIndex + 1));
-        }
+    public boolean moveCursorTo(TerminalModel model) {
+        int y = getParameter(0, 1);
+        int x = getParameter(1, 1);
         model.setCursorPosition(x, y);
         return true;
     }
     
-    public boolean moveCursor(TerminalModel model, String countString, int xDirection, int yDirection) {
-        int count = (countString.length() == 0) ? 1 : Integer.parseInt(countString);
+    public boolean moveCursor(TerminalModel model, int xDirection, int yDirection) {
+        int count = getCount(0);
         if (xDirection != 0) {
             model.moveCursorHorizontally(xDirection * count);
         }
@@ -325,8 +371,8 @@ public class CSIEscapeAction implements TerminalAction {
         return true;
     }
     
-    private boolean processDeviceStatusReport(TerminalModel model, String sequence) {
-        switch (Integer.parseInt(sequence)) {
+    private boolean processDeviceStatusReport(TerminalModel model) {
+        switch (getParameter(0, 0)) {
         case 5:
             control.sendUtf8String(Ascii.ESC + "[0n");
             return true;
@@ -341,15 +387,7 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    // Returns the next chunk from 'chunks' as an int.
-    // If the next chunk is empty, returns 0.
-    // If there are no more chunks, returns 0.
-    private int nextInt(Iterator<String> chunks) {
-        final String chunk = chunks.hasNext() ? chunks.next() : "";
-        return (chunk.length() == 0) ? 0 : Integer.parseInt(chunk);
-    }
-    
-    public boolean processFontEscape(TerminalModel model, String sequence) {
+    public boolean processFontEscape(TerminalModel model) {
         Style oldStyle = model.getStyle();
         // Grab the *raw* foreground and background colours. This preserves their 'null'ness in the
         // case that a style has no explicit fg/bg, and must use the current default. This is important
@@ -359,9 +397,10 @@ public class CSIEscapeAction implements TerminalAction {
         boolean isBold = oldStyle.isBold();
         boolean isReverseVideo = oldStyle.isReverseVideo();
         boolean isUnderlined = oldStyle.isUnderlined();
-        Iterator<String> chunks = Arrays.asList(sequence.split(";")).iterator();
-        while (chunks.hasNext()) {
-            final int attribute = nextInt(chunks);
+        // Omitted parameters (and parameters past the end, for truncated 38 and 48 sequences) count as 0.
+        int i = 0;
+        while (i < parameters.length) {
+            final int attribute = getParameter(i++, 0);
             switch (attribute) {
             case 0:
                 // Clear all attributes.
@@ -425,21 +464,21 @@ public class CSIEscapeAction implements TerminalAction {
             case 48:
                 // Set background color (256-color or 24-bit).
                 Palettes.Ink newColor = null;
-                final int colorMode = nextInt(chunks);
+                final int colorMode = getParameter(i++, 0);
                 switch (colorMode) {
                 case 5:
                     // 256 color mode, as in xterm.
-                    newColor = Palettes.getInk(nextInt(chunks));
+                    newColor = Palettes.getInk(getParameter(i++, 0));
                     break;
                 case 2:
                     // 24 bit color mode, a konsole extension.
-                    final int red = nextInt(chunks);
-                    final int green = nextInt(chunks);
-                    final int blue = nextInt(chunks);
+                    final int red = getParameter(i++, 0);
+                    final int green = getParameter(i++, 0);
+                    final int blue = getParameter(i++, 0);
                     newColor = Palettes.getFixedInk(new Color(red, green, blue));
                     break;
                 default:
-                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
                 if (attribute == 38) {
                     foreground = newColor;
@@ -489,7 +528,7 @@ public class CSIEscapeAction implements TerminalAction {
                 background = Palettes.getInk(attribute - 92);
                 break;
             default:
-                Log.warn("Unknown attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                Log.warn("Unknown attribute " + attribute + " in " + StringUtilities.escapeForJava(getSequence()));
                 break;
             }
         }
@@ -5,6 +5,18 @@ import e.util.*;
 import terminator.terminal.*;
 
 /**
+Parses escape sequences a character at a time, in the style of the VT500-series
+parser described at http://vt100.net/emu/dec_ansi_parser.
+
+A TerminalControl has a single EscapeParser for its whole life. The parser's
+state is a few ints and arrays that are reused from one sequence to the next,
+so the only allocation is the TerminalAction handed back for each complete
+sequence (which has to outlive the parser state, since it's performed later
+on the EDT).
+
+The transitions are in a table indexed by state and character. Characters
+outside ASCII are treated like DEL, which is how the old String-based
+recognizers treated them too.
 
 Stuff we're unsure about:
 G - process graphics.
@@ -13,115 +25,223 @@ G - process graphics.
 */
 
 public class EscapeParser {
-    private boolean isComplete = false;
-    private String sequence = "";
+    // States. GROUND means we're not in an escape sequence at all.
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_PARAM = 3;
+    private static final int CSI_INTERMEDIATE = 4;
+    private static final int CSI_IGNORE = 5;
+    private static final int OSC_NUMBER = 6;
+    private static final int OSC_STRING = 7;
+    private static final int STATE_COUNT = 8;
+
+    // Actions taken on a transition.
+    private static final int NONE = 0;
+    private static final int UNRECOGNIZED = 1;
+    private static final int DISPATCH_SINGLE = 2;
+    private static final int COLLECT_FIRST = 3;
+    private static final int DISPATCH_TWO_CHAR = 4;
+    private static final int ENTER_CSI = 5;
+    private static final int PRIVATE_MARKER = 6;
+    private static final int PARAM_DIGIT = 7;
+    private static final int PARAM_SEPARATOR = 8;
+    private static final int COLLECT_INTERMEDIATE = 9;
+    private static final int DISPATCH_CSI = 10;
+    private static final int ABORT_CSI = 11;
+    private static final int ENTER_OSC = 12;
+    private static final int OSC_PUT = 13;
+    private static final int DISPATCH_OSC = 14;
+    private static final int PUT_AND_DISPATCH_OSC = 15;
 
-    private SequenceRecognizer seqRecognizer;
-    
-    private static final HashMap<Character, SequenceRecognizer> SEQ_RECOGNIZERS = new HashMap<Character, SequenceRecognizer>();
+    /** Each entry is (action << 4 | nextState), indexed by (state << 7 | ch). */
+    private static final byte[] TRANSITIONS = new byte[STATE_COUNT << 7];
     static {
-        addSequenceRecognizers("6789=>DEHMZcno", new SingleCharSequenceRecognizer());
-        addSequenceRecognizers("#()*+$@", new TwoCharSequenceRecognizer());
-        addSequenceRecognizers("[", new CSISequenceRecognizer());
-        addSequenceRecognizers("]", new XTermSequenceRecognizer());
+        // Anything we don't otherwise mention after an ESC isn't a sequence we know.
+        on(ESCAPE, 0, 127, UNRECOGNIZED, GROUND);
+        on(ESCAPE, "6789=>DEHMZcno", DISPATCH_SINGLE, GROUND);
+        on(ESCAPE, "#()*+$@", COLLECT_FIRST, ESCAPE_INTERMEDIATE);
+        on(ESCAPE, "[", ENTER_CSI, CSI_PARAM);
+        on(ESCAPE, "]", ENTER_OSC, OSC_NUMBER);
+
+        // The second character of a two-character sequence can be anything.
+        on(ESCAPE_INTERMEDIATE, 0, 127, DISPATCH_TWO_CHAR, GROUND);
+
+        // A CSI sequence ends with the first character outside ' '..'?'.
+        // We let the CSIEscapeAction complain about control characters and final characters it doesn't understand.
+        on(CSI_PARAM, 0, 127, DISPATCH_CSI, GROUND);
+        on(CSI_PARAM, '0', '9', PARAM_DIGIT, CSI_PARAM);
+        on(CSI_PARAM, ";:", PARAM_SEPARATOR, CSI_PARAM);
+        on(CSI_PARAM, "<=>?", PRIVATE_MARKER, CSI_PARAM);
+        on(CSI_PARAM, ' ', '/', COLLECT_INTERMEDIATE, CSI_INTERMEDIATE);
+        on(CSI_INTERMEDIATE, 0, 127, DISPATCH_CSI, GROUND);
+        on(CSI_INTERMEDIATE, ' ', '/', COLLECT_INTERMEDIATE, CSI_INTERMEDIATE);
+        on(CSI_INTERMEDIATE, '0', '?', NONE, CSI_IGNORE);
+        on(CSI_IGNORE, 0, 127, ABORT_CSI, GROUND);
+        on(CSI_IGNORE, ' ', '?', NONE, CSI_IGNORE);
+
+        // An OSC sequence is a number, optionally followed by ';' and a string.
+        // Any control character (normally BEL) ends it, as does anything other than a digit or ';' in the number.
+        on(OSC_NUMBER, 0, 127, PUT_AND_DISPATCH_OSC, GROUND);
+        on(OSC_NUMBER, 0, ' ' - 1, DISPATCH_OSC, GROUND);
+        on(OSC_NUMBER, '0', '9', OSC_PUT, OSC_NUMBER);
+        on(OSC_NUMBER, ";", OSC_PUT, OSC_STRING);
+        on(OSC_STRING, 0, 127, OSC_PUT, OSC_STRING);
+        on(OSC_STRING, 0, ' ' - 1, DISPATCH_OSC, GROUND);
     }
-    private static void addSequenceRecognizers(String chars, SequenceRecognizer recognizer) {
-        for (int i = 0; i < chars.length(); i++) {
-            SEQ_RECOGNIZERS.put(chars.charAt(i), recognizer);
+
+    private static void on(int state, int first, int last, int action, int nextState) {
+        for (int ch = first; ch <= last; ++ch) {
+            TRANSITIONS[(state << 7) | ch] = (byte) ((action << 4) | nextState);
         }
     }
-    
-    public void addChar(char ch) {
-        sequence += ch;
-        if (sequence.length() == 1) {
-            seqRecognizer = SEQ_RECOGNIZERS.get(ch);
-            if (seqRecognizer == null) {
-                Log.warn("No SequenceRecognizer for ESC '" + ch + "'");
-            }
+
+    private static void on(int state, String chars, int action, int nextState) {
+        for (int i = 0; i < chars.length(); ++i) {
+            on(state, chars.charAt(i), chars.charAt(i), action, nextState);
         }
-        isComplete = (seqRecognizer == null) ? true : seqRecognizer.isAtEnd(sequence);
     }
-    
-    public boolean isComplete() {
-        return isComplete;
-    }
-    
-    public TerminalAction getAction(TerminalControl terminalControl) {
-        //Log.warn("Getting action for ESC sequence \"" + StringUtilities.escapeForJava(sequence) + "\"");
-        return (seqRecognizer == null) ? null : seqRecognizer.getTerminalAction(terminalControl, sequence);
-    }
-    
-    @Override public String toString() {
-        return sequence;
-    }
-    
-    private interface SequenceRecognizer {
-        public boolean isAtEnd(String sequence);
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence);
-    }
-    
-    private static class SingleCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 1);
-        }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new SingleCharEscapeAction(terminalControl, sequence.charAt(0));
-        }
+
+    // xterm allows 30 parameters; the VT500 only 16.
+    // Colorful SGR sequences such as "38;2;r;g;b;48;2;r;g;b;1;4" need more than 16.
+    private static final int MAX_PARAMETERS = 32;
+    // Larger values are clamped, so a silly sequence can't overflow an int.
+    private static final int MAX_PARAMETER_VALUE = 99999;
+
+    private final TerminalControl terminalControl;
+
+    private int state = GROUND;
+    private char firstChar;
+    private char privateMarker;
+    private char intermediate;
+    private final int[] parameters = new int[MAX_PARAMETERS];
+    private int parameterCount;
+    private final StringBuilder oscString = new StringBuilder();
+
+    // The action for the most recently completed sequence, if any.
+    private TerminalAction action;
+
+    public EscapeParser(TerminalControl terminalControl) {
+        this.terminalControl = terminalControl;
     }
-    
-    private static class TwoCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 2);
-        }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new TwoCharEscapeAction(terminalControl, sequence);
-        }
+
+    /** Starts a new sequence. The caller has just seen an ESC, which isn't passed to addChar. */
+    public void start() {
+        state = ESCAPE;
+        action = null;
     }
-    
-    private static class CSISequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
-            }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            return (endChar < ' ' || endChar >= '@');
-        }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new CSIEscapeAction(terminalControl, sequence);
-        }
+
+    /** Tests whether we're part-way through a sequence. */
+    public boolean isInSequence() {
+        return (state != GROUND);
     }
-    
-    private static class XTermSequenceRecognizer implements SequenceRecognizer {
-        private boolean isInInitialNumber = true;
-
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
+
+    /**
+     * Adds the next character of the current sequence.
+     * Returns true if that completed the sequence, in which case getAction returns what to do (if anything).
+     */
+    public boolean addChar(char ch) {
+        final int transition = TRANSITIONS[(state << 7) | (ch < 128 ? ch : 127)] & 0xff;
+        final int oldState = state;
+        state = transition & 0xf;
+        switch (transition >> 4) {
+        case NONE:
+            break;
+        case UNRECOGNIZED:
+            Log.warn("No SequenceRecognizer for ESC '" + ch + "'");
+            break;
+        case DISPATCH_SINGLE:
+            action = new SingleCharEscapeAction(terminalControl, ch);
+            break;
+        case COLLECT_FIRST:
+            firstChar = ch;
+            break;
+        case DISPATCH_TWO_CHAR:
+            action = new TwoCharEscapeAction(terminalControl, firstChar, ch);
+            break;
+        case ENTER_CSI:
+            privateMarker = 0;
+            intermediate = 0;
+            parameterCount = 0;
+            parameters[0] = CSIEscapeAction.MISSING;
+            break;
+        case PRIVATE_MARKER:
+            if (parameterCount == 0 && parameters[0] == CSIEscapeAction.MISSING && privateMarker == 0) {
+                privateMarker = ch;
+            } else {
+                // A private marker is only allowed at the start.
+                state = CSI_IGNORE;
             }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            if (endChar < ' ') {
-                return true;
+            break;
+        case PARAM_DIGIT:
+            addDigit(ch - '0');
+            break;
+        case PARAM_SEPARATOR:
+            if (parameterCount < MAX_PARAMETERS - 1) {
+                parameters[++parameterCount] = CSIEscapeAction.MISSING;
             }
-            if (isInInitialNumber) {
-                if (endChar == ';') {
-                    isInInitialNumber = false;
-                    return false;
-                } else if (Character.isDigit(endChar) == false) {
-                    return true;
-                }
+            break;
+        case COLLECT_INTERMEDIATE:
+            if (intermediate == 0) {
+                intermediate = ch;
+            } else {
+                // We don't understand any sequences with more than one intermediate character.
+                state = CSI_IGNORE;
             }
-            return (endChar < ' ');
+            break;
+        case DISPATCH_CSI:
+            action = new CSIEscapeAction(terminalControl, privateMarker, Arrays.copyOf(parameters, parameterCount + 1), intermediate, ch);
+            break;
+        case ABORT_CSI:
+            Log.warn("Ignoring malformed CSI sequence ending '" + ch + "'");
+            break;
+        case ENTER_OSC:
+            oscString.setLength(0);
+            break;
+        case OSC_PUT:
+            oscString.append(ch);
+            break;
+        case DISPATCH_OSC:
+            action = new XTermEscapeAction(oscString.toString());
+            break;
+        case PUT_AND_DISPATCH_OSC:
+            oscString.append(ch);
+            action = new XTermEscapeAction(oscString.toString());
+            break;
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new XTermEscapeAction(sequence);
+        return (state == GROUND && oldState != GROUND);
+    }
+
+    private void addDigit(int digit) {
+        int value = parameters[parameterCount];
+        value = (value == CSIEscapeAction.MISSING) ? digit : Math.min(value * 10 + digit, MAX_PARAMETER_VALUE);
+        parameters[parameterCount] = value;
+    }
+
+    /**
+     * Returns the action for the sequence just completed, or null if there's nothing to do.
+     * Each action is only returned once.
+     */
+    public TerminalAction getAction() {
+        TerminalAction result = action;
+        action = null;
+        return result;
+    }
+
+    /** Describes the sequence in progress, for diagnostic purposes. */
+    @Override public String toString() {
+        switch (state) {
+        case GROUND:
+            return "";
+        case ESCAPE:
+            return "";
+        case ESCAPE_INTERMEDIATE:
+            return String.valueOf(firstChar);
+        case OSC_NUMBER:
+        case OSC_STRING:
+            return "]" + oscString;
+        default:
+            return CSIEscapeAction.toSequenceString(privateMarker, Arrays.copyOf(parameters, parameterCount + 1), intermediate, "");
         }
     }
 }
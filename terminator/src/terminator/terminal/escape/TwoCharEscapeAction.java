@@ -6,15 +6,17 @@ import terminator.terminal.*;
 
 public class TwoCharEscapeAction implements TerminalAction {
     private TerminalControl control;
-    private String sequence;
+    private char firstChar;
+    private char secondChar;
     
-    public TwoCharEscapeAction(TerminalControl control, String sequence) {
+    public TwoCharEscapeAction(TerminalControl control, char firstChar, char secondChar) {
         this.control = control;
-        this.sequence = sequence;
+        this.firstChar = firstChar;
+        this.secondChar = secondChar;
     }
 
     public void perform(TerminalModel model) {
-        switch (sequence.charAt(0)) {
+        switch (firstChar) {
             case '(':
             case ')':
             case '*':
@@ -24,19 +26,23 @@ public class TwoCharEscapeAction implements TerminalAction {
             case '#':  // rxvt: if second char == '8', scr_E().
             case '$':  // rxvt: scr_charset_set(-2, second char).
             case '@':  // rxvt ignores this completely.
-                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(getSequence()) + "\".");
                 break;
             default:
-                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(getSequence()) + "\".");
         }
     }
     
+    private String getSequence() {
+        return new String(new char[] { firstChar, secondChar });
+    }
+    
     private int getCharacterSetIndex() {
-        return "()*+".indexOf(sequence.charAt(0));
+        return "()*+".indexOf(firstChar);
     }
     
     private char getCharacterSet() {
-        return sequence.charAt(1);
+        return secondChar;
     }
     
     @Override public String toString() {
@@ -44,7 +50,7 @@ public class TwoCharEscapeAction implements TerminalAction {
         if (characterSetIndex != -1) {
             return "TwoCharEscapeAction[Set character set at index " + characterSetIndex + " to " + getCharacterSet() + "]";
         } else {
-            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(sequence) + "]";
+            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(getSequence()) + "]";
         }
     }
 }
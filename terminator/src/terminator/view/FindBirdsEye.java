@@ -16,6 +16,10 @@ public class FindBirdsEye implements BirdsEye {
         this.currentLineIndex = currentLineIndex;
     }
     
+    public void linesDiscarded(int count) {
+        currentLineIndex = Math.max(-1, currentLineIndex - count);
+    }
+    
     public int getVisibleLineCount() {
         return view.getModel().getLineCount();
     }
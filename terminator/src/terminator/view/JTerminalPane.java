@@ -22,6 +22,7 @@ public class JTerminalPane extends JPanel {
     private TerminalControl control;
     private TerminalView view;
     private JScrollPane scrollPane;
+    private JScrollBar horizontalScrollBar;
     private JComponent scrollPaneCorner;
     private VisualBellViewport viewport;
     private FindPanel findPanel;
@@ -116,7 +117,7 @@ public class JTerminalPane extends JPanel {
         view.optionsDidChange();
         Color background = view.getBackground();
         viewport.setBackground(background);
-        ((ModernScrollBarUI) scrollPane.getHorizontalScrollBar().getUI()).setTrackColor(background);
+        ((ModernScrollBarUI) horizontalScrollBar.getUI()).setTrackColor(background);
         ((ModernScrollBarUI) scrollPane.getVerticalScrollBar().getUI()).setTrackColor(background);
         scrollPaneCorner.setBackground(background);
         updateTerminalSize();
@@ -141,17 +142,33 @@ public class JTerminalPane extends JPanel {
         
         scrollPane = new JScrollPane();
         scrollPane.setBorder(null);
-        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+        // Lines can be far too wide for a Swing component, so the view scrolls horizontally itself, with its own scroll bar.
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         scrollPane.setViewport(viewport);
+        horizontalScrollBar = new JScrollBar(JScrollBar.HORIZONTAL) {
+            @Override public int getBlockIncrement(int direction) {
+                return getVisibleAmount();
+            }
+        };
+        horizontalScrollBar.setModel(view.getHorizontalModel());
+        horizontalScrollBar.setUnitIncrement(3);
         
         // TODO: track background color changes
         TerminatorPreferences preferences = Terminator.getPreferences();
         Color background = preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR);
-        scrollPane.getHorizontalScrollBar().setUI(new ModernScrollBarUI(background));
+        horizontalScrollBar.setUI(new ModernScrollBarUI(background));
         scrollPane.getVerticalScrollBar().setUI(new ModernScrollBarUI(background));
         scrollPaneCorner = GuiUtilities.isMacOs() ? new MacScrollBarCorner() : new ScrollBarCorner(background);
-        scrollPane.setCorner(JScrollPane.LOWER_RIGHT_CORNER, scrollPaneCorner);
+        scrollPaneCorner.setPreferredSize(new Dimension(scrollPane.getVerticalScrollBar().getPreferredSize().width, 0));
+        
+        // Lay out our horizontal scroll bar and the corner where the scroll pane would have put them.
+        JPanel horizontalScrollBarPanel = new JPanel(new BorderLayout());
+        horizontalScrollBarPanel.add(horizontalScrollBar, BorderLayout.CENTER);
+        horizontalScrollBarPanel.add(scrollPaneCorner, BorderLayout.EAST);
+        JPanel scrollPanel = new JPanel(new BorderLayout());
+        scrollPanel.add(scrollPane, BorderLayout.CENTER);
+        scrollPanel.add(horizontalScrollBarPanel, BorderLayout.SOUTH);
         
         optionsDidChange();
         
@@ -161,7 +178,7 @@ public class JTerminalPane extends JPanel {
         findPanel = new FindPanel(this);
         findPanel.setVisible(false);
         
-        add(scrollPane, BorderLayout.CENTER);
+        add(scrollPanel, BorderLayout.CENTER);
         add(birdView, BorderLayout.EAST);
         add(findPanel, BorderLayout.SOUTH);
         GuiUtilities.keepMaximumShowing(scrollPane.getVerticalScrollBar());
@@ -0,0 +1,137 @@
+package terminator.view;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Remembers what recently painted lines looked like, so TerminalView can copy an image rather than drawing each style run again.
+ * Images are keyed by TextLine.getContentKey, so a line that's changed simply misses, and a line that's moved up the screen still hits.
+ *
+ * There's one cache for the whole process, shared by every TerminalView in every window.
+ * Terminals tend to show the same lines (prompts, blank lines, the output of the same commands), and a pane that's just become visible after a tab switch, or a window full of panes being resized, can copy lines any pane has already drawn rather than laying out the text again.
+ * A single budget also means the memory used doesn't grow with the number of panes.
+ * Everything that affects the pixels and might differ between panes (the font, the background, anti-aliasing, and the device scale) is part of the key.
+ * The palette isn't, so the cache needs clearing when that changes.
+ * Lines with find or URL highlights are rare enough that they're not worth caching.
+ *
+ * Like the rest of Swing, this is only for use on the EDT.
+ */
+final class LineImageCache {
+    static final LineImageCache INSTANCE = new LineImageCache();
+
+    // Drawing wider lines directly is cheap in comparison with the memory an image would take.
+    static final int MAX_IMAGE_WIDTH = 4096;
+    // About sixteen megabytes of pixels, which is several screens' worth of full lines for each of a good number of panes.
+    private static final int MAX_CACHED_PIXEL_COUNT = 4 * 1024 * 1024;
+
+    /**
+     * Identifies a line drawn in a particular way.
+     */
+    static final class Key {
+        private final Object contentKey;
+        private final Font font;
+        private final Color background;
+        private final Object antiAliasing;
+        private final double scaleX;
+        private final double scaleY;
+
+        /** Describes the line with the given content key, drawn in 'font' on 'background' for 'g'. */
+        Key(Object contentKey, Graphics2D g, Font font, Color background) {
+            AffineTransform transform = g.getTransform();
+            this.contentKey = contentKey;
+            this.font = font;
+            this.background = background;
+            this.antiAliasing = g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+            this.scaleX = transform.getScaleX();
+            this.scaleY = transform.getScaleY();
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (obj instanceof Key == false) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return contentKey.equals(key.contentKey) && font.equals(key.font) && background.equals(key.background) && (antiAliasing == null ? key.antiAliasing == null : antiAliasing.equals(key.antiAliasing)) && scaleX == key.scaleX && scaleY == key.scaleY;
+        }
+
+        @Override public int hashCode() {
+            // The content is what usually differs.
+            return contentKey.hashCode();
+        }
+    }
+
+    static final class Entry {
+        final BufferedImage image;
+        // The width of the text in the image, in user space; the image may be wider.
+        final int textWidth;
+        // The size of the image in user space.
+        private final int width;
+        private final int height;
+
+        Entry(BufferedImage image, int textWidth, int width, int height) {
+            this.image = image;
+            this.textWidth = textWidth;
+            this.width = width;
+            this.height = height;
+        }
+
+        int pixelCount() {
+            return image.getWidth() * image.getHeight();
+        }
+    }
+
+    private int cachedPixelCount = 0;
+    // In least-recently-used order.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(1024, 0.75f, true);
+
+    private LineImageCache() {
+    }
+
+    /**
+     * Returns the image for the given key, or null.
+     */
+    Entry get(Key key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Creates an image 'width' by 'height' in user space, at the scale given by 'key'.
+     * The caller should draw into the image through the Graphics2D returned by createGraphics, and then call put.
+     */
+    BufferedImage createImage(Key key, int width, int height) {
+        return new BufferedImage((int) Math.ceil(width * key.scaleX), (int) Math.ceil(height * key.scaleY), BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Returns a Graphics2D for drawing into 'image' in user space, with the same rendering hints as 'g'. */
+    Graphics2D createGraphics(Key key, Graphics2D g, BufferedImage image) {
+        Graphics2D result = image.createGraphics();
+        result.setRenderingHints(g.getRenderingHints());
+        result.scale(key.scaleX, key.scaleY);
+        return result;
+    }
+
+    void put(Key key, Entry entry) {
+        Entry oldEntry = entries.put(key, entry);
+        if (oldEntry != null) {
+            cachedPixelCount -= oldEntry.pixelCount();
+        }
+        cachedPixelCount += entry.pixelCount();
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedPixelCount > MAX_CACHED_PIXEL_COUNT && it.hasNext()) {
+            cachedPixelCount -= it.next().pixelCount();
+            it.remove();
+        }
+    }
+
+    /** Copies the image to 'g' with its top-left corner at (x, y) in user space. */
+    void draw(Graphics2D g, Entry entry, int x, int y) {
+        g.drawImage(entry.image, x, y, x + entry.width, y + entry.height, 0, 0, entry.image.getWidth(), entry.image.getHeight(), null);
+    }
+
+    void clear() {
+        entries.clear();
+        cachedPixelCount = 0;
+    }
+}
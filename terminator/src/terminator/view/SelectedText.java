@@ -0,0 +1,119 @@
+package terminator.view;
+
+import terminator.model.*;
+
+/**
+ * The text of a selection, captured on the EDT so that it can be turned into a String later, on any thread.
+ *
+ * Capturing is cheap even for a selection of the whole of a long history.
+ * History lines never change, so we just hold on to the compacted blocks they're in, with a TerminalModel.getHistorySnapshot.
+ * That keeps them even if they're thrown away, or brought back to life and changed, before getText gets to them.
+ * Only the live lines at the bottom are copied, and those copies share the lines' text rather than copying it.
+ * getText then streams every line into a single StringBuilder, sized from the model's character counts, so there's no per-line String and no regrowing.
+ */
+public final class SelectedText {
+    // How often getText reports progress, in lines.
+    private static final int PROGRESS_LINE_COUNT = 4096;
+
+    /**
+     * Follows a call to getText, on the thread doing the work.
+     */
+    public interface Progress {
+        public void linesCopied(int lineCount);
+        public boolean isCancelled();
+    }
+
+    private final Location start;
+    private final Location end;
+    private final boolean blockMode;
+    // The selected lines that are history.
+    private final LineStore.HistorySnapshot historyLines;
+    // Copies of the selected lines that aren't history.
+    private final TextLine[] liveLines;
+    // An upper bound on the length of the text, not counting block mode's narrower lines.
+    private final int capacity;
+
+    /** Captures the text from 'start' to 'end'. Only for use on the EDT. */
+    SelectedText(TerminalModel model, Location start, Location end, boolean blockMode) {
+        this.start = start;
+        this.end = end;
+        this.blockMode = blockMode;
+        // A selection ending at the start of a line, such as one extending to the bottom of the buffer, doesn't include that line.
+        final int firstLine = start.getLineIndex();
+        final int endLine = Math.min(model.getLineCount(), (end.getCharOffset() == 0) ? end.getLineIndex() : end.getLineIndex() + 1);
+        final int historyLineCount = Math.max(0, Math.min(endLine, model.getHistoryLineCount()) - firstLine);
+        this.historyLines = model.getHistorySnapshot(firstLine, historyLineCount);
+        this.liveLines = model.copyDisplayLines(firstLine + historyLineCount, Math.max(endLine, firstLine + historyLineCount));
+        long length = (endLine > firstLine) ? model.getStartIndex(endLine) - model.getStartIndex(firstLine) : 0;
+        if (blockMode) {
+            length = Math.min(length, (long) getLineCount() * (Math.abs(end.getCharOffset() - start.getCharOffset()) + 1));
+        }
+        this.capacity = (int) Math.min(length, Integer.MAX_VALUE - 8);
+    }
+
+    /** Returns the number of lines selected, which is the amount of work getText has to do. */
+    public int getLineCount() {
+        return historyLines.size() + liveLines.length;
+    }
+
+    /** Returns the text, with tabs as tabs and lines separated by newlines. Safe to call from any thread. */
+    public String getText() {
+        return getText(null);
+    }
+
+    /**
+     * Like getText(), but reports to 'progress' as it goes, if it's not null.
+     * Returns null if 'progress' says we've been cancelled.
+     */
+    public String getText(Progress progress) {
+        StringBuilder out = new StringBuilder(capacity);
+        final int lineCount = getLineCount();
+        final int historyLineCount = historyLines.size();
+        for (int i = 0; i < lineCount; ++i) {
+            if (progress != null && i % PROGRESS_LINE_COUNT == 0) {
+                if (progress.isCancelled()) {
+                    return null;
+                }
+                progress.linesCopied(i);
+            }
+            TextLine textLine = (i < historyLineCount) ? historyLines.get(i) : liveLines[i - historyLineCount];
+            int lineIndex = start.getLineIndex() + i;
+            // In block mode, even the start of the selection may be beyond the end of the model line.
+            int lineStart = Math.min(textLine.length(), getLineStart(blockMode, start, end, lineIndex));
+            int lineEnd = Math.min(textLine.length(), getLineEnd(blockMode, start, end, lineIndex));
+            textLine.appendTabbedString(out, lineStart, lineEnd);
+            if (lineIndex != end.getLineIndex()) {
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /** Returns the offset of the first selected character on line 'lineIndex'. */
+    static int getLineStart(boolean blockMode, Location start, Location end, int lineIndex) {
+        int startOffset = start.getCharOffset();
+        int endOffset = end.getCharOffset();
+        boolean isFirstLine = lineIndex == start.getLineIndex();
+        if (blockMode) {
+            return Math.min(startOffset, endOffset);
+        }
+        if (isFirstLine) {
+            return startOffset;
+        }
+        return 0;
+    }
+
+    /** Returns the offset after the last selected character on line 'lineIndex', or Integer.MAX_VALUE if the selection runs to the end of the line. */
+    static int getLineEnd(boolean blockMode, Location start, Location end, int lineIndex) {
+        int startOffset = start.getCharOffset();
+        int endOffset = end.getCharOffset();
+        boolean isLastLine = lineIndex == end.getLineIndex();
+        if (blockMode) {
+            return Math.max(startOffset, endOffset);
+        }
+        if (isLastLine) {
+            return endOffset;
+        }
+        return Integer.MAX_VALUE;
+    }
+}
@@ -7,6 +7,7 @@ import java.awt.image.*;
 import java.util.*;
 import java.util.List;
 import javax.swing.*;
+import javax.swing.event.*;
 import e.gui.*;
 import e.util.*;
 
@@ -15,9 +16,15 @@ import terminator.model.*;
 import terminator.terminal.*;
 import terminator.view.highlight.*;
 
-public class TerminalView extends JComponent implements FocusListener, Scrollable {
+public class TerminalView extends JComponent implements FocusListener, Scrollable, TerminalDisplay {
     private static final Stopwatch paintComponentStopwatch = Stopwatch.get("TerminalView.paintComponent");
     private static final Stopwatch paintStyledTextStopwatch = Stopwatch.get("TerminalView.paintStyledText");
+    // Comparing these shows what LineImageCache saves us: a hit copies an image, and a miss lays out and draws the line into a new one.
+    private static final Stopwatch lineImageHitStopwatch = Stopwatch.get("TerminalView.paintCachedLineText (hit)");
+    private static final Stopwatch lineImageMissStopwatch = Stopwatch.get("TerminalView.paintCachedLineText (miss)");
+    
+    // Images of recently painted lines, shared with every other TerminalView.
+    private final LineImageCache lineImageCache = LineImageCache.INSTANCE;
     
     private TerminalModel model;
     private Location cursorPosition = new Location(0, 0);
@@ -41,7 +48,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private BirdView birdView;
     private FindBirdsEye birdsEye;
     
-    // Size may be smaller than model's lines. Elements may be null, but should not be empty.
+    // Size may be smaller than model's lines.
+    // A null element in urlMatches means we haven't looked at that line yet; we only look when the mouse goes over it.
+    // Elements of findMatches may be null, but should not be empty.
     // FIXME: this is a mistake:
     // 1. Lines with matches/URLs are very rare, so we shouldn't waste space on lines with no matches.
     // 2. We should use List<Range> rather than Range[].
@@ -49,22 +58,27 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private final ArrayList<Range[]> urlMatches = new ArrayList<Range[]>();
     private final ArrayList<Range[]> findMatches = new ArrayList<Range[]>();
     
+    // Run just after we first paint some output, and then forgotten.
+    private Runnable firstOutputPaintListener;
+    
     // If non-null, the row of this is urlMouseLocation.getLineIndex()
     private Range urlUnderMouse = null;
     // Init line index to 0 so we never need to check if it's a valid line index, but don't have a valid char offset.
     private Location urlMouseLocation = new Location(0, -1);
     
-    // The following constants define how the 'output truncated' watermark is displayed.
-    // Processes running in Terminator can output arbitrary text, and as we don't line-wrap,
-    // this can cause the terminal window to get an unbounded width. Java does not correctly
-    // render GUI components wider than 32768 pixels, plus some of our code is going to get
-    // inefficient for very long lines. To avoid lock-ups, we simply drop text after a
-    // certain point, dictated by whatever text will fit in 32700 pixels.
-    // The watermark is displayed when we get close to this extreme right-hand edge, in a pale
-    // red colour reminiscent of how Evergreen tells us about files being modified in disk.
-    private static final int TRUNCATION_WATERMARK_BEGIN_X = 32500;
-    private static final Color TRUNCATION_COLOR = new Color(250, 150, 150);
-    private static final String[] TRUNCATION_WARNING = {"output", "truncated"};
+    // We don't line-wrap, so a program can output a line of any width; a megabyte of minified JSON is a single line.
+    // Java can't correctly render components wider than 32768 pixels, so rather than make ourselves as wide as the widest line, we scroll horizontally ourselves.
+    // We're always exactly as wide as our viewport, and we paint every line from the first visible column, which is this model's value.
+    // Its extent is the number of visible columns, and its maximum is the width of the widest line.
+    // This works just like vertical scrolling does, and means we only ever look at the part of a line that's on the screen.
+    private final BoundedRangeModel horizontalModel = new DefaultBoundedRangeModel();
+    private int firstVisibleColumn = 0;
+    
+    // How many columns either side of the screen we look for URLs in on a line longer than URL_SEARCH_LIMIT.
+    private static final int URL_SEARCH_LIMIT = 8 * 1024;
+    private static final int URL_SEARCH_CONTEXT = 2 * 1024;
+    // Measuring text further away than this from the first visible column isn't worth it, because nobody can see it.
+    private static final int MAX_MEASURED_COLUMN_COUNT = 1024;
     
     public TerminalView() {
         TerminatorPreferences preferences = Terminator.getPreferences();
@@ -166,6 +180,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 if (model.isMouseTrackingEnabled()) {
                     terminalControl.sendSGR(e.getWheelRotation() < 0 ? 64 : 65, mouseLocationInVisibleArea(e), 'M');
                     e.consume();
+                } else if ((e.getModifiersEx() & InputEvent.SHIFT_DOWN_MASK) != 0) {
+                    // Our horizontal scroll bar isn't the scroll pane's, so HorizontalScrollWheelListener can't find it.
+                    horizontalModel.setValue(horizontalModel.getValue() + 3 * e.getUnitsToScroll());
                 } else {
                     HorizontalScrollWheelListener.INSTANCE.mouseWheelMoved(e);
                 }
@@ -174,6 +191,16 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         addMouseListener(mouseAdapter);
         addMouseMotionListener(mouseAdapter);
         addMouseWheelListener(mouseAdapter);
+        horizontalModel.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                firstVisibleColumnChanged();
+            }
+        });
+        addComponentListener(new ComponentAdapter() {
+            @Override public void componentResized(ComponentEvent e) {
+                updateHorizontalModel();
+            }
+        });
         findHighlighter = new FindHighlighter();
         urlHighlighter = new UrlHighlighter();
         becomeDropTarget();
@@ -201,6 +228,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         TerminatorPreferences preferences = Terminator.getPreferences();
         setFont(preferences.getFont(TerminatorPreferences.FONT));
         setBackground(preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        model.setScrollbackOptions(preferences.getInt(TerminatorPreferences.SCROLLBACK_LINE_LIMIT), preferences.getBoolean(TerminatorPreferences.SPILL_SCROLLBACK_TO_DISK));
+        // The palette may have changed, and that affects the images of every view.
+        lineImageCache.clear();
         sizeChanged();
     }
     
@@ -324,6 +354,38 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return new Dimension(width, height);
     }
     
+    /**
+     * Returns the model of the horizontal scroll bar, in columns.
+     * We scroll horizontally ourselves, so the JScrollPane's own horizontal scroll bar shouldn't be used.
+     */
+    public BoundedRangeModel getHorizontalModel() {
+        return horizontalModel;
+    }
+    
+    /** Returns the index of the column at the left edge of the visible area. */
+    public int getFirstVisibleColumn() {
+        return firstVisibleColumn;
+    }
+    
+    private void firstVisibleColumnChanged() {
+        if (horizontalModel.getValue() == firstVisibleColumn) {
+            return;
+        }
+        selectionHighlighter.columnsScrolled(horizontalModel.getValue() - firstVisibleColumn);
+        firstVisibleColumn = horizontalModel.getValue();
+        // We only look for URLs near the visible part of a long line, so that's changed.
+        urlMatches.clear();
+        urlUnderMouse = null;
+        repaint();
+    }
+    
+    private void updateHorizontalModel() {
+        int visibleColumnCount = Math.max(1, (getWidth() - getInsets().left - getInsets().right) / getCharUnitSize().width);
+        int columnCount = Math.max(model.getMaxLineWidth(), visibleColumnCount);
+        int value = Math.max(0, Math.min(horizontalModel.getValue(), columnCount - visibleColumnCount));
+        horizontalModel.setRangeProperties(value, visibleColumnCount, 0, columnCount, false);
+    }
+    
     /**
      * Returns our size in character units, where 'width' is the number of
      * columns and 'height' the number of rows. (In case you were concerned
@@ -346,7 +408,26 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         Point redrawTop = modelToView(new Location(lineIndex, 0)).getLocation();
         redoHighlightsFrom(lineIndex);
         Dimension size = getSize();
-        repaint(redrawTop.x, redrawTop.y, size.width, size.height - redrawTop.y);
+        repaint(0, redrawTop.y, size.width, size.height - redrawTop.y);
+    }
+    
+    /**
+     * Called by the model when the given line has changed in place.
+     * Unlike linesChangedFrom, no other line has moved, so only this line needs redrawing.
+     */
+    public void lineChanged(int lineIndex) {
+        if (lineIndex < urlMatches.size()) {
+            urlMatches.set(lineIndex, null);
+        }
+        if (lineIndex == urlMouseLocation.getLineIndex()) {
+            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+        }
+        if (lineIndex < findMatches.size() && findMatches.get(lineIndex) != null) {
+            findMatches.set(lineIndex, null);
+            birdView.removeMatchingLine(lineIndex);
+        }
+        findHighlighter.addHighlights(this, lineIndex, lineIndex);
+        repaintLine(lineIndex);
     }
     
     public void sizeChanged() {
@@ -355,11 +436,62 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         setPreferredSize(size);
         setSize(size);
         revalidate();
+        updateHorizontalModel();
+    }
+    
+    public void textChanged(Location start, Location end) {
+        selectionHighlighter.textChanged(start, end);
+    }
+    
+    public void backgroundChanged(Palettes.Ink background) {
+        setBackground(background.get());
+    }
+    
+    public void setWindowTitle(String title) {
+        JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, this);
+        terminalPane.setTerminalName(title);
     }
     
-    public void sizeChanged(Dimension oldSizeInChars, Dimension newSizeInChars) {
+    public void sizeChanged(int oldWidth, int oldHeight, int newWidth, int newHeight) {
         sizeChanged();
-        redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
+        redoHighlightsFrom(Math.min(oldHeight, newHeight));
+    }
+    
+    /**
+     * Called by the model when it throws away the oldest 'count' lines to stay within the scrollback limit.
+     * Everything we know by line index has to move up to match.
+     */
+    public void linesDiscarded(int count) {
+        discardOldest(urlMatches, count);
+        discardOldest(findMatches, count);
+        birdView.setValueIsAdjusting(true);
+        try {
+            birdView.clearMatchingLines();
+            for (int i = 0; i < findMatches.size(); ++i) {
+                if (findMatches.get(i) != null) {
+                    birdView.addMatchingLine(i);
+                }
+            }
+        } finally {
+            birdView.setValueIsAdjusting(false);
+        }
+        birdsEye.linesDiscarded(count);
+        selectionHighlighter.linesDiscarded(count);
+        urlMouseLocation = new Location(urlMouseLocation.getLineIndex() - count, urlMouseLocation.getCharOffset());
+        urlUnderMouse = null;
+        
+        // If the user's reading the history, keep the same text in view.
+        if (isAtBottom() == false) {
+            JViewport viewport = getViewport();
+            Point position = viewport.getViewPosition();
+            position.y = Math.max(0, position.y - count * getCharUnitSize().height);
+            viewport.setViewPosition(position);
+        }
+        repaint();
+    }
+    
+    private static <T> void discardOldest(ArrayList<T> list, int count) {
+        list.subList(0, Math.min(count, list.size())).clear();
     }
     
     public void scrollToBottomButNotHorizontally() {
@@ -379,8 +511,6 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     public void scrollHorizontallyToShowCursor() {
-        JScrollPane pane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
-        
         if (isLineVisible(getCursorPosition().getLineIndex()) == false) {
             // We shouldn't be jumping the horizontal scroll bar
             // about because of new output if the user's trying to
@@ -401,10 +531,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         // "cat > /dev/null" and then type more characters than fit
         // on a line.]
         
-        int leftCursorEdge = getCursorPosition().getCharOffset() * getCharUnitSize().width;
-        int rightCursorEdge = leftCursorEdge + getCharUnitSize().width;
-        
-        BoundedRangeModel horizontalModel = pane.getHorizontalScrollBar().getModel();
+        int cursorColumn = getCursorPosition().getCharOffset();
         
         int leftWindowEdge = horizontalModel.getValue();
         int rightWindowEdge = leftWindowEdge + horizontalModel.getExtent();
@@ -412,10 +539,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         // We don't want to scroll back as the user moves the
         // cursor back; we should just ensure that the cursor
         // is visible, and do nothing if it is already visible.
-        if (leftCursorEdge < leftWindowEdge) {
-            horizontalModel.setValue(leftCursorEdge - horizontalModel.getExtent() / 2);
-        } else if (rightCursorEdge > rightWindowEdge) {
-            horizontalModel.setValue(rightCursorEdge - horizontalModel.getExtent() / 2);
+        if (cursorColumn < leftWindowEdge) {
+            horizontalModel.setValue(cursorColumn - horizontalModel.getExtent() / 2);
+        } else if (cursorColumn + 1 > rightWindowEdge) {
+            horizontalModel.setValue(cursorColumn + 1 - horizontalModel.getExtent() / 2);
         }
     }
     
@@ -425,17 +552,27 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     private void scrollTo(final int lineNumber, final int charStart, final int charEnd) {
         Dimension character = getCharUnitSize();
-        final int x0 = charStart * character.width;
         final int y0 = lineNumber * character.height - 10;
-        final int width = (charEnd - charStart) * character.width;
         final int height = character.height + 20;
-        // Showing the beginning of the line first lets us scroll
-        // horizontally as far as necessary but no further. We'd rather
+        scrollRectToVisible(new Rectangle(0, y0, 0, height));
+        // Scroll horizontally as far as necessary but no further. We'd rather
         // show more of the beginning of the line in case we've jumped
         // here from a long way away; the beginning is where the
         // context is.
-        scrollRectToVisible(new Rectangle(0, y0, 0, height));
-        scrollRectToVisible(new Rectangle(x0, y0, width, height));
+        horizontalModel.setValue(Math.max(0, Math.min(charStart, charEnd - horizontalModel.getExtent())));
+    }
+    
+    /**
+     * Scrolls so that 'point' is visible, as when the user drags a selection out of the window.
+     */
+    public void scrollToShow(Point point) {
+        scrollRectToVisible(new Rectangle(0, point.y, 0, 10));
+        Insets insets = getInsets();
+        if (point.x < insets.left) {
+            horizontalModel.setValue(horizontalModel.getValue() - 1);
+        } else if (point.x >= getWidth() - insets.right) {
+            horizontalModel.setValue(horizontalModel.getValue() + 1);
+        }
     }
     
     /**
@@ -505,7 +642,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     public Location viewToModel(Point point, boolean blockMode) {
         Insets insets = getInsets();
         int lineIndex = (point.y - insets.top) / getCharUnitSize().height;
-        String modelLine = "";
+        TextLine textLine = null;
         // In line mode, if the line index is off the top or bottom, we leave charOffset = 0.
         // This makes it easier to select the whole first or last line.
         if (lineIndex >= model.getLineCount()) {
@@ -513,20 +650,25 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         } else if (lineIndex < 0) {
             lineIndex = 0;
         } else {
-            modelLine = model.getDisplayTextLine(lineIndex).getString();
+            textLine = model.getDisplayTextLine(lineIndex);
+        }
+        final int lineLength = (textLine != null) ? textLine.length() : 0;
+        final int x = point.x - insets.left;
+        // We only need to measure the visible part of the line, plus a little to cope with drags off the right-hand edge.
+        String visibleText = "";
+        if (firstVisibleColumn < lineLength) {
+            visibleText = textLine.getSubstring(firstVisibleColumn, Math.min(lineLength, firstVisibleColumn + 2 * horizontalModel.getExtent() + 1));
         }
         // In block mode, there may not be text at the point we want to calculate.
         // We assume that W (see getCharUnitSize) doesn't have zero width.
-        // This does create very large strings & cause some GC but the measured
-        // performance impact is not prohibitive and only felt during
-        // block selection.  See:
-        // http://groups.google.com/group/terminator-users/browse_thread/thread/a71988c145e39cbb
-        String padding = blockMode ? StringUtilities.nCopies(Math.max(0, point.x - insets.left), 'W') : "";
-        String paddedModelLine = modelLine + padding;
-        char[] chars = paddedModelLine.toCharArray();
-        int charOffset = 0;
+        String padding = blockMode ? StringUtilities.nCopies(Math.max(0, x / getCharUnitSize().width + 1), 'W') : "";
+        char[] chars = (visibleText + padding).toCharArray();
+        int charOffset = firstVisibleColumn;
         if (chars.length > 0) {
-            charOffset = GuiUtilities.getCharOffset(getFontMetrics(getFont()), 0, point.x - insets.left, chars);
+            charOffset += GuiUtilities.getCharOffset(getFontMetrics(getFont()), 0, x, chars);
+        }
+        if (blockMode == false) {
+            charOffset = Math.min(charOffset, lineLength);
         }
         return new Location(lineIndex, charOffset);
     }
@@ -536,56 +678,53 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         // 1. If the user sweeps a selection too far.
         // 2. If the user starts a new shell, types "man bash", and then clears the history; we move the cursor, and want to know the old cursor location to remove the cursor from, even though there's no longer any text there.
         // Rather than have special case code in each caller, simply return a reasonable result.
-        // Note that it's okay to have the empty string as the default here because we'll pad if necessary later in this method.
-        String line = "";
+        TextLine textLine = null;
         if (charCoords.getLineIndex() < model.getLineCount()) {
-            line = model.getDisplayTextLine(charCoords.getLineIndex()).getString();
+            textLine = model.getDisplayTextLine(charCoords.getLineIndex());
         }
         
         final int offset = Math.max(0, charCoords.getCharOffset());
         
-        String characterAtLocation;
-        if (line.length() == offset) {
-            // A very common case is where the location is one past the end of the line.
-            // We don't need to add a single space if we're just going to  pull it off again.
-            // This might not seem like much, but it can be costly if you've got very long lines.
-            characterAtLocation = " ";
-        } else {
-            // Pad the line if we need to.
-            final int desiredLength = offset + 1;
-            if (line.length() < desiredLength) {
-                final int charactersOfPaddingRequired = desiredLength - line.length();
-                line += StringUtilities.nCopies(charactersOfPaddingRequired, " ");
-            }
-            characterAtLocation = line.substring(offset, offset + 1);
-        }
-        
-        String lineBeforeOffset = line.substring(0, offset);
+        // A very common case is where the location is one past the end of the line, where we'd have a space.
         FontMetrics fontMetrics = getFontMetrics(getFont());
-        Insets insets = getInsets();
-        final int x = insets.left + fontMetrics.stringWidth(lineBeforeOffset);
-        final int width = fontMetrics.stringWidth(characterAtLocation);
+        final boolean isInText = (textLine != null && offset < textLine.length());
+        final int x = getColumnX(textLine, offset);
+        final int width = isInText ? fontMetrics.stringWidth(textLine.getSubstring(offset, offset + 1)) : fontMetrics.charWidth(' ');
         final int height = getCharUnitSize().height;
-        final int y = insets.top + charCoords.getLineIndex() * height;
+        final int y = getInsets().top + charCoords.getLineIndex() * height;
         return new Rectangle(x, y, width, height);
     }
     
+    /**
+     * Returns the x coordinate of the left edge of the given column of 'textLine', which may be scrolled out of sight, or past the end of the line.
+     * A null 'textLine' stands for a line past the bottom of the text.
+     * We only measure the text between the first visible column and 'column', so a long line costs no more than a short one.
+     */
+    private int getColumnX(TextLine textLine, int column) {
+        final int charWidth = getCharUnitSize().width;
+        final int from = Math.min(firstVisibleColumn, column);
+        final int to = Math.max(firstVisibleColumn, column);
+        int width;
+        if (to - from > MAX_MEASURED_COLUMN_COUNT) {
+            width = (to - from) * charWidth;
+        } else {
+            // Columns beyond the end of the text are blank, and a space is as wide as anything else in a fixed-width font.
+            final int textEnd = (textLine != null) ? Math.min(to, textLine.length()) : 0;
+            width = (from < textEnd) ? getFontMetrics(getFont()).stringWidth(textLine.getSubstring(from, textEnd)) : 0;
+            width += (to - Math.max(from, textEnd)) * charWidth;
+        }
+        return getInsets().left + ((column >= firstVisibleColumn) ? width : -width);
+    }
+    
     public Dimension getOptimalViewSize() {
         Dimension character = getCharUnitSize();
         Insets insets = getInsets();
-        // FIXME: really, we need to track the maximum pixel width.
-        final int width = insets.left + model.getMaxLineWidth() * character.width + insets.right;
+        // We track our viewport's width, and scroll horizontally ourselves, so we'd like to be as wide as the terminal.
+        final int width = insets.left + model.getWidth() * character.width + insets.right;
         final int height = insets.top + model.getLineCount() * character.height + insets.bottom;
         return new Dimension(width, height);
     }
     
-    public void setUrlMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(urlMatches, lineIndex, matches);
-        if (lineIndex == urlMouseLocation.getLineIndex()) {
-            urlUnderMouse = getUrlForLocation(urlMouseLocation);
-        }
-    }
-    
     public void setFindMatches(int lineIndex, Range[] matches) {
         resizeAndSet(findMatches, lineIndex, matches);
         birdView.addMatchingLine(lineIndex);
@@ -609,7 +748,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     private void redoHighlightsFrom(int firstLineIndex) {
         removeHighlightsFrom(firstLineIndex);
-        urlHighlighter.addHighlightsFrom(this, firstLineIndex);
+        if (urlMouseLocation.getLineIndex() >= firstLineIndex) {
+            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+        }
         findHighlighter.addHighlightsFrom(this, firstLineIndex);
     }
     
@@ -714,10 +855,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private Range getUrlForLocation(Location location) {
         int line = location.getLineIndex();
         int offset = location.getCharOffset();
-        if (line >= urlMatches.size() || urlMatches.get(line) == null) {
+        if (line < 0 || line >= model.getLineCount()) {
             return null;
         }
-        for (Range r : urlMatches.get(line)) {
+        for (Range r : getUrlMatches(line)) {
             // Optimization: URLs are in order.
             if (r.getStart() > offset) {
                 return null;
@@ -729,51 +870,34 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return null;
     }
     
-    private int getLineStart(boolean blockMode, Location start, Location end, int lineIndex) {
-        int startOffset = start.getCharOffset();
-        int endOffset = end.getCharOffset();
-        boolean isFirstLine = lineIndex == start.getLineIndex();
-        if (blockMode) {
-            return Math.min(startOffset, endOffset);
-        }
-        if (isFirstLine) {
-            return startOffset;
+    /** Returns the URLs on the given line, finding them if we haven't already. */
+    private Range[] getUrlMatches(int lineIndex) {
+        Range[] matches = (lineIndex < urlMatches.size()) ? urlMatches.get(lineIndex) : null;
+        if (matches == null) {
+            TextLine textLine = model.getDisplayTextLine(lineIndex);
+            if (textLine.length() <= URL_SEARCH_LIMIT) {
+                matches = urlHighlighter.findUrls(textLine.getString());
+            } else {
+                // Searching the whole of a long line every time more is written to it would be quadratic, so just search around the visible part.
+                int start = Math.max(0, Math.min(textLine.length(), firstVisibleColumn) - URL_SEARCH_CONTEXT);
+                int end = Math.min(textLine.length(), firstVisibleColumn + horizontalModel.getExtent() + URL_SEARCH_CONTEXT);
+                matches = urlHighlighter.findUrls(textLine.getSubstring(start, end));
+                for (int i = 0; i < matches.length; ++i) {
+                    matches[i] = new Range(start + matches[i].getStart(), start + matches[i].getEnd());
+                }
+            }
+            resizeAndSet(urlMatches, lineIndex, matches);
         }
-        return 0;
+        return matches;
     }
     
-    private int getLineEnd(boolean blockMode, Location start, Location end, int lineIndex) {
-        int startOffset = start.getCharOffset();
-        int endOffset = end.getCharOffset();
-        boolean isLastLine = lineIndex == end.getLineIndex();
-        if (blockMode) {
-            return Math.max(startOffset, endOffset);
-        }
-        if (isLastLine) {
-            return endOffset;
-        }
-        TextLine textLine = model.getDisplayTextLine(lineIndex);
-        int lineLength = textLine.length();
-        return lineLength;
+    public String getTabbedString(Location start, Location end, boolean blockMode) {
+        return getSelectedText(start, end, blockMode).getText();
     }
     
-    public String getTabbedString(Location start, Location end, boolean blockMode) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = start.getLineIndex(); i <= end.getLineIndex(); i++) {
-            // Necessary to cope with selections extending to the bottom of the buffer.
-            if (i == end.getLineIndex() && end.getCharOffset() == 0) {
-                break;
-            }
-            TextLine textLine = model.getDisplayTextLine(i);
-            // In block mode, even the start of the selection may be beyond the end of the model line.
-            int lineStart = Math.min(textLine.length(), getLineStart(blockMode, start, end, i));
-            int lineEnd = Math.min(textLine.length(), getLineEnd(blockMode, start, end, i));
-            buf.append(textLine.getTabbedString(lineStart, lineEnd));
-            if (i != end.getLineIndex()) {
-                buf.append('\n');
-            }
-        }
-        return buf.toString();
+    /** Captures the text from 'start' to 'end', so it can be turned into a String later, on any thread. */
+    public SelectedText getSelectedText(Location start, Location end, boolean blockMode) {
+        return new SelectedText(model, start, end, blockMode);
     }
     
     // Redraw code.
@@ -793,32 +917,6 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return out;
     }
     
-    private BufferedImage getTruncationWarning() {
-        // Stolen from Evergreen's WatermarkViewPort.
-        FontMetrics metrics = getFontMetrics(getFont());
-        int fontHeight = metrics.getMaxAscent() + metrics.getMaxDescent();
-        int stringWidth = 0;
-        int[] lineWidths = new int[TRUNCATION_WARNING.length];
-        for (int i = 0; i < TRUNCATION_WARNING.length; i++) {
-            lineWidths[i] = metrics.stringWidth(TRUNCATION_WARNING[i]);
-            stringWidth = Math.max(stringWidth, lineWidths[i]);
-        }
-        // Not entirely accurate, but gives us some nice spacing.
-        int imageSize = (int)((fontHeight * TRUNCATION_WARNING.length + stringWidth) / Math.sqrt(2));
-        BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = image.createGraphics();
-        g.setColor(getBackground());
-        g.fillRect(0, 0, imageSize, imageSize);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g.translate(imageSize / 2, imageSize / 2);
-        g.rotate(-Math.PI / 4);
-        g.setColor(TRUNCATION_COLOR);
-        for (int i = 0; i < TRUNCATION_WARNING.length; i++) {
-            g.drawString(TRUNCATION_WARNING[i], -lineWidths[i] / 2, i * fontHeight);
-        }
-        return image;
-    }
-    
     @Override public void paintComponent(Graphics oldGraphics) {
         Stopwatch.Timer timer = paintComponentStopwatch.start();
         try {
@@ -832,26 +930,12 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             g.setColor(getBackground());
             g.fill(rect);
             
-            // If we're getting close to the right-hand edge, paint the watermark to warn the user that some
-            // of their text has been dropped.
-            // The watermark is pale red text with the words 'output truncated', drawn at a 45 degree angle.
-            // If you generate a particularly long line, for example by running this:
-            // for i in {0..4700};do echo -n foo4567890;done
-            // ...then you should see the watermark if you scroll completely to the right.
-            if (rect.x + rect.width > TRUNCATION_WATERMARK_BEGIN_X) {
-                BufferedImage im = getTruncationWarning();
-                int yMin = rect.y - rect.y % im.getHeight();
-                for (int x = TRUNCATION_WATERMARK_BEGIN_X; x < rect.x + rect.width; x += im.getWidth()) {
-                    for (int y = yMin; y < rect.y + rect.height; y += im.getHeight()) {
-                        g.drawImage(im, x, y, null);
-                    }
-                }
-            }
-            
             // We manually "clip" for performance, but we're quite loose about it.
             // This avoids accidental pathological cases (hopefully) and doesn't seem to have any significant cost.
+            // Every line is painted from firstVisibleColumn, and we never look further along a line than twice the number of columns that would fit, in case of narrow glyphs.
             final int maxX = rect.x + rect.width;
             final int widthHintInChars = maxX / charUnitSize.width * 2;
+            final int lastColumn = firstVisibleColumn + widthHintInChars;
             
             Insets insets = getInsets();
             int firstTextLine = (rect.y - insets.top) / charUnitSize.height;
@@ -862,36 +946,19 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             final boolean hasSelection = selectionStart != null;
             
             for (int i = firstTextLine; i <= lastTextLine; i++) {
-                boolean drawCursor = (shouldShowCursor() && i == cursorPosition.getLineIndex());
-                int x = insets.left;
                 int baseline = insets.top + charUnitSize.height * (i + 1) - metrics.getMaxDescent();
                 TextLine textLine = model.getDisplayTextLine(i);
                 final int length = textLine.length();
-                int urlStart = length;
-                int urlEnd = length;
+                Range urlRange = null;
                 if (urlUnderMouse != null && i == urlMouseLocation.getLineIndex()) {
-                    urlStart = urlUnderMouse.getStart();
-                    urlEnd = urlUnderMouse.getEnd();
+                    urlRange = urlUnderMouse;
                 }
                 Range[] findResults = matchesForLine(i);
-                int findIndex = -1;
-                int findStart = 0, findEnd = -1;
-                for (int start = 0, end, done; start < length && x < maxX; start = done) {
-                    if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
-                        findStart = findResults[findIndex].getStart();
-                        findEnd = findResults[findIndex].getEnd();
-                    }
-                    end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
-                    done = textLine.getRunLimit(start, end);
-                    String text = textLine.getSubstring(start, done);
-                    Style style = textLine.getStyleAt(start);
-                    boolean isUrl = urlStart <= start && start < urlEnd;
-                    boolean isFind = findStart <= start && start < findEnd;
-                    x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
-                    if (drawCursor && cursorPosition.charOffsetInRange(start, done)) {
-                        paintCursor(g, textLine.getSubstring(cursorPosition.getCharOffset(), cursorPosition.getCharOffset() + 1), baseline);
-                        drawCursor = false;
-                    }
+                int x;
+                if (urlRange == null && findResults == null && length > 0 && firstVisibleColumn == 0) {
+                    x = insets.left + paintCachedLineText(g, metrics, textLine, insets.left, insets.top + charUnitSize.height * i, maxX);
+                } else {
+                    x = paintLineText(g, metrics, textLine, urlRange, findResults, firstVisibleColumn, Math.min(length, lastColumn), insets.left, baseline, maxX);
                 }
                 Color lineBG = textLine.getBackground().get();
                 if (x < maxX && !getBackground().equals(lineBG)) {
@@ -899,29 +966,25 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                     g.setColor(lineBG);
                     g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
                 }
-                if (drawCursor) {
+                if (shouldShowCursor() && i == cursorPosition.getLineIndex()) {
                     // A cursor at the end of the line is in a position past the end of the text.
-                    paintCursor(g, "", baseline);
+                    int offset = cursorPosition.getCharOffset();
+                    paintCursor(g, (offset < length) ? textLine.getSubstring(offset, offset + 1) : "", baseline);
                 }
                 if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
                     boolean blockMode = selectionHighlighter.isBlockMode();
-                    int start = getLineStart(blockMode, selectionStart, selectionEnd, i);
-                    int end = getLineEnd(blockMode, selectionStart, selectionEnd, i);
+                    int start = SelectedText.getLineStart(blockMode, selectionStart, selectionEnd, i);
+                    int end = SelectedText.getLineEnd(blockMode, selectionStart, selectionEnd, i);
                     boolean toEnd = blockMode == false && selectionEnd.getLineIndex() != i;
-                    String paddedLine = textLine.getString();
-                    if (end > length) {
-                        final int charactersOfPaddingRequired = end - length;
-                        // See getCharUnitSize for the 'W'.
-                        paddedLine += StringUtilities.nCopies(charactersOfPaddingRequired, 'W');
-                    }
 
                     // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
                     Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
                     g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
 
-                    x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
+                    // Parts of the selection that are scrolled out of sight needn't be painted, and may be millions of pixels away.
+                    x = Math.max(0, getColumnX(textLine, start));
                     int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
-                    int w = toEnd ? maxX - x : metrics.stringWidth(paddedLine.substring(start, end));
+                    int w = toEnd ? maxX - x : Math.min(maxX, getColumnX(textLine, end)) - x;
                     int h = charUnitSize.height;
 
                     g.fillRect(x, y, w, h);
@@ -930,6 +993,95 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         } finally {
             timer.stop();
         }
+        // Output moves the cursor, so that's how we know there's been some.
+        if (firstOutputPaintListener != null && cursorPosition.equals(new Location(0, 0)) == false) {
+            Runnable listener = firstOutputPaintListener;
+            firstOutputPaintListener = null;
+            listener.run();
+        }
+    }
+    
+    /**
+     * Arranges for 'listener' to be run on the EDT just after we've first painted some output, such as a shell's prompt.
+     * Used by StartupBenchmark to time opening a terminal.
+     */
+    public void setFirstOutputPaintListener(Runnable listener) {
+        this.firstOutputPaintListener = listener;
+    }
+    
+    /**
+     * Paints the characters [firstColumn, lastColumn) of a line, with any URL and find highlights, starting at 'x'.
+     * We stop once we're past 'maxX'.
+     * Returns the x coordinate where we stopped.
+     */
+    private int paintLineText(Graphics2D g, FontMetrics metrics, TextLine textLine, Range urlRange, Range[] findResults, int firstColumn, int lastColumn, int x, int baseline, int maxX) {
+        final int length = lastColumn;
+        final int urlStart = (urlRange != null) ? urlRange.getStart() : length;
+        final int urlEnd = (urlRange != null) ? urlRange.getEnd() : length;
+        int findIndex = -1;
+        int findStart = 0, findEnd = -1;
+        for (int start = firstColumn, end, done; start < length && x < maxX; start = done) {
+            // Skip any matches we've passed, including those to the left of the visible columns.
+            while (findResults != null && findEnd <= start && findIndex + 1 < findResults.length) {
+                ++findIndex;
+                findStart = findResults[findIndex].getStart();
+                findEnd = findResults[findIndex].getEnd();
+            }
+            end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
+            done = textLine.getRunLimit(start, end);
+            String text = textLine.getSubstring(start, done);
+            Style style = textLine.getStyleAt(start);
+            boolean isUrl = urlStart <= start && start < urlEnd;
+            boolean isFind = findStart <= start && start < findEnd;
+            x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
+        }
+        return x;
+    }
+    
+    /**
+     * Paints the text of a line without highlights, copying an image from lineImageCache if possible.
+     * 'y' is the top of the line.
+     * Returns the width of the text.
+     */
+    private int paintCachedLineText(Graphics2D g, FontMetrics metrics, TextLine textLine, int x, int y, int maxX) {
+        final LineImageCache.Key key = new LineImageCache.Key(textLine.getContentKey(), g, getFont(), getBackground());
+        LineImageCache.Entry entry = lineImageCache.get(key);
+        if (entry != null) {
+            Stopwatch.Timer timer = lineImageHitStopwatch.start();
+            try {
+                lineImageCache.draw(g, entry, x, y);
+                return entry.textWidth;
+            } finally {
+                timer.stop();
+            }
+        }
+        Stopwatch.Timer timer = lineImageMissStopwatch.start();
+        try {
+            final int height = getCharUnitSize().height;
+            // Allow an extra pixel for the overstrike of bold text, and another in case the runs measure wider than the whole.
+            // Even a narrow font won't fit a line much longer than this into an image, so don't measure it.
+            final int width = (textLine.length() > LineImageCache.MAX_IMAGE_WIDTH) ? Integer.MAX_VALUE : metrics.stringWidth(textLine.getString()) + 2;
+            if (width > LineImageCache.MAX_IMAGE_WIDTH) {
+                final int lastColumn = Math.min(textLine.length(), (maxX - x) / getCharUnitSize().width * 2);
+                return paintLineText(g, metrics, textLine, null, null, 0, lastColumn, x, y + height - metrics.getMaxDescent(), maxX) - x;
+            }
+            BufferedImage image = lineImageCache.createImage(key, width, height);
+            Graphics2D imageGraphics = lineImageCache.createGraphics(key, g, image);
+            try {
+                imageGraphics.setFont(getFont());
+                imageGraphics.setColor(getBackground());
+                imageGraphics.fillRect(0, 0, width, height);
+                int textWidth = paintLineText(imageGraphics, metrics, textLine, null, null, 0, textLine.length(), 0, height - metrics.getMaxDescent(), Integer.MAX_VALUE);
+                entry = new LineImageCache.Entry(image, textWidth, width, height);
+            } finally {
+                imageGraphics.dispose();
+            }
+            lineImageCache.put(key, entry);
+            lineImageCache.draw(g, entry, x, y);
+            return entry.textWidth;
+        } finally {
+            timer.stop();
+        }
     }
     
     /**
@@ -1071,7 +1223,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     public boolean getScrollableTracksViewportWidth() {
-        return false;
+        return true; // We scroll horizontally ourselves; see horizontalModel.
     }
     
     public boolean getScrollableTracksViewportHeight() {
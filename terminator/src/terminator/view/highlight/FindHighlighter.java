@@ -4,6 +4,7 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 import java.util.ArrayList;
 import javax.swing.*;
@@ -12,12 +13,23 @@ import terminator.view.*;
 
 /**
  * Highlights the results of user-initiated finds.
+ * 
+ * Lines at the bottom of the terminal can change, so they're searched on the EDT, as they change.
+ * The history above them can't change, so that's searched in the background by a HistorySearch, in chunks spread across all the CPUs.
+ * The model numbers history lines so that the numbers don't change as older lines are thrown away, so the search isn't confused by output arriving while it runs.
+ * History lines brought back to life while the search runs (by a resize, say) can only be read on the EDT, so the search hands those back to the EDT.
  */
 public class FindHighlighter {
-    private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Background Find");
+    private static final ExecutorService findPool = ThreadUtilities.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Find");
+    // How many lines of history each chunk covers. Big enough to make a task's overhead negligible.
+    private static final int CHUNK_LINE_COUNT = 4096;
+    // How often to report progress.
+    private static final long PROGRESS_INTERVAL_NS = 200 * 1000 * 1000;
     
     private Pattern pattern;
     private String regularExpression = "";
+    // The background search of the history for the current pattern, if any.
+    private HistorySearch historySearch;
     
     public String getName() {
         return "Find Highlighter";
@@ -56,23 +68,19 @@ public class FindHighlighter {
             return;
         }
         
-        executorService.execute(new SwingWorker<Object, Object>() {
-            private int matchCount;
-            
-            @Override
-            protected Object doInBackground() {
-                matchCount = addHighlightsInternal(view, 0);
-                return null;
-            }
-            
-            @Override
-            protected void done() {
-                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
-            }
-        });
+        // The lines that can still change are searched now, so the user sees the matches on the screen straight away.
+        TerminalModel model = view.getModel();
+        int historyLineCount = model.getHistoryLineCount();
+        int matchCount = addHighlightsInternal(view, historyLineCount, model.getLineCount() - 1);
+        historySearch = new HistorySearch(view, pattern, model.getDiscardedLineCount(), historyLineCount, matchCount, findStatusDisplay);
+        historySearch.start();
     }
     
     public void forgetPattern(TerminalView view) {
+        if (historySearch != null) {
+            historySearch.cancel();
+            historySearch = null;
+        }
         view.removeFindMatches();
         this.pattern = null;
         this.regularExpression = "";
@@ -80,13 +88,18 @@ public class FindHighlighter {
     
     /** Request to add highlights to all lines of the view from the index given onwards. */
     public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
-        addHighlightsInternal(view, firstLineIndex);
+        addHighlightsInternal(view, firstLineIndex, view.getModel().getLineCount() - 1);
+    }
+    
+    /** Request to add highlights to the lines from 'firstLineIndex' to 'lastLineIndex' inclusive. */
+    public void addHighlights(TerminalView view, int firstLineIndex, int lastLineIndex) {
+        addHighlightsInternal(view, firstLineIndex, lastLineIndex);
     }
 
     /**
      * Returns the number of highlights added.
      */
-    private int addHighlightsInternal(TerminalView view, int firstLineIndex) {
+    private int addHighlightsInternal(TerminalView view, int firstLineIndex, int lastLineIndex) {
         if (pattern == null) {
             return 0;
         }
@@ -97,7 +110,7 @@ public class FindHighlighter {
             int count = 0;
             // FIXME: this strange scoping avoids allocating an ArrayList for lines without matches, but there must be a cleaner way.
             final ArrayList<Range> matches = new ArrayList<Range>();
-            for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
+            for (int i = lastLineIndex; i >= firstLineIndex; i--) {
                 String text = model.getDisplayTextLine(i).getString();
                 Matcher matcher = pattern.matcher(text);
                 matches.clear();
@@ -115,4 +128,186 @@ public class FindHighlighter {
             view.getBirdView().setValueIsAdjusting(false);
         }
     }
+    
+    /**
+     * Searches the history in the background, handing matches to the view on the EDT as they're found.
+     * History lines can't change, but they can be thrown away, so we work in absolute line indexes.
+     */
+    private static final class HistorySearch {
+        private final TerminalView view;
+        private final Pattern pattern;
+        private final long firstAbsoluteIndex;
+        private final int lineCount;
+        private final FindStatusDisplay findStatusDisplay;
+        
+        private volatile boolean isCancelled = false;
+        private final AtomicInteger searchedLineCount = new AtomicInteger(0);
+        private final AtomicInteger matchCount;
+        private final AtomicLong lastProgressTime_ns = new AtomicLong(System.nanoTime());
+        // How many chunks haven't finished yet. Whichever finishes last reports the final match count.
+        private final AtomicInteger remainingChunkCount = new AtomicInteger(0);
+        
+        HistorySearch(TerminalView view, Pattern pattern, long firstAbsoluteIndex, int lineCount, int initialMatchCount, FindStatusDisplay findStatusDisplay) {
+            this.view = view;
+            this.pattern = pattern;
+            this.firstAbsoluteIndex = firstAbsoluteIndex;
+            this.lineCount = lineCount;
+            this.matchCount = new AtomicInteger(initialMatchCount);
+            this.findStatusDisplay = findStatusDisplay;
+        }
+        
+        void start() {
+            if (lineCount == 0) {
+                reportMatchCount();
+                return;
+            }
+            remainingChunkCount.set((lineCount + CHUNK_LINE_COUNT - 1) / CHUNK_LINE_COUNT);
+            for (int start = 0; start < lineCount; start += CHUNK_LINE_COUNT) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + CHUNK_LINE_COUNT, lineCount);
+                findPool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (isCancelled == false) {
+                                searchChunk(chunkStart, chunkEnd);
+                            }
+                        } finally {
+                            chunkFinished();
+                        }
+                    }
+                });
+            }
+        }
+        
+        private void chunkFinished() {
+            // The chunk's matches were posted to the EDT before this, so they'll be counted by the time this runs.
+            if (remainingChunkCount.decrementAndGet() == 0) {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        reportMatchCount();
+                    }
+                });
+            }
+        }
+        
+        /** Stops the search. Results still on their way to the EDT are ignored. */
+        void cancel() {
+            isCancelled = true;
+        }
+        
+        private void reportMatchCount() {
+            if (isCancelled == false) {
+                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount.get(), "match", "matches"), false);
+            }
+        }
+        
+        private void searchChunk(int start, int end) {
+            final ArrayList<Long> matchingLines = new ArrayList<Long>();
+            final ArrayList<Range[]> lineMatches = new ArrayList<Range[]>();
+            final ArrayList<Long> revivedLines = new ArrayList<Long>();
+            Matcher matcher = pattern.matcher("");
+            for (int i = start; i < end && isCancelled == false; ++i) {
+                long absoluteIndex = firstAbsoluteIndex + i;
+                TextLine line = view.getModel().getHistoryLine(absoluteIndex);
+                if (line == null) {
+                    // It's been thrown away, or brought back to life, in which case the EDT has to search it.
+                    revivedLines.add(absoluteIndex);
+                    continue;
+                }
+                Range[] matches = findMatches(matcher, line.getString());
+                if (matches != null) {
+                    matchingLines.add(absoluteIndex);
+                    lineMatches.add(matches);
+                }
+            }
+            matchCount.addAndGet(countMatches(lineMatches));
+            final int searched = searchedLineCount.addAndGet(end - start);
+            final boolean reportProgress = shouldReportProgress();
+            if (lineMatches.isEmpty() && revivedLines.isEmpty() && reportProgress == false) {
+                return;
+            }
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    if (isCancelled) {
+                        return;
+                    }
+                    searchRevivedLines(revivedLines, matchingLines, lineMatches);
+                    addMatches(matchingLines, lineMatches);
+                    if (reportProgress) {
+                        findStatusDisplay.setStatus("Searching... " + (100L * searched / lineCount) + "%", false);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Returns the matches in 'text', or null if there aren't any.
+         */
+        private static Range[] findMatches(Matcher matcher, String text) {
+            matcher.reset(text);
+            ArrayList<Range> matches = null;
+            while (matcher.find()) {
+                if (matches == null) {
+                    matches = new ArrayList<Range>();
+                }
+                matches.add(new Range(matcher.start(), matcher.end()));
+            }
+            return (matches != null) ? matches.toArray(new Range[matches.size()]) : null;
+        }
+        
+        // Runs on the EDT, which is the only thread that can read live lines.
+        // Searches those of the given lines that are still in the model, adding their matches to 'matchingLines' and 'lineMatches'.
+        private void searchRevivedLines(ArrayList<Long> revivedLines, ArrayList<Long> matchingLines, ArrayList<Range[]> lineMatches) {
+            TerminalModel model = view.getModel();
+            long discardedLineCount = model.getDiscardedLineCount();
+            Matcher matcher = pattern.matcher("");
+            for (long absoluteIndex : revivedLines) {
+                long lineIndex = absoluteIndex - discardedLineCount;
+                if (lineIndex < 0 || lineIndex >= model.getLineCount()) {
+                    // It's been thrown away.
+                    continue;
+                }
+                Range[] matches = findMatches(matcher, model.getDisplayTextLine((int) lineIndex).getString());
+                if (matches != null) {
+                    matchingLines.add(absoluteIndex);
+                    lineMatches.add(matches);
+                    matchCount.addAndGet(matches.length);
+                }
+            }
+        }
+        
+        private boolean shouldReportProgress() {
+            long now_ns = System.nanoTime();
+            long last_ns = lastProgressTime_ns.get();
+            return (now_ns - last_ns > PROGRESS_INTERVAL_NS && lastProgressTime_ns.compareAndSet(last_ns, now_ns));
+        }
+        
+        private static int countMatches(ArrayList<Range[]> lineMatches) {
+            int count = 0;
+            for (Range[] ranges : lineMatches) {
+                count += ranges.length;
+            }
+            return count;
+        }
+        
+        // Runs on the EDT.
+        private void addMatches(ArrayList<Long> matchingLines, ArrayList<Range[]> lineMatches) {
+            TerminalModel model = view.getModel();
+            long discardedLineCount = model.getDiscardedLineCount();
+            view.getBirdView().setValueIsAdjusting(true);
+            try {
+                for (int i = 0; i < matchingLines.size(); ++i) {
+                    long lineIndex = matchingLines.get(i) - discardedLineCount;
+                    if (lineIndex >= 0 && lineIndex < model.getLineCount()) {
+                        view.setFindMatches((int) lineIndex, lineMatches.get(i));
+                    }
+                }
+            } finally {
+                view.getBirdView().setValueIsAdjusting(false);
+            }
+            if (matchingLines.isEmpty() == false) {
+                view.repaint();
+            }
+        }
+    }
 }
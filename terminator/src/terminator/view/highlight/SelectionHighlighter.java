@@ -4,6 +4,7 @@ import e.util.*;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import terminator.*;
 import terminator.model.*;
@@ -18,7 +19,12 @@ import terminator.view.*;
  * FIXME: a shift-click after a double- or triple-click line/word selection should not cause us to change the original anchor.
  */
 public class SelectionHighlighter implements ClipboardOwner, MouseListener, MouseMotionListener {
-        
+    // Copying a selection with more lines than this to the clipboard happens in the background.
+    private static final int BACKGROUND_COPY_LINE_COUNT = 20 * 1000;
+    // How often a background copy reports its progress.
+    private static final long PROGRESS_INTERVAL_NS = 200 * 1000 * 1000;
+    private static final ExecutorService backgroundCopyExecutor = ThreadUtilities.newSingleThreadExecutor("Selection Copier");
+    
     private TerminalView view;
     // Both null or both non-null.
     private Location highlightStart, highlightEnd;
@@ -29,6 +35,9 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
     // Whether selections are handled as rectangular blocks instead of whole lines.
     private boolean blockMode;
     
+    // The copy to the clipboard still in progress, if any.
+    private BackgroundCopy backgroundCopy;
+    
     /** Creates a SelectionHighlighter for selecting text in the given view, and adds us as mouse listeners to that view. */
     public SelectionHighlighter(TerminalView view) {
         this.view = view;
@@ -59,6 +68,31 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         }
     }
     
+    /** Moves the selection up to match the model having thrown away its oldest 'count' lines. */
+    public void linesDiscarded(int count) {
+        if (initialPoint != null) {
+            initialPoint = new Point(initialPoint.x, initialPoint.y - count * view.getCharUnitSize().height);
+        }
+        if (hasSelection() == false) {
+            return;
+        }
+        if (highlightStart.getLineIndex() < count) {
+            // Some of the selected text has gone, so the selection has too.
+            highlightStart = null;
+            highlightEnd = null;
+        } else {
+            highlightStart = new Location(highlightStart.getLineIndex() - count, highlightStart.getCharOffset());
+            highlightEnd = new Location(highlightEnd.getLineIndex() - count, highlightEnd.getCharOffset());
+        }
+    }
+    
+    /** Moves the point a drag started from to match the view having scrolled 'count' columns to the right. */
+    public void columnsScrolled(int count) {
+        if (initialPoint != null) {
+            initialPoint = new Point(initialPoint.x - count * view.getCharUnitSize().width, initialPoint.y);
+        }
+    }
+    
     public void mousePressed(MouseEvent e) {
         if (e.isConsumed() || !SwingUtilities.isLeftMouseButton(e) || e.isPopupTrigger()) {
             return;
@@ -111,7 +145,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
             Location start = Location.min(oldLocation, newLocation);
             Location end = Location.max(oldLocation, newLocation);
             dragHandler.mouseDragged(start, end);
-            view.scrollRectToVisible(new Rectangle(event.getX(), event.getY(), 10, 10));
+            view.scrollToShow(event.getPoint());
         }
     }
     
@@ -239,11 +273,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         }
         Clipboard systemSelection = view.getToolkit().getSystemSelection();
         if (systemSelection != null) {
-            systemSelection.setContents(new LazyStringSelection() {
-                @Override public String reallyGetText() {
-                    return getTabbedString();
-                }
-            }, this);
+            systemSelection.setContents(makeLazySelection(getSelectedText()), this);
         }
     }
     
@@ -262,7 +292,23 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         if (!hasSelection()) {
             return;
         }
-        String newContents = getTabbedString();
+        if (backgroundCopy != null) {
+            backgroundCopy.cancel();
+            backgroundCopy = null;
+        }
+        SelectedText selectedText = getSelectedText();
+        if (selectedText.getLineCount() >= BACKGROUND_COPY_LINE_COUNT) {
+            if (GuiUtilities.isMacOs() || GuiUtilities.isWindows()) {
+                // These ask for the text as soon as it's on the clipboard, on the EDT, so we build it first, in the background.
+                backgroundCopy = new BackgroundCopy(clipboard, selectedText);
+                backgroundCopyExecutor.execute(backgroundCopy);
+            } else {
+                // X11 only asks for the text when someone pastes.
+                clipboard.setContents(makeLazySelection(selectedText), this);
+            }
+            return;
+        }
+        String newContents = selectedText.getText();
         if (newContents.length() == 0) {
             // Copying the empty string to the clipboard is bizarre, and caused one user trouble (because we didn't cope with zero-length pastes).
             return;
@@ -271,8 +317,87 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         clipboard.setContents(selection, this);
     }
     
+    private static Transferable makeLazySelection(final SelectedText selectedText) {
+        return new LazyStringSelection() {
+            @Override public String reallyGetText() {
+                return selectedText.getText();
+            }
+        };
+    }
+    
+    /**
+     * Builds the text of a big selection off the EDT, showing a ProgressMonitor if it takes a while, and puts it on the clipboard when it's done.
+     */
+    private class BackgroundCopy implements Runnable, SelectedText.Progress {
+        private final Clipboard clipboard;
+        private final SelectedText selectedText;
+        private final ProgressMonitor progressMonitor;
+        private long lastProgressTime_ns = System.nanoTime();
+        private volatile boolean isCancelled = false;
+        
+        BackgroundCopy(Clipboard clipboard, SelectedText selectedText) {
+            this.clipboard = clipboard;
+            this.selectedText = selectedText;
+            this.progressMonitor = new ProgressMonitor(view, "Copying selection...", null, 0, selectedText.getLineCount());
+        }
+        
+        // Runs on the EDT.
+        void cancel() {
+            isCancelled = true;
+            progressMonitor.close();
+        }
+        
+        public void run() {
+            String text = null;
+            try {
+                text = selectedText.getText(this);
+            } catch (OutOfMemoryError er) {
+                Log.warn("OutOfMemoryError copying selection", er);
+            }
+            final String newContents = text;
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    progressMonitor.close();
+                    if (backgroundCopy == BackgroundCopy.this) {
+                        backgroundCopy = null;
+                    }
+                    if (isCancelled || newContents == null || newContents.length() == 0) {
+                        return;
+                    }
+                    clipboard.setContents(new StringSelection(newContents), SelectionHighlighter.this);
+                }
+            });
+        }
+        
+        public void linesCopied(final int lineCount) {
+            long now_ns = System.nanoTime();
+            if (now_ns - lastProgressTime_ns < PROGRESS_INTERVAL_NS) {
+                return;
+            }
+            lastProgressTime_ns = now_ns;
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    if (progressMonitor.isCanceled()) {
+                        isCancelled = true;
+                    } else if (isCancelled == false) {
+                        progressMonitor.setProgress(lineCount);
+                    }
+                }
+            });
+        }
+        
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+    
+    /** Returns the selected text, captured so it can be turned into a String on any thread. */
+    private SelectedText getSelectedText() {
+        return view.getSelectedText(highlightStart, highlightEnd, blockMode);
+    }
+    
     public String getTabbedString() {
-        return hasSelection() ? view.getTabbedString(highlightStart, highlightEnd, blockMode) : "";
+        return hasSelection() ? getSelectedText().getText() : "";
     }
     
     /**
@@ -1,48 +1,62 @@
 package terminator.view.highlight;
 
-import e.gui.SimpleDialog;
 import e.util.PatternUtilities;
 import e.util.Range;
-import java.awt.Cursor;
-import java.awt.event.MouseEvent;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import terminator.Terminator;
 import terminator.TerminatorPreferences;
-import terminator.model.Location;
-import terminator.model.Style;
-import terminator.model.TerminalModel;
-import terminator.view.TerminalView;
 
 /**
  * This works in conjunction with the TerminalView mouse listener that tracks
  * and repaints highlights under the mouse.
+ * 
+ * The view only asks about lines as the mouse moves over them, and remembers the answer until the line changes.
+ * Most lines contain neither a URL nor an error, so we look for a literal that any match must contain before running the regular expressions.
  */
 public class UrlHighlighter {
-    public void addHighlightsFrom(final TerminalView view, final int firstLineIndex) {
-        // FIXME: this code is duplicated in FindHighlighter.addHighlightsInternal.
-        addMatches(PatternUtilities.HYPERLINK_PATTERN, view, firstLineIndex);
-        // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
-        if (Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD) != "") {
-            addMatches(PatternUtilities.ERROR_PATTERN, view, firstLineIndex);
-        }
-    }
+    private static final Range[] NO_MATCHES = new Range[0];
     
-    private void addMatches(Pattern pattern, final TerminalView view, final int firstLineIndex) {
-        final TerminalModel model = view.getModel();
+    /**
+     * Returns the URLs in 'text' (and errors, if the user has configured a script to handle error links) in order.
+     * Returns an empty array if there are none.
+     */
+    public Range[] findUrls(String text) {
         ArrayList<Range> matches = new ArrayList<Range>();
-        for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-            String text = model.getTextLine(i).getString();
-            Matcher matcher = pattern.matcher(text);
-            matches.clear();
-            while (matcher.find()) {
-                matches.add(new Range(matcher.start(), matcher.end()));
-            }
-            if (!matches.isEmpty()) {
-                // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                view.setUrlMatches(i, matches.toArray(new Range[matches.size()]));
+        // Every HYPERLINK_PATTERN match has a scheme.
+        if (text.indexOf("://") != -1) {
+            addMatches(PatternUtilities.HYPERLINK_PATTERN, text, matches);
+        }
+        // Every ERROR_PATTERN match has a line number after a colon.
+        if (text.indexOf(':') != -1 && Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD).length() > 0) {
+            int urlCount = matches.size();
+            addMatches(PatternUtilities.ERROR_PATTERN, text, matches);
+            if (urlCount > 0 && matches.size() > urlCount) {
+                sortByStart(matches);
             }
         }
+        if (matches.isEmpty()) {
+            return NO_MATCHES;
+        }
+        // FIXME: the toArray is a mistake. We should use List<Range> instead.
+        return matches.toArray(new Range[matches.size()]);
+    }
+    
+    private static void addMatches(Pattern pattern, String text, ArrayList<Range> matches) {
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            matches.add(new Range(matcher.start(), matcher.end()));
+        }
+    }
+    
+    private static void sortByStart(ArrayList<Range> matches) {
+        Collections.sort(matches, new Comparator<Range>() {
+            public int compare(Range lhs, Range rhs) {
+                return lhs.getStart() - rhs.getStart();
+            }
+        });
     }
 }